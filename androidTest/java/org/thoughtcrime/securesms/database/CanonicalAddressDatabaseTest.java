@@ -2,6 +2,9 @@ package org.thoughtcrime.securesms.database;
 
 import android.test.InstrumentationTestCase;
 
+import java.util.Arrays;
+import java.util.List;
+
 import static org.fest.assertions.api.Assertions.assertThat;
 
 public class CanonicalAddressDatabaseTest extends InstrumentationTestCase {
@@ -102,6 +105,19 @@ public class CanonicalAddressDatabaseTest extends InstrumentationTestCase {
     assertThat(db.getAddressFromId(similarId)).isEqualTo(SIMILAR_ALPHA);
   }
 
+  public void testBatchLookups() throws Exception {
+    final long       numberId = db.getCanonicalAddressId("222-333-5555");
+    final List<Long> ids      = db.getCanonicalAddressIds(Arrays.asList("+1 (222) 333-5555", EMAIL, "b@c.com",
+                                                                        "222-333-5555", "b@c.com"));
+
+    assertThat(ids).hasSize(5);
+    assertThat(ids.get(0)).isEqualTo(numberId);
+    assertThat(ids.get(1)).isEqualTo(db.getCanonicalAddressId(EMAIL));
+    assertThat(ids.get(2)).isEqualTo(ids.get(4));
+    assertThat(ids.get(3)).isEqualTo(numberId);
+    assertThat(db.getAddressFromId(ids.get(2))).isEqualTo("b@c.com");
+  }
+
   public void testIsNumber() throws Exception {
     assertThat(CanonicalAddressDatabase.isNumberAddress("+495556666777")).isTrue();
     assertThat(CanonicalAddressDatabase.isNumberAddress("(222) 333-4444")).isTrue();
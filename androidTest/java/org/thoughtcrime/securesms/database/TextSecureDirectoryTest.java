@@ -0,0 +1,65 @@
+package org.thoughtcrime.securesms.database;
+
+import android.test.InstrumentationTestCase;
+
+import org.thoughtcrime.securesms.util.DirectoryUtil;
+import org.whispersystems.textsecure.api.push.ContactTokenDetails;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class TextSecureDirectoryTest extends InstrumentationTestCase {
+  private static final String ACTIVE_NUMBER   = "+15550001001";
+  private static final String INACTIVE_NUMBER = "+15550001002";
+
+  private TextSecureDirectory directory;
+
+  public void setUp() throws Exception {
+    super.setUp();
+    this.directory = TextSecureDirectory.getInstance(getInstrumentation().getTargetContext());
+  }
+
+  public void testOnlyChangesAreWritten() throws Exception {
+    String activeToken   = DirectoryUtil.getDirectoryServerToken(ACTIVE_NUMBER);
+    String inactiveToken = DirectoryUtil.getDirectoryServerToken(INACTIVE_NUMBER);
+
+    directory.updateNumbers(createActive(activeToken, "relay"), createInactive(INACTIVE_NUMBER));
+
+    assertThat(directory.getTokens().get(ACTIVE_NUMBER)).isEqualTo(activeToken);
+    assertThat(directory.getTokens().get(INACTIVE_NUMBER)).isEqualTo(inactiveToken);
+    assertThat(directory.isActiveNumber(ACTIVE_NUMBER)).isTrue();
+    assertThat(directory.isActiveNumber(INACTIVE_NUMBER)).isFalse();
+
+    assertThat(directory.updateNumbers(createActive(activeToken, "relay"), createInactive(INACTIVE_NUMBER))).isEqualTo(0);
+    assertThat(directory.updateNumbers(createActive(activeToken, null), createInactive(INACTIVE_NUMBER))).isEqualTo(1);
+    assertThat(directory.getRelay(ACTIVE_NUMBER)).isNull();
+
+    List<ContactTokenDetails> none = Collections.emptyList();
+    assertThat(directory.updateNumbers(none, createInactive(ACTIVE_NUMBER, INACTIVE_NUMBER))).isEqualTo(1);
+    assertThat(directory.isActiveNumber(ACTIVE_NUMBER)).isFalse();
+  }
+
+  private List<ContactTokenDetails> createActive(String token, String relay) {
+    ContactTokenDetails details = new ContactTokenDetails(token, relay, false);
+    details.setNumber(ACTIVE_NUMBER);
+
+    List<ContactTokenDetails> results = new LinkedList<>();
+    results.add(details);
+    return results;
+  }
+
+  private Map<String, String> createInactive(String... numbers) {
+    Map<String, String> results = new HashMap<>();
+
+    for (String number : numbers) {
+      results.put(DirectoryUtil.getDirectoryServerToken(number), number);
+    }
+
+    return results;
+  }
+}
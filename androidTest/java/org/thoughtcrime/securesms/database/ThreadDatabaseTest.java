@@ -0,0 +1,109 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.test.InstrumentationTestCase;
+import android.util.Pair;
+
+import org.thoughtcrime.securesms.sms.IncomingEncryptedMessage;
+import org.thoughtcrime.securesms.sms.IncomingTextMessage;
+import org.whispersystems.libaxolotl.util.guava.Optional;
+import org.whispersystems.textsecure.api.messages.TextSecureGroup;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ThreadDatabaseTest extends InstrumentationTestCase {
+
+  private static final String SENDER = "+15550003001";
+
+  private SmsDatabase    smsDatabase;
+  private ThreadDatabase threadDatabase;
+  private long           threadId = -1;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    Context context = getInstrumentation().getTargetContext();
+
+    this.smsDatabase    = DatabaseFactory.getSmsDatabase(context);
+    this.threadDatabase = DatabaseFactory.getThreadDatabase(context);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    if (threadId != -1) {
+      threadDatabase.deleteConversation(threadId);
+    }
+
+    super.tearDown();
+  }
+
+  public void testInsertCountsUnread() throws Exception {
+    insert(3);
+
+    assertThat(getUnreadCount()).isEqualTo(3);
+  }
+
+  public void testDeleteUncountsUnread() throws Exception {
+    List<Long> messageIds = insert(2);
+
+    smsDatabase.deleteMessage(messageIds.get(0));
+
+    assertThat(getUnreadCount()).isEqualTo(1);
+  }
+
+  public void testSetReadClearsCount() throws Exception {
+    List<Long> messageIds = insert(2);
+
+    threadDatabase.setRead(threadId);
+    assertThat(getUnreadCount()).isEqualTo(0);
+
+    smsDatabase.deleteMessage(messageIds.get(0));
+    assertThat(getUnreadCount()).isEqualTo(0);
+  }
+
+  public void testTrimRecountsUnread() throws Exception {
+    insert(5);
+
+    threadDatabase.trimThread(threadId, 2);
+
+    assertThat(getUnreadCount()).isEqualTo(2);
+  }
+
+  private List<Long> insert(int count) throws InterruptedException {
+    List<Long> messageIds = new LinkedList<>();
+
+    for (int i=0;i<count;i++) {
+      IncomingTextMessage plaintext = new IncomingTextMessage(SENDER, 1, System.currentTimeMillis(),
+                                                              "message " + i, Optional.<TextSecureGroup>absent());
+      IncomingTextMessage message   = new IncomingEncryptedMessage(plaintext, plaintext.getMessageBody());
+
+      Pair<Long, Long> messageAndThreadId = smsDatabase.insertMessageInbox(message, SmsDatabase.Types.BASE_INBOX_TYPE);
+
+      messageIds.add(messageAndThreadId.first);
+      threadId = messageAndThreadId.second;
+
+      // Trimming cuts by date, so each message gets its own.
+      Thread.sleep(5);
+    }
+
+    return messageIds;
+  }
+
+  private long getUnreadCount() {
+    Cursor cursor = threadDatabase.databaseHelper.getReadableDatabase()
+                                  .query(ThreadDatabase.TABLE_NAME, new String[] {ThreadDatabase.UNREAD_COUNT},
+                                         Database.ID_WHERE, new String[] {threadId+""}, null, null, null);
+
+    try {
+      assertThat(cursor.moveToFirst()).isTrue();
+      return cursor.getLong(0);
+    } finally {
+      cursor.close();
+    }
+  }
+}
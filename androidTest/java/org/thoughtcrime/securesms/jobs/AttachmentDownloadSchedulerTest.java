@@ -0,0 +1,68 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.test.AndroidTestCase;
+import android.util.Pair;
+
+import org.thoughtcrime.securesms.jobs.AttachmentDownloadScheduler.Download;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import ws.com.google.android.mms.pdu.PduPart;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class AttachmentDownloadSchedulerTest extends AndroidTestCase {
+
+  private static final long VISIBLE_THREAD = 1;
+  private static final long OTHER_THREAD   = 2;
+
+  public void testVisibleConversationGoesFirst() {
+    Download visible = createDownload(1, VISIBLE_THREAD, true);
+    Download other   = createDownload(2, OTHER_THREAD, false);
+    List<Download> waiting = Arrays.asList(visible, other);
+
+    assertThat(AttachmentDownloadScheduler.isRunnable(visible, waiting, VISIBLE_THREAD, false)).isTrue();
+    assertThat(AttachmentDownloadScheduler.isRunnable(other, waiting, VISIBLE_THREAD, false)).isFalse();
+  }
+
+  public void testImagesGoBeforeLargeDownloads() {
+    Download image = createDownload(1, OTHER_THREAD, false);
+    Download video = createDownload(2, OTHER_THREAD, true);
+    List<Download> waiting = Arrays.asList(image, video);
+
+    assertThat(AttachmentDownloadScheduler.isRunnable(image, waiting, VISIBLE_THREAD, false)).isTrue();
+    assertThat(AttachmentDownloadScheduler.isRunnable(video, waiting, VISIBLE_THREAD, false)).isFalse();
+  }
+
+  public void testNewestGoesFirst() {
+    Download older = createDownload(1, OTHER_THREAD, false);
+    Download newer = createDownload(2, OTHER_THREAD, false);
+    List<Download> waiting = Arrays.asList(older, newer);
+
+    assertThat(AttachmentDownloadScheduler.isRunnable(newer, waiting, VISIBLE_THREAD, false)).isTrue();
+    assertThat(AttachmentDownloadScheduler.isRunnable(older, waiting, VISIBLE_THREAD, false)).isFalse();
+    assertThat(AttachmentDownloadScheduler.isRunnable(older, Arrays.asList(older), VISIBLE_THREAD, false)).isTrue();
+  }
+
+  public void testLargeDownloadsWaitOnConstrainedNetwork() {
+    Download video = createDownload(1, VISIBLE_THREAD, true);
+    Download image = createDownload(2, OTHER_THREAD, false);
+    List<Download> waiting = Arrays.asList(video, image);
+
+    assertThat(AttachmentDownloadScheduler.isRunnable(video, waiting, VISIBLE_THREAD, true)).isFalse();
+    assertThat(AttachmentDownloadScheduler.isRunnable(image, waiting, VISIBLE_THREAD, true)).isTrue();
+    assertThat(AttachmentDownloadScheduler.isRunnable(video, Arrays.asList(video), VISIBLE_THREAD, true)).isFalse();
+
+    assertThat(AttachmentDownloadScheduler.isRunnable(video, waiting, VISIBLE_THREAD, false)).isTrue();
+    assertThat(AttachmentDownloadScheduler.isRunnable(image, waiting, VISIBLE_THREAD, false)).isFalse();
+  }
+
+  private Download createDownload(long messageId, long threadId, boolean large) {
+    List<Pair<Long, PduPart>> parts = new LinkedList<>();
+    parts.add(new Pair<>(messageId * 10, new PduPart()));
+
+    return new Download(messageId, threadId, parts, large);
+  }
+}
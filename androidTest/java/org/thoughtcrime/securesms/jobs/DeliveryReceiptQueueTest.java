@@ -0,0 +1,51 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.test.AndroidTestCase;
+
+import org.thoughtcrime.securesms.jobs.DeliveryReceiptQueue.Receipt;
+
+import java.io.File;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DeliveryReceiptQueueTest extends AndroidTestCase {
+
+  private File file;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    this.file = new File(getContext().getCacheDir(), "test_receipts");
+    this.file.delete();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    file.delete();
+    super.tearDown();
+  }
+
+  public void testPendingReceiptsSurviveRestart() throws Exception {
+    DeliveryReceiptQueue queue = new DeliveryReceiptQueue(getContext(), file);
+
+    for (int i=0;i<100;i++) {
+      queue.add("+1415222" + String.format("%04d", i % 10), i, i % 2 == 0 ? null : "relay");
+    }
+
+    List<Receipt> pending = queue.getPending();
+    queue.remove(pending.subList(0, 60));
+
+    List<Receipt> restored = new DeliveryReceiptQueue(getContext(), file).getPending();
+
+    assertThat(restored).hasSize(40);
+    assertThat(restored.get(0).getDestination()).isEqualTo("+14152220000");
+    assertThat(restored.get(0).getTimestamp()).isEqualTo(60);
+    assertThat(restored.get(0).getRelay()).isNull();
+    assertThat(restored.get(39).getTimestamp()).isEqualTo(99);
+    assertThat(restored.get(39).getRelay()).isEqualTo("relay");
+
+    // Each receipt is a couple of dozen bytes on disk, against a persisted job each before.
+    assertThat(file.length()).isLessThan(40 * 40);
+  }
+}
@@ -0,0 +1,93 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.test.AndroidTestCase;
+
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.PushDatabase;
+import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
+import org.whispersystems.textsecure.internal.push.PushMessageProtos.IncomingPushMessageSignal;
+
+import java.security.SecureRandom;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class PushDecryptJobTest extends AndroidTestCase {
+
+  private static final String SENDER       = "+15550002001";
+  private static final String OTHER_SENDER = "+15550002002";
+  private static final String LEGACY       = "+15550002003";
+
+  private PushDatabase database;
+  private MasterSecret masterSecret;
+  private List<Long>   inserted;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    byte[] encryptionKey = new byte[16];
+    byte[] macKey        = new byte[20];
+    new SecureRandom().nextBytes(encryptionKey);
+    new SecureRandom().nextBytes(macKey);
+
+    this.database     = DatabaseFactory.getPushDatabase(getContext());
+    this.masterSecret = new MasterSecret(new SecretKeySpec(encryptionKey, "AES"),
+                                         new SecretKeySpec(macKey, "HmacSHA1"));
+    this.inserted     = new LinkedList<>();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    for (long id : inserted) {
+      database.delete(id);
+    }
+
+    super.tearDown();
+  }
+
+  public void testDrainsOnlyItsSender() throws Exception {
+    for (int i=0;i<105;i++) insert(SENDER);
+    for (int i=0;i<3;i++)   insert(OTHER_SENDER);
+
+    new PushDecryptJob(getContext(), -1, SENDER, 1).onRun(masterSecret);
+
+    // The envelopes don't decrypt, so each becomes a placeholder and is still consumed.
+    assertThat(database.hasPending(SENDER, 1)).isFalse();
+    assertThat(database.hasPending(OTHER_SENDER, 1)).isTrue();
+    assertThat(PushDecryptJob.isScheduled(SENDER, 1)).isFalse();
+  }
+
+  public void testLegacyJobHandsOffToSender() throws Exception {
+    long pushId = insert(LEGACY);
+
+    new PushDecryptJob(getContext(), pushId, null, 0).onRun(masterSecret);
+
+    assertThat(database.hasPending(LEGACY, 1)).isTrue();
+    assertThat(PushDecryptJob.isScheduled(LEGACY, 1)).isTrue();
+  }
+
+  public void testLegacyJobAlreadyDecrypted() throws Exception {
+    long pushId = insert(LEGACY);
+    database.delete(pushId);
+
+    new PushDecryptJob(getContext(), pushId, null, 0).onRun(masterSecret);
+  }
+
+  private long insert(String source) {
+    byte[] body = new byte[64];
+    new SecureRandom().nextBytes(body);
+
+    TextSecureEnvelope envelope = new TextSecureEnvelope(IncomingPushMessageSignal.Type.CIPHERTEXT_VALUE,
+                                                         source, 1, "", System.currentTimeMillis(), body);
+
+    long id = database.insert(envelope);
+    inserted.add(id);
+
+    return id;
+  }
+}
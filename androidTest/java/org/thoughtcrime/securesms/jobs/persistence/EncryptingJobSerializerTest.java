@@ -0,0 +1,156 @@
+package org.thoughtcrime.securesms.jobs.persistence;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob;
+import org.thoughtcrime.securesms.jobs.DeliveryReceiptJob;
+import org.thoughtcrime.securesms.jobs.PushDecryptJob;
+import org.thoughtcrime.securesms.jobs.PushReceiveJob;
+import org.thoughtcrime.securesms.util.Base64;
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.JobParameters;
+import org.whispersystems.jobqueue.persistence.JavaJobSerializer;
+import org.whispersystems.jobqueue.requirements.NetworkRequirement;
+
+import java.io.IOException;
+import java.io.ObjectStreamClass;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class EncryptingJobSerializerTest extends AndroidTestCase {
+  private static final String TAG = EncryptingJobSerializerTest.class.getSimpleName();
+
+  // Java serialized by the job classes as they stood before the binary codec, job lanes
+  // and per-sender decrypts, with the field values used in testReadsJobsFromEarlierVersions.
+  private static final String LEGACY_DELIVERY_RECEIPT_JOB = "rO0ABXNyADJvcmcudGhvdWdodGNyaW1lLnNlY3VyZXNtcy5qb2JzLkRlbGl2ZXJ5UmVjZWlwdEpvYtPBfwYF7qj5AgADSgAJ" +
+                                                            "dGltZXN0YW1wTAALZGVzdGluYXRpb250ABJMamF2YS9sYW5nL1N0cmluZztMAAVyZWxheXEAfgABeHIAKm9yZy50aG91Z2h0" +
+                                                            "Y3JpbWUuc2VjdXJlc21zLmpvYnMuQ29udGV4dEpvYn6Dtdi1cC47AgAAeHIAH29yZy53aGlzcGVyc3lzdGVtcy5qb2JxdWV1" +
+                                                            "ZS5Kb2J7wM02iWEkdwIAAUwACnBhcmFtZXRlcnN0ACtMb3JnL3doaXNwZXJzeXN0ZW1zL2pvYnF1ZXVlL0pvYlBhcmFtZXRl" +
+                                                            "cnM7eHBzcgApb3JnLndoaXNwZXJzeXN0ZW1zLmpvYnF1ZXVlLkpvYlBhcmFtZXRlcnNQOC227KyhwAIABFoADGlzUGVyc2lz" +
+                                                            "dGVudEkACnJldHJ5Q291bnRMAAdncm91cElkcQB+AAFMAAxyZXF1aXJlbWVudHN0ABBMamF2YS91dGlsL0xpc3Q7eHABAAAA" +
+                                                            "MnBzcgAUamF2YS51dGlsLkxpbmtlZExpc3QMKVNdSmCIIgMAAHhwdwQAAAABc3IAO29yZy53aGlzcGVyc3lzdGVtcy5qb2Jx" +
+                                                            "dWV1ZS5yZXF1aXJlbWVudHMuTmV0d29ya1JlcXVpcmVtZW50zDeNZdKBA7QCAAB4cHgAAAAAAAAE0nQADCsxNDE1MjIyMjIy" +
+                                                            "MnQABXJlbGF5";
+
+  private static final String LEGACY_PUSH_DECRYPT_JOB = "rO0ABXNyAC5vcmcudGhvdWdodGNyaW1lLnNlY3VyZXNtcy5qb2JzLlB1c2hEZWNyeXB0Sm9iNtVka1g9NJsCAAFKAAltZXNz" +
+                                                        "YWdlSWR4cgAvb3JnLnRob3VnaHRjcmltZS5zZWN1cmVzbXMuam9icy5NYXN0ZXJTZWNyZXRKb2L9YYzA7p+RRAIAAHhyACpv" +
+                                                        "cmcudGhvdWdodGNyaW1lLnNlY3VyZXNtcy5qb2JzLkNvbnRleHRKb2J+g7XYtXAuOwIAAHhyAB9vcmcud2hpc3BlcnN5c3Rl" +
+                                                        "bXMuam9icXVldWUuSm9ie8DNNolhJHcCAAFMAApwYXJhbWV0ZXJzdAArTG9yZy93aGlzcGVyc3lzdGVtcy9qb2JxdWV1ZS9K" +
+                                                        "b2JQYXJhbWV0ZXJzO3hwc3IAKW9yZy53aGlzcGVyc3lzdGVtcy5qb2JxdWV1ZS5Kb2JQYXJhbWV0ZXJzUDgttuysocACAARa" +
+                                                        "AAxpc1BlcnNpc3RlbnRJAApyZXRyeUNvdW50TAAHZ3JvdXBJZHQAEkxqYXZhL2xhbmcvU3RyaW5nO0wADHJlcXVpcmVtZW50" +
+                                                        "c3QAEExqYXZhL3V0aWwvTGlzdDt4cAEAAABkcHNyABRqYXZhLnV0aWwuTGlua2VkTGlzdAwpU11KYIgiAwAAeHB3BAAAAAFz" +
+                                                        "cgBEb3JnLnRob3VnaHRjcmltZS5zZWN1cmVzbXMuam9icy5yZXF1aXJlbWVudHMuTWFzdGVyU2VjcmV0UmVxdWlyZW1lbnQu" +
+                                                        "878QtmXqnQIAAHhweAAAAAAAAAAF";
+
+  private static final String LEGACY_ATTACHMENT_DOWNLOAD_JOB = "rO0ABXNyADVvcmcudGhvdWdodGNyaW1lLnNlY3VyZXNtcy5qb2JzLkF0dGFjaG1lbnREb3dubG9hZEpvYu4zExZIxY0kAgAB" +
+                                                               "SgAJbWVzc2FnZUlkeHIAL29yZy50aG91Z2h0Y3JpbWUuc2VjdXJlc21zLmpvYnMuTWFzdGVyU2VjcmV0Sm9i/WGMwO6fkUQC" +
+                                                               "AAB4cgAqb3JnLnRob3VnaHRjcmltZS5zZWN1cmVzbXMuam9icy5Db250ZXh0Sm9ifoO12LVwLjsCAAB4cgAfb3JnLndoaXNw" +
+                                                               "ZXJzeXN0ZW1zLmpvYnF1ZXVlLkpvYnvAzTaJYSR3AgABTAAKcGFyYW1ldGVyc3QAK0xvcmcvd2hpc3BlcnN5c3RlbXMvam9i" +
+                                                               "cXVldWUvSm9iUGFyYW1ldGVyczt4cHNyAClvcmcud2hpc3BlcnN5c3RlbXMuam9icXVldWUuSm9iUGFyYW1ldGVyc1A4Lbbs" +
+                                                               "rKHAAgAEWgAMaXNQZXJzaXN0ZW50SQAKcmV0cnlDb3VudEwAB2dyb3VwSWR0ABJMamF2YS9sYW5nL1N0cmluZztMAAxyZXF1" +
+                                                               "aXJlbWVudHN0ABBMamF2YS91dGlsL0xpc3Q7eHABAAAAZHBzcgAUamF2YS51dGlsLkxpbmtlZExpc3QMKVNdSmCIIgMAAHhw" +
+                                                               "dwQAAAACc3IARG9yZy50aG91Z2h0Y3JpbWUuc2VjdXJlc21zLmpvYnMucmVxdWlyZW1lbnRzLk1hc3RlclNlY3JldFJlcXVp" +
+                                                               "cmVtZW50LvO/ELZl6p0CAAB4cHNyADtvcmcud2hpc3BlcnN5c3RlbXMuam9icXVldWUucmVxdWlyZW1lbnRzLk5ldHdvcmtS" +
+                                                               "ZXF1aXJlbWVudMw3jWXSgQO0AgAAeHB4AAAAAAAAAAc=";
+
+  private EncryptingJobSerializer serializer;
+  private String                  envelope;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    byte[] payload = new byte[400];
+    new SecureRandom().nextBytes(payload);
+
+    this.serializer = new EncryptingJobSerializer(getContext());
+    this.envelope   = Base64.encodeBytes(payload);
+  }
+
+  public void testRoundTrip() throws Exception {
+    Job[] jobs = {new PushReceiveJob(getContext(), envelope),
+                  new PushDecryptJob(getContext(), 5, "+14152222222", 2),
+                  new DeliveryReceiptJob(getContext(), "+14152222222", 1234L, null),
+                  new AttachmentDownloadJob(getContext(), 7)};
+
+    for (Job job : jobs) {
+      String serialized = serializer.serialize(job);
+      Job    restored   = serializer.deserialize(null, false, serialized);
+
+      assertThat(restored).isInstanceOf(job.getClass());
+      assertThat(serializer.serialize(restored)).isEqualTo(serialized);
+    }
+  }
+
+  public void testReadsJobsFromEarlierVersions() throws Exception {
+    assertReadsLegacyJob(LEGACY_DELIVERY_RECEIPT_JOB, new DeliveryReceiptJob(getContext(), "+14152222222", 1234L, "relay"));
+    assertReadsLegacyJob(LEGACY_PUSH_DECRYPT_JOB, new PushDecryptJob(getContext(), 5, null, 0));
+    assertReadsLegacyJob(LEGACY_ATTACHMENT_DOWNLOAD_JOB, new AttachmentDownloadJob(getContext(), 7));
+  }
+
+  public void testThroughput() throws Exception {
+    final int         iterations     = 2000;
+    JavaJobSerializer javaSerializer = new JavaJobSerializer();
+    Job               job            = new PushReceiveJob(getContext(), envelope);
+
+    long start = System.currentTimeMillis();
+    for (int i=0;i<iterations;i++) javaSerializer.deserialize(null, false, javaSerializer.serialize(job));
+    long java = Math.max(1, System.currentTimeMillis() - start);
+
+    start = System.currentTimeMillis();
+    for (int i=0;i<iterations;i++) serializer.deserialize(null, false, serializer.serialize(job));
+    long binary = Math.max(1, System.currentTimeMillis() - start);
+
+    Log.w(TAG, "Jobs/sec: java " + (iterations * 1000 / java) + " (" + javaSerializer.serialize(job).length() + " chars), " +
+               "binary " + (iterations * 1000 / binary) + " (" + serializer.serialize(job).length() + " chars)");
+
+    assertThat(serializer.serialize(job).length()).isLessThan(javaSerializer.serialize(job).length());
+    assertThat(binary).isLessThanOrEqualTo(java);
+  }
+
+  private void assertReadsLegacyJob(String legacy, Job expected) throws IOException {
+    Job restored = serializer.deserialize(null, false, withRuntimeLibraryDescriptors(legacy));
+
+    assertThat(restored).isInstanceOf(expected.getClass());
+    assertThat(serializer.serialize(restored)).isEqualTo(serializer.serialize(expected));
+  }
+
+  /**
+   * The fixtures were generated against stand-ins for the job library's classes, so their
+   * descriptors for those are rewritten to match the library on the classpath. The library
+   * is the same version before and after, so only the app's own classes are held to the
+   * serialVersionUIDs they were written with.
+   */
+  private static String withRuntimeLibraryDescriptors(String legacy) throws IOException {
+    byte[] stream = Base64.decode(legacy);
+
+    for (Class<?> type : new Class<?>[] {Job.class, JobParameters.class, NetworkRequirement.class}) {
+      byte[] name   = type.getName().getBytes("UTF-8");
+      byte[] prefix = ByteBuffer.allocate(2 + name.length).putShort((short)name.length).put(name).array();
+      int    offset = indexOf(stream, prefix);
+
+      if (offset != -1) {
+        ByteBuffer.wrap(stream, offset + prefix.length, 8)
+                  .putLong(ObjectStreamClass.lookup(type).getSerialVersionUID());
+      }
+    }
+
+    return Base64.encodeBytes(stream);
+  }
+
+  private static int indexOf(byte[] haystack, byte[] needle) {
+    outer:
+    for (int i=0;i<=haystack.length-needle.length;i++) {
+      for (int j=0;j<needle.length;j++) {
+        if (haystack[i+j] != needle[j]) continue outer;
+      }
+
+      return i;
+    }
+
+    return -1;
+  }
+}
@@ -0,0 +1,90 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.SmsDatabase;
+import org.thoughtcrime.securesms.database.ThreadDatabase;
+import org.thoughtcrime.securesms.sms.IncomingEncryptedMessage;
+import org.thoughtcrime.securesms.sms.IncomingTextMessage;
+import org.whispersystems.libaxolotl.util.guava.Optional;
+import org.whispersystems.textsecure.api.messages.TextSecureGroup;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class MessageNotifierTest extends InstrumentationTestCase {
+
+  private static final String SENDER       = "+15550004001";
+  private static final String OTHER_SENDER = "+15550004002";
+
+  private Context        context;
+  private SmsDatabase    smsDatabase;
+  private ThreadDatabase threadDatabase;
+  private long           threadId      = -1;
+  private long           otherThreadId = -1;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    this.context        = getInstrumentation().getTargetContext();
+    this.smsDatabase    = DatabaseFactory.getSmsDatabase(context);
+    this.threadDatabase = DatabaseFactory.getThreadDatabase(context);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    if (threadId != -1)      threadDatabase.deleteConversation(threadId);
+    if (otherThreadId != -1) threadDatabase.deleteConversation(otherThreadId);
+
+    super.tearDown();
+  }
+
+  public void testOnlyChangedThreadIsReloaded() {
+    threadId      = insert(SENDER);
+    otherThreadId = insert(OTHER_SENDER);
+
+    assertThat(MessageNotifier.updateUnreadItems(context, null, null, getTotalUnreadCount())).isTrue();
+
+    List<?> otherItems = MessageNotifier.getUnreadItems(otherThreadId);
+
+    insert(SENDER);
+
+    assertThat(MessageNotifier.updateUnreadItems(context, null, Collections.singleton(threadId),
+                                                 getTotalUnreadCount())).isFalse();
+    assertThat(MessageNotifier.getUnreadItems(threadId)).hasSize(2);
+    assertThat(MessageNotifier.getUnreadItems(otherThreadId)).isSameAs(otherItems);
+    assertThat(MessageNotifier.getUnreadItemCount()).isEqualTo((int)getTotalUnreadCount());
+  }
+
+  public void testCountMismatchReloadsEverything() {
+    threadId      = insert(SENDER);
+    otherThreadId = insert(OTHER_SENDER);
+
+    assertThat(MessageNotifier.updateUnreadItems(context, null, null, getTotalUnreadCount())).isTrue();
+
+    insert(SENDER);
+    insert(OTHER_SENDER);
+
+    assertThat(MessageNotifier.updateUnreadItems(context, null, Collections.singleton(threadId),
+                                                 getTotalUnreadCount())).isTrue();
+    assertThat(MessageNotifier.getUnreadItems(otherThreadId)).hasSize(2);
+    assertThat(MessageNotifier.getUnreadItemCount()).isEqualTo((int)getTotalUnreadCount());
+  }
+
+  private long insert(String sender) {
+    IncomingTextMessage plaintext = new IncomingTextMessage(sender, 1, System.currentTimeMillis(),
+                                                            "message", Optional.<TextSecureGroup>absent());
+    IncomingTextMessage message   = new IncomingEncryptedMessage(plaintext, plaintext.getMessageBody());
+
+    return smsDatabase.insertMessageInbox(message, SmsDatabase.Types.BASE_INBOX_TYPE).second;
+  }
+
+  private long getTotalUnreadCount() {
+    return threadDatabase.getTotalUnreadCount();
+  }
+}
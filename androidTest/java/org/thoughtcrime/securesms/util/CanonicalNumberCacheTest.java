@@ -0,0 +1,81 @@
+package org.thoughtcrime.securesms.util;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.AssertionFailedError;
+
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
+import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CanonicalNumberCacheTest extends AndroidTestCase {
+  private static final String LOCAL_NUMBER = "+15555555555";
+
+  private static final String[] NUMBER_MIX = {
+      "(555) 555-5555", "555-5555", "+1 (222) 333-4444", "1 222 333 4444", "+49 30 1234567",
+      "030 1234567", "+447911123456", "07911 123456", "+15555550123", "555.555.0123",
+      "person@domain.com", "+61 2 9876 5432", "T-Mobile", "*611", "+33 1 23 45 67 89"
+  };
+
+  private CanonicalNumberCache cache;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    this.cache = new CanonicalNumberCache();
+  }
+
+  public void testMatchesFormatter() throws Exception {
+    for (String number : NUMBER_MIX) {
+      String expected;
+
+      try {
+        expected = PhoneNumberFormatter.formatNumber(number, LOCAL_NUMBER);
+      } catch (InvalidNumberException e) {
+        expected = null;
+      }
+
+      for (int i=0;i<2;i++) {
+        try {
+          assertThat(cache.canonicalize(LOCAL_NUMBER, number)).isEqualTo(expected);
+        } catch (InvalidNumberException e) {
+          assertThat(expected).isNull();
+        }
+      }
+    }
+  }
+
+  public void testCachesInvalidNumbers() throws Exception {
+    for (int i=0;i<2;i++) {
+      try {
+        cache.canonicalize(LOCAL_NUMBER, "person@domain.com");
+        throw new AssertionFailedError("should have thrown on email");
+      } catch (InvalidNumberException ine) {
+        // success
+      }
+    }
+  }
+
+  public void testLocalNumberChange() throws Exception {
+    assertThat(cache.canonicalize(LOCAL_NUMBER, "555-5555")).isEqualTo(LOCAL_NUMBER);
+    assertThat(cache.canonicalize("+4930555555", "555-5555")).isNotEqualTo(LOCAL_NUMBER);
+  }
+
+  public void testFormatsEachNumberOnce() throws Exception {
+    for (int i=0;i<2000;i++) {
+      try {
+        cache.canonicalize(LOCAL_NUMBER, NUMBER_MIX[i % NUMBER_MIX.length]);
+      } catch (InvalidNumberException e) {
+        // expected for part of the mix
+      }
+    }
+
+    assertThat(cache.getMissCount()).isEqualTo(NUMBER_MIX.length);
+
+    cache.canonicalize("+4930555555", "555-5555");
+    cache.canonicalize("+4930555555", "555-5555");
+
+    assertThat(cache.getMissCount()).isEqualTo(NUMBER_MIX.length + 1);
+  }
+}
@@ -0,0 +1,129 @@
+package org.thoughtcrime.securesms.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.test.AndroidTestCase;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class EmojiTest extends AndroidTestCase {
+
+  @SuppressWarnings("MalformedRegex")
+  private static final Pattern EMOJI_RANGE = Pattern.compile("[\\u20a0-\\u32ff\\ud83c\\udc00-\\ud83d\\udeff\\udbb9\\udce5-\\udbb9\\udcee]");
+
+  private static final String MESSAGE = "Running late 😂😂 be there in 10 ❤ " +
+                                        "🍕🍺? © plain text with no emoji at all, " +
+                                        "just a long enough sentence to look like a real message ☺";
+
+  private Drawable.Callback redrawCallback;
+
+  public void testScannerMatchesRegex() throws Exception {
+    assertThat(scanWithTable(MESSAGE)).isEqualTo(scanWithRegex(MESSAGE));
+    assertThat(scanWithTable(MESSAGE)).isNotEmpty();
+    assertThat(scanWithTable("no emoji here")).isEmpty();
+    assertThat(Emoji.getDrawInfo(0x1f602)).isNotNull();
+    assertThat(Emoji.getDrawInfo(0x00a9)).isNull();
+    assertThat(Emoji.getDrawInfo('a')).isNull();
+  }
+
+  public void testScannerMatchesRegexOverWholeRange() throws Exception {
+    StringBuilder text = new StringBuilder();
+
+    for (int[] range : new int[][] {{0x2000, 0x3400}, {0x1f000, 0x1f700}, {0xfe4e0, 0xfe4f0}}) {
+      for (int codePoint = range[0]; codePoint < range[1]; codePoint++) {
+        text.appendCodePoint(codePoint);
+        if (codePoint % 7 == 0) text.append(" a");
+      }
+    }
+
+    assertThat(scanWithTable(text.toString())).isEqualTo(scanWithRegex(text.toString()));
+  }
+
+  public void testEvictedTileReloadsAndRedraws() throws Exception {
+    final Emoji          emoji    = Emoji.getInstance(getContext());
+    final Emoji.DrawInfo drawInfo = Emoji.getDrawInfo(0x1f602);
+    final CountDownLatch loaded   = new CountDownLatch(1);
+
+    Drawable drawable = emoji.getEmojiDrawable(drawInfo, Emoji.EMOJI_LARGE, new Emoji.PageLoadedListener() {
+      @Override
+      public void onPageLoaded() {
+        loaded.countDown();
+      }
+    });
+
+    assertThat(loaded.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(Emoji.isTileCached(drawInfo)).isTrue();
+
+    Emoji.evictTiles();
+    assertThat(Emoji.isTileCached(drawInfo)).isFalse();
+
+    final CountDownLatch redrawn = new CountDownLatch(1);
+
+    // Drawables only hold their callback weakly, so keep it reachable for the test.
+    redrawCallback = new Drawable.Callback() {
+      @Override
+      public void invalidateDrawable(Drawable who) {
+        redrawn.countDown();
+      }
+
+      @Override
+      public void scheduleDrawable(Drawable who, Runnable what, long when) {}
+
+      @Override
+      public void unscheduleDrawable(Drawable who, Runnable what) {}
+    };
+
+    drawable.setCallback(redrawCallback);
+
+    drawable.draw(new Canvas(Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888)));
+
+    assertThat(redrawn.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(Emoji.isTileCached(drawInfo)).isTrue();
+  }
+
+  /**
+   * @return the spans the regex based scanner used to find, as "start-end:code point".
+   */
+  private List<String> scanWithRegex(String text) {
+    Matcher      matches = EMOJI_RANGE.matcher(text);
+    List<String> found   = new LinkedList<>();
+
+    while (matches.find()) {
+      String resource = Integer.toHexString(matches.group().codePointAt(0));
+
+      if (Emoji.getDrawInfo(Integer.parseInt(resource, 16)) != null) {
+        found.add(matches.start() + "-" + matches.end() + ":" + resource);
+      }
+    }
+
+    return found;
+  }
+
+  /**
+   * @return the spans {@link Emoji#emojify} sets, as "start-end:code point".
+   */
+  private List<String> scanWithTable(String text) {
+    List<String> found = new LinkedList<>();
+
+    for (int i = 0; i < text.length();) {
+      int codePoint = Character.codePointAt(text, i);
+      int charCount = Character.charCount(codePoint);
+
+      if (Emoji.getDrawInfo(codePoint) != null) {
+        found.add(i + "-" + (i + charCount) + ":" + Integer.toHexString(codePoint));
+      }
+
+      i += charCount;
+    }
+
+    return found;
+  }
+}
@@ -0,0 +1,152 @@
+package org.whispersystems.textsecure.api;
+
+import org.whispersystems.libaxolotl.IdentityKey;
+import org.whispersystems.libaxolotl.IdentityKeyPair;
+import org.whispersystems.libaxolotl.InvalidKeyIdException;
+import org.whispersystems.libaxolotl.ecc.Curve;
+import org.whispersystems.libaxolotl.ecc.ECKeyPair;
+import org.whispersystems.libaxolotl.state.AxolotlStore;
+import org.whispersystems.libaxolotl.state.PreKeyRecord;
+import org.whispersystems.libaxolotl.state.SessionRecord;
+import org.whispersystems.libaxolotl.state.SignedPreKeyRecord;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An axolotl store kept in memory, safe for the concurrent use a fanned out send
+ * makes of it. Identities can be marked untrusted.
+ */
+public class InMemoryAxolotlStore implements AxolotlStore {
+
+  private final IdentityKeyPair identityKeyPair;
+
+  private final Map<String, byte[]>    sessions   = new TreeMap<>();
+  private final Map<Long, IdentityKey> identities = new HashMap<>();
+  private final Set<Long>              untrusted  = new HashSet<>();
+
+  public InMemoryAxolotlStore() {
+    ECKeyPair keyPair = Curve.generateKeyPair();
+    this.identityKeyPair = new IdentityKeyPair(new IdentityKey(keyPair.getPublicKey()), keyPair.getPrivateKey());
+  }
+
+  public synchronized void distrust(long recipientId) {
+    untrusted.add(recipientId);
+  }
+
+  @Override
+  public IdentityKeyPair getIdentityKeyPair() {
+    return identityKeyPair;
+  }
+
+  @Override
+  public int getLocalRegistrationId() {
+    return 1;
+  }
+
+  @Override
+  public synchronized void saveIdentity(long recipientId, IdentityKey identityKey) {
+    identities.put(recipientId, identityKey);
+  }
+
+  @Override
+  public synchronized boolean isTrustedIdentity(long recipientId, IdentityKey identityKey) {
+    return !untrusted.contains(recipientId);
+  }
+
+  @Override
+  public synchronized SessionRecord loadSession(long recipientId, int deviceId) {
+    try {
+      byte[] serialized = sessions.get(getKey(recipientId, deviceId));
+      return serialized == null ? new SessionRecord() : new SessionRecord(serialized);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public synchronized List<Integer> getSubDeviceSessions(long recipientId) {
+    List<Integer> deviceIds = new LinkedList<>();
+
+    for (String key : sessions.keySet()) {
+      String[] parts = key.split("\\.");
+
+      if (Long.parseLong(parts[0]) == recipientId && Integer.parseInt(parts[1]) != 1) {
+        deviceIds.add(Integer.parseInt(parts[1]));
+      }
+    }
+
+    return deviceIds;
+  }
+
+  @Override
+  public synchronized void storeSession(long recipientId, int deviceId, SessionRecord record) {
+    sessions.put(getKey(recipientId, deviceId), record.serialize());
+  }
+
+  @Override
+  public synchronized boolean containsSession(long recipientId, int deviceId) {
+    return sessions.containsKey(getKey(recipientId, deviceId));
+  }
+
+  @Override
+  public synchronized void deleteSession(long recipientId, int deviceId) {
+    sessions.remove(getKey(recipientId, deviceId));
+  }
+
+  @Override
+  public synchronized void deleteAllSessions(long recipientId) {
+    for (int deviceId : getSubDeviceSessions(recipientId)) {
+      deleteSession(recipientId, deviceId);
+    }
+
+    deleteSession(recipientId, 1);
+  }
+
+  @Override
+  public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+    throw new InvalidKeyIdException("No prekeys: " + preKeyId);
+  }
+
+  @Override
+  public void storePreKey(int preKeyId, PreKeyRecord record) {}
+
+  @Override
+  public boolean containsPreKey(int preKeyId) {
+    return false;
+  }
+
+  @Override
+  public void removePreKey(int preKeyId) {}
+
+  @Override
+  public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
+    throw new InvalidKeyIdException("No signed prekeys: " + signedPreKeyId);
+  }
+
+  @Override
+  public List<SignedPreKeyRecord> loadSignedPreKeys() {
+    return new LinkedList<>();
+  }
+
+  @Override
+  public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {}
+
+  @Override
+  public boolean containsSignedPreKey(int signedPreKeyId) {
+    return false;
+  }
+
+  @Override
+  public void removeSignedPreKey(int signedPreKeyId) {}
+
+  private static String getKey(long recipientId, int deviceId) {
+    return recipientId + "." + deviceId;
+  }
+}
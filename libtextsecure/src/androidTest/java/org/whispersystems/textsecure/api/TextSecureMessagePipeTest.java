@@ -0,0 +1,115 @@
+package org.whispersystems.textsecure.api;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.google.protobuf.ByteString;
+
+import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
+import org.whispersystems.textsecure.internal.push.StubPushServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.whispersystems.textsecure.internal.push.PushMessageProtos.IncomingPushMessageSignal;
+
+public class TextSecureMessagePipeTest extends AndroidTestCase {
+
+  private static final String TAG = TextSecureMessagePipeTest.class.getSimpleName();
+
+  private static final int ENVELOPES           = 2000;
+  private static final int ENVELOPES_PER_CHUNK = 20;
+
+  private final AtomicInteger ackRequests = new AtomicInteger(0);
+  private final AtomicInteger acked       = new AtomicInteger(0);
+
+  private StubPushServer server;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    this.server = new StubPushServer(new StubPushServer.Handler() {
+      @Override
+      public void handle(String method, String path, Map<String, String> headers, byte[] body, OutputStream out)
+          throws IOException
+      {
+        if (path.equals("/v1/messages/stream")) {
+          streamEnvelopes(out);
+        } else if (path.equals("/v1/messages/ack")) {
+          ackRequests.incrementAndGet();
+          acked.addAndGet(new String(body).split("\"source\"").length - 1);
+          StubPushServer.writeResponse(out, "");
+        } else {
+          throw new IOException("Unexpected request: " + method + " " + path);
+        }
+      }
+    });
+    this.server.start();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    server.close();
+    super.tearDown();
+  }
+
+  public void testReceivesAndAcknowledgesInBatches() throws Exception {
+    TextSecureMessageReceiver receiver = new TextSecureMessageReceiver(server.getUrl(), server.getTrustStore(),
+                                                                       "+14152222222", "password");
+    TextSecureMessagePipe     pipe     = receiver.createMessagePipe();
+    final AtomicInteger       received = new AtomicInteger(0);
+
+    TextSecureMessagePipe.MessagePipeCallback callback = new TextSecureMessagePipe.MessagePipeCallback() {
+      @Override
+      public void onMessage(TextSecureEnvelope envelope) {
+        assertEquals(1000L + received.getAndIncrement(), envelope.getTimestamp());
+      }
+    };
+
+    long start = System.currentTimeMillis();
+    while (pipe.read(callback) != -1);
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+    pipe.shutdown();
+
+    Log.w(TAG, "Envelopes/sec: " + (ENVELOPES * 1000L / elapsed) + ", " +
+               ackRequests.get() + " acknowledgements for " + ENVELOPES + " envelopes");
+
+    assertEquals(ENVELOPES, received.get());
+    assertEquals(ENVELOPES, acked.get());
+    assertTrue(ackRequests.get() < ENVELOPES);
+  }
+
+  private void streamEnvelopes(OutputStream out) throws IOException {
+    StubPushServer.writeChunkedHeader(out);
+
+    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+
+    for (int i=0;i<ENVELOPES;i++) {
+      IncomingPushMessageSignal.newBuilder()
+                               .setType(IncomingPushMessageSignal.Type.CIPHERTEXT)
+                               .setSource("+14153333333")
+                               .setSourceDevice(1)
+                               .setTimestamp(1000L + i)
+                               .setMessage(ByteString.copyFrom(new byte[64]))
+                               .build()
+                               .writeDelimitedTo(chunk);
+
+      if ((i + 1) % ENVELOPES_PER_CHUNK == 0) {
+        StubPushServer.writeChunk(out, chunk.toByteArray());
+        out.flush();
+        chunk.reset();
+      }
+    }
+
+    if (chunk.size() > 0) {
+      StubPushServer.writeChunk(out, chunk.toByteArray());
+    }
+
+    StubPushServer.writeLastChunk(out);
+  }
+}
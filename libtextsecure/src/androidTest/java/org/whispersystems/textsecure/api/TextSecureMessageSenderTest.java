@@ -0,0 +1,335 @@
+package org.whispersystems.textsecure.api;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.whispersystems.libaxolotl.IdentityKey;
+import org.whispersystems.libaxolotl.IdentityKeyPair;
+import org.whispersystems.libaxolotl.SessionBuilder;
+import org.whispersystems.libaxolotl.ecc.Curve;
+import org.whispersystems.libaxolotl.ecc.ECKeyPair;
+import org.whispersystems.libaxolotl.state.PreKeyBundle;
+import org.whispersystems.libaxolotl.util.guava.Optional;
+import org.whispersystems.textsecure.api.messages.TextSecureGroup;
+import org.whispersystems.textsecure.api.messages.TextSecureMessage;
+import org.whispersystems.textsecure.api.push.PushAddress;
+import org.whispersystems.textsecure.api.push.SignedPreKeyEntity;
+import org.whispersystems.textsecure.api.push.exceptions.EncapsulatedExceptions;
+import org.whispersystems.textsecure.internal.push.PreKeyEntity;
+import org.whispersystems.textsecure.internal.push.PreKeyResponse;
+import org.whispersystems.textsecure.internal.push.PreKeyResponseItem;
+import org.whispersystems.textsecure.internal.push.StubPushServer;
+import org.whispersystems.textsecure.internal.util.JsonUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TextSecureMessageSenderTest extends AndroidTestCase {
+
+  private static final int ROUND_TRIP_MILLIS       = 40;
+  private static final int OVERLAP_TIMEOUT_SECONDS = 10;
+  private static final int PARALLELISM             = 4;
+  private static final int DEVICES                 = 3;
+
+  private final AtomicInteger                   concurrent         = new AtomicInteger(0);
+  private final AtomicInteger                   maxConcurrent      = new AtomicInteger(0);
+  private final AtomicInteger                   overlapTimeouts    = new AtomicInteger(0);
+  private final AtomicInteger                   preKeyFetches      = new AtomicInteger(0);
+  private final Map<String, List<Integer>>      devicesByNumber    = new HashMap<>();
+  private final Set<String>                     unregistered       = Collections.synchronizedSet(new HashSet<String>());
+  private final Map<String, List<PreKeyBundle>> preKeysByNumber    = Collections.synchronizedMap(new HashMap<String, List<PreKeyBundle>>());
+  private final Map<String, List<Integer>>      registeredByNumber = Collections.synchronizedMap(new HashMap<String, List<Integer>>());
+
+  private StubPushServer       server;
+  private InMemoryAxolotlStore store;
+
+  private volatile CountDownLatch overlap;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    this.store  = new InMemoryAxolotlStore();
+    this.server = new StubPushServer(new StubPushServer.Handler() {
+      @Override
+      public void handle(String method, String path, Map<String, String> headers, byte[] body, OutputStream out)
+          throws IOException
+      {
+        if (method.equals("PUT") && path.startsWith("/v1/messages/")) {
+          handleMessages(path.substring("/v1/messages/".length()), body, out);
+        } else if (method.equals("GET") && path.startsWith("/v2/keys/")) {
+          handlePreKeys(path.split("/")[3], path.split("/")[4], out);
+        } else {
+          throw new IOException("Unexpected request: " + method + " " + path);
+        }
+      }
+    });
+    this.server.start();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    server.close();
+    super.tearDown();
+  }
+
+  public void testGroupSendIsParallel() throws Throwable {
+    List<PushAddress> group = createGroup(12);
+
+    createSender(1).sendMessage(group, createGroupMessage());
+
+    assertEquals(1, maxConcurrent.get());
+    maxConcurrent.set(0);
+
+    // The first two sends each wait for the other to arrive, which only happens if
+    // they're in flight at the same time.
+    overlap = new CountDownLatch(2);
+
+    createSender(PARALLELISM).sendMessage(group, createGroupMessage());
+
+    assertEquals(0, overlapTimeouts.get());
+    assertTrue(maxConcurrent.get() > 1);
+    assertTrue(maxConcurrent.get() <= PARALLELISM);
+  }
+
+  public void testDevicesArriveInOrder() throws Throwable {
+    List<PushAddress> group = createGroup(10);
+
+    createSender(PARALLELISM).sendMessage(group, createGroupMessage());
+
+    assertEquals(group.size(), devicesByNumber.size());
+
+    for (List<Integer> devices : devicesByNumber.values()) {
+      assertEquals(Arrays.asList(1, 2, 3), devices);
+    }
+  }
+
+  public void testFailuresAreAggregated() throws Exception {
+    List<PushAddress> group = createGroup(10);
+
+    unregistered.add(group.get(2).getNumber());
+    unregistered.add(group.get(7).getNumber());
+
+    for (int i=0;i<2;i++) {
+      PushAddress untrusted = new PushAddress(100 + i, String.format("+1555100%04d", i), 1, null);
+      preKeysByNumber.put(untrusted.getNumber(), Collections.singletonList(createBundle(createIdentity(), 1)));
+      store.distrust(untrusted.getRecipientId());
+      group.add(untrusted);
+    }
+
+    try {
+      createSender(PARALLELISM).sendMessage(group, createGroupMessage());
+      fail("expected the aggregated failures");
+    } catch (EncapsulatedExceptions e) {
+      assertEquals(2, e.getUnregisteredUserExceptions().size());
+      assertEquals(2, e.getUntrustedIdentityExceptions().size());
+    }
+
+    assertEquals(8, devicesByNumber.size());
+  }
+
+  public void testConcurrentSendsBuildEachSessionOnce() throws Exception {
+    final PushAddress        recipient = new PushAddress(200, "+15552000000", 1, null);
+    final IdentityKeyPair    identity  = createIdentity();
+    final List<PreKeyBundle> preKeys   = new LinkedList<>();
+
+    for (int deviceId=1;deviceId<=DEVICES;deviceId++) {
+      preKeys.add(createBundle(identity, deviceId));
+    }
+
+    preKeysByNumber.put(recipient.getNumber(), preKeys);
+    registeredByNumber.put(recipient.getNumber(), Arrays.asList(1, 2, 3));
+
+    final List<Exception> failures = Collections.synchronizedList(new LinkedList<Exception>());
+    final List<Thread>    senders  = new LinkedList<>();
+
+    for (int i=0;i<4;i++) {
+      senders.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            createSender(PARALLELISM).sendMessage(recipient, new TextSecureMessage(System.currentTimeMillis(), "Hi"));
+          } catch (Exception e) {
+            failures.add(e);
+          }
+        }
+      });
+    }
+
+    for (Thread sender : senders) sender.start();
+    for (Thread sender : senders) sender.join();
+
+    assertTrue(failures.isEmpty());
+    assertEquals(Arrays.asList(1, 2, 3), devicesByNumber.get(recipient.getNumber()));
+    assertEquals(1, preKeyFetches.get());
+
+    for (int deviceId=1;deviceId<=DEVICES;deviceId++) {
+      assertTrue(store.loadSession(recipient.getRecipientId(), deviceId).getPreviousSessionStates().isEmpty());
+    }
+  }
+
+  public void testMismatchedDevicesReportEveryUntrustedDevice() throws Exception {
+    PushAddress     recipient = new PushAddress(300, "+15553000000", 1, null);
+    IdentityKeyPair changed   = createIdentity();
+
+    new SessionBuilder(store, recipient.getRecipientId(), 1).process(createBundle(createIdentity(), 1));
+
+    registeredByNumber.put(recipient.getNumber(), Arrays.asList(1, 2, 3));
+    preKeysByNumber.put(recipient.getNumber(), Arrays.asList(createBundle(changed, 2), createBundle(changed, 3)));
+    store.distrust(recipient.getRecipientId());
+
+    try {
+      createSender(PARALLELISM).sendMessage(Collections.singletonList(recipient), createGroupMessage());
+      fail("expected the untrusted devices");
+    } catch (EncapsulatedExceptions e) {
+      assertEquals(2, e.getUntrustedIdentityExceptions().size());
+      assertTrue(e.getUnregisteredUserExceptions().isEmpty());
+    }
+
+    assertFalse(devicesByNumber.containsKey(recipient.getNumber()));
+  }
+
+  private TextSecureMessageSender createSender(int parallelism) {
+    return new TextSecureMessageSender(server.getUrl(), server.getTrustStore(), "+14152222222", "password",
+                                       store, Optional.<TextSecureMessageSender.EventListener>absent(),
+                                       parallelism);
+  }
+
+  private TextSecureMessage createGroupMessage() {
+    TextSecureGroup group = new TextSecureGroup(new byte[16]);
+    return new TextSecureMessage(System.currentTimeMillis(), group, null, "Hello group");
+  }
+
+  /**
+   * @return members with established sessions for each of their devices.
+   */
+  private List<PushAddress> createGroup(int members) throws Exception {
+    List<PushAddress> group = new LinkedList<>();
+
+    for (int i=0;i<members;i++) {
+      IdentityKeyPair identity = createIdentity();
+
+      for (int deviceId=1;deviceId<=DEVICES;deviceId++) {
+        new SessionBuilder(store, i, deviceId).process(createBundle(identity, deviceId));
+      }
+
+      group.add(new PushAddress(i, String.format("+1555000%04d", i), 1, null));
+    }
+
+    return group;
+  }
+
+  private IdentityKeyPair createIdentity() {
+    ECKeyPair keyPair = Curve.generateKeyPair();
+    return new IdentityKeyPair(new IdentityKey(keyPair.getPublicKey()), keyPair.getPrivateKey());
+  }
+
+  private PreKeyBundle createBundle(IdentityKeyPair identity, int deviceId) throws Exception {
+    ECKeyPair preKey       = Curve.generateKeyPair();
+    ECKeyPair signedPreKey = Curve.generateKeyPair();
+    byte[]    signature    = Curve.calculateSignature(identity.getPrivateKey(), signedPreKey.getPublicKey().serialize());
+
+    return new PreKeyBundle(1000 + deviceId, deviceId, 1, preKey.getPublicKey(),
+                            2, signedPreKey.getPublicKey(), signature, identity.getPublicKey());
+  }
+
+  private void handleMessages(String number, byte[] body, OutputStream out) throws IOException {
+    int inFlight = concurrent.incrementAndGet();
+
+    synchronized (maxConcurrent) {
+      maxConcurrent.set(Math.max(maxConcurrent.get(), inFlight));
+    }
+
+    try {
+      CountDownLatch overlap = this.overlap;
+
+      if (overlap != null) {
+        overlap.countDown();
+        if (!overlap.await(OVERLAP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) overlapTimeouts.incrementAndGet();
+      }
+
+      Thread.sleep(ROUND_TRIP_MILLIS);
+
+      if (unregistered.contains(number)) {
+        StubPushServer.writeResponse(out, 404, "application/json", null, new byte[0]);
+        return;
+      }
+
+      JSONArray     messages = new JSONObject(new String(body)).getJSONArray("messages");
+      List<Integer> devices  = new LinkedList<>();
+
+      for (int i=0;i<messages.length();i++) {
+        devices.add(messages.getJSONObject(i).getInt("destinationDeviceId"));
+      }
+
+      List<Integer> registered = registeredByNumber.get(number);
+
+      if (registered != null && !devices.containsAll(registered)) {
+        List<Integer> missing = new LinkedList<>(registered);
+        missing.removeAll(devices);
+
+        String mismatched = new JSONObject().put("missingDevices", new JSONArray(missing))
+                                            .put("extraDevices", new JSONArray())
+                                            .toString();
+
+        StubPushServer.writeResponse(out, 409, "application/json", null, mismatched.getBytes());
+        return;
+      }
+
+      synchronized (devicesByNumber) {
+        devicesByNumber.put(number, devices);
+      }
+
+      StubPushServer.writeResponse(out, "");
+    } catch (InterruptedException | JSONException e) {
+      throw new AssertionError(e);
+    } finally {
+      concurrent.decrementAndGet();
+    }
+  }
+
+  private void handlePreKeys(String number, String deviceId, OutputStream out) throws IOException {
+    List<PreKeyBundle>       bundles = preKeysByNumber.get(number);
+    List<PreKeyResponseItem> devices = new LinkedList<>();
+
+    preKeyFetches.incrementAndGet();
+
+    try {
+      Thread.sleep(ROUND_TRIP_MILLIS);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+
+    if (bundles != null) {
+      for (PreKeyBundle bundle : bundles) {
+        if (deviceId.equals("*") || deviceId.equals(String.valueOf(bundle.getDeviceId()))) {
+          devices.add(new PreKeyResponseItem(bundle.getDeviceId(), bundle.getRegistrationId(),
+                                             new SignedPreKeyEntity(bundle.getSignedPreKeyId(),
+                                                                    bundle.getSignedPreKey(),
+                                                                    bundle.getSignedPreKeySignature()),
+                                             new PreKeyEntity(bundle.getPreKeyId(), bundle.getPreKey())));
+        }
+      }
+    }
+
+    if (devices.isEmpty()) {
+      StubPushServer.writeResponse(out, 404, "application/json", null, new byte[0]);
+      return;
+    }
+
+    StubPushServer.writeResponse(out, JsonUtil.toJson(new PreKeyResponse(bundles.get(0).getIdentityKey(), devices)));
+  }
+}
@@ -0,0 +1,253 @@
+package org.whispersystems.textsecure.internal.push;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.whispersystems.textsecure.api.crypto.AttachmentCipherInputStream;
+import org.whispersystems.textsecure.api.crypto.AttachmentCipherOutputStream;
+import org.whispersystems.textsecure.api.crypto.StreamingAttachmentCipherInputStream;
+import org.whispersystems.textsecure.api.messages.TextSecureAttachment.ProgressListener;
+import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+public class AttachmentTransferTest extends AndroidTestCase {
+
+  private static final String TAG = AttachmentTransferTest.class.getSimpleName();
+
+  private static final int PLAINTEXT_LENGTH = 200 * 1024;
+
+  private final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+
+  private StubPushServer   server;
+  private SSLSocketFactory defaultSocketFactory;
+  private boolean          dropUpload;
+  private boolean          dropDownload;
+  private int              uploadRequests;
+  private int              resumedBytes;
+  private String           downloadRange;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    this.server = new StubPushServer(new StubPushServer.Handler() {
+      @Override
+      public void handle(String method, String path, Map<String, String> headers, byte[] body, OutputStream out)
+          throws IOException
+      {
+        if      (path.equals("/v1/attachments/"))  StubPushServer.writeResponse(out, "{\"id\":1,\"location\":\"" + server.getUrl() + "/upload\"}");
+        else if (path.equals("/v1/attachments/1")) StubPushServer.writeResponse(out, "{\"id\":1,\"location\":\"" + server.getUrl() + "/download\"}");
+        else if (path.equals("/upload"))           handleUpload(headers, body, out);
+        else if (path.equals("/download"))         handleDownload(headers, out);
+        else                                       throw new IOException("Unexpected request: " + method + " " + path);
+      }
+    });
+    this.server.start();
+
+    this.defaultSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+    HttpsURLConnection.setDefaultSSLSocketFactory(server.getClientSocketFactory());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    HttpsURLConnection.setDefaultSSLSocketFactory(defaultSocketFactory);
+    server.close();
+    super.tearDown();
+  }
+
+  public void testResumedTransfers() throws Exception {
+    PushServiceSocket socket    = new PushServiceSocket(server.getUrl(), server.getTrustStore(), "+14152222222", "password");
+    byte[]            plaintext = new byte[PLAINTEXT_LENGTH];
+    byte[]            key       = new byte[64];
+    long              total     = AttachmentCipherOutputStream.getCiphertextLength(PLAINTEXT_LENGTH);
+    RecordingListener listener  = new RecordingListener();
+
+    new SecureRandom().nextBytes(plaintext);
+    new SecureRandom().nextBytes(key);
+
+    dropUpload = true;
+
+    assertEquals(1, socket.sendAttachment(new PushAttachmentData("application/octet-stream",
+                                                                 new ByteArrayInputStream(plaintext),
+                                                                 PLAINTEXT_LENGTH, key, listener)));
+
+    Log.w(TAG, "Upload of " + total + " bytes resumed after " + (total - resumedBytes) + " bytes");
+
+    assertEquals(2, uploadRequests);
+    assertEquals(total, stored.size());
+    assertEquals(total / 2, total - resumedBytes);
+    assertEquals(total, listener.last);
+
+    File destination = File.createTempFile("attachment", "tmp");
+    destination.deleteOnExit();
+    destination.delete();
+
+    dropDownload = true;
+
+    try {
+      socket.retrieveAttachment(null, 1, destination, listener);
+      fail("expected the dropped download");
+    } catch (PushNetworkException e) {
+      // success
+    }
+
+    assertEquals(total / 2, destination.length());
+
+    dropDownload = false;
+    listener     = new RecordingListener();
+
+    socket.retrieveAttachment(null, 1, destination, listener);
+
+    assertEquals("bytes=" + (total / 2) + "-", downloadRange);
+    assertTrue(listener.first > total / 2);
+    assertEquals(total, listener.last);
+
+    assertTrue(Arrays.equals(plaintext, readFully(new AttachmentCipherInputStream(destination, key))));
+    destination.delete();
+  }
+
+  public void testStreamedDownload() throws Exception {
+    PushServiceSocket socket    = new PushServiceSocket(server.getUrl(), server.getTrustStore(), "+14152222222", "password");
+    byte[]            key       = new byte[64];
+    byte[]            plaintext = storeEncrypted(key);
+    long              total     = stored.size();
+    RecordingListener listener  = new RecordingListener();
+
+    dropDownload = true;
+
+    InputStream decrypted = new StreamingAttachmentCipherInputStream(socket.retrieveAttachmentStream(null, 1, listener), key);
+
+    assertTrue(Arrays.equals(plaintext, readFully(decrypted)));
+    assertEquals("bytes=" + (total / 2) + "-", downloadRange);
+    assertEquals(total, listener.last);
+  }
+
+  public void testStreamedDownloadWithBadMac() throws Exception {
+    PushServiceSocket socket = new PushServiceSocket(server.getUrl(), server.getTrustStore(), "+14152222222", "password");
+    byte[]            key    = new byte[64];
+
+    storeEncrypted(key);
+
+    byte[] corrupted = stored.toByteArray();
+    corrupted[corrupted.length / 2] ^= 0x01;
+    stored.reset();
+    stored.write(corrupted);
+
+    try {
+      readFully(new StreamingAttachmentCipherInputStream(socket.retrieveAttachmentStream(null, 1, null), key));
+      fail("expected the MAC failure");
+    } catch (PushNetworkException e) {
+      throw new AssertionError(e);
+    } catch (IOException e) {
+      // success
+    }
+  }
+
+  private byte[] storeEncrypted(byte[] key) throws IOException {
+    byte[] plaintext = new byte[PLAINTEXT_LENGTH];
+
+    new SecureRandom().nextBytes(plaintext);
+    new SecureRandom().nextBytes(key);
+
+    AttachmentCipherOutputStream out = new AttachmentCipherOutputStream(key, stored);
+    out.write(plaintext);
+    out.flush();
+
+    return plaintext;
+  }
+
+  private byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[4096];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      result.write(buffer, 0, read);
+    }
+
+    in.close();
+    return result.toByteArray();
+  }
+
+  private synchronized void handleUpload(Map<String, String> headers, byte[] body, OutputStream out)
+      throws IOException
+  {
+    String contentRange = headers.get("content-range");
+
+    if (contentRange != null && contentRange.startsWith("bytes */")) {
+      Map<String, String> range = new HashMap<>();
+      range.put("Range", "bytes=0-" + (stored.size() - 1));
+
+      StubPushServer.writeResponse(out, 308, "text/plain", range, new byte[0]);
+      return;
+    }
+
+    uploadRequests++;
+
+    if (dropUpload) {
+      dropUpload = false;
+      stored.write(body, 0, body.length / 2);
+      throw new IOException("Dropping the upload");
+    }
+
+    if (contentRange != null) {
+      assertEquals("bytes " + stored.size() + "-", contentRange.substring(0, contentRange.indexOf('-') + 1));
+      resumedBytes = body.length;
+    }
+
+    stored.write(body);
+    StubPushServer.writeResponse(out, 200, "text/plain", null, new byte[0]);
+  }
+
+  private synchronized void handleDownload(Map<String, String> headers, OutputStream out)
+      throws IOException
+  {
+    byte[] ciphertext = stored.toByteArray();
+    String range      = headers.get("range");
+
+    downloadRange = range;
+
+    if (range != null) {
+      int                 offset       = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+      Map<String, String> contentRange = new HashMap<>();
+
+      contentRange.put("Content-Range", "bytes " + offset + "-" + (ciphertext.length - 1) + "/" + ciphertext.length);
+      StubPushServer.writeResponse(out, 206, "application/octet-stream", contentRange,
+                                   Arrays.copyOfRange(ciphertext, offset, ciphertext.length));
+    } else if (dropDownload) {
+      out.write(("HTTP/1.1 200 OK\r\n"                        +
+                 "Content-Type: application/octet-stream\r\n" +
+                 "Content-Length: " + ciphertext.length + "\r\n\r\n").getBytes());
+      out.write(ciphertext, 0, ciphertext.length / 2);
+      out.flush();
+      throw new IOException("Dropping the download");
+    } else {
+      StubPushServer.writeResponse(out, 200, "application/octet-stream", null, ciphertext);
+    }
+  }
+
+  private static class RecordingListener implements ProgressListener {
+    private long first = -1;
+    private long last  = -1;
+
+    @Override
+    public void onAttachmentProgress(long total, long progress) {
+      if (first == -1) first = progress;
+      assertTrue(progress > last);
+      last = progress;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package org.whispersystems.textsecure.internal.push;
+
+import android.test.AndroidTestCase;
+
+import org.whispersystems.libaxolotl.state.PreKeyBundle;
+import org.whispersystems.textsecure.api.push.PushAddress;
+
+import java.util.LinkedList;
+import java.util.List;
+
+public class PreKeyBundleCacheTest extends AndroidTestCase {
+
+  private static final PushAddress ADDRESS = new PushAddress(1, "+14152222222", 1, null);
+
+  public void testBundlesAreHandedOutOnce() throws Exception {
+    PreKeyBundleCache  cache   = new PreKeyBundleCache(60 * 1000);
+    List<PreKeyBundle> bundles = new LinkedList<>();
+
+    assertFalse(cache.contains(ADDRESS));
+
+    cache.put(ADDRESS, bundles);
+
+    assertTrue(cache.contains(ADDRESS));
+    assertFalse(cache.contains(new PushAddress(1, "+14152222222", 2, null)));
+    assertSame(bundles, cache.remove(ADDRESS));
+    assertNull(cache.remove(ADDRESS));
+  }
+
+  public void testBundlesExpire() throws Exception {
+    PreKeyBundleCache cache = new PreKeyBundleCache(50);
+
+    cache.put(ADDRESS, new LinkedList<PreKeyBundle>());
+    Thread.sleep(100);
+
+    assertFalse(cache.contains(ADDRESS));
+    assertNull(cache.remove(ADDRESS));
+  }
+}
@@ -0,0 +1,99 @@
+package org.whispersystems.textsecure.internal.push;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.whispersystems.textsecure.api.push.RequestMetrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+public class PushServiceSocketTest extends AndroidTestCase {
+
+  private static final String TAG = PushServiceSocketTest.class.getSimpleName();
+
+  private StubPushServer server;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    this.server = new StubPushServer(new StubPushServer.Handler() {
+      @Override
+      public void handle(String method, String path, Map<String, String> headers, byte[] body, OutputStream out)
+          throws IOException
+      {
+        StubPushServer.writeResponse(out, "{\"count\":5}");
+      }
+    });
+    this.server.start();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    PushServiceSocket.setMetricsListener(null);
+    server.close();
+    super.tearDown();
+  }
+
+  public void testHandshakesPerHundredRequests() throws Exception {
+    PushServiceSocket socket = new PushServiceSocket(server.getUrl(), server.getTrustStore(), "+14152222222", "password");
+
+    for (int i=0;i<100;i++) {
+      assertEquals(5, socket.getAvailablePreKeys());
+    }
+
+    Log.w(TAG, "100 requests: " + server.getHandshakeCount() + " handshakes, " +
+               server.getConnectionCount() + " connections");
+
+    assertEquals(100, server.getRequestCount());
+    assertTrue(server.getHandshakeCount() <= 2);
+  }
+
+  public void testSocketsShareConnections() throws Exception {
+    for (int i=0;i<10;i++) {
+      PushServiceSocket socket = new PushServiceSocket(server.getUrl(), server.getTrustStore(), "+14152222222", "password");
+
+      for (int j=0;j<10;j++) {
+        socket.getAvailablePreKeys();
+      }
+    }
+
+    assertEquals(100, server.getRequestCount());
+    assertTrue(server.getHandshakeCount() <= 2);
+  }
+
+  public void testRequestMetrics() throws Exception {
+    final List<RequestMetrics> recorded = new LinkedList<>();
+
+    PushServiceSocket.setMetricsListener(new RequestMetrics.Listener() {
+      @Override
+      public void onRequestCompleted(RequestMetrics metrics) {
+        recorded.add(metrics);
+      }
+    });
+
+    PushServiceSocket socket = new PushServiceSocket(server.getUrl(), server.getTrustStore(), "+14152222222", "password");
+    socket.getAvailablePreKeys();
+    socket.getContactTokenDetails("abcdef");
+    socket.registerGcmId("gcm-id");
+
+    assertEquals(3, recorded.size());
+
+    assertEquals("/v2/keys/", recorded.get(0).getEndpoint());
+    assertEquals("GET", recorded.get(0).getMethod());
+    assertEquals(200, recorded.get(0).getStatus());
+    assertEquals(0, recorded.get(0).getRequestBytes());
+    assertEquals("{\"count\":5}".length(), recorded.get(0).getResponseBytes());
+    assertNull(recorded.get(0).getRetryCause());
+
+    assertEquals("/v1/directory/%s", recorded.get(1).getEndpoint());
+
+    assertEquals("/v1/accounts/gcm/", recorded.get(2).getEndpoint());
+    assertEquals("PUT", recorded.get(2).getMethod());
+    assertTrue(recorded.get(2).getRequestBytes() > "gcm-id".length());
+  }
+}
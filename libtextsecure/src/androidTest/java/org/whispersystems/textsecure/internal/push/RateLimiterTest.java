@@ -0,0 +1,83 @@
+package org.whispersystems.textsecure.internal.push;
+
+import android.test.AndroidTestCase;
+
+import org.whispersystems.textsecure.internal.push.RateLimiter.Priority;
+
+public class RateLimiterTest extends AndroidTestCase {
+
+  private FakeClock clock;
+
+  @Override
+  public void setUp() {
+    clock = new FakeClock();
+  }
+
+  public void testBurstIsPaced() {
+    RateLimiter limiter = new RateLimiter(clock, 5, 1, 20, 0);
+
+    for (int i=0;i<5;i++) assertEquals(0, limiter.tryAcquire(Priority.MESSAGES));
+
+    assertEquals(50, limiter.tryAcquire(Priority.MESSAGES));
+
+    clock.advance(50);
+    assertEquals(0, limiter.tryAcquire(Priority.MESSAGES));
+    assertEquals(50, limiter.tryAcquire(Priority.MESSAGES));
+  }
+
+  public void testRateLimitPausesAndBacksOff() {
+    RateLimiter limiter = new RateLimiter(clock, 5, 1, 20, 0);
+
+    assertEquals(1000, limiter.onRateLimited());
+    assertEquals(1000, limiter.tryAcquire(Priority.MESSAGES));
+
+    clock.advance(400);
+    assertEquals(600, limiter.tryAcquire(Priority.MESSAGES));
+
+    clock.advance(600);
+    assertEquals(2000, limiter.onRateLimited());
+    assertEquals(2000, limiter.tryAcquire(Priority.MESSAGES));
+
+    clock.advance(2000);
+    assertEquals(200, limiter.tryAcquire(Priority.MESSAGES));
+
+    clock.advance(200);
+    assertEquals(0, limiter.tryAcquire(Priority.MESSAGES));
+  }
+
+  public void testSuccessResetsBackoff() {
+    RateLimiter limiter = new RateLimiter(clock, 5, 1, 20, 0);
+
+    limiter.onRateLimited();
+    limiter.onSuccess();
+
+    assertEquals(1000, limiter.onRateLimited());
+  }
+
+  public void testLowerPrioritiesLeaveAReserve() {
+    RateLimiter limiter = new RateLimiter(clock, 8, 1, 1, 0);
+
+    for (int i=0;i<4;i++) assertEquals(0, limiter.tryAcquire(Priority.BACKGROUND));
+    assertEquals(1000, limiter.tryAcquire(Priority.BACKGROUND));
+
+    for (int i=0;i<2;i++) assertEquals(0, limiter.tryAcquire(Priority.DEFAULT));
+    assertEquals(1000, limiter.tryAcquire(Priority.DEFAULT));
+    assertEquals(3000, limiter.tryAcquire(Priority.BACKGROUND));
+
+    for (int i=0;i<2;i++) assertEquals(0, limiter.tryAcquire(Priority.MESSAGES));
+    assertEquals(1000, limiter.tryAcquire(Priority.MESSAGES));
+  }
+
+  private static class FakeClock implements RateLimiter.Clock {
+    private long now = 1000000;
+
+    @Override
+    public long currentTimeMillis() {
+      return now;
+    }
+
+    public void advance(long millis) {
+      now += millis;
+    }
+  }
+}
@@ -0,0 +1,325 @@
+package org.whispersystems.textsecure.internal.push;
+
+import android.util.Log;
+
+import org.whispersystems.textsecure.api.push.TrustStore;
+import org.whispersystems.textsecure.internal.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A minimal HTTPS server on localhost standing in for the push server. Connections
+ * are kept alive, each request is passed to a {@link Handler}, and the server counts
+ * the connections accepted, TLS handshakes completed and requests served.
+ */
+public class StubPushServer extends Thread {
+
+  private static final String TAG = StubPushServer.class.getSimpleName();
+
+  private static final char[] PASSWORD = "whisper".toCharArray();
+
+  // A self-signed certificate for CN=localhost, and its PKCS#8 RSA key.
+  private static final String CERTIFICATE =
+      "MIIDITCCAgmgAwIBAgIUOZ59STv3MEYPiKaSLqjPa2AVUbIwDQYJKoZIhvcNAQELBQAwFDESMBAG" +
+      "A1UEAwwJbG9jYWxob3N0MCAXDTI2MTAxOTAzMTA1NFoYDzIxMjYwOTI1MDMxMDU0WjAUMRIwEAYD" +
+      "VQQDDAlsb2NhbGhvc3QwggEiMA0GCSqGSIb3DQEBAQUAA4IBDwAwggEKAoIBAQD1Fv+3UMr1voWN" +
+      "bLALUFdkP6Z0O5wDRWV8ZfKrjHLEGNkzY5sj7VDyjO7BXodecIOnugG4acvOrw7ktRsSsOfYgGG6" +
+      "gevjWrAjKx3bWuqstufvTf9FZscjaLQdV0CMH/f5orr9Zpxc3b2SzCeL3h/LVCZFqpFxjCmRiHYT" +
+      "Xa288MgQY1oj+eDYDMNWckhlafYxfDsWd67pbriwiRS10owSB6lsFem81Z96zfuMVI2mVWT+6vWb" +
+      "UrWGl/EfjRe8PfB/JUXuLHmfv18ayAQqBprIHbRHZ8uGG7+oZFjs4lv1njx3HCQeJFiw1TFpSta1" +
+      "Q/YP4WK6HluvoiOpChIkqpBVAgMBAAGjaTBnMB0GA1UdDgQWBBRQ6ihjfncx1av9ZBHb+ya6lnDj" +
+      "yzAfBgNVHSMEGDAWgBRQ6ihjfncx1av9ZBHb+ya6lnDjyzAPBgNVHRMBAf8EBTADAQH/MBQGA1Ud" +
+      "EQQNMAuCCWxvY2FsaG9zdDANBgkqhkiG9w0BAQsFAAOCAQEAkspJ8YGd7zaIgzZKoz0n/K5Vgowb" +
+      "SjRTd9RRQNZAe08AJVTTLqNCcnxIYbeCTO01t1Sej/X0jJbFSzw9Zd2Hc3twP9NfEWF61WZk4TO6" +
+      "DvERtPwPv22OVLHDC8eoYSqf/izcwY6xpcwDG+qSuWRsVEIC70P/oA0LEMNtM2XQtgc0SN6nzwFc" +
+      "wSIgBg61RONaEOYBsUdDCXUloVosl0L+Dp2PuNXYZ556dSyBWxrFPHiiwZREDw3tSGmSWso7aTs3" +
+      "4tE1ER7U/OzMCTl/YtWx315iUuibr8I5hmcN1Jc0yPM+nSLAa1qw4AJ1sgSduhGCGu32xsvK62Ch" +
+      "cuCedqmO6g==";
+
+  private static final String PRIVATE_KEY =
+      "MIIEvgIBADANBgkqhkiG9w0BAQEFAASCBKgwggSkAgEAAoIBAQD1Fv+3UMr1voWNbLALUFdkP6Z0" +
+      "O5wDRWV8ZfKrjHLEGNkzY5sj7VDyjO7BXodecIOnugG4acvOrw7ktRsSsOfYgGG6gevjWrAjKx3b" +
+      "WuqstufvTf9FZscjaLQdV0CMH/f5orr9Zpxc3b2SzCeL3h/LVCZFqpFxjCmRiHYTXa288MgQY1oj" +
+      "+eDYDMNWckhlafYxfDsWd67pbriwiRS10owSB6lsFem81Z96zfuMVI2mVWT+6vWbUrWGl/EfjRe8" +
+      "PfB/JUXuLHmfv18ayAQqBprIHbRHZ8uGG7+oZFjs4lv1njx3HCQeJFiw1TFpSta1Q/YP4WK6Hluv" +
+      "oiOpChIkqpBVAgMBAAECggEAMJslTzB3c+mbOGs59aBzGHdUFmCdBfwNDrD0Qcfamd/YsYubQLKH" +
+      "t3ayQgiyfY0AWzL1NOLMb9rBcCOnsRsC++moGBI8mywI2wypwO9Es8iZcljsW5Hww+m3sMr1SuTr" +
+      "K6e1gFxJfdRfDJ4u6Jr+gLdZWL8lVZjHxKxEyH3vXxUZI+vo9mNE/2qDbtNaDo1Xnq2hs7h5ZTJB" +
+      "Eq1o8Uc8blGmh5e8ym8FnBP3mDUkTX3k+DEsXeJb0sqZQWcGGaT/meurlbpqDUhZb0YMX3pJk9BS" +
+      "xMGgL1n+Rmqh7AP8sI254xsbhkhUNz2XSIuNXf9vf1/TghUk2knr5YbFByVGuQKBgQD/4aypN9pw" +
+      "DCNuLVg+ReMOXLJVrAQ911zqlw/3HpGcny17ym9hPgZXpj7KubWYXg/m8kJfTRDu/zqbnZS2+tnM" +
+      "XfCAR9b9CZlypJvhFlBOTW/MSF3UinPFF8bAokloEFAHx3EYpgOS+Zhx3Hn9LLLuYmTacSVTgZWm" +
+      "3nXn6RpA7QKBgQD1NAujrO/XZtLyFyhU5xf4vsIUOjc6Ltkbv9Cp/5UVnAawufSkUDEbcT0Ev5lt" +
+      "mv4lyG1ZTLYUP4NtExLVzupxDk6UStlHtRunEYndXuPwdxOqnFE+F7mdTcrOcGMPIpj/2Uq071lG" +
+      "0J/7yLxY8az7+1IPKdMh3Ys8TRlfBBZoCQKBgQCCdgdYR5fhpO6zj/770RoRCoYKVCfdd95x5Q9I" +
+      "yZcoKahBA1eCVuNY8PP23HSP+PVWpJHekSZfFFZHXTKjkIZXQlYKsZYVcT2BTBgFzSCoq6aimwrs" +
+      "AKNCC/tT3+pZWmfTb4ZkMNCFsShedTDlOlMIY7ZUAXgseVdZuvaWhSzTiQKBgQDEOGL8Fx9Tk5BJ" +
+      "dSisUMZJI3YyM6gQYn8RCr3T3JiUU2izMgxJFXdGy6aVzzHbmUW6PJrs9EtdBrqIpdPTz6Ki2F0f" +
+      "pIoeLRs05f8abJ4hx1iwlikZdGjwLdmWvC85ZGlljKCRDFy4I6lzFt9KmhPhDexMAB9aIW0T02rz" +
+      "M1Uu6QKBgBDdGso/erIVc0r9TXtg35BxzPnocItmW2NPyltwn76mySeX+4O/VxB1JB/Z93KklUdC" +
+      "Z9yqZPlWzDe1nBQU2jsG/ehBB35T2I6Gcqv28aHgDWhHpMvwNbp3w6/fK+MoFzP7oiQUY12UDeGx" +
+      "q9AdmOtjrBWBwoI1fqby6O23ylwu";
+
+  public interface Handler {
+    /**
+     * Writes a response for the request. Throwing drops the connection without one.
+     */
+    public void handle(String method, String path, Map<String, String> headers, byte[] body, OutputStream out)
+        throws IOException;
+  }
+
+  private final SSLServerSocket  serverSocket;
+  private final TrustStore       trustStore;
+  private final SSLSocketFactory clientSocketFactory;
+  private final Handler          handler;
+  private final AtomicInteger    connections = new AtomicInteger(0);
+  private final AtomicInteger    handshakes  = new AtomicInteger(0);
+  private final AtomicInteger    requests    = new AtomicInteger(0);
+
+  public StubPushServer(Handler handler) throws Exception {
+    Certificate certificate = CertificateFactory.getInstance("X.509")
+                                                .generateCertificate(new ByteArrayInputStream(Base64.decode(CERTIFICATE)));
+    PrivateKey  privateKey  = KeyFactory.getInstance("RSA")
+                                        .generatePrivate(new PKCS8EncodedKeySpec(Base64.decode(PRIVATE_KEY)));
+
+    KeyStore trusted = KeyStore.getInstance("BKS");
+    trusted.load(null, null);
+    trusted.setCertificateEntry("server", certificate);
+
+    final ByteArrayOutputStream trustedBytes = new ByteArrayOutputStream();
+    trusted.store(trustedBytes, PASSWORD);
+
+    this.trustStore = new TrustStore() {
+      @Override
+      public InputStream getKeyStoreInputStream() {
+        return new ByteArrayInputStream(trustedBytes.toByteArray());
+      }
+
+      @Override
+      public String getKeyStorePassword() {
+        return new String(PASSWORD);
+      }
+    };
+
+    TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("X509");
+    trustManagerFactory.init(trusted);
+
+    SSLContext clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, trustManagerFactory.getTrustManagers(), null);
+
+    this.clientSocketFactory = clientContext.getSocketFactory();
+
+    KeyStore identity = KeyStore.getInstance("BKS");
+    identity.load(null, null);
+    identity.setKeyEntry("server", privateKey, PASSWORD, new Certificate[] {certificate});
+
+    KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(identity, PASSWORD);
+
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keyManagerFactory.getKeyManagers(), null, null);
+
+    this.serverSocket = (SSLServerSocket)context.getServerSocketFactory().createServerSocket(0);
+    this.handler      = handler;
+    setDaemon(true);
+  }
+
+  public String getUrl() {
+    return "https://localhost:" + serverSocket.getLocalPort();
+  }
+
+  public TrustStore getTrustStore() {
+    return trustStore;
+  }
+
+  /**
+   * @return a socket factory trusting this server, for connections made outside
+   * PushServiceSocket's own trust store (attachment transfers).
+   */
+  public SSLSocketFactory getClientSocketFactory() {
+    return clientSocketFactory;
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        final SSLSocket socket = (SSLSocket)serverSocket.accept();
+        connections.incrementAndGet();
+
+        socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+          @Override
+          public void handshakeCompleted(HandshakeCompletedEvent event) {
+            handshakes.incrementAndGet();
+          }
+        });
+
+        new Thread() {
+          @Override
+          public void run() {
+            serve(socket);
+          }
+        }.start();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  private void serve(SSLSocket socket) {
+    try {
+      InputStream  in  = socket.getInputStream();
+      OutputStream out = socket.getOutputStream();
+      String       requestLine;
+
+      while ((requestLine = readLine(in)) != null) {
+        Map<String, String> headers = new HashMap<>();
+        String              header;
+
+        while ((header = readLine(in)) != null && header.length() > 0) {
+          int separator = header.indexOf(':');
+          headers.put(header.substring(0, separator).trim().toLowerCase(), header.substring(separator + 1).trim());
+        }
+
+        boolean  chunked = "chunked".equalsIgnoreCase(headers.get("transfer-encoding"));
+        int      length  = headers.containsKey("content-length") ? Integer.parseInt(headers.get("content-length")) : 0;
+        byte[]   body    = chunked ? readChunkedBody(in) : readBody(in, length);
+        String[] parts   = requestLine.split(" ");
+
+        requests.incrementAndGet();
+        handler.handle(parts[0], parts[1], headers, body, out);
+        out.flush();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+    }
+  }
+
+  private byte[] readBody(InputStream in, int length) throws IOException {
+    byte[] body   = new byte[length];
+    int    offset = 0;
+    int    read;
+
+    while (offset < body.length && (read = in.read(body, offset, body.length - offset)) != -1) {
+      offset += read;
+    }
+
+    return body;
+  }
+
+  private byte[] readChunkedBody(InputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    String                size;
+
+    while ((size = readLine(in)) != null) {
+      int length = Integer.parseInt(size.split(";")[0].trim(), 16);
+
+      if (length == 0) {
+        readLine(in);
+        break;
+      }
+
+      body.write(readBody(in, length));
+      readLine(in);
+    }
+
+    return body.toByteArray();
+  }
+
+  private String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int           read;
+
+    while ((read = in.read()) != -1) {
+      if      (read == '\n') return line.toString();
+      else if (read != '\r') line.append((char)read);
+    }
+
+    return line.length() > 0 ? line.toString() : null;
+  }
+
+  public static void writeResponse(OutputStream out, String json) throws IOException {
+    writeResponse(out, 200, "application/json", null, json.getBytes());
+  }
+
+  public static void writeResponse(OutputStream out, int status, String contentType,
+                                   Map<String, String> headers, byte[] body)
+      throws IOException
+  {
+    StringBuilder response = new StringBuilder();
+    response.append("HTTP/1.1 ").append(status).append(" Stub\r\n");
+    response.append("Content-Type: ").append(contentType).append("\r\n");
+    response.append("Content-Length: ").append(body.length).append("\r\n");
+
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        response.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+      }
+    }
+
+    response.append("\r\n");
+
+    out.write(response.toString().getBytes());
+    out.write(body);
+  }
+
+  public static void writeChunkedHeader(OutputStream out) throws IOException {
+    out.write(("HTTP/1.1 200 OK\r\n"                        +
+               "Content-Type: application/octet-stream\r\n" +
+               "Transfer-Encoding: chunked\r\n\r\n").getBytes());
+  }
+
+  public static void writeChunk(OutputStream out, byte[] chunk) throws IOException {
+    out.write((Integer.toHexString(chunk.length) + "\r\n").getBytes());
+    out.write(chunk);
+    out.write("\r\n".getBytes());
+  }
+
+  public static void writeLastChunk(OutputStream out) throws IOException {
+    out.write("0\r\n\r\n".getBytes());
+  }
+
+  public int getConnectionCount() {
+    return connections.get();
+  }
+
+  public int getHandshakeCount() {
+    return handshakes.get();
+  }
+
+  public int getRequestCount() {
+    return requests.get();
+  }
+
+  public void close() throws IOException {
+    serverSocket.close();
+  }
+}
@@ -0,0 +1,133 @@
+package org.whispersystems.textsecure.internal.util;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FanoutExecutorTest extends AndroidTestCase {
+
+  private static final int ROUND_TRIP_MILLIS = 40;
+
+  public void testParallelismCap() throws Exception {
+    RecordingTask task = new RecordingTask();
+    new FanoutExecutor(3).execute(createGroup(20, 1), task);
+
+    assertTrue(task.getMaxConcurrent() <= 3);
+    assertEquals(20, task.getRequestCount());
+  }
+
+  public void testPerRecipientOrdering() throws Exception {
+    RecordingTask task = new RecordingTask();
+    new FanoutExecutor(4).execute(createGroup(10, 3), task);
+
+    assertEquals(10, task.getDevicesByNumber().size());
+
+    for (List<Integer> devices : task.getDevicesByNumber().values()) {
+      assertEquals(Arrays.asList(1, 2, 3), devices);
+    }
+  }
+
+  public void testFailureStopsFanout() throws Exception {
+    RecordingTask task = new RecordingTask();
+    task.failOn("+1555000003");
+
+    try {
+      new FanoutExecutor(2).execute(createGroup(50, 1), task);
+      fail("expected the stub failure");
+    } catch (IOException e) {
+      // success
+    }
+
+    assertTrue(task.getRequestCount() < 50);
+  }
+
+  private List<List<String[]>> createGroup(int members, int devices) {
+    List<List<String[]>> group = new LinkedList<>();
+
+    for (int i=0;i<members;i++) {
+      List<String[]> addresses = new LinkedList<>();
+
+      for (int device=1;device<=devices;device++) {
+        addresses.add(new String[] {String.format("+1555%06d", i), String.valueOf(device)});
+      }
+
+      group.add(addresses);
+    }
+
+    return group;
+  }
+
+  /**
+   * Takes one simulated round trip per address, recording addresses in the order they
+   * run. Sends through the real sender are covered by TextSecureMessageSenderTest.
+   */
+  private static class RecordingTask implements FanoutExecutor.Task<List<String[]>> {
+    private final AtomicInteger              concurrent      = new AtomicInteger(0);
+    private final AtomicInteger              maxConcurrent   = new AtomicInteger(0);
+    private final AtomicInteger              requests        = new AtomicInteger(0);
+    private final Map<String, List<Integer>> devicesByNumber = new HashMap<>();
+
+    private String failingNumber;
+
+    public void failOn(String number) {
+      this.failingNumber = number;
+    }
+
+    @Override
+    public void run(List<String[]> addresses) throws IOException {
+      for (String[] address : addresses) {
+        put(address[0], Integer.parseInt(address[1]));
+      }
+    }
+
+    private void put(String number, int deviceId) throws IOException {
+      int inFlight = concurrent.incrementAndGet();
+
+      synchronized (maxConcurrent) {
+        maxConcurrent.set(Math.max(maxConcurrent.get(), inFlight));
+      }
+
+      try {
+        requests.incrementAndGet();
+        Thread.sleep(ROUND_TRIP_MILLIS);
+
+        if (number.equals(failingNumber)) {
+          throw new IOException("Stub failure for " + number);
+        }
+
+        synchronized (devicesByNumber) {
+          List<Integer> devices = devicesByNumber.get(number);
+
+          if (devices == null) {
+            devices = new LinkedList<>();
+            devicesByNumber.put(number, devices);
+          }
+
+          devices.add(deviceId);
+        }
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      } finally {
+        concurrent.decrementAndGet();
+      }
+    }
+
+    public int getMaxConcurrent() {
+      return maxConcurrent.get();
+    }
+
+    public int getRequestCount() {
+      return requests.get();
+    }
+
+    public Map<String, List<Integer>> getDevicesByNumber() {
+      return devicesByNumber;
+    }
+  }
+}
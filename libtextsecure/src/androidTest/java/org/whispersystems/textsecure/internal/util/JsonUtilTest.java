@@ -0,0 +1,268 @@
+package org.whispersystems.textsecure.internal.util;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.google.thoughtcrimegson.Gson;
+import com.google.thoughtcrimegson.GsonBuilder;
+import com.google.thoughtcrimegson.JsonParser;
+
+import org.whispersystems.libaxolotl.IdentityKey;
+import org.whispersystems.libaxolotl.ecc.Curve25519;
+import org.whispersystems.libaxolotl.ecc.ECPublicKey;
+import org.whispersystems.textsecure.api.push.ContactTokenDetails;
+import org.whispersystems.textsecure.api.push.PushAddress;
+import org.whispersystems.textsecure.api.push.SignedPreKeyEntity;
+import org.whispersystems.textsecure.internal.push.ContactTokenDetailsList;
+import org.whispersystems.textsecure.internal.push.OutgoingPushMessage;
+import org.whispersystems.textsecure.internal.push.OutgoingPushMessageList;
+import org.whispersystems.textsecure.internal.push.PreKeyEntity;
+import org.whispersystems.textsecure.internal.push.PreKeyResponse;
+import org.whispersystems.textsecure.internal.push.PreKeyResponseItem;
+import org.whispersystems.textsecure.internal.push.PreKeyState;
+import org.whispersystems.textsecure.internal.push.PushBody;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+public class JsonUtilTest extends AndroidTestCase {
+
+  private static final String TAG = JsonUtilTest.class.getSimpleName();
+
+  private static final int ITERATIONS = 20;
+
+  public void testPreKeyResponseRoundTrip() throws Exception {
+    IdentityKey              identityKey = new IdentityKey(Curve25519.generateKeyPair().getPublicKey());
+    List<PreKeyResponseItem> devices     = new LinkedList<>();
+
+    for (int i=1;i<=3;i++) {
+      ECPublicKey signedPreKey = Curve25519.generateKeyPair().getPublicKey();
+      ECPublicKey preKey       = Curve25519.generateKeyPair().getPublicKey();
+
+      devices.add(new PreKeyResponseItem(i, 1000 + i,
+                                         new SignedPreKeyEntity(10 + i, signedPreKey, new byte[] {(byte)i, 2, 3}),
+                                         i == 3 ? null : new PreKeyEntity(20 + i, preKey)));
+    }
+
+    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+    JsonUtil.toJson(new PreKeyResponse(identityKey, devices), serialized);
+
+    PreKeyResponse streamed   = JsonUtil.fromJson(new ByteArrayInputStream(serialized.toByteArray()), PreKeyResponse.class);
+    PreKeyResponse reflective = getReflectiveGson().fromJson(serialized.toString("UTF-8"), PreKeyResponse.class);
+
+    for (PreKeyResponse response : new PreKeyResponse[] {streamed, reflective}) {
+      assertEquals(identityKey, response.getIdentityKey());
+      assertEquals(3, response.getDevices().size());
+
+      for (int i=0;i<3;i++) {
+        PreKeyResponseItem expected = devices.get(i);
+        PreKeyResponseItem actual   = response.getDevices().get(i);
+
+        assertEquals(expected.getDeviceId(), actual.getDeviceId());
+        assertEquals(expected.getRegistrationId(), actual.getRegistrationId());
+        assertEquals(expected.getSignedPreKey().getKeyId(), actual.getSignedPreKey().getKeyId());
+        assertEquals(expected.getSignedPreKey().getPublicKey(), actual.getSignedPreKey().getPublicKey());
+        assertTrue(Arrays.equals(expected.getSignedPreKey().getSignature(), actual.getSignedPreKey().getSignature()));
+
+        if (expected.getPreKey() == null) {
+          assertNull(actual.getPreKey());
+        } else {
+          assertEquals(expected.getPreKey().getKeyId(), actual.getPreKey().getKeyId());
+          assertEquals(expected.getPreKey().getPublicKey(), actual.getPreKey().getPublicKey());
+        }
+      }
+    }
+  }
+
+  public void testOutgoingMessageListMatchesReflective() throws Exception {
+    List<OutgoingPushMessage> messages = new LinkedList<>();
+
+    for (int i=1;i<=3;i++) {
+      messages.add(new OutgoingPushMessage(new PushAddress(1, "+14152222222", i, null),
+                                           new PushBody(1, 1000 + i, new byte[200])));
+    }
+
+    OutgoingPushMessageList list     = new OutgoingPushMessageList("+14152222222", 1234L, null, messages);
+    ByteArrayOutputStream   streamed = new ByteArrayOutputStream();
+
+    JsonUtil.toJson(list, streamed);
+
+    assertEquals(new JsonParser().parse(new Gson().toJson(list)),
+                 new JsonParser().parse(streamed.toString("UTF-8")));
+
+    OutgoingPushMessageList read = JsonUtil.fromJson(streamed.toString("UTF-8"), OutgoingPushMessageList.class);
+
+    assertEquals(list.getDestination(), read.getDestination());
+    assertEquals(list.getTimestamp(), read.getTimestamp());
+    assertEquals(3, read.getMessages().size());
+    assertEquals(list.getMessages().get(2).getBody(), read.getMessages().get(2).getBody());
+  }
+
+  public void testDirectoryResponseAllocations() throws Exception {
+    List<ContactTokenDetails> contacts = new LinkedList<>();
+
+    for (int i=0;i<5000;i++) {
+      contacts.add(new ContactTokenDetails(String.format("%020x", i), i % 10 == 0 ? "relay" : null, i % 2 == 0));
+    }
+
+    final byte[] response = JsonUtil.toJson(new ContactTokenDetailsList(contacts)).getBytes("UTF-8");
+
+    assertEquals(new JsonParser().parse(new Gson().toJson(new ContactTokenDetailsList(contacts))),
+                 new JsonParser().parse(new String(response, "UTF-8")));
+
+    long[] legacy = measure(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          String body = Util.readFully(new ByteArrayInputStream(response));
+          assertEquals(5000, new Gson().fromJson(body, ContactTokenDetailsList.class).getContacts().size());
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+
+    long[] streamed = measure(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          ContactTokenDetailsList list = JsonUtil.fromJson(new ByteArrayInputStream(response), ContactTokenDetailsList.class);
+          assertEquals(5000, list.getContacts().size());
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+
+    Log.w(TAG, "Directory response (" + response.length + " bytes): legacy " + legacy[0] + "ms, " +
+               legacy[1] + " bytes allocated; streamed " + streamed[0] + "ms, " + streamed[1] + " bytes allocated");
+
+    assertTrue(streamed[1] < legacy[1]);
+  }
+
+  public void testPreKeyUploadAllocations() throws Exception {
+    List<PreKeyEntity> preKeys = new LinkedList<>();
+
+    for (int i=0;i<100;i++) {
+      preKeys.add(new PreKeyEntity(i, Curve25519.generateKeyPair().getPublicKey()));
+    }
+
+    final PreKeyState state = new PreKeyState(preKeys,
+                                              new PreKeyEntity(0xFFFFFF, Curve25519.generateKeyPair().getPublicKey()),
+                                              new SignedPreKeyEntity(1, Curve25519.generateKeyPair().getPublicKey(), new byte[64]),
+                                              new IdentityKey(Curve25519.generateKeyPair().getPublicKey()));
+
+    long[] legacy = measure(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          out.write(getReflectiveGson().toJson(state).getBytes());
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+
+    long[] streamed = measure(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          JsonUtil.toJson(state, new ByteArrayOutputStream());
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+
+    Log.w(TAG, "Prekey upload: legacy " + legacy[0] + "ms, " + legacy[1] + " bytes allocated; " +
+               "streamed " + streamed[0] + "ms, " + streamed[1] + " bytes allocated");
+
+    assertTrue(streamed[1] < legacy[1]);
+  }
+
+  public void testRequestBodyAllocations() throws Exception {
+    List<OutgoingPushMessage> messages = new LinkedList<>();
+
+    for (int i=1;i<=3;i++) {
+      messages.add(new OutgoingPushMessage(new PushAddress(1, "+14152222222", i, null),
+                                           new PushBody(1, 1000 + i, new byte[200])));
+    }
+
+    final OutgoingPushMessageList list = new OutgoingPushMessageList("+14152222222", 1234L, null, messages);
+
+    long[] buffered = measure(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          getBufferedBytes(list);
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+
+    long[] encoded = measure(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          JsonUtil.toJsonBytes(list);
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+
+    Log.w(TAG, "Request body: buffered " + buffered[0] + "ms, " + buffered[1] + " bytes allocated; " +
+               "encoded " + encoded[0] + "ms, " + encoded[1] + " bytes allocated");
+
+    assertTrue(Arrays.equals(getBufferedBytes(list), JsonUtil.toJsonBytes(list)));
+    assertTrue(encoded[1] < buffered[1]);
+  }
+
+  /**
+   * The body as PushServiceSocket used to build it, through a growing buffer.
+   */
+  private byte[] getBufferedBytes(Object object) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonUtil.toJson(object, out);
+    return out.toByteArray();
+  }
+
+  /**
+   * The codec as PushServiceSocket used to build it, fresh for every call.
+   */
+  private Gson getReflectiveGson() {
+    return SignedPreKeyEntity.forBuilder(new GsonBuilder())
+                             .registerTypeAdapter(IdentityKey.class, new PreKeyResponse.IdentityKeyJsonAdapter())
+                             .create();
+  }
+
+  /**
+   * @return the average milliseconds and bytes allocated on this thread per run.
+   */
+  @SuppressWarnings("deprecation")
+  private long[] measure(Runnable runnable) {
+    runnable.run();
+
+    Debug.resetThreadAllocSize();
+    Debug.startAllocCounting();
+
+    long start = System.currentTimeMillis();
+
+    for (int i=0;i<ITERATIONS;i++) {
+      runnable.run();
+    }
+
+    long elapsed   = System.currentTimeMillis() - start;
+    long allocated = Debug.getThreadAllocSize();
+
+    Debug.stopAllocCounting();
+
+    return new long[] {elapsed / ITERATIONS, allocated / ITERATIONS};
+  }
+}
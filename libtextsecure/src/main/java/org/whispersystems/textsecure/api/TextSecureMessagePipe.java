@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.api;
+
+import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
+import org.whispersystems.textsecure.internal.push.AcknowledgedMessage;
+import org.whispersystems.textsecure.internal.push.PushServiceSocket;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.whispersystems.textsecure.internal.push.PushMessageProtos.IncomingPushMessageSignal;
+
+/**
+ * A long-lived, authenticated connection to the push server which streams incoming
+ * envelopes as they arrive.
+ *
+ * The connection is already authenticated and encrypted, so envelopes arrive as
+ * length-delimited plaintext signals without the signaling key layer GCM needs.
+ * They're acknowledged in batches: each {@link #read(MessagePipeCallback)} hands
+ * over every envelope already buffered (up to a limit) before sending one
+ * acknowledgement for all of them.
+ */
+public class TextSecureMessagePipe {
+
+  private static final int ACK_BATCH_SIZE = 50;
+
+  private final PushServiceSocket socket;
+  private final HttpURLConnection connection;
+  private final InputStream       stream;
+
+  TextSecureMessagePipe(PushServiceSocket socket) throws IOException {
+    this.socket     = socket;
+    this.connection = socket.openMessageStream();
+    this.stream     = new BufferedInputStream(connection.getInputStream());
+  }
+
+  /**
+   * Blocks until an envelope arrives, then hands it and the envelopes already
+   * buffered behind it to the callback. They're acknowledged once the callback
+   * has returned for all of them, so a callback should only return once it has
+   * stored its envelope somewhere durable.
+   *
+   * @return the number of envelopes handled, or -1 once the server has closed the stream.
+   * @throws IOException if the connection fails. Envelopes already handled in this
+   * call are left unacknowledged, and the server will deliver them again.
+   */
+  public int read(MessagePipeCallback callback) throws IOException {
+    List<AcknowledgedMessage> handled = new LinkedList<>();
+
+    do {
+      IncomingPushMessageSignal signal = IncomingPushMessageSignal.parseDelimitedFrom(stream);
+
+      if (signal == null) {
+        break;
+      }
+
+      callback.onMessage(new TextSecureEnvelope(signal.getType().getNumber(), signal.getSource(),
+                                                signal.getSourceDevice(), signal.getRelay(),
+                                                signal.getTimestamp(), signal.getMessage().toByteArray()));
+
+      handled.add(new AcknowledgedMessage(signal.getSource(), signal.getTimestamp()));
+    } while (handled.size() < ACK_BATCH_SIZE && stream.available() > 0);
+
+    if (handled.isEmpty()) {
+      return -1;
+    }
+
+    socket.acknowledgeMessages(handled);
+    return handled.size();
+  }
+
+  /**
+   * Closes the connection, unblocking any thread waiting in {@link #read(MessagePipeCallback)}.
+   */
+  public void shutdown() {
+    connection.disconnect();
+  }
+
+  public interface MessagePipeCallback {
+    public void onMessage(TextSecureEnvelope envelope);
+  }
+}
@@ -18,6 +18,8 @@ package org.whispersystems.textsecure.api;
 
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.whispersystems.textsecure.api.crypto.AttachmentCipherInputStream;
+import org.whispersystems.textsecure.api.crypto.StreamingAttachmentCipherInputStream;
+import org.whispersystems.textsecure.api.messages.TextSecureAttachment;
 import org.whispersystems.textsecure.api.messages.TextSecureAttachmentPointer;
 import org.whispersystems.textsecure.api.push.TrustStore;
 import org.whispersystems.textsecure.internal.push.PushServiceSocket;
@@ -39,8 +41,48 @@ public class TextSecureMessageReceiver {
   public InputStream retrieveAttachment(TextSecureAttachmentPointer pointer, File destination)
       throws IOException, InvalidMessageException
   {
-    socket.retrieveAttachment(pointer.getRelay().orNull(), pointer.getId(), destination);
+    return retrieveAttachment(pointer, destination, null);
+  }
+
+  /**
+   * Downloads an attachment into the destination file and opens it for decryption.
+   * If the file already holds the start of the attachment from an interrupted
+   * download, only the remainder is fetched, so callers that want to resume should
+   * keep the file when this throws an IOException.
+   */
+  public InputStream retrieveAttachment(TextSecureAttachmentPointer pointer, File destination,
+                                        TextSecureAttachment.ProgressListener listener)
+      throws IOException, InvalidMessageException
+  {
+    socket.retrieveAttachment(pointer.getRelay().orNull(), pointer.getId(), destination, listener);
     return new AttachmentCipherInputStream(destination, pointer.getKey());
   }
 
+  /**
+   * Opens an attachment for decryption as it downloads, without storing its
+   * ciphertext. The stream must be read to the end before anything read from it is
+   * trusted, since the MAC is only checked there; see
+   * {@link StreamingAttachmentCipherInputStream}.
+   */
+  public InputStream streamAttachment(TextSecureAttachmentPointer pointer,
+                                      TextSecureAttachment.ProgressListener listener)
+      throws IOException
+  {
+    InputStream ciphertext = socket.retrieveAttachmentStream(pointer.getRelay().orNull(), pointer.getId(), listener);
+
+    try {
+      return new StreamingAttachmentCipherInputStream(ciphertext, pointer.getKey());
+    } catch (IOException e) {
+      ciphertext.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a connection which streams incoming messages as they arrive.
+   */
+  public TextSecureMessagePipe createMessagePipe() throws IOException {
+    return new TextSecureMessagePipe(socket);
+  }
+
 }
@@ -37,6 +37,7 @@ import org.whispersystems.textsecure.api.push.TrustStore;
 import org.whispersystems.textsecure.internal.push.MismatchedDevices;
 import org.whispersystems.textsecure.internal.push.OutgoingPushMessage;
 import org.whispersystems.textsecure.internal.push.OutgoingPushMessageList;
+import org.whispersystems.textsecure.internal.push.PreKeyBundleCache;
 import org.whispersystems.textsecure.internal.push.PushAttachmentData;
 import org.whispersystems.textsecure.internal.push.PushBody;
 import org.whispersystems.textsecure.internal.push.PushServiceSocket;
@@ -45,11 +46,15 @@ import org.whispersystems.textsecure.api.push.exceptions.UnregisteredUserExcepti
 import org.whispersystems.textsecure.api.push.exceptions.EncapsulatedExceptions;
 import org.whispersystems.textsecure.internal.push.exceptions.MismatchedDevicesException;
 import org.whispersystems.textsecure.internal.push.exceptions.StaleDevicesException;
+import org.whispersystems.textsecure.internal.util.FanoutExecutor;
 import org.whispersystems.textsecure.internal.util.Util;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import static org.whispersystems.textsecure.internal.push.PushMessageProtos.IncomingPushMessageSignal.Type;
 import static org.whispersystems.textsecure.internal.push.PushMessageProtos.PushMessageContent;
@@ -60,17 +65,62 @@ public class TextSecureMessageSender {
 
   private static final String TAG = TextSecureMessageSender.class.getSimpleName();
 
+  private static final int  DEFAULT_FANOUT_PARALLELISM = 4;
+  private static final long PREFETCHED_PREKEY_MAX_AGE  = 5 * 60 * 1000;
+
+  private static final PreKeyBundleCache prefetchedPreKeys = new PreKeyBundleCache(PREFETCHED_PREKEY_MAX_AGE);
+
+  private static final Object[] SESSION_LOCKS = new Object[32];
+
+  static {
+    for (int i=0;i<SESSION_LOCKS.length;i++) {
+      SESSION_LOCKS[i] = new Object();
+    }
+  }
+
   private final PushServiceSocket       socket;
   private final AxolotlStore            store;
   private final Optional<EventListener> eventListener;
+  private final FanoutExecutor          fanoutExecutor;
 
   public TextSecureMessageSender(String url, TrustStore trustStore,
                                  String user, String password, AxolotlStore store,
                                  Optional<EventListener> eventListener)
   {
-    this.socket        = new PushServiceSocket(url, trustStore, user, password);
-    this.store         = store;
-    this.eventListener = eventListener;
+    this(url, trustStore, user, password, store, eventListener, DEFAULT_FANOUT_PARALLELISM);
+  }
+
+  /**
+   * @param fanoutParallelism The most recipients of a group or broadcast message to
+   *                          send to at once. The store must tolerate concurrent use
+   *                          for different recipients when this is more than one.
+   */
+  public TextSecureMessageSender(String url, TrustStore trustStore,
+                                 String user, String password, AxolotlStore store,
+                                 Optional<EventListener> eventListener, int fanoutParallelism)
+  {
+    this.socket         = new PushServiceSocket(url, trustStore, user, password);
+    this.store          = store;
+    this.eventListener  = eventListener;
+    this.fanoutExecutor = new FanoutExecutor(fanoutParallelism);
+  }
+
+  /**
+   * Fetches a recipient's prekey bundles ahead of time if there's no session with them
+   * yet, so that a first message sent in the next few minutes doesn't have to wait on
+   * the fetch. Every fetch uses up one of the recipient's one-time prekeys, so this
+   * should only be called when a message is likely to follow.
+   */
+  public void prefetchPreKeys(PushAddress recipient) throws IOException {
+    synchronized (getSessionLock(recipient.getRecipientId())) {
+      if (store.containsSession(recipient.getRecipientId(), recipient.getDeviceId()) ||
+          prefetchedPreKeys.contains(recipient))
+      {
+        return;
+      }
+
+      prefetchedPreKeys.put(recipient, socket.getPreKeys(recipient));
+    }
   }
 
   public void sendDeliveryReceipt(PushAddress recipient, long messageId) throws IOException {
@@ -81,7 +131,13 @@ public class TextSecureMessageSender {
       throws UntrustedIdentityException, IOException
   {
     byte[] content = createMessageContent(message);
-    sendMessage(recipient, message.getTimestamp(), content);
+
+    try {
+      sendMessage(recipient, message.getTimestamp(), content);
+    } catch (EncapsulatedExceptions e) {
+      // Every device shares the recipient's number, so one exception says it all.
+      throw e.getUntrustedIdentityExceptions().get(0);
+    }
 
     if (message.isEndSession()) {
       store.deleteAllSessions(recipient.getRecipientId());
@@ -145,31 +201,60 @@ public class TextSecureMessageSender {
     return builder.build();
   }
 
-  private void sendMessage(List<PushAddress> recipients, long timestamp, byte[] content)
+  private void sendMessage(List<PushAddress> recipients, final long timestamp, final byte[] content)
       throws IOException, EncapsulatedExceptions
   {
-    List<UntrustedIdentityException> untrustedIdentities = new LinkedList<>();
-    List<UnregisteredUserException>  unregisteredUsers   = new LinkedList<>();
+    final List<UntrustedIdentityException> untrustedIdentities = Collections.synchronizedList(new LinkedList<UntrustedIdentityException>());
+    final List<UnregisteredUserException>  unregisteredUsers   = Collections.synchronizedList(new LinkedList<UnregisteredUserException>());
 
-    for (PushAddress recipient : recipients) {
-      try {
-        sendMessage(recipient, timestamp, content);
-      } catch (UntrustedIdentityException e) {
-        Log.w(TAG, e);
-        untrustedIdentities.add(e);
-      } catch (UnregisteredUserException e) {
-        Log.w(TAG, e);
-        unregisteredUsers.add(e);
+    fanoutExecutor.execute(groupByNumber(recipients), new FanoutExecutor.Task<List<PushAddress>>() {
+      @Override
+      public void run(List<PushAddress> addresses) throws IOException {
+        for (PushAddress recipient : addresses) {
+          try {
+            sendMessage(recipient, timestamp, content);
+          } catch (EncapsulatedExceptions e) {
+            Log.w(TAG, e);
+            untrustedIdentities.addAll(e.getUntrustedIdentityExceptions());
+          } catch (UnregisteredUserException e) {
+            Log.w(TAG, e);
+            unregisteredUsers.add(e);
+          }
+        }
       }
-    }
+    });
 
     if (!untrustedIdentities.isEmpty() || !unregisteredUsers.isEmpty()) {
       throw new EncapsulatedExceptions(untrustedIdentities, unregisteredUsers);
     }
   }
 
+  /**
+   * Addresses for the same number are sent to one after another, in the order given.
+   */
+  private List<List<PushAddress>> groupByNumber(List<PushAddress> recipients) {
+    Map<String, List<PushAddress>> grouped = new LinkedHashMap<>();
+
+    for (PushAddress recipient : recipients) {
+      List<PushAddress> addresses = grouped.get(recipient.getNumber());
+
+      if (addresses == null) {
+        addresses = new LinkedList<>();
+        grouped.put(recipient.getNumber(), addresses);
+      }
+
+      addresses.add(recipient);
+    }
+
+    return new LinkedList<>(grouped.values());
+  }
+
+  /**
+   * @throws EncapsulatedExceptions if the identity of any of the recipient's devices is
+   * untrusted, listing every one of them. Nothing is sent to the recipient in that case.
+   */
   private void sendMessage(PushAddress recipient, long timestamp, byte[] content)
-      throws UntrustedIdentityException, IOException
+      throws IOException, EncapsulatedExceptions
   {
     for (int i=0;i<3;i++) {
       try {
@@ -212,7 +297,8 @@ public class TextSecureMessageSender {
     PushAttachmentData attachmentData = new PushAttachmentData(attachment.getContentType(),
                                                                attachment.getInputStream(),
                                                                attachment.getLength(),
-                                                               attachmentKey);
+                                                               attachmentKey,
+                                                               attachment.getListener());
 
     long attachmentId = socket.sendAttachment(attachmentData);
 
@@ -228,7 +314,7 @@ public class TextSecureMessageSender {
                                                        PushAddress recipient,
                                                        long timestamp,
                                                        byte[] plaintext)
-      throws IOException, UntrustedIdentityException
+      throws IOException, EncapsulatedExceptions
   {
     PushBody masterBody = getEncryptedMessage(socket, recipient, plaintext);
 
@@ -246,29 +332,41 @@ public class TextSecureMessageSender {
   }
 
   private PushBody getEncryptedMessage(PushServiceSocket socket, PushAddress recipient, byte[] plaintext)
-      throws IOException, UntrustedIdentityException
+      throws IOException, EncapsulatedExceptions
   {
-    if (!store.containsSession(recipient.getRecipientId(), recipient.getDeviceId())) {
-      try {
-        List<PreKeyBundle> preKeys = socket.getPreKeys(recipient);
+    List<UntrustedIdentityException> untrustedIdentities = new LinkedList<>();
+    boolean                          built               = false;
+
+    // Checked and fetched under the lock, so that racing sends to a new recipient
+    // use up one of their one-time prekeys between them, not one each.
+    synchronized (getSessionLock(recipient.getRecipientId())) {
+      if (!store.containsSession(recipient.getRecipientId(), recipient.getDeviceId())) {
+        List<PreKeyBundle> preKeys = prefetchedPreKeys.remove(recipient);
+
+        if (preKeys == null) {
+          preKeys = socket.getPreKeys(recipient);
+        } else {
+          Log.w(TAG, "Using prefetched prekeys");
+        }
 
         for (PreKeyBundle preKey : preKeys) {
           try {
-            SessionBuilder sessionBuilder = new SessionBuilder(store, recipient.getRecipientId(), recipient.getDeviceId());
-            sessionBuilder.process(preKey);
-          } catch (org.whispersystems.libaxolotl.UntrustedIdentityException e) {
-            throw new UntrustedIdentityException("Untrusted identity key!", recipient.getNumber(), preKey.getIdentityKey());
+            built |= buildSession(recipient, preKey);
+          } catch (UntrustedIdentityException e) {
+            untrustedIdentities.add(e);
           }
         }
-
-        if (eventListener.isPresent()) {
-          eventListener.get().onSecurityEvent(recipient.getRecipientId());
-        }
-      } catch (InvalidKeyException e) {
-        throw new IOException(e);
       }
     }
 
+    if (built && eventListener.isPresent()) {
+      eventListener.get().onSecurityEvent(recipient.getRecipientId());
+    }
+
+    if (!untrustedIdentities.isEmpty()) {
+      throw new EncapsulatedExceptions(untrustedIdentities, new LinkedList<UnregisteredUserException>());
+    }
+
     TextSecureCipher  cipher               = new TextSecureCipher(store, recipient.getRecipientId(), recipient.getDeviceId());
     CiphertextMessage message              = cipher.encrypt(plaintext);
     int               remoteRegistrationId = cipher.getRemoteRegistrationId();
@@ -282,32 +380,83 @@ public class TextSecureMessageSender {
     }
   }
 
-  private void handleMismatchedDevices(PushServiceSocket socket, PushAddress recipient,
+  private void handleMismatchedDevices(final PushServiceSocket socket, final PushAddress recipient,
                                        MismatchedDevices mismatchedDevices)
+      throws IOException, EncapsulatedExceptions
+  {
+    for (int extraDeviceId : mismatchedDevices.getExtraDevices()) {
+      store.deleteSession(recipient.getRecipientId(), extraDeviceId);
+    }
+
+    List<PushAddress> missingDevices = new LinkedList<>();
+
+    for (int missingDeviceId : mismatchedDevices.getMissingDevices()) {
+      missingDevices.add(new PushAddress(recipient.getRecipientId(), recipient.getNumber(),
+                                         missingDeviceId, recipient.getRelay()));
+    }
+
+    final List<UntrustedIdentityException> untrustedIdentities = Collections.synchronizedList(new LinkedList<UntrustedIdentityException>());
+
+    fanoutExecutor.execute(missingDevices, new FanoutExecutor.Task<PushAddress>() {
+      @Override
+      public void run(PushAddress device) throws IOException {
+        synchronized (getSessionLock(device.getRecipientId())) {
+          if (store.containsSession(device.getRecipientId(), device.getDeviceId())) {
+            return;
+          }
+
+          try {
+            buildSession(recipient, socket.getPreKey(device));
+          } catch (UntrustedIdentityException e) {
+            untrustedIdentities.add(e);
+          }
+        }
+      }
+    });
+
+    if (!untrustedIdentities.isEmpty()) {
+      throw new EncapsulatedExceptions(untrustedIdentities, new LinkedList<UnregisteredUserException>());
+    }
+  }
+
+  /**
+   * Processes a prekey bundle into a session with the device it belongs to, unless a
+   * send racing this one has already built that session.
+   *
+   * @return true if a session was built.
+   */
+  private boolean buildSession(PushAddress recipient, PreKeyBundle preKey)
       throws IOException, UntrustedIdentityException
   {
-    try {
-      for (int extraDeviceId : mismatchedDevices.getExtraDevices()) {
-        store.deleteSession(recipient.getRecipientId(), extraDeviceId);
+    synchronized (getSessionLock(recipient.getRecipientId())) {
+      if (store.containsSession(recipient.getRecipientId(), preKey.getDeviceId())) {
+        return false;
       }
 
-      for (int missingDeviceId : mismatchedDevices.getMissingDevices()) {
-        PushAddress  device = new PushAddress(recipient.getRecipientId(), recipient.getNumber(),
-                                              missingDeviceId, recipient.getRelay());
-        PreKeyBundle preKey = socket.getPreKey(device);
+      try {
+        SessionBuilder sessionBuilder = new SessionBuilder(store, recipient.getRecipientId(), preKey.getDeviceId());
+        sessionBuilder.process(preKey);
 
-        try {
-          SessionBuilder sessionBuilder = new SessionBuilder(store, device.getRecipientId(), device.getDeviceId());
-          sessionBuilder.process(preKey);
-        } catch (org.whispersystems.libaxolotl.UntrustedIdentityException e) {
-          throw new UntrustedIdentityException("Untrusted identity key!", recipient.getNumber(), preKey.getIdentityKey());
-        }
+        return true;
+      } catch (org.whispersystems.libaxolotl.UntrustedIdentityException e) {
+        throw new UntrustedIdentityException("Untrusted identity key!", recipient.getNumber(), preKey.getIdentityKey());
+      } catch (InvalidKeyException e) {
+        throw new IOException(e);
       }
-    } catch (InvalidKeyException e) {
-      throw new IOException(e);
     }
   }
 
+  /**
+   * Serializes fetching prekeys for and building sessions with any one recipient, so
+   * that two sends racing to a new recipient don't both fetch (and use up) prekeys or
+   * both build a session. It's held across the fetch, and is per recipient rather
+   * than per device so that a thread never holds two of the striped locks at once.
+   */
+  private static Object getSessionLock(long recipientId) {
+    int hash = (int)(recipientId ^ (recipientId >>> 32));
+    return SESSION_LOCKS[(hash & Integer.MAX_VALUE) % SESSION_LOCKS.length];
+  }
+
   private void handleStaleDevices(PushAddress recipient, StaleDevices staleDevices) {
     long recipientId = recipient.getRecipientId();
 
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.api.crypto;
+
+import org.whispersystems.libaxolotl.InvalidMacException;
+import org.whispersystems.textsecure.internal.util.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decrypts a push attachment in a single pass as its ciphertext streams in, for
+ * example straight off the network, rather than from a complete file on disk.
+ *
+ * The MAC is computed alongside decryption and checked once the ciphertext ends, so
+ * plaintext is handed out before it has been authenticated. Callers must treat
+ * everything they've read as untrusted until a read returns -1, and discard it if
+ * any read throws.
+ */
+public class StreamingAttachmentCipherInputStream extends InputStream {
+
+  private static final int BLOCK_SIZE      = 16;
+  private static final int CIPHER_KEY_SIZE = 32;
+  private static final int MAC_KEY_SIZE    = 32;
+  private static final int MAC_SIZE        = 32;
+  private static final int BUFFER_SIZE     = 8192;
+
+  private final InputStream in;
+  private final Cipher      cipher;
+  private final Mac         mac;
+  private final byte[]      buffer = new byte[BUFFER_SIZE + MAC_SIZE];
+
+  private int     buffered;
+  private byte[]  plaintext;
+  private int     plaintextOffset;
+  private boolean done;
+
+  public StreamingAttachmentCipherInputStream(InputStream in, byte[] combinedKeyMaterial)
+      throws IOException
+  {
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+      byte[]   iv    = new byte[BLOCK_SIZE];
+
+      this.in  = in;
+      this.mac = Mac.getInstance("HmacSHA256");
+      this.mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      readIv(iv);
+      mac.update(iv);
+
+      this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(parts[0], "AES"), new IvParameterSpec(iv));
+    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] single = new byte[1];
+    int    read   = read(single, 0, 1);
+
+    return read == -1 ? -1 : single[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] output, int offset, int length) throws IOException {
+    while (plaintext == null || plaintextOffset == plaintext.length) {
+      if (done) return -1;
+      fill();
+    }
+
+    int count = Math.min(length, plaintext.length - plaintextOffset);
+    System.arraycopy(plaintext, plaintextOffset, output, offset, count);
+    plaintextOffset += count;
+
+    return count;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Reads more ciphertext and decrypts all of it except the trailing bytes which
+   * might turn out to be the MAC.
+   */
+  private void fill() throws IOException {
+    int read = in.read(buffer, buffered, buffer.length - buffered);
+
+    if (read == -1) {
+      finish();
+      return;
+    }
+
+    buffered += read;
+
+    int processable = buffered - MAC_SIZE;
+
+    if (processable > 0) {
+      mac.update(buffer, 0, processable);
+
+      plaintext       = cipher.update(buffer, 0, processable);
+      plaintextOffset = 0;
+
+      System.arraycopy(buffer, processable, buffer, 0, MAC_SIZE);
+      buffered = MAC_SIZE;
+    }
+  }
+
+  private void finish() throws IOException {
+    done = true;
+
+    if (buffered != MAC_SIZE) {
+      throw new IOException(new InvalidMacException("Attachment shorter than crypto overhead!"));
+    }
+
+    byte[] ourMac   = mac.doFinal();
+    byte[] theirMac = Arrays.copyOf(buffer, MAC_SIZE);
+
+    if (!MessageDigest.isEqual(ourMac, theirMac)) {
+      throw new IOException(new InvalidMacException("MAC doesn't match!"));
+    }
+
+    try {
+      plaintext       = cipher.doFinal();
+      plaintextOffset = 0;
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void readIv(byte[] iv) throws IOException {
+    int offset = 0;
+
+    while (offset < iv.length) {
+      int read = in.read(iv, offset, iv.length - offset);
+
+      if (read == -1) {
+        throw new IOException(new InvalidMacException("Attachment shorter than crypto overhead!"));
+      }
+
+      offset += read;
+    }
+  }
+}
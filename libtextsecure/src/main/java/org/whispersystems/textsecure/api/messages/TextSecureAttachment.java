@@ -38,4 +38,12 @@ public abstract class TextSecureAttachment {
   public TextSecureAttachmentPointer asPointer() {
     return (TextSecureAttachmentPointer)this;
   }
+
+  public interface ProgressListener {
+    /**
+     * Called as an attachment's (encrypted) bytes are transferred. When a transfer
+     * resumes, progress starts from the bytes already transferred.
+     */
+    public void onAttachmentProgress(long total, long progress);
+  }
 }
@@ -20,13 +20,21 @@ import java.io.InputStream;
 
 public class TextSecureAttachmentStream extends TextSecureAttachment {
 
-  private final InputStream inputStream;
-  private final long        length;
+  private final InputStream      inputStream;
+  private final long             length;
+  private final ProgressListener listener;
 
   public TextSecureAttachmentStream(InputStream inputStream, String contentType, long length) {
+    this(inputStream, contentType, length, null);
+  }
+
+  public TextSecureAttachmentStream(InputStream inputStream, String contentType, long length,
+                                    ProgressListener listener)
+  {
     super(contentType);
     this.inputStream = inputStream;
     this.length      = length;
+    this.listener    = listener;
   }
 
   @Override
@@ -46,4 +54,8 @@ public class TextSecureAttachmentStream extends TextSecureAttachment {
   public long getLength() {
     return length;
   }
+
+  public ProgressListener getListener() {
+    return listener;
+  }
 }
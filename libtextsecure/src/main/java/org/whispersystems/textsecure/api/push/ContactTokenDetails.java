@@ -25,6 +25,12 @@ public class ContactTokenDetails {
 
   public ContactTokenDetails() {}
 
+  public ContactTokenDetails(String token, String relay, boolean supportsSms) {
+    this.token       = token;
+    this.relay       = relay;
+    this.supportsSms = supportsSms;
+  }
+
   public String getToken() {
     return token;
   }
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.api.push;
+
+/**
+ * The outcome of a single request to the push service's API, reported to a
+ * {@link Listener} as each request completes.
+ */
+public class RequestMetrics {
+
+  public static final int NO_RESPONSE = -1;
+
+  public enum RetryCause {
+    /** 409: the recipient's device list changed. */
+    MISMATCHED_DEVICES,
+    /** 410: sessions with some of the recipient's devices are stale. */
+    STALE_DEVICES,
+    /** 413: the server is rate limiting us. */
+    RATE_LIMITED
+  }
+
+  public interface Listener {
+    /**
+     * Called on the requesting thread, so implementations should be quick.
+     */
+    public void onRequestCompleted(RequestMetrics metrics);
+  }
+
+  private final String endpoint;
+  private final String method;
+  private final int    status;
+  private final long   latency;
+  private final long   requestBytes;
+  private final long   responseBytes;
+
+  public RequestMetrics(String endpoint, String method, int status, long latency,
+                        long requestBytes, long responseBytes)
+  {
+    this.endpoint      = endpoint;
+    this.method        = method;
+    this.status        = status;
+    this.latency       = latency;
+    this.requestBytes  = requestBytes;
+    this.responseBytes = responseBytes;
+  }
+
+  /**
+   * @return The path template the request was made to, such as "/v1/messages/%s",
+   *         so that requests for different recipients are counted together.
+   */
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * @return The HTTP status, or {@link #NO_RESPONSE} if the request failed before one
+   *         was received.
+   */
+  public int getStatus() {
+    return status;
+  }
+
+  /**
+   * @return Milliseconds from opening the connection to reading the end of the response.
+   */
+  public long getLatency() {
+    return latency;
+  }
+
+  public long getRequestBytes() {
+    return requestBytes;
+  }
+
+  public long getResponseBytes() {
+    return responseBytes;
+  }
+
+  /**
+   * @return Why the caller will have to retry this request, or null if it doesn't.
+   */
+  public RetryCause getRetryCause() {
+    switch (status) {
+      case 409: return RetryCause.MISMATCHED_DEVICES;
+      case 410: return RetryCause.STALE_DEVICES;
+      case 413: return RetryCause.RATE_LIMITED;
+      default:  return null;
+    }
+  }
+}
@@ -17,20 +17,17 @@
 package org.whispersystems.textsecure.api.push;
 
 import com.google.thoughtcrimegson.GsonBuilder;
-import com.google.thoughtcrimegson.JsonDeserializationContext;
-import com.google.thoughtcrimegson.JsonDeserializer;
-import com.google.thoughtcrimegson.JsonElement;
-import com.google.thoughtcrimegson.JsonParseException;
-import com.google.thoughtcrimegson.JsonPrimitive;
-import com.google.thoughtcrimegson.JsonSerializationContext;
-import com.google.thoughtcrimegson.JsonSerializer;
+import com.google.thoughtcrimegson.TypeAdapter;
+import com.google.thoughtcrimegson.stream.JsonReader;
+import com.google.thoughtcrimegson.stream.JsonToken;
+import com.google.thoughtcrimegson.stream.JsonWriter;
 
 import org.whispersystems.libaxolotl.ecc.ECPublicKey;
-import org.whispersystems.textsecure.internal.util.Base64;
 import org.whispersystems.textsecure.internal.push.PreKeyEntity;
+import org.whispersystems.textsecure.internal.util.Base64;
+import org.whispersystems.textsecure.internal.util.JsonUtil;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
 
 public class SignedPreKeyEntity extends PreKeyEntity {
 
@@ -48,13 +45,11 @@ public class SignedPreKeyEntity extends PreKeyEntity {
   }
 
   public static String toJson(SignedPreKeyEntity entity) {
-    GsonBuilder builder = new GsonBuilder();
-    return forBuilder(builder).create().toJson(entity);
+    return JsonUtil.toJson(entity);
   }
 
   public static SignedPreKeyEntity fromJson(String serialized) {
-    GsonBuilder builder = new GsonBuilder();
-    return forBuilder(builder).create().fromJson(serialized, SignedPreKeyEntity.class);
+    return JsonUtil.fromJson(serialized, SignedPreKeyEntity.class);
   }
 
   public static GsonBuilder forBuilder(GsonBuilder builder) {
@@ -63,26 +58,21 @@ public class SignedPreKeyEntity extends PreKeyEntity {
 
   }
 
-  private static class ByteArrayJsonAdapter
-      implements JsonSerializer<byte[]>, JsonDeserializer<byte[]>
-  {
+  private static class ByteArrayJsonAdapter extends TypeAdapter<byte[]> {
     @Override
-    public JsonElement serialize(byte[] signature, Type type,
-                                 JsonSerializationContext jsonSerializationContext)
-    {
-      return new JsonPrimitive(Base64.encodeBytesWithoutPadding(signature));
+    public void write(JsonWriter out, byte[] signature) throws IOException {
+      if (signature == null) out.nullValue();
+      else                   out.value(Base64.encodeBytesWithoutPadding(signature));
     }
 
     @Override
-    public byte[] deserialize(JsonElement jsonElement, Type type,
-                              JsonDeserializationContext jsonDeserializationContext)
-        throws JsonParseException
-    {
-      try {
-        return Base64.decodeWithoutPadding(jsonElement.getAsJsonPrimitive().getAsString());
-      } catch (IOException e) {
-        throw new JsonParseException(e);
+    public byte[] read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
       }
+
+      return Base64.decodeWithoutPadding(in.nextString());
     }
   }
 }
@@ -17,7 +17,23 @@
 package org.whispersystems.textsecure.api.push.exceptions;
 
 public class RateLimitException extends NonSuccessfulResponseCodeException {
+
+  private final long retryAfterMillis;
+
   public RateLimitException(String s) {
+    this(s, 0);
+  }
+
+  public RateLimitException(String s, long retryAfterMillis) {
     super(s);
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  /**
+   * @return How long to wait before sending this request again, in milliseconds,
+   *         or 0 if there's no hint.
+   */
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
   }
 }
@@ -71,6 +71,16 @@ public class PhoneNumberFormatter {
 
   public static String formatNumber(String number, String localNumber)
       throws InvalidNumberException
+  {
+    return formatNumber(number, localNumber, getRegionCodeForNumber(localNumber));
+  }
+
+  /**
+   * Like {@link #formatNumber(String, String)}, but with the local number's region
+   * already resolved, so that callers formatting many numbers only parse it once.
+   */
+  public static String formatNumber(String number, String localNumber, String localCountryCode)
+      throws InvalidNumberException
   {
     if (number.contains("@")) {
       throw new InvalidNumberException("Possible attempt to use email address.");
@@ -85,6 +95,17 @@ public class PhoneNumberFormatter {
     if (number.charAt(0) == '+')
       return number;
 
+    try {
+      PhoneNumberUtil util     = PhoneNumberUtil.getInstance();
+      PhoneNumber numberObject = util.parse(number, localCountryCode);
+      return util.format(numberObject, PhoneNumberFormat.E164);
+    } catch (NumberParseException e) {
+      Log.w(TAG, e);
+      return impreciseFormatNumber(number, localNumber);
+    }
+  }
+
+  public static String getRegionCodeForNumber(String localNumber) {
     try {
       PhoneNumberUtil util          = PhoneNumberUtil.getInstance();
       PhoneNumber localNumberObject = util.parse(localNumber, null);
@@ -92,11 +113,10 @@ public class PhoneNumberFormatter {
       String localCountryCode       = util.getRegionCodeForNumber(localNumberObject);
       Log.w(TAG, "Got local CC: " + localCountryCode);
 
-      PhoneNumber numberObject      = util.parse(number, localCountryCode);
-      return util.format(numberObject, PhoneNumberFormat.E164);
+      return localCountryCode;
     } catch (NumberParseException e) {
       Log.w(TAG, e);
-      return impreciseFormatNumber(number, localNumber);
+      return null;
     }
   }
 
@@ -16,8 +16,15 @@
  */
 package org.whispersystems.textsecure.internal.push;
 
+import com.google.thoughtcrimegson.TypeAdapter;
+import com.google.thoughtcrimegson.stream.JsonReader;
+import com.google.thoughtcrimegson.stream.JsonToken;
+import com.google.thoughtcrimegson.stream.JsonWriter;
+
 import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 
+import java.io.IOException;
+import java.util.LinkedList;
 import java.util.List;
 
 public class ContactTokenDetailsList {
@@ -26,7 +33,111 @@ public class ContactTokenDetailsList {
 
   public ContactTokenDetailsList() {}
 
+  public ContactTokenDetailsList(List<ContactTokenDetails> contacts) {
+    this.contacts = contacts;
+  }
+
   public List<ContactTokenDetails> getContacts() {
     return contacts;
   }
+
+  /**
+   * Reads and writes a directory response field by field, so a large response is
+   * decoded straight off the connection without reflection or an intermediate tree.
+   */
+  public static class JsonAdapter extends TypeAdapter<ContactTokenDetailsList> {
+    @Override
+    public void write(JsonWriter out, ContactTokenDetailsList list) throws IOException {
+      if (list == null) {
+        out.nullValue();
+        return;
+      }
+
+      out.beginObject();
+
+      if (list.contacts != null) {
+        out.name("contacts").beginArray();
+
+        for (ContactTokenDetails contact : list.contacts) {
+          out.beginObject();
+          out.name("token").value(contact.getToken());
+
+          if (contact.getRelay() != null) {
+            out.name("relay").value(contact.getRelay());
+          }
+
+          if (contact.getNumber() != null) {
+            out.name("number").value(contact.getNumber());
+          }
+
+          out.name("supportsSms").value(contact.isSupportsSms());
+          out.endObject();
+        }
+
+        out.endArray();
+      }
+
+      out.endObject();
+    }
+
+    @Override
+    public ContactTokenDetailsList read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+
+      List<ContactTokenDetails> contacts = null;
+
+      in.beginObject();
+
+      while (in.hasNext()) {
+        String name = in.nextName();
+
+        if (name.equals("contacts") && in.peek() != JsonToken.NULL) {
+          contacts = new LinkedList<>();
+          in.beginArray();
+
+          while (in.hasNext()) {
+            contacts.add(readContact(in));
+          }
+
+          in.endArray();
+        } else {
+          in.skipValue();
+        }
+      }
+
+      in.endObject();
+
+      return new ContactTokenDetailsList(contacts);
+    }
+
+    private ContactTokenDetails readContact(JsonReader in) throws IOException {
+      String  token       = null;
+      String  relay       = null;
+      String  number      = null;
+      boolean supportsSms = false;
+
+      in.beginObject();
+
+      while (in.hasNext()) {
+        String name = in.nextName();
+
+        if      (in.peek() == JsonToken.NULL) in.nextNull();
+        else if (name.equals("token"))       token       = in.nextString();
+        else if (name.equals("relay"))       relay       = in.nextString();
+        else if (name.equals("number"))      number      = in.nextString();
+        else if (name.equals("supportsSms")) supportsSms = in.nextBoolean();
+        else                                 in.skipValue();
+      }
+
+      in.endObject();
+
+      ContactTokenDetails contact = new ContactTokenDetails(token, relay, supportsSms);
+      contact.setNumber(number);
+
+      return contact;
+    }
+  }
 }
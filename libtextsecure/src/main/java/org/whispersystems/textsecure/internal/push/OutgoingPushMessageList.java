@@ -16,6 +16,14 @@
  */
 package org.whispersystems.textsecure.internal.push;
 
+import com.google.thoughtcrimegson.Gson;
+import com.google.thoughtcrimegson.TypeAdapter;
+import com.google.thoughtcrimegson.TypeAdapterFactory;
+import com.google.thoughtcrimegson.reflect.TypeToken;
+import com.google.thoughtcrimegson.stream.JsonReader;
+import com.google.thoughtcrimegson.stream.JsonWriter;
+
+import java.io.IOException;
 import java.util.List;
 
 public class OutgoingPushMessageList {
@@ -52,4 +60,65 @@ public class OutgoingPushMessageList {
   public long getTimestamp() {
     return timestamp;
   }
+
+  /**
+   * Writes message lists field by field, straight to the request stream. Reading one
+   * falls through to Gson's reflective adapter.
+   */
+  public static class JsonAdapterFactory implements TypeAdapterFactory {
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+      if (type.getRawType() != OutgoingPushMessageList.class) {
+        return null;
+      }
+
+      TypeAdapter<T> reflective = gson.getDelegateAdapter(this, type);
+      return (TypeAdapter<T>) new JsonAdapter((TypeAdapter<OutgoingPushMessageList>) reflective);
+    }
+  }
+
+  private static class JsonAdapter extends TypeAdapter<OutgoingPushMessageList> {
+
+    private final TypeAdapter<OutgoingPushMessageList> reflective;
+
+    private JsonAdapter(TypeAdapter<OutgoingPushMessageList> reflective) {
+      this.reflective = reflective;
+    }
+
+    @Override
+    public void write(JsonWriter out, OutgoingPushMessageList list) throws IOException {
+      if (list == null) {
+        out.nullValue();
+        return;
+      }
+
+      out.beginObject();
+      out.name("destination").value(list.destination);
+
+      if (list.relay != null) {
+        out.name("relay").value(list.relay);
+      }
+
+      out.name("timestamp").value(list.timestamp);
+      out.name("messages").beginArray();
+
+      for (OutgoingPushMessage message : list.messages) {
+        out.beginObject();
+        out.name("type").value(message.getType());
+        out.name("destinationDeviceId").value(message.getDestinationDeviceId());
+        out.name("destinationRegistrationId").value(message.getDestinationRegistrationId());
+        out.name("body").value(message.getBody());
+        out.endObject();
+      }
+
+      out.endArray();
+      out.endObject();
+    }
+
+    @Override
+    public OutgoingPushMessageList read(JsonReader in) throws IOException {
+      return reflective.read(in);
+    }
+  }
 }
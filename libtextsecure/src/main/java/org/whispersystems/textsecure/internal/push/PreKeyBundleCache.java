@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.internal.push;
+
+import org.whispersystems.libaxolotl.state.PreKeyBundle;
+import org.whispersystems.textsecure.api.push.PushAddress;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds prekey bundles fetched ahead of a first message, for a short while. Each
+ * bundle is handed out once, since its one-time prekey can only start one session.
+ */
+public class PreKeyBundleCache {
+
+  private static final int MAX_SIZE = 50;
+
+  private final long                         maxAge;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > MAX_SIZE;
+    }
+  };
+
+  public PreKeyBundleCache(long maxAge) {
+    this.maxAge = maxAge;
+  }
+
+  public synchronized void put(PushAddress address, List<PreKeyBundle> bundles) {
+    entries.put(getKey(address), new Entry(bundles, System.currentTimeMillis()));
+  }
+
+  public synchronized boolean contains(PushAddress address) {
+    Entry entry = entries.get(getKey(address));
+    return entry != null && !isExpired(entry);
+  }
+
+  /**
+   * @return The bundles fetched for this address if they haven't expired, or null.
+   *         Either way, they're no longer cached.
+   */
+  public synchronized List<PreKeyBundle> remove(PushAddress address) {
+    Entry entry = entries.remove(getKey(address));
+
+    if (entry == null || isExpired(entry)) return null;
+    else                                   return entry.bundles;
+  }
+
+  private boolean isExpired(Entry entry) {
+    return System.currentTimeMillis() - entry.timestamp > maxAge;
+  }
+
+  private String getKey(PushAddress address) {
+    return address.getNumber() + "." + address.getDeviceId();
+  }
+
+  private static class Entry {
+    private final List<PreKeyBundle> bundles;
+    private final long               timestamp;
+
+    private Entry(List<PreKeyBundle> bundles, long timestamp) {
+      this.bundles   = bundles;
+      this.timestamp = timestamp;
+    }
+  }
+}
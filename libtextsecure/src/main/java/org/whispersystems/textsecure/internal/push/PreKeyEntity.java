@@ -17,13 +17,10 @@
 package org.whispersystems.textsecure.internal.push;
 
 import com.google.thoughtcrimegson.GsonBuilder;
-import com.google.thoughtcrimegson.JsonDeserializationContext;
-import com.google.thoughtcrimegson.JsonDeserializer;
-import com.google.thoughtcrimegson.JsonElement;
-import com.google.thoughtcrimegson.JsonParseException;
-import com.google.thoughtcrimegson.JsonPrimitive;
-import com.google.thoughtcrimegson.JsonSerializationContext;
-import com.google.thoughtcrimegson.JsonSerializer;
+import com.google.thoughtcrimegson.TypeAdapter;
+import com.google.thoughtcrimegson.stream.JsonReader;
+import com.google.thoughtcrimegson.stream.JsonToken;
+import com.google.thoughtcrimegson.stream.JsonWriter;
 
 import org.whispersystems.libaxolotl.InvalidKeyException;
 import org.whispersystems.libaxolotl.ecc.Curve;
@@ -31,7 +28,6 @@ import org.whispersystems.libaxolotl.ecc.ECPublicKey;
 import org.whispersystems.textsecure.internal.util.Base64;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
 
 public class PreKeyEntity {
 
@@ -58,25 +54,24 @@ public class PreKeyEntity {
   }
 
 
-  private static class ECPublicKeyJsonAdapter
-      implements JsonSerializer<ECPublicKey>, JsonDeserializer<ECPublicKey>
-  {
+  private static class ECPublicKeyJsonAdapter extends TypeAdapter<ECPublicKey> {
     @Override
-    public JsonElement serialize(ECPublicKey preKeyPublic, Type type,
-                                 JsonSerializationContext jsonSerializationContext)
-    {
-      return new JsonPrimitive(Base64.encodeBytesWithoutPadding(preKeyPublic.serialize()));
+    public void write(JsonWriter out, ECPublicKey preKeyPublic) throws IOException {
+      if (preKeyPublic == null) out.nullValue();
+      else                      out.value(Base64.encodeBytesWithoutPadding(preKeyPublic.serialize()));
     }
 
     @Override
-    public ECPublicKey deserialize(JsonElement jsonElement, Type type,
-                                    JsonDeserializationContext jsonDeserializationContext)
-        throws JsonParseException
-    {
+    public ECPublicKey read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+
       try {
-        return Curve.decodePoint(Base64.decodeWithoutPadding(jsonElement.getAsJsonPrimitive().getAsString()), 0);
-      } catch (InvalidKeyException | IOException e) {
-        throw new JsonParseException(e);
+        return Curve.decodePoint(Base64.decodeWithoutPadding(in.nextString()), 0);
+      } catch (InvalidKeyException e) {
+        throw new IOException(e);
       }
     }
   }
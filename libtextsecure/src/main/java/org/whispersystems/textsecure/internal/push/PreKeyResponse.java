@@ -16,21 +16,20 @@
  */
 package org.whispersystems.textsecure.internal.push;
 
-import com.google.thoughtcrimegson.GsonBuilder;
-import com.google.thoughtcrimegson.JsonDeserializationContext;
-import com.google.thoughtcrimegson.JsonDeserializer;
-import com.google.thoughtcrimegson.JsonElement;
-import com.google.thoughtcrimegson.JsonParseException;
-import com.google.thoughtcrimegson.JsonPrimitive;
-import com.google.thoughtcrimegson.JsonSerializationContext;
-import com.google.thoughtcrimegson.JsonSerializer;
+import com.google.thoughtcrimegson.TypeAdapter;
+import com.google.thoughtcrimegson.stream.JsonReader;
+import com.google.thoughtcrimegson.stream.JsonToken;
+import com.google.thoughtcrimegson.stream.JsonWriter;
 
 import org.whispersystems.libaxolotl.IdentityKey;
 import org.whispersystems.libaxolotl.InvalidKeyException;
+import org.whispersystems.libaxolotl.ecc.Curve;
+import org.whispersystems.libaxolotl.ecc.ECPublicKey;
+import org.whispersystems.textsecure.api.push.SignedPreKeyEntity;
 import org.whispersystems.textsecure.internal.util.Base64;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.util.LinkedList;
 import java.util.List;
 
 public class PreKeyResponse {
@@ -38,6 +37,13 @@ public class PreKeyResponse {
   private IdentityKey              identityKey;
   private List<PreKeyResponseItem> devices;
 
+  public PreKeyResponse() {}
+
+  public PreKeyResponse(IdentityKey identityKey, List<PreKeyResponseItem> devices) {
+    this.identityKey = identityKey;
+    this.devices     = devices;
+  }
+
   public IdentityKey getIdentityKey() {
     return identityKey;
   }
@@ -46,36 +52,182 @@ public class PreKeyResponse {
     return devices;
   }
 
-  public static PreKeyResponse fromJson(String serialized) {
-    GsonBuilder builder = new GsonBuilder();
-    return PreKeyResponseItem.forBuilder(builder)
-                             .registerTypeAdapter(IdentityKey.class, new IdentityKeyJsonAdapter())
-                             .create().fromJson(serialized, PreKeyResponse.class);
-  }
-
-  public static class IdentityKeyJsonAdapter
-      implements JsonSerializer<IdentityKey>, JsonDeserializer<IdentityKey>
-  {
+  public static class IdentityKeyJsonAdapter extends TypeAdapter<IdentityKey> {
     @Override
-    public JsonElement serialize(IdentityKey identityKey, Type type,
-                                 JsonSerializationContext jsonSerializationContext)
-    {
-      return new JsonPrimitive(Base64.encodeBytesWithoutPadding(identityKey.serialize()));
+    public void write(JsonWriter out, IdentityKey identityKey) throws IOException {
+      if (identityKey == null) out.nullValue();
+      else                     out.value(Base64.encodeBytesWithoutPadding(identityKey.serialize()));
     }
 
     @Override
-    public IdentityKey deserialize(JsonElement jsonElement, Type type,
-                                   JsonDeserializationContext jsonDeserializationContext)
-        throws JsonParseException
-    {
+    public IdentityKey read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+
       try {
-        return new IdentityKey(Base64.decodeWithoutPadding(jsonElement.getAsJsonPrimitive().getAsString()), 0);
-      } catch (InvalidKeyException | IOException e) {
-        throw new JsonParseException(e);
+        return new IdentityKey(Base64.decodeWithoutPadding(in.nextString()), 0);
+      } catch (InvalidKeyException e) {
+        throw new IOException(e);
       }
     }
   }
 
+  /**
+   * Reads and writes a response field by field, without reflection or an
+   * intermediate tree.
+   */
+  public static class JsonAdapter extends TypeAdapter<PreKeyResponse> {
+    @Override
+    public void write(JsonWriter out, PreKeyResponse response) throws IOException {
+      if (response == null) {
+        out.nullValue();
+        return;
+      }
+
+      out.beginObject();
+
+      if (response.identityKey != null) {
+        out.name("identityKey").value(Base64.encodeBytesWithoutPadding(response.identityKey.serialize()));
+      }
+
+      if (response.devices != null) {
+        out.name("devices").beginArray();
+
+        for (PreKeyResponseItem device : response.devices) {
+          out.beginObject();
+          out.name("deviceId").value(device.getDeviceId());
+          out.name("registrationId").value(device.getRegistrationId());
+
+          if (device.getSignedPreKey() != null) {
+            out.name("signedPreKey");
+            writePreKey(out, device.getSignedPreKey(), device.getSignedPreKey().getSignature());
+          }
+
+          if (device.getPreKey() != null) {
+            out.name("preKey");
+            writePreKey(out, device.getPreKey(), null);
+          }
+
+          out.endObject();
+        }
+
+        out.endArray();
+      }
+
+      out.endObject();
+    }
+
+    @Override
+    public PreKeyResponse read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+
+      IdentityKey              identityKey = null;
+      List<PreKeyResponseItem> devices     = null;
+
+      in.beginObject();
+
+      while (in.hasNext()) {
+        String name = in.nextName();
 
+        if (in.peek() == JsonToken.NULL) {
+          in.nextNull();
+        } else if (name.equals("identityKey")) {
+          try {
+            identityKey = new IdentityKey(Base64.decodeWithoutPadding(in.nextString()), 0);
+          } catch (InvalidKeyException e) {
+            throw new IOException(e);
+          }
+        } else if (name.equals("devices")) {
+          devices = new LinkedList<>();
+          in.beginArray();
 
+          while (in.hasNext()) {
+            devices.add(readDevice(in));
+          }
+
+          in.endArray();
+        } else {
+          in.skipValue();
+        }
+      }
+
+      in.endObject();
+
+      return new PreKeyResponse(identityKey, devices);
+    }
+
+    private PreKeyResponseItem readDevice(JsonReader in) throws IOException {
+      int                deviceId       = 0;
+      int                registrationId = 0;
+      SignedPreKeyEntity signedPreKey   = null;
+      PreKeyEntity       preKey         = null;
+
+      in.beginObject();
+
+      while (in.hasNext()) {
+        String name = in.nextName();
+
+        if      (in.peek() == JsonToken.NULL)    in.nextNull();
+        else if (name.equals("deviceId"))       deviceId       = in.nextInt();
+        else if (name.equals("registrationId")) registrationId = in.nextInt();
+        else if (name.equals("signedPreKey"))   signedPreKey   = (SignedPreKeyEntity)readPreKey(in, true);
+        else if (name.equals("preKey"))         preKey         = readPreKey(in, false);
+        else                                    in.skipValue();
+      }
+
+      in.endObject();
+
+      return new PreKeyResponseItem(deviceId, registrationId, signedPreKey, preKey);
+    }
+
+    private PreKeyEntity readPreKey(JsonReader in, boolean signed) throws IOException {
+      int         keyId     = 0;
+      ECPublicKey publicKey = null;
+      byte[]      signature = null;
+
+      in.beginObject();
+
+      while (in.hasNext()) {
+        String name = in.nextName();
+
+        if (in.peek() == JsonToken.NULL) {
+          in.nextNull();
+        } else if (name.equals("keyId")) {
+          keyId = in.nextInt();
+        } else if (name.equals("publicKey")) {
+          try {
+            publicKey = Curve.decodePoint(Base64.decodeWithoutPadding(in.nextString()), 0);
+          } catch (InvalidKeyException e) {
+            throw new IOException(e);
+          }
+        } else if (name.equals("signature")) {
+          signature = Base64.decodeWithoutPadding(in.nextString());
+        } else {
+          in.skipValue();
+        }
+      }
+
+      in.endObject();
+
+      if (signed) return new SignedPreKeyEntity(keyId, publicKey, signature);
+      else        return new PreKeyEntity(keyId, publicKey);
+    }
+
+    private void writePreKey(JsonWriter out, PreKeyEntity preKey, byte[] signature) throws IOException {
+      out.beginObject();
+      out.name("keyId").value(preKey.getKeyId());
+      out.name("publicKey").value(Base64.encodeBytesWithoutPadding(preKey.getPublicKey().serialize()));
+
+      if (signature != null) {
+        out.name("signature").value(Base64.encodeBytesWithoutPadding(signature));
+      }
+
+      out.endObject();
+    }
+  }
 }
@@ -27,6 +27,17 @@ public class PreKeyResponseItem {
   private SignedPreKeyEntity signedPreKey;
   private PreKeyEntity       preKey;
 
+  public PreKeyResponseItem() {}
+
+  public PreKeyResponseItem(int deviceId, int registrationId,
+                            SignedPreKeyEntity signedPreKey, PreKeyEntity preKey)
+  {
+    this.deviceId       = deviceId;
+    this.registrationId = registrationId;
+    this.signedPreKey   = signedPreKey;
+    this.preKey         = preKey;
+  }
+
   public int getDeviceId() {
     return deviceId;
   }
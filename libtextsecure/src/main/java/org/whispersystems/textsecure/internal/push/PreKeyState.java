@@ -1,7 +1,5 @@
 package org.whispersystems.textsecure.internal.push;
 
-import com.google.thoughtcrimegson.GsonBuilder;
-
 import org.whispersystems.libaxolotl.IdentityKey;
 import org.whispersystems.textsecure.api.push.SignedPreKeyEntity;
 
@@ -23,11 +21,4 @@ public class PreKeyState {
     this.signedPreKey  = signedPreKey;
     this.identityKey   = identityKey;
   }
-
-  public static String toJson(PreKeyState state) {
-    GsonBuilder builder = new GsonBuilder();
-    return SignedPreKeyEntity.forBuilder(builder)
-                          .registerTypeAdapter(IdentityKey.class, new PreKeyResponse.IdentityKeyJsonAdapter())
-                          .create().toJson(state);
-  }
 }
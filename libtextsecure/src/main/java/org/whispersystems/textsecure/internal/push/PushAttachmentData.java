@@ -16,20 +16,30 @@
  */
 package org.whispersystems.textsecure.internal.push;
 
+import org.whispersystems.textsecure.api.messages.TextSecureAttachment.ProgressListener;
+
 import java.io.InputStream;
 
 public class PushAttachmentData {
 
-  private final String      contentType;
-  private final InputStream data;
-  private final long        dataSize;
-  private final byte[]      key;
+  private final String           contentType;
+  private final InputStream      data;
+  private final long             dataSize;
+  private final byte[]           key;
+  private final ProgressListener listener;
 
   public PushAttachmentData(String contentType, InputStream data, long dataSize, byte[] key) {
+    this(contentType, data, dataSize, key, null);
+  }
+
+  public PushAttachmentData(String contentType, InputStream data, long dataSize, byte[] key,
+                            ProgressListener listener)
+  {
     this.contentType = contentType;
     this.data        = data;
     this.dataSize    = dataSize;
     this.key         = key;
+    this.listener    = listener;
   }
 
   public String getContentType() {
@@ -47,4 +57,8 @@ public class PushAttachmentData {
   public byte[] getKey() {
     return key;
   }
+
+  public ProgressListener getListener() {
+    return listener;
+  }
 }
@@ -18,9 +18,6 @@ package org.whispersystems.textsecure.internal.push;
 
 import android.util.Log;
 
-import com.google.thoughtcrimegson.Gson;
-import com.google.thoughtcrimegson.JsonParseException;
-
 import org.apache.http.conn.ssl.StrictHostnameVerifier;
 import org.whispersystems.libaxolotl.IdentityKey;
 import org.whispersystems.libaxolotl.ecc.ECPublicKey;
@@ -28,7 +25,9 @@ import org.whispersystems.libaxolotl.state.PreKeyBundle;
 import org.whispersystems.libaxolotl.state.PreKeyRecord;
 import org.whispersystems.libaxolotl.state.SignedPreKeyRecord;
 import org.whispersystems.textsecure.api.push.PushAddress;
+import org.whispersystems.textsecure.api.push.RequestMetrics;
 import org.whispersystems.textsecure.api.crypto.AttachmentCipherOutputStream;
+import org.whispersystems.textsecure.api.messages.TextSecureAttachment.ProgressListener;
 import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 import org.whispersystems.textsecure.api.push.SignedPreKeyEntity;
 import org.whispersystems.textsecure.api.push.TrustStore;
@@ -36,6 +35,8 @@ import org.whispersystems.textsecure.api.push.exceptions.UnregisteredUserExcepti
 import org.whispersystems.textsecure.internal.push.exceptions.MismatchedDevicesException;
 import org.whispersystems.textsecure.internal.push.exceptions.StaleDevicesException;
 import org.whispersystems.textsecure.internal.util.Base64;
+import org.whispersystems.textsecure.internal.util.CountingInputStream;
+import org.whispersystems.textsecure.internal.util.JsonUtil;
 import org.whispersystems.textsecure.internal.util.Util;
 import org.whispersystems.textsecure.api.push.exceptions.AuthorizationFailedException;
 import org.whispersystems.textsecure.api.push.exceptions.ExpectationFailedException;
@@ -45,7 +46,10 @@ import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
 import org.whispersystems.textsecure.api.push.exceptions.RateLimitException;
 import org.whispersystems.textsecure.internal.util.BlacklistingTrustManager;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -58,12 +62,18 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
+import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
@@ -71,6 +81,12 @@ import javax.net.ssl.TrustManagerFactory;
  *
  * Network interface to the TextSecure server API.
  *
+ * The TLS socket factory is built once per trust store and shared by every socket
+ * using it, which lets the platform's HttpURLConnection pool keep-alive connections
+ * to the server across requests (the pool is keyed on the factory instance) and
+ * resume TLS sessions from the factory's session cache when a new connection is needed. Responses are read to the end and
+ * closed rather than disconnected, so their connections return to the pool.
+ *
  * @author Moxie Marlinspike
  */
 public class PushServiceSocket {
@@ -87,23 +103,89 @@ public class PushServiceSocket {
   private static final String DIRECTORY_TOKENS_PATH     = "/v1/directory/tokens";
   private static final String DIRECTORY_VERIFY_PATH     = "/v1/directory/%s";
   private static final String MESSAGE_PATH              = "/v1/messages/%s";
+  private static final String MESSAGE_STREAM_PATH       = "/v1/messages/stream";
+  private static final String MESSAGE_ACK_PATH          = "/v1/messages/ack";
   private static final String RECEIPT_PATH              = "/v1/receipt/%s/%d";
   private static final String ATTACHMENT_PATH           = "/v1/attachments/%s";
 
   private static final boolean ENFORCE_SSL = true;
 
-  private final String         serviceUrl;
-  private final String         localNumber;
-  private final String         password;
-  private final TrustManager[] trustManagers;
+  private static final int MESSAGE_STREAM_READ_TIMEOUT_MILLIS = 90 * 1000;
+
+  private static final int MAX_UPLOAD_ATTEMPTS = 3;
+  private static final int TRANSFER_BUFFER     = 8192;
+
+  private static final Map<String, SSLSocketFactory> socketFactories = new HashMap<>();
+
+  // Templates without parameters come first, so that "/v2/keys/signed" isn't taken
+  // for "/v2/keys/%s".
+  private static final Map<String, Pattern> endpoints = new LinkedHashMap<>();
+
+  static {
+    for (String template : new String[] {REGISTER_GCM_PATH, PREKEY_METADATA_PATH, SIGNED_PREKEY_PATH,
+                                         DIRECTORY_TOKENS_PATH, MESSAGE_STREAM_PATH, MESSAGE_ACK_PATH,
+                                         CREATE_ACCOUNT_SMS_PATH, CREATE_ACCOUNT_VOICE_PATH, VERIFY_ACCOUNT_PATH,
+                                         PREKEY_PATH, PREKEY_DEVICE_PATH, DIRECTORY_VERIFY_PATH,
+                                         MESSAGE_PATH, RECEIPT_PATH, ATTACHMENT_PATH})
+    {
+      String[]      parts   = template.split("%[sd]", -1);
+      StringBuilder pattern = new StringBuilder(Pattern.quote(parts[0]));
+
+      for (int i=1;i<parts.length;i++) {
+        pattern.append("[^/]*").append(Pattern.quote(parts[i]));
+      }
+
+      endpoints.put(template, Pattern.compile(pattern.toString()));
+    }
+  }
+
+  // Account creation and verification are left out: their limits are per number and
+  // last for hours, so there's nothing to gain from waiting them out here.
+  private static final Map<String, RateLimiter.Priority> priorities = new HashMap<>();
+
+  static {
+    for (String template : new String[] {MESSAGE_PATH, MESSAGE_ACK_PATH, PREKEY_PATH, PREKEY_DEVICE_PATH,
+                                         ATTACHMENT_PATH})
+    {
+      priorities.put(template, RateLimiter.Priority.MESSAGES);
+    }
+
+    for (String template : new String[] {RECEIPT_PATH, REGISTER_GCM_PATH, PREKEY_METADATA_PATH,
+                                         SIGNED_PREKEY_PATH})
+    {
+      priorities.put(template, RateLimiter.Priority.DEFAULT);
+    }
+
+    priorities.put(DIRECTORY_TOKENS_PATH, RateLimiter.Priority.BACKGROUND);
+    priorities.put(DIRECTORY_VERIFY_PATH, RateLimiter.Priority.BACKGROUND);
+  }
+
+  private static final RateLimiter rateLimiter = new RateLimiter(20, 0.2, 10, 0.05);
+
+  private static volatile RequestMetrics.Listener metricsListener;
+
+  private final String           serviceUrl;
+  private final String           localNumber;
+  private final String           password;
+  private final SSLSocketFactory socketFactory;
+  private final HostnameVerifier hostnameVerifier;
 
   public PushServiceSocket(String serviceUrl, TrustStore trustStore,
                            String localNumber, String password)
   {
-    this.serviceUrl    = serviceUrl;
-    this.localNumber   = localNumber;
-    this.password      = password;
-    this.trustManagers = initializeTrustManager(trustStore);
+    this.serviceUrl       = serviceUrl;
+    this.localNumber      = localNumber;
+    this.password         = password;
+    this.socketFactory    = getSocketFactory(trustStore);
+    this.hostnameVerifier = new StrictHostnameVerifier();
+  }
+
+  /**
+   * Sets a listener to be told about every API request made by any socket. Transfers
+   * of attachment content and the message stream aren't reported.
+   */
+  public static void setMetricsListener(RequestMetrics.Listener listener) {
+    metricsListener = listener;
   }
 
   public void createAccount(boolean voice) throws IOException {
@@ -117,7 +199,7 @@ public class PushServiceSocket {
   {
     AccountAttributes signalingKeyEntity = new AccountAttributes(signalingKey, supportsSms, registrationId);
     makeRequest(String.format(VERIFY_ACCOUNT_PATH, verificationCode),
-                "PUT", new Gson().toJson(signalingKeyEntity));
+                "PUT", signalingKeyEntity);
   }
 
   public void sendReceipt(String destination, long messageId, String relay) throws IOException {
@@ -132,7 +214,7 @@ public class PushServiceSocket {
 
   public void registerGcmId(String gcmRegistrationId) throws IOException {
     GcmRegistrationId registration = new GcmRegistrationId(gcmRegistrationId);
-    makeRequest(REGISTER_GCM_PATH, "PUT", new Gson().toJson(registration));
+    makeRequest(REGISTER_GCM_PATH, "PUT", registration);
   }
 
   public void unregisterGcmId() throws IOException {
@@ -143,12 +225,27 @@ public class PushServiceSocket {
       throws IOException
   {
     try {
-      makeRequest(String.format(MESSAGE_PATH, bundle.getDestination()), "PUT", new Gson().toJson(bundle));
+      makeRequest(String.format(MESSAGE_PATH, bundle.getDestination()), "PUT", bundle);
     } catch (NotFoundException nfe) {
       throw new UnregisteredUserException(bundle.getDestination(), nfe);
     }
   }
 
+  /**
+   * Opens the message stream. The server sends no heartbeat, so a read which waits
+   * longer than {@link #MESSAGE_STREAM_READ_TIMEOUT_MILLIS} fails with a
+   * {@link java.net.SocketTimeoutException}, and a half-open connection is torn down
+   * rather than blocking its reader forever.
+   */
+  public HttpURLConnection openMessageStream() throws IOException {
+    return makeBaseRequest(MESSAGE_STREAM_PATH, "GET", null, MESSAGE_STREAM_READ_TIMEOUT_MILLIS,
+                           new Exchange(MESSAGE_STREAM_PATH, "GET"));
+  }
+
+  public void acknowledgeMessages(List<AcknowledgedMessage> messages) throws IOException {
+    makeRequest(MESSAGE_ACK_PATH, "PUT", new AcknowledgedMessageList(messages));
+  }
+
   public void registerPreKeys(IdentityKey identityKey,
                               PreKeyRecord lastResortKey,
                               SignedPreKeyRecord signedPreKey,
@@ -172,13 +269,11 @@ public class PushServiceSocket {
                                                                    signedPreKey.getSignature());
 
     makeRequest(String.format(PREKEY_PATH, ""), "PUT",
-                PreKeyState.toJson(new PreKeyState(entities, lastResortEntity,
-                                                   signedPreKeyEntity, identityKey)));
+                new PreKeyState(entities, lastResortEntity, signedPreKeyEntity, identityKey));
   }
 
   public int getAvailablePreKeys() throws IOException {
-    String       responseText = makeRequest(PREKEY_METADATA_PATH, "GET", null);
-    PreKeyStatus preKeyStatus = new Gson().fromJson(responseText, PreKeyStatus.class);
+    PreKeyStatus preKeyStatus = makeRequest(PREKEY_METADATA_PATH, "GET", null, PreKeyStatus.class);
 
     return preKeyStatus.getCount();
   }
@@ -196,9 +291,8 @@ public class PushServiceSocket {
         path = path + "?relay=" + destination.getRelay();
       }
 
-      String             responseText = makeRequest(path, "GET", null);
-      PreKeyResponse     response     = PreKeyResponse.fromJson(responseText);
-      List<PreKeyBundle> bundles      = new LinkedList<>();
+      PreKeyResponse     response = makeRequest(path, "GET", null, PreKeyResponse.class);
+      List<PreKeyBundle> bundles  = new LinkedList<>();
 
       for (PreKeyResponseItem device : response.getDevices()) {
         ECPublicKey preKey                = null;
@@ -224,8 +318,6 @@ public class PushServiceSocket {
       }
 
       return bundles;
-    } catch (JsonParseException e) {
-      throw new IOException(e);
     } catch (NotFoundException nfe) {
       throw new UnregisteredUserException(destination.getNumber(), nfe);
     }
@@ -240,8 +332,7 @@ public class PushServiceSocket {
         path = path + "?relay=" + destination.getRelay();
       }
 
-      String         responseText = makeRequest(path, "GET", null);
-      PreKeyResponse response     = PreKeyResponse.fromJson(responseText);
+      PreKeyResponse response = makeRequest(path, "GET", null, PreKeyResponse.class);
 
       if (response.getDevices() == null || response.getDevices().size() < 1)
         throw new IOException("Empty prekey list");
@@ -266,8 +357,6 @@ public class PushServiceSocket {
 
       return new PreKeyBundle(device.getRegistrationId(), device.getDeviceId(), preKeyId, preKey,
                               signedPreKeyId, signedPreKey, signedPreKeySignature, response.getIdentityKey());
-    } catch (JsonParseException e) {
-      throw new IOException(e);
     } catch (NotFoundException nfe) {
       throw new UnregisteredUserException(destination.getNumber(), nfe);
     }
@@ -275,8 +364,7 @@ public class PushServiceSocket {
 
   public SignedPreKeyEntity getCurrentSignedPreKey() throws IOException {
     try {
-      String responseText = makeRequest(SIGNED_PREKEY_PATH, "GET", null);
-      return SignedPreKeyEntity.fromJson(responseText);
+      return makeRequest(SIGNED_PREKEY_PATH, "GET", null, SignedPreKeyEntity.class);
     } catch (NotFoundException e) {
       Log.w("PushServiceSocket", e);
       return null;
@@ -287,84 +375,142 @@ public class PushServiceSocket {
     SignedPreKeyEntity signedPreKeyEntity = new SignedPreKeyEntity(signedPreKey.getId(),
                                                                    signedPreKey.getKeyPair().getPublicKey(),
                                                                    signedPreKey.getSignature());
-    makeRequest(SIGNED_PREKEY_PATH, "PUT", SignedPreKeyEntity.toJson(signedPreKeyEntity));
+    makeRequest(SIGNED_PREKEY_PATH, "PUT", signedPreKeyEntity);
   }
 
   public long sendAttachment(PushAttachmentData attachment) throws IOException {
-    String               response      = makeRequest(String.format(ATTACHMENT_PATH, ""), "GET", null);
-    AttachmentDescriptor attachmentKey = new Gson().fromJson(response, AttachmentDescriptor.class);
+    File ciphertext = encryptAttachment(attachment);
 
-    if (attachmentKey == null || attachmentKey.getLocation() == null) {
-      throw new IOException("Server failed to allocate an attachment key!");
-    }
+    try {
+      AttachmentDescriptor attachmentKey = makeRequest(String.format(ATTACHMENT_PATH, ""), "GET", null,
+                                                       AttachmentDescriptor.class);
+
+      if (attachmentKey == null || attachmentKey.getLocation() == null) {
+        throw new IOException("Server failed to allocate an attachment key!");
+      }
 
-    Log.w("PushServiceSocket", "Got attachment content location: " + attachmentKey.getLocation());
+      Log.w("PushServiceSocket", "Got attachment content location: " + attachmentKey.getLocation());
 
-    uploadAttachment("PUT", attachmentKey.getLocation(), attachment.getData(),
-                     attachment.getDataSize(), attachment.getKey());
+      uploadAttachment(attachmentKey.getLocation(), ciphertext, attachment.getListener());
 
-    return attachmentKey.getId();
+      return attachmentKey.getId();
+    } finally {
+      ciphertext.delete();
+    }
   }
 
   public void retrieveAttachment(String relay, long attachmentId, File destination) throws IOException {
+    retrieveAttachment(relay, attachmentId, destination, null);
+  }
+
+  /**
+   * Opens an attachment's ciphertext as a stream straight off the network, which
+   * reconnects and resumes by itself when the connection drops.
+   */
+  public InputStream retrieveAttachmentStream(String relay, long attachmentId, ProgressListener listener)
+      throws IOException
+  {
     String path = String.format(ATTACHMENT_PATH, String.valueOf(attachmentId));
 
     if (!Util.isEmpty(relay)) {
       path = path + "?relay=" + relay;
     }
 
-    String               response   = makeRequest(path, "GET", null);
-    AttachmentDescriptor descriptor = new Gson().fromJson(response, AttachmentDescriptor.class);
+    AttachmentDescriptor descriptor = makeRequest(path, "GET", null, AttachmentDescriptor.class);
 
     Log.w("PushServiceSocket", "Attachment: " + attachmentId + " is at: " + descriptor.getLocation());
 
-    downloadExternalFile(descriptor.getLocation(), destination);
+    return new ResumableDownloadInputStream(descriptor.getLocation(), listener);
+  }
+
+  /**
+   * Downloads an attachment's ciphertext into the destination. If the destination
+   * already holds part of it, only the rest is requested.
+   */
+  public void retrieveAttachment(String relay, long attachmentId, File destination,
+                                 ProgressListener listener)
+      throws IOException
+  {
+    String path = String.format(ATTACHMENT_PATH, String.valueOf(attachmentId));
+
+    if (!Util.isEmpty(relay)) {
+      path = path + "?relay=" + relay;
+    }
+
+    AttachmentDescriptor descriptor = makeRequest(path, "GET", null, AttachmentDescriptor.class);
+
+    Log.w("PushServiceSocket", "Attachment: " + attachmentId + " is at: " + descriptor.getLocation());
+
+    downloadExternalFile(descriptor.getLocation(), destination, listener);
   }
 
   public List<ContactTokenDetails> retrieveDirectory(Set<String> contactTokens)
       throws NonSuccessfulResponseCodeException, PushNetworkException
   {
     ContactTokenList        contactTokenList = new ContactTokenList(new LinkedList<>(contactTokens));
-    String                  response         = makeRequest(DIRECTORY_TOKENS_PATH, "PUT", new Gson().toJson(contactTokenList));
-    ContactTokenDetailsList activeTokens     = new Gson().fromJson(response, ContactTokenDetailsList.class);
+    ContactTokenDetailsList activeTokens     = makeRequest(DIRECTORY_TOKENS_PATH, "PUT", contactTokenList,
+                                                                   ContactTokenDetailsList.class);
 
     return activeTokens.getContacts();
   }
 
   public ContactTokenDetails getContactTokenDetails(String contactToken) throws IOException {
     try {
-      String response = makeRequest(String.format(DIRECTORY_VERIFY_PATH, contactToken), "GET", null);
-      return new Gson().fromJson(response, ContactTokenDetails.class);
+      return makeRequest(String.format(DIRECTORY_VERIFY_PATH, contactToken), "GET", null,
+                         ContactTokenDetails.class);
     } catch (NotFoundException nfe) {
       return null;
     }
   }
 
-  private void downloadExternalFile(String url, File localDestination)
+  /**
+   * Appends the rest of a file to a partial local copy, using a range request when
+   * there's something to resume from. A server that ignores the range gets the
+   * whole file written again from the start.
+   */
+  private void downloadExternalFile(String url, File localDestination, ProgressListener listener)
       throws IOException
   {
     URL               downloadUrl = new URL(url);
     HttpURLConnection connection  = (HttpURLConnection) downloadUrl.openConnection();
+    long              offset      = localDestination.length();
+
     connection.setRequestProperty("Content-Type", "application/octet-stream");
     connection.setRequestMethod("GET");
     connection.setDoInput(true);
 
+    if (offset > 0) {
+      connection.setRequestProperty("Range", "bytes=" + offset + "-");
+    }
+
     try {
-      if (connection.getResponseCode() != 200) {
-        throw new NonSuccessfulResponseCodeException("Bad response: " + connection.getResponseCode());
+      int responseCode = connection.getResponseCode();
+
+      if (offset > 0 && responseCode == 416) {
+        Log.w("PushServiceSocket", "Already downloaded: " + url);
+        return;
+      }
+
+      if (responseCode != 200 && responseCode != 206) {
+        throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode);
+      }
+
+      if (responseCode == 200) {
+        offset = 0;
       }
 
-      OutputStream output = new FileOutputStream(localDestination);
-      InputStream input   = connection.getInputStream();
-      byte[] buffer       = new byte[4096];
-      int read;
+      long         total  = ResumableDownloadInputStream.getContentTotal(connection, offset);
+      OutputStream output = new FileOutputStream(localDestination, offset > 0);
 
-      while ((read = input.read(buffer)) != -1) {
-        output.write(buffer, 0, read);
+      try {
+        copy(connection.getInputStream(), output, offset, total, listener);
+      } finally {
+        output.close();
       }
 
-      output.close();
       Log.w("PushServiceSocket", "Downloaded: " + url + " to: " + localDestination.getAbsolutePath());
+    } catch (NonSuccessfulResponseCodeException e) {
+      throw e;
     } catch (IOException ioe) {
       throw new PushNetworkException(ioe);
     } finally {
@@ -372,60 +518,204 @@ public class PushServiceSocket {
     }
   }
 
-  private void uploadAttachment(String method, String url, InputStream data, long dataSize, byte[] key)
-    throws IOException
+  private File encryptAttachment(PushAttachmentData attachment) throws IOException {
+    File ciphertext = File.createTempFile("push-upload", "tmp");
+    ciphertext.deleteOnExit();
+
+    try {
+      FileOutputStream             fileOut = new FileOutputStream(ciphertext);
+      AttachmentCipherOutputStream out     = new AttachmentCipherOutputStream(attachment.getKey(), fileOut);
+
+      Util.copy(attachment.getData(), out);
+      out.flush();
+      fileOut.close();
+
+      return ciphertext;
+    } catch (IOException e) {
+      ciphertext.delete();
+      throw e;
+    }
+  }
+
+  /**
+   * Uploads the ciphertext, and when the connection drops part way, asks the server
+   * how much it has and sends only the rest. A server which doesn't report partial
+   * uploads gets the whole file again.
+   */
+  private void uploadAttachment(String url, File ciphertext, ProgressListener listener)
+      throws IOException
   {
-    URL                uploadUrl  = new URL(url);
-    HttpsURLConnection connection = (HttpsURLConnection) uploadUrl.openConnection();
+    long offset = 0;
+
+    for (int attempt=1;;attempt++) {
+      try {
+        uploadAttachmentRange(url, ciphertext, offset, listener);
+        return;
+      } catch (PushNetworkException e) {
+        if (attempt >= MAX_UPLOAD_ATTEMPTS) throw e;
+
+        Log.w("PushServiceSocket", e);
+        offset = getUploadedLength(url, ciphertext.length());
+        Log.w("PushServiceSocket", "Resuming upload at " + offset + " of " + ciphertext.length());
+      }
+    }
+  }
+
+  private void uploadAttachmentRange(String url, File ciphertext, long offset, ProgressListener listener)
+      throws IOException
+  {
+    long               total      = ciphertext.length();
+    HttpsURLConnection connection = (HttpsURLConnection) new URL(url).openConnection();
+
     connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode((int)(total - offset));
+    connection.setRequestMethod("PUT");
+    connection.setRequestProperty("Content-Type", "application/octet-stream");
 
-    if (dataSize > 0) {
-      connection.setFixedLengthStreamingMode((int) AttachmentCipherOutputStream.getCiphertextLength(dataSize));
-    } else {
-      connection.setChunkedStreamingMode(0);
+    if (offset > 0) {
+      connection.setRequestProperty("Content-Range", "bytes " + offset + "-" + (total - 1) + "/" + total);
     }
 
-    connection.setRequestMethod(method);
-    connection.setRequestProperty("Content-Type", "application/octet-stream");
-    connection.connect();
+    int responseCode;
 
     try {
-      OutputStream                 stream = connection.getOutputStream();
-      AttachmentCipherOutputStream out    = new AttachmentCipherOutputStream(key, stream);
+      connection.connect();
 
-      Util.copy(data, out);
-      out.flush();
+      InputStream input = new FileInputStream(ciphertext);
 
-      if (connection.getResponseCode() != 200) {
-        throw new IOException("Bad response: " + connection.getResponseCode() + " " + connection.getResponseMessage());
+      try {
+        Util.skipFully(input, offset);
+        copy(input, connection.getOutputStream(), offset, total, listener);
+      } finally {
+        input.close();
       }
+
+      responseCode = connection.getResponseCode();
+    } catch (IOException ioe) {
+      throw new PushNetworkException(ioe);
     } finally {
       connection.disconnect();
     }
+
+    if (responseCode != 200 && responseCode != 201) {
+      throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode);
+    }
+  }
+
+  /**
+   * Asks for the upload's status with an empty PUT whose Content-Range gives only the
+   * total length. A server holding a partial upload answers 308 with a Range header
+   * covering what it has; anything else means starting again.
+   */
+  private long getUploadedLength(String url, long total) {
+    HttpsURLConnection connection = null;
+
+    try {
+      connection = (HttpsURLConnection) new URL(url).openConnection();
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(0);
+      connection.setInstanceFollowRedirects(false);
+      connection.setRequestMethod("PUT");
+      connection.setRequestProperty("Content-Type", "application/octet-stream");
+      connection.setRequestProperty("Content-Range", "bytes */" + total);
+      connection.getOutputStream().close();
+
+      int    responseCode = connection.getResponseCode();
+      String range        = connection.getHeaderField("Range");
+
+      if (responseCode == 308 && range != null && range.startsWith("bytes=0-")) {
+        long uploaded = Long.parseLong(range.substring("bytes=0-".length()).trim()) + 1;
+        return uploaded < total ? uploaded : 0;
+      }
+    } catch (IOException | NumberFormatException e) {
+      Log.w("PushServiceSocket", e);
+    } finally {
+      if (connection != null) connection.disconnect();
+    }
+
+    return 0;
+  }
+
+  private void copy(InputStream in, OutputStream out, long offset, long total, ProgressListener listener)
+      throws IOException
+  {
+    byte[] buffer   = new byte[TRANSFER_BUFFER];
+    long   progress = offset;
+    int    read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+      progress += read;
+
+      if (listener != null) {
+        listener.onAttachmentProgress(total, progress);
+      }
+    }
+
+    out.close();
   }
 
-  private String makeRequest(String urlFragment, String method, String body)
+  private void makeRequest(String urlFragment, String method, Object body)
       throws NonSuccessfulResponseCodeException, PushNetworkException
   {
-    HttpURLConnection connection = makeBaseRequest(urlFragment, method, body);
+    makeRequest(urlFragment, method, body, null);
+  }
 
-    try {
-      String response = Util.readFully(connection.getInputStream());
-      connection.disconnect();
+  /**
+   * Sends a request if the shared {@link RateLimiter} allows it. Otherwise, or if the
+   * request is rate limited anyway, a {@link RateLimitException} is thrown carrying
+   * how long to wait, so that the caller can come back later instead of blocking.
+   */
+  private <T> T makeRequest(String urlFragment, String method, Object body, Class<T> responseType)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    RateLimiter.Priority priority = priorities.get(getEndpoint(urlFragment));
+
+    if (priority == null) {
+      return makeSingleRequest(urlFragment, method, body, responseType);
+    }
 
+    long wait = rateLimiter.tryAcquire(priority);
+
+    if (wait > 0) {
+      throw new RateLimitException("Held back by client rate limit: " + method + " " + getEndpoint(urlFragment), wait);
+    }
+
+    try {
+      T response = makeSingleRequest(urlFragment, method, body, responseType);
+      rateLimiter.onSuccess();
       return response;
+    } catch (RateLimitException e) {
+      throw new RateLimitException(e.getMessage(), rateLimiter.onRateLimited());
+    }
+  }
+
+  /**
+   * Sends the body (if any) as JSON and decodes the response as the given type (if
+   * any), streaming both directly on the connection.
+   */
+  private <T> T makeSingleRequest(String urlFragment, String method, Object body, Class<T> responseType)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    Exchange exchange = new Exchange(urlFragment, method);
+
+    try {
+      HttpURLConnection connection = makeBaseRequest(urlFragment, method, body, 0, exchange);
+      return readResponse(exchange.countResponse(connection.getInputStream()), responseType);
     } catch (IOException ioe) {
       throw new PushNetworkException(ioe);
+    } finally {
+      exchange.report();
     }
   }
 
-  private HttpURLConnection makeBaseRequest(String urlFragment, String method, String body)
+  private HttpURLConnection makeBaseRequest(String urlFragment, String method, Object body,
+                                            int readTimeoutMillis, Exchange exchange)
       throws NonSuccessfulResponseCodeException, PushNetworkException
   {
-    HttpURLConnection connection = getConnection(urlFragment, method, body);
+    HttpURLConnection connection = getConnection(urlFragment, method, body, readTimeoutMillis, exchange);
     int               responseCode;
     String            responseMessage;
-    String            response;
 
     try {
       responseCode    = connection.getResponseCode();
@@ -434,36 +724,44 @@ public class PushServiceSocket {
       throw new PushNetworkException(ioe);
     }
 
+    exchange.status = responseCode;
+
     switch (responseCode) {
       case 413:
-        connection.disconnect();
+        release(connection);
         throw new RateLimitException("Rate limit exceeded: " + responseCode);
       case 401:
       case 403:
-        connection.disconnect();
+        release(connection);
         throw new AuthorizationFailedException("Authorization failed!");
       case 404:
-        connection.disconnect();
+        release(connection);
         throw new NotFoundException("Not found");
       case 409:
+        MismatchedDevices mismatchedDevices;
+
         try {
-          response = Util.readFully(connection.getErrorStream());
+          mismatchedDevices = readResponse(exchange.countResponse(connection.getErrorStream()), MismatchedDevices.class);
         } catch (IOException e) {
           throw new PushNetworkException(e);
         }
-        throw new MismatchedDevicesException(new Gson().fromJson(response, MismatchedDevices.class));
+        throw new MismatchedDevicesException(mismatchedDevices);
       case 410:
+        StaleDevices staleDevices;
+
         try {
-          response = Util.readFully(connection.getErrorStream());
+          staleDevices = readResponse(exchange.countResponse(connection.getErrorStream()), StaleDevices.class);
         } catch (IOException e) {
           throw new PushNetworkException(e);
         }
-        throw new StaleDevicesException(new Gson().fromJson(response, StaleDevices.class));
+        throw new StaleDevicesException(staleDevices);
       case 417:
+        release(connection);
         throw new ExpectationFailedException();
     }
 
     if (responseCode != 200 && responseCode != 204) {
+        release(connection);
         throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode + " " +
                                                      responseMessage);
     }
@@ -471,13 +769,11 @@ public class PushServiceSocket {
     return connection;
   }
 
-  private HttpURLConnection getConnection(String urlFragment, String method, String body)
+  private HttpURLConnection getConnection(String urlFragment, String method, Object body,
+                                          int readTimeoutMillis, Exchange exchange)
       throws PushNetworkException
   {
     try {
-      SSLContext context = SSLContext.getInstance("TLS");
-      context.init(null, trustManagers, null);
-
       URL url = new URL(String.format("%s%s", serviceUrl, urlFragment));
       Log.w("PushServiceSocket", "Push service URL: " + serviceUrl);
       Log.w("PushServiceSocket", "Opening URL: " + url);
@@ -485,37 +781,75 @@ public class PushServiceSocket {
       HttpURLConnection connection = (HttpURLConnection) url.openConnection();
 
       if (ENFORCE_SSL) {
-        ((HttpsURLConnection) connection).setSSLSocketFactory(context.getSocketFactory());
-        ((HttpsURLConnection) connection).setHostnameVerifier(new StrictHostnameVerifier());
+        ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+        ((HttpsURLConnection) connection).setHostnameVerifier(hostnameVerifier);
       }
 
       connection.setRequestMethod(method);
       connection.setRequestProperty("Content-Type", "application/json");
+      connection.setReadTimeout(readTimeoutMillis);
 
       if (password != null) {
         connection.setRequestProperty("Authorization", getAuthorizationHeader());
       }
 
+      byte[] serializedBody = null;
+
       if (body != null) {
+        // A body of known length, rather than a chunked one, lets the request be
+        // retried transparently if a pooled connection turns out to be stale.
+        serializedBody = JsonUtil.toJsonBytes(body);
+
         connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(serializedBody.length);
       }
 
       connection.connect();
 
-      if (body != null) {
-        Log.w("PushServiceSocket", method + "  --  " + body);
+      if (serializedBody != null) {
+        Log.w("PushServiceSocket", method + "  --  " + body.getClass().getSimpleName());
         OutputStream out = connection.getOutputStream();
-        out.write(body.getBytes());
+        out.write(serializedBody);
         out.close();
+
+        exchange.requestBytes = serializedBody.length;
       }
 
       return connection;
     } catch (IOException e) {
       throw new PushNetworkException(e);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (KeyManagementException e) {
-      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Decodes a response body (when a type is given), then reads it to the end so that
+   * its connection can be reused.
+   */
+  private <T> T readResponse(InputStream in, Class<T> responseType) throws IOException {
+    if (in == null) {
+      return null;
+    }
+
+    try {
+      return responseType == null ? null : JsonUtil.fromJson(in, responseType);
+    } finally {
+      Util.drain(in);
+    }
+  }
+
+  /**
+   * Drains an error response so that its connection can be reused.
+   */
+  private void release(HttpURLConnection connection) {
+    try {
+      InputStream errorStream = connection.getErrorStream();
+
+      if (errorStream != null) {
+        Util.drain(errorStream);
+      }
+    } catch (IOException e) {
+      Log.w("PushServiceSocket", e);
+      connection.disconnect();
     }
   }
 
@@ -527,12 +861,32 @@ public class PushServiceSocket {
     }
   }
 
-  private TrustManager[] initializeTrustManager(TrustStore trustStore) {
+  private static synchronized SSLSocketFactory getSocketFactory(TrustStore trustStore) {
     try {
-      InputStream keyStoreInputStream = trustStore.getKeyStoreInputStream();
-      KeyStore    keyStore            = KeyStore.getInstance("BKS");
+      ByteArrayOutputStream keyStoreBytes = new ByteArrayOutputStream();
+      Util.copy(trustStore.getKeyStoreInputStream(), keyStoreBytes);
 
-      keyStore.load(keyStoreInputStream, trustStore.getKeyStorePassword().toCharArray());
+      String           key           = trustStore.getKeyStorePassword() + ":" + Base64.encodeBytes(keyStoreBytes.toByteArray());
+      SSLSocketFactory socketFactory = socketFactories.get(key);
+
+      if (socketFactory == null) {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, initializeTrustManager(keyStoreBytes.toByteArray(), trustStore.getKeyStorePassword()), null);
+
+        socketFactory = context.getSocketFactory();
+        socketFactories.put(key, socketFactory);
+      }
+
+      return socketFactory;
+    } catch (NoSuchAlgorithmException | KeyManagementException | IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static TrustManager[] initializeTrustManager(byte[] keyStoreBytes, String keyStorePassword) {
+    try {
+      KeyStore keyStore = KeyStore.getInstance("BKS");
+      keyStore.load(new ByteArrayInputStream(keyStoreBytes), keyStorePassword.toCharArray());
 
       TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("X509");
       trustManagerFactory.init(keyStore);
@@ -565,4 +919,54 @@ public class PushServiceSocket {
       return location;
     }
   }
+
+  private static String getEndpoint(String urlFragment) {
+    int    query = urlFragment.indexOf('?');
+    String path  = query == -1 ? urlFragment : urlFragment.substring(0, query);
+
+    for (Map.Entry<String, Pattern> endpoint : endpoints.entrySet()) {
+      if (endpoint.getValue().matcher(path).matches()) {
+        return endpoint.getKey();
+      }
+    }
+
+    return "unknown";
+  }
+
+  /**
+   * Measures one request, from opening its connection to reading its response.
+   */
+  private static class Exchange {
+    private final String endpoint;
+    private final String method;
+    private final long   startTime;
+
+    private int                 status       = RequestMetrics.NO_RESPONSE;
+    private long                requestBytes;
+    private CountingInputStream response;
+
+    public Exchange(String urlFragment, String method) {
+      this.endpoint  = getEndpoint(urlFragment);
+      this.method    = method;
+      this.startTime = System.currentTimeMillis();
+    }
+
+    public InputStream countResponse(InputStream in) {
+      if (in == null) return null;
+
+      response = new CountingInputStream(in);
+      return response;
+    }
+
+    public void report() {
+      RequestMetrics.Listener listener = metricsListener;
+
+      if (listener != null) {
+        listener.onRequestCompleted(new RequestMetrics(endpoint, method, status,
+                                                       System.currentTimeMillis() - startTime,
+                                                       requestBytes,
+                                                       response == null ? 0 : response.getCount()));
+      }
+    }
+  }
 }
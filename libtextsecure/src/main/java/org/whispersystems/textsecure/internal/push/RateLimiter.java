@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.internal.push;
+
+import android.util.Log;
+
+/**
+ * A client side token bucket shared by every request to the push service, so that
+ * work queued up behind a rate limit is let through at a pace the server accepts,
+ * rather than all retrying at once and being limited again.
+ *
+ * The refill rate adapts: each rate limit response halves it and pauses all requests
+ * for a backoff that doubles while limits keep coming, and each success raises it a
+ * little. Nothing here blocks: a caller that can't have a token is told how long to
+ * wait, and is expected to come back later rather than hold its thread. Lower
+ * priorities leave part of the bucket untouched, so that messages still go through
+ * right away while a directory refresh is being paced.
+ */
+public class RateLimiter {
+
+  private static final String TAG = RateLimiter.class.getSimpleName();
+
+  public enum Priority {
+    /** Sending and acknowledging messages, and the key and attachment lookups they need. */
+    MESSAGES(0),
+    /** Receipts and account maintenance. */
+    DEFAULT(4),
+    /** Directory refreshes. */
+    BACKGROUND(2);
+
+    private final int reserveDivisor;
+
+    /**
+     * @param reserveDivisor Leaves 1/reserveDivisor of the bucket to higher priorities,
+     *                       or 0 to leave none.
+     */
+    Priority(int reserveDivisor) {
+      this.reserveDivisor = reserveDivisor;
+    }
+
+    private double getReserve(int capacity) {
+      return reserveDivisor == 0 ? 0 : (double)capacity / reserveDivisor;
+    }
+  }
+
+  public interface Clock {
+    public long currentTimeMillis();
+  }
+
+  private static final Clock SYSTEM_CLOCK = new Clock() {
+    @Override
+    public long currentTimeMillis() {
+      return System.currentTimeMillis();
+    }
+  };
+
+  private static final long INITIAL_BACKOFF = 1000;
+  private static final long MAX_BACKOFF     = 60 * 1000;
+
+  private final Clock  clock;
+  private final int    capacity;
+  private final double minRate;
+  private final double maxRate;
+  private final double rateIncrease;
+
+  private double tokens;
+  private double rate;
+  private long   lastRefill;
+  private long   pausedUntil;
+  private long   backoff;
+
+  /**
+   * @param capacity The largest burst let through at once.
+   * @param minRate The slowest the bucket refills, in requests per second.
+   * @param maxRate The fastest the bucket refills, in requests per second.
+   * @param rateIncrease How much each successful request raises the refill rate.
+   */
+  public RateLimiter(int capacity, double minRate, double maxRate, double rateIncrease) {
+    this(SYSTEM_CLOCK, capacity, minRate, maxRate, rateIncrease);
+  }
+
+  RateLimiter(Clock clock, int capacity, double minRate, double maxRate, double rateIncrease) {
+    this.clock        = clock;
+    this.capacity     = capacity;
+    this.minRate      = minRate;
+    this.maxRate      = maxRate;
+    this.rateIncrease = rateIncrease;
+    this.tokens       = capacity;
+    this.rate         = maxRate;
+    this.lastRefill   = clock.currentTimeMillis();
+  }
+
+  /**
+   * Takes a token for a request at this priority, if one is available to it.
+   *
+   * @return 0 if the request may be sent now, otherwise how many milliseconds to wait
+   *         before trying again.
+   */
+  public synchronized long tryAcquire(Priority priority) {
+    long now = clock.currentTimeMillis();
+
+    if (now < pausedUntil) {
+      return pausedUntil - now;
+    }
+
+    tokens     = Math.min(capacity, tokens + (now - Math.max(lastRefill, pausedUntil)) * rate / 1000);
+    lastRefill = now;
+
+    double needed = 1 + priority.getReserve(capacity);
+
+    if (tokens >= needed) {
+      tokens -= 1;
+      return 0;
+    }
+
+    return Math.max(1, (long)Math.ceil((needed - tokens) * 1000 / rate));
+  }
+
+  public synchronized void onSuccess() {
+    backoff = 0;
+    rate    = Math.min(maxRate, rate + rateIncrease);
+  }
+
+  /**
+   * @return How long every request is now paused for, in milliseconds.
+   */
+  public synchronized long onRateLimited() {
+    long now = clock.currentTimeMillis();
+
+    backoff     = backoff == 0 ? INITIAL_BACKOFF : Math.min(MAX_BACKOFF, backoff * 2);
+    rate        = Math.max(minRate, rate / 2);
+    tokens      = 0;
+    lastRefill  = now;
+    pausedUntil = Math.max(pausedUntil, now + backoff);
+
+    Log.w(TAG, "Rate limited, pausing for " + backoff + "ms, then " + rate + " requests/sec");
+
+    return pausedUntil - now;
+  }
+}
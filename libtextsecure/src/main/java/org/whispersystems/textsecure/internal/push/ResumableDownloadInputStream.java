@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.internal.push;
+
+import android.util.Log;
+
+import org.whispersystems.textsecure.api.messages.TextSecureAttachment.ProgressListener;
+import org.whispersystems.textsecure.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
+import org.whispersystems.textsecure.internal.util.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Streams a file from a URL, and when the connection drops part way, reconnects with
+ * a range request for the rest and carries on. Readers see one uninterrupted stream,
+ * so a decryption or MAC running over it doesn't need to restart. Nothing outlives
+ * the stream, so a download which fails outright starts over next time.
+ *
+ * Network failures which outlast the reconnect attempts surface as a
+ * {@link PushNetworkException}, and error responses as a
+ * {@link NonSuccessfulResponseCodeException}.
+ */
+public class ResumableDownloadInputStream extends InputStream {
+
+  private static final String TAG = ResumableDownloadInputStream.class.getSimpleName();
+
+  private static final int MAX_RECONNECTS = 3;
+
+  private final String           url;
+  private final ProgressListener listener;
+
+  private HttpURLConnection connection;
+  private InputStream       in;
+  private long              position;
+  private long              total = -1;
+  private int               reconnects;
+
+  public ResumableDownloadInputStream(String url, ProgressListener listener) throws IOException {
+    this.url      = url;
+    this.listener = listener;
+
+    open();
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] single = new byte[1];
+    int    read   = read(single, 0, 1);
+
+    return read == -1 ? -1 : single[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    while (true) {
+      try {
+        int read = in.read(buffer, offset, length);
+
+        if (read == -1 && total != -1 && position < total) {
+          throw new IOException("Connection closed at " + position + " of " + total);
+        }
+
+        if (read > 0) {
+          position += read;
+
+          if (listener != null) {
+            listener.onAttachmentProgress(total, position);
+          }
+        }
+
+        return read;
+      } catch (IOException e) {
+        if (++reconnects > MAX_RECONNECTS) {
+          throw new PushNetworkException(e);
+        }
+
+        Log.w(TAG, "Reconnecting at " + position + " of " + total, e);
+        close();
+        open();
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    if (connection != null) {
+      connection.disconnect();
+    }
+  }
+
+  private void open() throws IOException {
+    connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestMethod("GET");
+
+    if (position > 0) {
+      connection.setRequestProperty("Range", "bytes=" + position + "-");
+    }
+
+    try {
+      int responseCode = connection.getResponseCode();
+
+      if (responseCode != 200 && responseCode != 206) {
+        throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode);
+      }
+
+      in = connection.getInputStream();
+
+      if (responseCode == 200 && position > 0) {
+        Util.skipFully(in, position);
+      }
+
+      if (total == -1) {
+        total = getContentTotal(connection, responseCode == 206 ? position : 0);
+      }
+    } catch (NonSuccessfulResponseCodeException e) {
+      connection.disconnect();
+      throw e;
+    } catch (IOException e) {
+      connection.disconnect();
+      throw new PushNetworkException(e);
+    }
+  }
+
+  /**
+   * @return the full length of the file a (possibly partial) response is part of,
+   * or -1 if the response doesn't say.
+   */
+  static long getContentTotal(HttpURLConnection connection, long offset) {
+    try {
+      String contentRange  = connection.getHeaderField("Content-Range");
+      String contentLength = connection.getHeaderField("Content-Length");
+
+      if (contentRange != null && contentRange.contains("/")) {
+        return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+      } else if (contentLength != null) {
+        return offset + Long.parseLong(contentLength.trim());
+      }
+    } catch (NumberFormatException e) {
+      Log.w(TAG, e);
+    }
+
+    return -1;
+  }
+}
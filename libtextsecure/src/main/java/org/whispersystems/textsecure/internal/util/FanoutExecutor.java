@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.internal.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a blocking task over a list of items with at most a fixed number in flight,
+ * and waits for all of them to finish. The calling thread works through the list
+ * alongside the pool, so a parallelism of one runs everything in order on the caller.
+ */
+public class FanoutExecutor {
+
+  private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "FanoutExecutor-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  public interface Task<T> {
+    public void run(T item) throws IOException;
+  }
+
+  private final int parallelism;
+
+  public FanoutExecutor(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least one: " + parallelism);
+    }
+
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Runs the task once for each item. If any run fails, no further items are
+   * started, and the first failure is rethrown once the runs in flight have finished.
+   */
+  public <T> void execute(List<T> items, final Task<T> task) throws IOException {
+    final Queue<T>                   pending = new ConcurrentLinkedQueue<>(items);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final List<Future<?>>            workers = new LinkedList<>();
+
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        T item;
+
+        while (failure.get() == null && (item = pending.poll()) != null) {
+          try {
+            task.run(item);
+          } catch (IOException | RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      }
+    };
+
+    for (int i=1;i<Math.min(parallelism, items.size());i++) {
+      workers.add(executor.submit(worker));
+    }
+
+    worker.run();
+
+    for (Future<?> future : workers) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException(e.getMessage());
+      } catch (ExecutionException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    Throwable error = failure.get();
+
+    if      (error instanceof IOException)      throw (IOException)error;
+    else if (error instanceof RuntimeException) throw (RuntimeException)error;
+    else if (error instanceof Error)            throw (Error)error;
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.internal.util;
+
+import com.google.thoughtcrimegson.Gson;
+import com.google.thoughtcrimegson.GsonBuilder;
+import com.google.thoughtcrimegson.JsonParseException;
+
+import org.whispersystems.libaxolotl.IdentityKey;
+import org.whispersystems.textsecure.api.push.SignedPreKeyEntity;
+import org.whispersystems.textsecure.internal.push.ContactTokenDetailsList;
+import org.whispersystems.textsecure.internal.push.OutgoingPushMessageList;
+import org.whispersystems.textsecure.internal.push.PreKeyResponse;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * The one JSON codec for push API bodies. It's configured once with every type
+ * adapter the API needs, so callers don't pay for building a new Gson (and its
+ * reflective adapters) per call, and it reads and writes directly on streams
+ * rather than through an intermediate String.
+ */
+public class JsonUtil {
+
+  private static final Gson gson = SignedPreKeyEntity.forBuilder(new GsonBuilder())
+      .registerTypeAdapter(IdentityKey.class, new PreKeyResponse.IdentityKeyJsonAdapter())
+      .registerTypeAdapterFactory(new OutgoingPushMessageList.JsonAdapterFactory())
+      .registerTypeAdapter(PreKeyResponse.class, new PreKeyResponse.JsonAdapter())
+      .registerTypeAdapter(ContactTokenDetailsList.class, new ContactTokenDetailsList.JsonAdapter())
+      .create();
+
+  public static String toJson(Object object) {
+    return gson.toJson(object);
+  }
+
+  public static <T> T fromJson(String serialized, Class<T> type) {
+    return gson.fromJson(serialized, type);
+  }
+
+  /**
+   * Encodes the object as UTF-8 JSON in one pass, for a body whose length has to be
+   * known before it's written.
+   */
+  public static byte[] toJsonBytes(Object object) throws IOException {
+    try {
+      return gson.toJson(object).getBytes("UTF-8");
+    } catch (JsonParseException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Writes the object as UTF-8 JSON to the stream, and flushes without closing it.
+   */
+  public static void toJson(Object object, OutputStream out) throws IOException {
+    try {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+      gson.toJson(object, object.getClass(), writer);
+      writer.flush();
+    } catch (JsonParseException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Reads one UTF-8 JSON value from the stream, without closing it.
+   *
+   * @return the value, or null if the stream is empty.
+   */
+  public static <T> T fromJson(InputStream in, Class<T> type) throws IOException {
+    try {
+      return gson.fromJson(new InputStreamReader(in, "UTF-8"), type);
+    } catch (JsonParseException e) {
+      throw new IOException(e);
+    }
+  }
+}
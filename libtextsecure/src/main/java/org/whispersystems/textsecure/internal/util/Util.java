@@ -65,6 +65,28 @@ public class Util {
     return new String(bout.toByteArray());
   }
 
+  /**
+   * Reads the rest of a stream and discards it, then closes it.
+   */
+  public static void drain(InputStream in) throws IOException {
+    byte[] buffer = new byte[4096];
+
+    try {
+      while (in.read(buffer) != -1);
+    } finally {
+      in.close();
+    }
+  }
+
+  public static void skipFully(InputStream in, long count) throws IOException {
+    while (count > 0) {
+      long skipped = in.skip(count);
+
+      if (skipped <= 0) throw new IOException("Unexpected end of stream");
+      count -= skipped;
+    }
+  }
+
   public static void readFully(InputStream in, byte[] buffer) throws IOException {
     int offset = 0;
 
@@ -18,19 +18,20 @@ package org.thoughtcrime.securesms;
 
 import android.app.Application;
 import android.content.Context;
+import android.os.AsyncTask;
 
 import org.thoughtcrime.securesms.crypto.PRNGFixes;
 import org.thoughtcrime.securesms.dependencies.AxolotlStorageModule;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.dependencies.TextSecureCommunicationModule;
+import org.thoughtcrime.securesms.jobs.DeliveryReceiptQueue;
 import org.thoughtcrime.securesms.jobs.GcmRefreshJob;
-import org.thoughtcrime.securesms.jobs.persistence.EncryptingJobSerializer;
-import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirementProvider;
-import org.thoughtcrime.securesms.jobs.requirements.ServiceRequirementProvider;
+import org.thoughtcrime.securesms.jobs.LaneJobManager;
+import org.thoughtcrime.securesms.jobs.PushDecryptJob;
+import org.thoughtcrime.securesms.push.PushRequestMetrics;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.jobqueue.dependencies.DependencyInjector;
-import org.whispersystems.jobqueue.requirements.NetworkRequirementProvider;
+import org.whispersystems.textsecure.internal.push.PushServiceSocket;
 
 import java.security.Security;
 
@@ -46,7 +47,7 @@ import dagger.ObjectGraph;
  */
 public class ApplicationContext extends Application implements DependencyInjector {
 
-  private JobManager jobManager;
+  private LaneJobManager jobManager;
   private ObjectGraph objectGraph;
 
   public static ApplicationContext getInstance(Context context) {
@@ -59,6 +60,9 @@ public class ApplicationContext extends Application implements DependencyInjecto
     initializeDependencyInjection();
     initializeJobManager();
     initializeGcmCheck();
+    initializeRequestMetrics();
+    initializeReceiptQueue();
+    initializePendingDecrypts();
   }
 
   @Override
@@ -68,7 +72,7 @@ public class ApplicationContext extends Application implements DependencyInjecto
     }
   }
 
-  public JobManager getJobManager() {
+  public LaneJobManager getJobManager() {
     return jobManager;
   }
 
@@ -79,15 +83,7 @@ public class ApplicationContext extends Application implements DependencyInjecto
   }
 
   private void initializeJobManager() {
-    this.jobManager = JobManager.newBuilder(this)
-                                .withName("TextSecureJobs")
-                                .withDependencyInjector(this)
-                                .withJobSerializer(new EncryptingJobSerializer())
-                                .withRequirementProviders(new MasterSecretRequirementProvider(this),
-                                                          new ServiceRequirementProvider(this),
-                                                          new NetworkRequirementProvider(this))
-                                .withConsumerThreads(5)
-                                .build();
+    this.jobManager = new LaneJobManager(this, this);
   }
 
   private void initializeDependencyInjection() {
@@ -95,6 +91,24 @@ public class ApplicationContext extends Application implements DependencyInjecto
                                           new AxolotlStorageModule(this));
   }
 
+  private void initializeRequestMetrics() {
+    PushServiceSocket.setMetricsListener(PushRequestMetrics.getInstance());
+  }
+
+  private void initializeReceiptQueue() {
+    DeliveryReceiptQueue.getInstance(this).flushPending();
+  }
+
+  private void initializePendingDecrypts() {
+    new AsyncTask<Void, Void, Void>() {
+      @Override
+      protected Void doInBackground(Void... params) {
+        PushDecryptJob.schedulePending(ApplicationContext.this);
+        return null;
+      }
+    }.execute();
+  }
+
   private void initializeGcmCheck() {
     if (TextSecurePreferences.isPushRegistered(this) &&
         TextSecurePreferences.getGcmRegistrationId(this) == null)
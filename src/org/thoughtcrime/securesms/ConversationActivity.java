@@ -70,6 +70,7 @@ import org.thoughtcrime.securesms.database.DraftDatabase.Drafts;
 import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.MmsSmsColumns.Types;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
+import org.thoughtcrime.securesms.jobs.PreKeyPrefetchJob;
 import org.thoughtcrime.securesms.mms.AttachmentManager;
 import org.thoughtcrime.securesms.mms.AttachmentTypeSelectorAdapter;
 import org.thoughtcrime.securesms.mms.MediaTooLargeException;
@@ -162,6 +163,7 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
   private boolean    isEncryptedConversation;
   private boolean    isMmsEnabled = true;
   private boolean    isCharactersLeftViewEnabled;
+  private boolean    isPreKeyPrefetchDue;
 
   private CharacterCalculator characterCalculator = new CharacterCalculator();
   private DynamicTheme        dynamicTheme        = new DynamicTheme();
@@ -685,6 +687,13 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
     if (!isPushDestination  ) sendButton.disableTransport("textsecure");
     if (!isSecureDestination) sendButton.disableTransport("secure_sms");
 
+    isPreKeyPrefetchDue = isPushDestination && !isSecureDestination && isSingleConversation() &&
+                          TextSecurePreferences.isPreKeyPrefetchEnabled(this);
+
+    if (composeText.length() > 0) {
+      prefetchPreKeys();
+    }
+
     if (isPushDestination) {
       sendButton.setDefaultTransport("textsecure");
     } else if (isSecureDestination) {
@@ -696,6 +705,22 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
     calculateCharactersRemaining();
   }
 
+  /**
+   * Fetches keys for a first message once one is likely, which is when the user starts
+   * typing, or opens the conversation with a draft. Each fetch uses up one of the
+   * recipient's one-time prekeys, so just looking at a conversation doesn't.
+   */
+  private void prefetchPreKeys() {
+    if (!isPreKeyPrefetchDue) return;
+
+    Recipient recipient = getRecipients().getPrimaryRecipient();
+
+    isPreKeyPrefetchDue = false;
+    ApplicationContext.getInstance(this)
+                      .getJobManager()
+                      .add(new PreKeyPrefetchJob(this, recipient.getRecipientId(), recipient.getNumber()));
+  }
+
   private void initializeMmsEnabledCheck() {
     new AsyncTask<Void, Void, Boolean>() {
       @Override
@@ -1182,6 +1207,10 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
     @Override
     public void afterTextChanged(Editable s) {
       calculateCharactersRemaining();
+
+      if (s.length() > 0) {
+        prefetchPreKeys();
+      }
     }
     @Override
     public void beforeTextChanged(CharSequence s, int start, int count,int after) {}
@@ -19,6 +19,7 @@ package org.thoughtcrime.securesms;
 import android.content.Context;
 import android.database.Cursor;
 import android.os.Handler;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -32,6 +33,7 @@ import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.SmsDatabase;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.TaskScheduler;
 
 import java.lang.ref.SoftReference;
 import java.util.Collections;
@@ -47,6 +49,8 @@ import java.util.Map;
  */
 public class ConversationAdapter extends CursorAdapter implements AbsListView.RecyclerListener {
 
+  private static final String TAG = ConversationAdapter.class.getSimpleName();
+
   private static final int MAX_CACHE_SIZE = 40;
   private final Map<String,SoftReference<MessageRecord>> messageRecordCache =
       Collections.synchronizedMap(new LRUCache<String, SoftReference<MessageRecord>>(MAX_CACHE_SIZE));
@@ -156,6 +160,7 @@ public class ConversationAdapter extends CursorAdapter implements AbsListView.Re
 
   public void close() {
     this.getCursor().close();
+    Log.w(TAG, "Background media work: " + TaskScheduler.getInstance().getMetrics());
   }
 
   @Override
@@ -18,6 +18,7 @@ package org.thoughtcrime.securesms;
 
 import android.app.AlertDialog;
 import android.content.ActivityNotFoundException;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -48,6 +49,7 @@ import org.thoughtcrime.securesms.database.SmsDatabase;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.NotificationMmsMessageRecord;
+import org.thoughtcrime.securesms.jobs.AttachmentDownloadScheduler;
 import org.thoughtcrime.securesms.jobs.MmsDownloadJob;
 import org.thoughtcrime.securesms.jobs.MmsSendJob;
 import org.thoughtcrime.securesms.jobs.SmsSendJob;
@@ -60,6 +62,7 @@ import org.thoughtcrime.securesms.util.Dialogs;
 import org.thoughtcrime.securesms.util.Emoji;
 import org.thoughtcrime.securesms.util.FutureTaskListener;
 import org.thoughtcrime.securesms.util.ListenableFutureTask;
+import org.thoughtcrime.securesms.util.TaskScheduler;
 
 /**
  * A view that displays an individual conversation item within a conversation
@@ -90,6 +93,8 @@ public class ConversationItem extends LinearLayout {
   private final static int SENT_PUSH_PENDING = 6;
   private final static int SENT_PUSH_PENDING_TRIANGLE = 7;
 
+  private final static long DOWNLOAD_PROGRESS_INTERVAL_MILLIS = 500;
+
   private Handler       failedIconHandler;
   private MessageRecord messageRecord;
   private MasterSecret  masterSecret;
@@ -114,12 +119,15 @@ public class ConversationItem extends LinearLayout {
   private  TextView  mmsDownloadingLabel;
   private  ListenableFutureTask<SlideDeck> slideDeck;
   private  FutureTaskListener<SlideDeck> slideDeckListener;
+  private  Slide     thumbnailSlide;
+  private  long      downloadingPartId = -1;
   private  TypedArray backgroundDrawables;
 
   private final FailedIconClickListener failedIconClickListener         = new FailedIconClickListener();
   private final MmsDownloadClickListener mmsDownloadClickListener       = new MmsDownloadClickListener();
   private final MmsPreferencesClickListener mmsPreferencesClickListener = new MmsPreferencesClickListener();
   private final ClickListener clickListener                             = new ClickListener();
+  private final DownloadProgressUpdater downloadProgressUpdater         = new DownloadProgressUpdater();
   private final Handler handler                                         = new Handler();
   private final Context context;
 
@@ -169,6 +177,9 @@ public class ConversationItem extends LinearLayout {
     this.groupThread       = groupThread;
     this.pushDestination   = pushDestination;
 
+    handler.removeCallbacks(downloadProgressUpdater);
+    downloadingPartId = -1;
+
     setBackgroundDrawables(messageRecord);
     setBodyText(messageRecord);
 
@@ -188,8 +199,21 @@ public class ConversationItem extends LinearLayout {
   }
 
   public void unbind() {
-    if (slideDeck != null && slideDeckListener != null)
+    if (slideDeck != null && slideDeckListener != null) {
       slideDeck.removeListener(slideDeckListener);
+      TaskScheduler.getInstance().release(slideDeck, false);
+    }
+
+    if (thumbnailSlide != null) {
+      thumbnailSlide.cancelThumbnailOn(mmsThumbnail);
+    }
+
+    handler.removeCallbacks(downloadProgressUpdater);
+
+    slideDeck         = null;
+    slideDeckListener = null;
+    thumbnailSlide    = null;
+    downloadingPartId = -1;
   }
 
   public MessageRecord getMessageRecord() {
@@ -236,7 +260,9 @@ public class ConversationItem extends LinearLayout {
   }
 
   private void setBodyText(MessageRecord messageRecord) {
-      bodyText.setText(Emoji.getInstance(context).emojify(messageRecord.getDisplayBody(), new Emoji.InvalidatingPageLoadedListener(bodyText)),
+      bodyText.setText(Emoji.getInstance(context).emojify(messageRecord.getId(), messageRecord.isMms(),
+                                                          messageRecord.getDisplayBody(), Emoji.EMOJI_LARGE,
+                                                          new Emoji.InvalidatingPageLoadedListener(bodyText)),
                        TextView.BufferType.SPANNABLE);
   }
 
@@ -358,11 +384,25 @@ public class ConversationItem extends LinearLayout {
         if (result == null)
           return;
 
+        final FutureTaskListener<SlideDeck> boundListener = this;
+
         handler.post(new Runnable() {
           @Override
           public void run() {
+            if (slideDeckListener != boundListener)
+              return;
+
+            for (Slide slide : result.getSlides()) {
+              if (slide.getPart().isPendingPush() && slide.getPart().getDataUri() != null) {
+                downloadingPartId = ContentUris.parseId(slide.getPart().getDataUri());
+                handler.post(downloadProgressUpdater);
+                break;
+              }
+            }
+
             for (Slide slide : result.getSlides()) {
               if (slide.hasImage()) {
+                thumbnailSlide = slide;
                 slide.setThumbnailOn(mmsThumbnail);
                 mmsThumbnail.setOnClickListener(new ThumbnailClickListener(slide));
                 mmsThumbnail.setOnLongClickListener(new OnLongClickListener() {
@@ -385,6 +425,7 @@ public class ConversationItem extends LinearLayout {
       public void onFailure(Throwable error) {}
     };
     slideDeck.addListener(slideDeckListener);
+    TaskScheduler.getInstance().move(slideDeck, TaskScheduler.Lane.VISIBLE);
   }
 
   /// Helper Methods
@@ -453,6 +494,30 @@ public class ConversationItem extends LinearLayout {
     context.startActivity(intent);
   }
 
+  /**
+   * Shows how much of a pending push attachment has arrived, for as long as the item
+   * shows it. The item is bound again once the download completes.
+   */
+  private class DownloadProgressUpdater implements Runnable {
+    @Override
+    public void run() {
+      if (downloadingPartId == -1)
+        return;
+
+      float progress = AttachmentDownloadScheduler.getInstance().getProgress(downloadingPartId);
+
+      if (progress >= 0) {
+        mmsDownloadingLabel.setText(String.format(context.getString(R.string.ConversationItem_downloading_d_percent),
+                                                  (int)(progress * 100)));
+        mmsDownloadingLabel.setVisibility(View.VISIBLE);
+      } else {
+        mmsDownloadingLabel.setVisibility(View.GONE);
+      }
+
+      handler.postDelayed(this, DOWNLOAD_PROGRESS_INTERVAL_MILLIS);
+    }
+  }
+
   private class ThumbnailClickListener implements View.OnClickListener {
     private final Slide slide;
 
@@ -207,7 +207,10 @@ public class DatabaseUpgradeActivity extends Activity {
           while ((pushReader != null && pushReader.moveToNext())) {
             ApplicationContext.getInstance(getApplicationContext())
                 .getJobManager()
-                .add(new PushDecryptJob(getApplicationContext(), pushReader.getLong(pushReader.getColumnIndexOrThrow(PushDatabase.ID))));
+                .add(new PushDecryptJob(getApplicationContext(),
+                                        pushReader.getLong(pushReader.getColumnIndexOrThrow(PushDatabase.ID)),
+                                        pushReader.getString(pushReader.getColumnIndexOrThrow(PushDatabase.SOURCE)),
+                                        pushReader.getInt(pushReader.getColumnIndexOrThrow(PushDatabase.DEVICE_ID))));
           }
         } finally {
           if (pushReader != null)
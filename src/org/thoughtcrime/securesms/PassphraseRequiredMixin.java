@@ -10,6 +10,7 @@ import android.view.WindowManager;
 
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.service.KeyCachingService;
+import org.thoughtcrime.securesms.service.MessageRetrievalManager;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 
 
@@ -27,11 +28,13 @@ public class PassphraseRequiredMixin {
     initializeNewKeyReceiver(activity);
     initializeFromMasterSecret(activity);
     KeyCachingService.registerPassphraseActivityStarted(activity);
+    MessageRetrievalManager.getInstance(activity).onActivityResumed();
   }
 
   public <T extends Activity & PassphraseRequiredActivity> void onPause(T activity) {
     removeNewKeyReceiver(activity);
     KeyCachingService.registerPassphraseActivityStopped(activity);
+    MessageRetrievalManager.getInstance(activity).onActivityPaused();
   }
 
   public <T extends Activity & PassphraseRequiredActivity> void onDestroy(T activity) {
@@ -37,7 +37,6 @@ import org.thoughtcrime.securesms.crypto.storage.TextSecureIdentityKeyStore;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.EncryptingSmsDatabase;
 import org.thoughtcrime.securesms.database.IdentityDatabase;
-import org.thoughtcrime.securesms.database.PushDatabase;
 import org.thoughtcrime.securesms.jobs.PushDecryptJob;
 import org.thoughtcrime.securesms.jobs.SmsDecryptJob;
 import org.thoughtcrime.securesms.recipients.Recipient;
@@ -217,7 +216,6 @@ public class ReceiveKeyActivity extends Activity {
           Context               context          = ReceiveKeyActivity.this;
           IdentityDatabase      identityDatabase = DatabaseFactory.getIdentityDatabase(context);
           EncryptingSmsDatabase smsDatabase      = DatabaseFactory.getEncryptingSmsDatabase(context);
-          PushDatabase          pushDatabase     = DatabaseFactory.getPushDatabase(context);
 
           identityDatabase.saveIdentity(masterSecret, recipient.getRecipientId(), identityKey);
 
@@ -232,11 +230,7 @@ public class ReceiveKeyActivity extends Activity {
                                                                      message.getSentTimestampMillis(),
                                                                      body);
 
-                long pushId = pushDatabase.insert(envelope);
-
-                ApplicationContext.getInstance(context)
-                                  .getJobManager()
-                                  .add(new PushDecryptJob(context, pushId));
+                PushDecryptJob.enqueue(context, envelope);
 
                 smsDatabase.deleteMessage(messageId);
               } catch (IOException e) {
@@ -4,4 +4,8 @@ public class Release {
 
   public static final String PUSH_URL = "https://textsecure-service.whispersystems.org";
 //  public static final String PUSH_URL = "http://192.168.1.135:8080";
+
+  // Whether the push server offers the message stream. Until it does, messages
+  // arrive by GCM and are fetched as before.
+  public static final boolean MESSAGE_PIPE_SUPPORTED = false;
 }
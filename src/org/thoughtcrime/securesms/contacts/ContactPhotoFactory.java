@@ -7,18 +7,30 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
+import android.support.v4.util.LruCache;
+import android.util.Log;
 
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.ListenableFutureTask;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 public class ContactPhotoFactory {
 
+  private static final String TAG = ContactPhotoFactory.class.getSimpleName();
+
+  private static final int UNCROPPED    = -1;
+  private static final int NATURAL_SIZE =  0;
+
   private static final Object defaultPhotoLock              = new Object();
   private static final Object defaultGroupPhotoLock         = new Object();
   private static final Object defaultPhotoCroppedLock       = new Object();
@@ -32,6 +44,17 @@ public class ContactPhotoFactory {
   private static final Map<Uri,Bitmap> localUserContactPhotoCache =
       Collections.synchronizedMap(new LRUCache<Uri,Bitmap>(2));
 
+  private static final LruCache<PhotoKey, Bitmap> contactPhotoCache =
+      new LruCache<PhotoKey, Bitmap>((int)(Runtime.getRuntime().maxMemory() / 32)) {
+        @Override
+        protected int sizeOf(PhotoKey key, Bitmap value) {
+          return value.getRowBytes() * value.getHeight();
+        }
+      };
+
+  private static final Map<PhotoKey, ListenableFutureTask<Bitmap>> pendingContactPhotos =
+      new HashMap<PhotoKey, ListenableFutureTask<Bitmap>>();
+
   private static final String[] CONTENT_URI_PROJECTION = new String[] {
     ContactsContract.Contacts._ID,
     ContactsContract.Contacts.DISPLAY_NAME,
@@ -98,6 +121,7 @@ public class ContactPhotoFactory {
 
   public static void clearCache() {
     localUserContactPhotoCache.clear();
+    contactPhotoCache.evictAll();
   }
 
   public static void clearCache(Recipient recipient) {
@@ -106,12 +130,110 @@ public class ContactPhotoFactory {
   }
 
   public static Bitmap getContactPhoto(Context context, Uri uri) {
-    InputStream inputStream = ContactsContract.Contacts.openContactPhotoInputStream(context.getContentResolver(), uri);
+    return getContactPhoto(context, new PhotoKey(uri, UNCROPPED));
+  }
 
-    final Bitmap contactPhoto;
-    if (inputStream == null) contactPhoto = ContactPhotoFactory.getDefaultContactPhoto(context);
-    else                     contactPhoto = BitmapFactory.decodeStream(inputStream);
+  public static Bitmap getCircleCroppedContactPhoto(Context context, Uri uri) {
+    return getContactPhoto(context, new PhotoKey(uri, NATURAL_SIZE));
+  }
 
-    return contactPhoto;
+  public static Bitmap getCircleCroppedContactPhoto(Context context, Uri uri, int size) {
+    return getContactPhoto(context, new PhotoKey(uri, size));
+  }
+
+  /**
+   * Every caller asking for the same photo at the same size while it's being decoded
+   * waits on that one decode rather than starting its own.
+   */
+  private static Bitmap getContactPhoto(final Context context, final PhotoKey key) {
+    Bitmap cachedPhoto = contactPhotoCache.get(key);
+
+    if (cachedPhoto != null) return cachedPhoto;
+
+    ListenableFutureTask<Bitmap> task;
+
+    synchronized (pendingContactPhotos) {
+      task = pendingContactPhotos.get(key);
+
+      if (task == null) {
+        task = new ListenableFutureTask<Bitmap>(new Callable<Bitmap>() {
+          @Override
+          public Bitmap call() throws Exception {
+            Bitmap photo = decodeContactPhoto(context, key);
+            contactPhotoCache.put(key, photo);
+            return photo;
+          }
+        });
+
+        pendingContactPhotos.put(key, task);
+      }
+    }
+
+    try {
+      task.run();
+      return task.get();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    } catch (ExecutionException e) {
+      Log.w(TAG, e);
+      return key.size == UNCROPPED ? getDefaultContactPhoto(context) : getDefaultContactPhotoCropped(context);
+    } finally {
+      synchronized (pendingContactPhotos) {
+        if (pendingContactPhotos.get(key) == task) {
+          pendingContactPhotos.remove(key);
+        }
+      }
+    }
+  }
+
+  private static Bitmap decodeContactPhoto(Context context, PhotoKey key) {
+    if (key.size == UNCROPPED) {
+      InputStream inputStream = ContactsContract.Contacts.openContactPhotoInputStream(context.getContentResolver(), key.uri);
+
+      if (inputStream == null) return getDefaultContactPhoto(context);
+
+      try {
+        Bitmap contactPhoto = BitmapFactory.decodeStream(inputStream);
+        return contactPhoto == null ? getDefaultContactPhoto(context) : contactPhoto;
+      } finally {
+        try {
+          inputStream.close();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+
+    Bitmap contactPhoto = getContactPhoto(context, new PhotoKey(key.uri, UNCROPPED));
+
+    if (key.size == NATURAL_SIZE) {
+      if (contactPhoto == getDefaultContactPhoto(context)) return getDefaultContactPhotoCropped(context);
+      else                                                 return BitmapUtil.getCircleCroppedBitmap(contactPhoto);
+    }
+
+    return BitmapUtil.getScaledCircleCroppedBitmap(contactPhoto, key.size);
+  }
+
+  private static class PhotoKey {
+    private final Uri uri;
+    private final int size;
+
+    public PhotoKey(Uri uri, int size) {
+      this.uri  = uri;
+      this.size = size;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other == null || !(other instanceof PhotoKey)) return false;
+
+      PhotoKey that = (PhotoKey)other;
+      return this.uri.equals(that.uri) && this.size == that.size;
+    }
+
+    @Override
+    public int hashCode() {
+      return uri.hashCode() ^ size;
+    }
   }
 }
@@ -39,12 +39,10 @@ import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.BitmapWorkerRunnable;
 import org.thoughtcrime.securesms.util.BitmapWorkerRunnable.AsyncDrawable;
 import org.thoughtcrime.securesms.util.TaggedFutureTask;
-import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.TaskScheduler;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.FutureTask;
 
 import se.emilsjolander.stickylistheaders.StickyListHeadersAdapter;
 
@@ -58,8 +56,6 @@ public class ContactSelectionListAdapter extends    CursorAdapter
 {
   private final static String TAG = "ContactListAdapter";
 
-  private final static ExecutorService photoResolver = Util.newSingleThreadedLifoExecutor();
-
   private final static int STYLE_ATTRIBUTES[] = new int[]{R.attr.contact_selection_push_user,
                                                           R.attr.contact_selection_lay_user,
                                                           R.attr.contact_selection_label_text};
@@ -225,6 +221,7 @@ public class ContactSelectionListAdapter extends    CursorAdapter
     if (bitmapWorkerTask != null) {
       final Object tag = bitmapWorkerTask.getTag();
       if (tag != null && !tag.equals(number)) {
+        TaskScheduler.getInstance().cancel(bitmapWorkerTask);
         bitmapWorkerTask.cancel(true);
       } else {
         return false;
@@ -240,7 +237,7 @@ public class ContactSelectionListAdapter extends    CursorAdapter
       final AsyncDrawable asyncDrawable   = new AsyncDrawable(context.getResources(), defaultCroppedPhoto, task);
 
       imageView.setImageDrawable(asyncDrawable);
-      if (!task.isCancelled()) photoResolver.execute(new FutureTask<Void>(task, null));
+      if (!task.isCancelled()) TaskScheduler.getInstance().execute(TaskScheduler.Lane.VISIBLE, task);
     }
   }
 
@@ -29,22 +29,39 @@ import android.util.Log;
 import org.thoughtcrime.securesms.util.GroupUtil;
 import org.thoughtcrime.securesms.util.VisibleForTesting;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class CanonicalAddressDatabase {
 
-  private static final int    DATABASE_VERSION = 1;
+  private static final String TAG = CanonicalAddressDatabase.class.getSimpleName();
+
+  private static final int INTRODUCED_MIN_MATCH_VERSION = 2;
+  private static final int DATABASE_VERSION             = 2;
+
   private static final String DATABASE_NAME    = "canonical_address.db";
   private static final String TABLE            = "canonical_addresses";
   private static final String ID_COLUMN        = "_id";
   private static final String ADDRESS_COLUMN   = "address";
+  private static final String MIN_MATCH_COLUMN = "min_match";
 
-  private static final String DATABASE_CREATE  = "CREATE TABLE " + TABLE + " (" + ID_COLUMN + " integer PRIMARY KEY, " + ADDRESS_COLUMN + " TEXT NOT NULL);";
-  private static final String SELECTION_NUMBER = "PHONE_NUMBERS_EQUAL(" + ADDRESS_COLUMN + ", ?)";
+  private static final String DATABASE_CREATE  = "CREATE TABLE " + TABLE + " (" + ID_COLUMN + " integer PRIMARY KEY, " + ADDRESS_COLUMN + " TEXT NOT NULL, " + MIN_MATCH_COLUMN + " TEXT);";
+  private static final String[] CREATE_INDEXS  = {
+      "CREATE INDEX IF NOT EXISTS canonical_min_match_index ON " + TABLE + " (" + MIN_MATCH_COLUMN + ");",
+      "CREATE INDEX IF NOT EXISTS canonical_address_index ON " + TABLE + " (" + ADDRESS_COLUMN + " COLLATE NOCASE);"
+  };
+
+  private static final String SELECTION_NUMBER = MIN_MATCH_COLUMN + " = ?";
   private static final String SELECTION_OTHER  = ADDRESS_COLUMN + " = ? COLLATE NOCASE";
+  private static final int    MAX_BATCH_SIZE   = 500;
   private static final Object lock             = new Object();
 
   private static CanonicalAddressDatabase instance;
@@ -53,6 +70,8 @@ public class CanonicalAddressDatabase {
   private final Map<String, Long> addressCache = new ConcurrentHashMap<String, Long>();
   private final Map<Long, String> idCache      = new ConcurrentHashMap<Long, String>();
 
+  private volatile AddressSnapshot snapshot;
+
   public static CanonicalAddressDatabase getInstance(Context context) {
     synchronized (lock) {
       if (instance == null)
@@ -64,33 +83,61 @@ public class CanonicalAddressDatabase {
 
   private CanonicalAddressDatabase(Context context) {
     databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
-    fillCache();
   }
 
   public void reset(Context context) {
     DatabaseHelper old  = this.databaseHelper;
     this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
     old.close();
-    fillCache();
+
+    synchronized (this) {
+      snapshot = null;
+      idCache.clear();
+      addressCache.clear();
+    }
+  }
+
+  private AddressSnapshot getSnapshot() {
+    AddressSnapshot local = snapshot;
+
+    if (local == null) {
+      synchronized (this) {
+        local = snapshot;
+
+        if (local == null) {
+          snapshot = local = loadSnapshot();
+        }
+      }
+    }
+
+    return local;
   }
 
-  private void fillCache() {
+  private AddressSnapshot loadSnapshot() {
     Cursor cursor = null;
 
     try {
       SQLiteDatabase db = databaseHelper.getReadableDatabase();
-      cursor            = db.query(TABLE, null, null, null, null, null, null);
+      cursor            = db.query(TABLE, new String[] {ID_COLUMN, ADDRESS_COLUMN},
+                                   null, null, null, null, ID_COLUMN + " ASC");
+
+      int      count     = cursor == null ? 0 : cursor.getCount();
+      long[]   ids       = new long[count];
+      String[] addresses = new String[count];
+      int      position  = 0;
 
-      while (cursor != null && cursor.moveToNext()) {
-        long   id      = cursor.getLong(cursor.getColumnIndexOrThrow(ID_COLUMN));
-        String address = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS_COLUMN));
+      while (cursor != null && cursor.moveToNext() && position < count) {
+        String address = cursor.getString(1);
 
         if (address == null || address.trim().length() == 0)
           address = "Anonymous";
 
-        idCache.put(id, address);
-        addressCache.put(address, id);
+        ids[position]       = cursor.getLong(0);
+        addresses[position] = address;
+        position++;
       }
+
+      return new AddressSnapshot(ids, addresses, position);
     } finally {
       if (cursor != null)
         cursor.close();
@@ -100,13 +147,18 @@ public class CanonicalAddressDatabase {
   public String getAddressFromId(long id) {
     String cachedAddress = idCache.get(id);
 
+    if (cachedAddress != null)
+      return cachedAddress;
+
+    cachedAddress = getSnapshot().get(id);
+
     if (cachedAddress != null)
       return cachedAddress;
 
     Cursor cursor = null;
 
     try {
-      Log.w("CanonicalAddressDatabase", "Hitting DB on query [ID].");
+      Log.w(TAG, "Hitting DB on query [ID].");
 
       SQLiteDatabase db = databaseHelper.getReadableDatabase();
       cursor            = db.query(TABLE, null, ID_COLUMN + " = ?", new String[] {id+""}, null, null, null);
@@ -146,10 +198,23 @@ public class CanonicalAddressDatabase {
   }
 
   public List<Long> getCanonicalAddressIds(List<String> addresses) {
-    List<Long> addressList = new LinkedList<Long>();
+    List<Long>  addressList = new LinkedList<Long>();
+    Set<String> misses      = new LinkedHashSet<String>();
+
+    for (String address : addresses) {
+      if (getCanonicalAddressFromCache(address) == -1) {
+        misses.add(address);
+      }
+    }
+
+    Map<String, Long> resolved = misses.isEmpty() ? new HashMap<String, Long>()
+                                                  : getCanonicalAddressIdsFromDatabase(misses);
 
     for (String address : addresses) {
-      addressList.add(getCanonicalAddressId(address));
+      Long canonicalAddressId = resolved.get(address);
+
+      if (canonicalAddressId != null) addressList.add(canonicalAddressId);
+      else                            addressList.add(getCanonicalAddressId(address));
     }
 
     return addressList;
@@ -164,27 +229,26 @@ public class CanonicalAddressDatabase {
     Cursor cursor = null;
     try {
       SQLiteDatabase db           = databaseHelper.getWritableDatabase();
-      String[] selectionArguments = new String[] {address};
-      boolean isNumber            = isNumberAddress(address);
-      cursor                      = db.query(TABLE, null,
+      String         minMatch     = getMinMatch(address);
+      boolean        isNumber     = minMatch != null;
+      String[] selectionArguments = new String[] {isNumber ? minMatch : address};
+      cursor                      = db.query(TABLE, new String[] {ID_COLUMN, ADDRESS_COLUMN},
                                              isNumber ? SELECTION_NUMBER : SELECTION_OTHER,
-                                             selectionArguments, null, null, null);
+                                             selectionArguments, null, null, ID_COLUMN + " ASC");
+
+      List<Candidate> candidates = new LinkedList<Candidate>();
+
+      while (cursor.moveToNext()) {
+        candidates.add(new Candidate(cursor.getLong(0), cursor.getString(1), minMatch));
+      }
 
-      if (cursor.getCount() == 0 || !cursor.moveToFirst()) {
-        ContentValues contentValues = new ContentValues(1);
-        contentValues.put(ADDRESS_COLUMN, address);
-        return db.insert(TABLE, ADDRESS_COLUMN, contentValues);
+      Candidate match = findMatch(candidates, address, minMatch);
+
+      if (match == null) {
+        return insertAddress(db, address, minMatch);
       } else {
-        final long   canonicalId = cursor.getLong(cursor.getColumnIndexOrThrow(ID_COLUMN));
-        final String oldAddress  = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS_COLUMN));
-        if (oldAddress == null || !oldAddress.equals(address)) {
-          ContentValues contentValues = new ContentValues(1);
-          contentValues.put(ADDRESS_COLUMN, address);
-          db.update(TABLE, contentValues, ID_COLUMN + " = ?", new String[]{canonicalId+""});
-
-          addressCache.remove(oldAddress);
-        }
-        return canonicalId;
+        updateAddress(db, match, address, minMatch);
+        return match.id;
       }
     } finally {
       if (cursor != null) {
@@ -193,6 +257,166 @@ public class CanonicalAddressDatabase {
     }
   }
 
+  /**
+   * Resolves every address in a single query per batch, inserting the ones which
+   * aren't already known.
+   */
+  private Map<String, Long> getCanonicalAddressIdsFromDatabase(Collection<String> addresses) {
+    Map<String, Long> results = new HashMap<String, Long>();
+    List<String>      batch   = new ArrayList<String>(Math.min(addresses.size(), MAX_BATCH_SIZE));
+
+    for (String address : addresses) {
+      batch.add(address);
+
+      if (batch.size() >= MAX_BATCH_SIZE) {
+        results.putAll(getCanonicalAddressIdsFromDatabaseBatch(batch));
+        batch.clear();
+      }
+    }
+
+    if (!batch.isEmpty()) {
+      results.putAll(getCanonicalAddressIdsFromDatabaseBatch(batch));
+    }
+
+    return results;
+  }
+
+  private Map<String, Long> getCanonicalAddressIdsFromDatabaseBatch(List<String> addresses) {
+    SQLiteDatabase    db          = databaseHelper.getWritableDatabase();
+    Map<String, Long> results     = new HashMap<String, Long>();
+    List<String>      minMatches  = new ArrayList<String>(addresses.size());
+    List<String>      others      = new LinkedList<String>();
+    List<Candidate>   candidates  = new LinkedList<Candidate>();
+
+    for (String address : addresses) {
+      String minMatch = getMinMatch(address);
+
+      if (minMatch != null) minMatches.add(minMatch);
+      else                  others.add(address);
+    }
+
+    db.beginTransaction();
+
+    try {
+      Cursor cursor = null;
+
+      try {
+        StringBuilder selection = new StringBuilder();
+        List<String>  arguments = new ArrayList<String>(addresses.size());
+
+        if (!minMatches.isEmpty()) {
+          selection.append(MIN_MATCH_COLUMN).append(" IN (").append(getPlaceholders(minMatches.size())).append(")");
+          arguments.addAll(minMatches);
+        }
+
+        if (!others.isEmpty()) {
+          if (selection.length() > 0) selection.append(" OR ");
+          selection.append(ADDRESS_COLUMN).append(" COLLATE NOCASE IN (").append(getPlaceholders(others.size())).append(")");
+          arguments.addAll(others);
+        }
+
+        cursor = db.query(TABLE, new String[] {ID_COLUMN, ADDRESS_COLUMN, MIN_MATCH_COLUMN},
+                          selection.toString(), arguments.toArray(new String[arguments.size()]),
+                          null, null, ID_COLUMN + " ASC");
+
+        while (cursor.moveToNext()) {
+          candidates.add(new Candidate(cursor.getLong(0), cursor.getString(1), cursor.getString(2)));
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+
+      for (String address : addresses) {
+        String    minMatch = getMinMatch(address);
+        Candidate match    = findMatch(candidates, address, minMatch);
+
+        if (match == null) {
+          long id = insertAddress(db, address, minMatch);
+          candidates.add(new Candidate(id, address, minMatch));
+          results.put(address, id);
+        } else {
+          updateAddress(db, match, address, minMatch);
+          results.put(address, match.id);
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    for (Map.Entry<String, Long> result : results.entrySet()) {
+      idCache.put(result.getValue(), result.getKey());
+      addressCache.put(result.getKey(), result.getValue());
+    }
+
+    return results;
+  }
+
+  private Candidate findMatch(List<Candidate> candidates, String address, String minMatch) {
+    for (Candidate candidate : candidates) {
+      if (candidate.address == null) continue;
+
+      if (minMatch != null) {
+        if (minMatch.equals(candidate.minMatch) &&
+            PhoneNumberUtils.compare(candidate.address, address))
+        {
+          return candidate;
+        }
+      } else if (candidate.address.equalsIgnoreCase(address)) {
+        return candidate;
+      }
+    }
+
+    return null;
+  }
+
+  private long insertAddress(SQLiteDatabase db, String address, String minMatch) {
+    ContentValues contentValues = new ContentValues(2);
+    contentValues.put(ADDRESS_COLUMN, address);
+    contentValues.put(MIN_MATCH_COLUMN, minMatch);
+
+    return db.insert(TABLE, ADDRESS_COLUMN, contentValues);
+  }
+
+  private void updateAddress(SQLiteDatabase db, Candidate candidate, String address, String minMatch) {
+    String oldAddress = candidate.address;
+
+    if (oldAddress == null || !oldAddress.equals(address)) {
+      ContentValues contentValues = new ContentValues(2);
+      contentValues.put(ADDRESS_COLUMN, address);
+      contentValues.put(MIN_MATCH_COLUMN, minMatch);
+      db.update(TABLE, contentValues, ID_COLUMN + " = ?", new String[]{candidate.id+""});
+
+      if (oldAddress != null) addressCache.remove(oldAddress);
+      candidate.address  = address;
+      candidate.minMatch = minMatch;
+    }
+  }
+
+  /**
+   * The indexed lookup key for a phone number: its trailing digits, as used by
+   * PHONE_NUMBERS_EQUAL.  Returns null for anything that isn't a number.
+   */
+  private static String getMinMatch(String address) {
+    if (!isNumberAddress(address)) return null;
+
+    String minMatch = PhoneNumberUtils.toCallerIDMinMatch(address);
+    return TextUtils.isEmpty(minMatch) ? null : minMatch;
+  }
+
+  private static String getPlaceholders(int count) {
+    StringBuilder builder = new StringBuilder(count * 2);
+
+    for (int i=0;i<count;i++) {
+      if (i != 0) builder.append(',');
+      builder.append('?');
+    }
+
+    return builder.toString();
+  }
+
   @VisibleForTesting
   static boolean isNumberAddress(String number) {
     if (number.contains("@"))
@@ -209,6 +433,38 @@ public class CanonicalAddressDatabase {
     return PhoneNumberUtils.isWellFormedSmsAddress(number);
   }
 
+  private static class Candidate {
+    private final long   id;
+    private       String address;
+    private       String minMatch;
+
+    public Candidate(long id, String address, String minMatch) {
+      this.id       = id;
+      this.address  = address;
+      this.minMatch = minMatch;
+    }
+  }
+
+  /**
+   * An immutable id -> address table, sorted by id, which avoids boxing a
+   * Long for every row we keep resident.
+   */
+  private static class AddressSnapshot {
+    private final long[]   ids;
+    private final String[] addresses;
+    private final int      size;
+
+    public AddressSnapshot(long[] ids, String[] addresses, int size) {
+      this.ids       = ids;
+      this.addresses = addresses;
+      this.size      = size;
+    }
+
+    public String get(long id) {
+      int index = Arrays.binarySearch(ids, 0, size, id);
+      return index >= 0 ? addresses[index] : null;
+    }
+  }
 
   private static class DatabaseHelper extends SQLiteOpenHelper {
 
@@ -219,10 +475,40 @@ public class CanonicalAddressDatabase {
     @Override
     public void onCreate(SQLiteDatabase db) {
       db.execSQL(DATABASE_CREATE);
+      executeStatements(db, CREATE_INDEXS);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      if (oldVersion < INTRODUCED_MIN_MATCH_VERSION) {
+        db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + MIN_MATCH_COLUMN + " TEXT;");
+        executeStatements(db, CREATE_INDEXS);
+
+        Cursor cursor = null;
+
+        try {
+          cursor = db.query(TABLE, new String[] {ID_COLUMN, ADDRESS_COLUMN}, null, null, null, null, null);
+
+          while (cursor != null && cursor.moveToNext()) {
+            String address  = cursor.getString(1);
+            String minMatch = address == null ? null : getMinMatch(address);
+
+            if (minMatch != null) {
+              ContentValues values = new ContentValues(1);
+              values.put(MIN_MATCH_COLUMN, minMatch);
+              db.update(TABLE, values, ID_COLUMN + " = ?", new String[] {cursor.getLong(0)+""});
+            }
+          }
+        } finally {
+          if (cursor != null)
+            cursor.close();
+        }
+      }
+    }
+
+    private void executeStatements(SQLiteDatabase db, String[] statements) {
+      for (String statement : statements)
+        db.execSQL(statement);
     }
 
   }
@@ -58,7 +58,8 @@ public class DatabaseFactory {
   private static final int INTRODUCED_PUSH_FIX_VERSION       = 12;
   private static final int INTRODUCED_DELIVERY_RECEIPTS      = 13;
   private static final int INTRODUCED_PART_DATA_SIZE_VERSION = 14;
-  private static final int DATABASE_VERSION                  = 14;
+  private static final int INTRODUCED_UNREAD_COUNT_VERSION   = 15;
+  private static final int DATABASE_VERSION                  = 15;
 
 
   private static final String DATABASE_NAME    = "messages.db";
@@ -705,6 +706,13 @@ public class DatabaseFactory {
         db.execSQL("ALTER TABLE part ADD COLUMN data_size INTEGER DEFAULT 0;");
       }
 
+      if (oldVersion < INTRODUCED_UNREAD_COUNT_VERSION) {
+        db.execSQL("ALTER TABLE thread ADD COLUMN unread_count INTEGER DEFAULT 0;");
+        db.execSQL("UPDATE thread SET unread_count = " +
+                   "(SELECT COUNT(*) FROM sms WHERE sms.read = 0 AND sms.thread_id = thread._id) + " +
+                   "(SELECT COUNT(*) FROM mms WHERE mms.read = 0 AND mms.thread_id = thread._id);");
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
@@ -37,6 +37,7 @@ import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.NotificationMmsMessageRecord;
+import org.thoughtcrime.securesms.jobs.LaneJobManager;
 import org.thoughtcrime.securesms.jobs.TrimThreadJob;
 import org.thoughtcrime.securesms.mms.IncomingMediaMessage;
 import org.thoughtcrime.securesms.mms.OutgoingGroupMediaMessage;
@@ -51,10 +52,10 @@ import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.util.GroupUtil;
 import org.thoughtcrime.securesms.util.LRUCache;
 import org.thoughtcrime.securesms.util.ListenableFutureTask;
+import org.thoughtcrime.securesms.util.TaskScheduler;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.Trimmer;
 import org.thoughtcrime.securesms.util.Util;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.whispersystems.libaxolotl.util.guava.Optional;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
@@ -67,7 +68,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.InvalidHeaderValueException;
@@ -153,11 +153,10 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
       RECEIPT_COUNT
   };
 
-  public static final ExecutorService slideResolver = org.thoughtcrime.securesms.util.Util.newSingleThreadedLifoExecutor();
   private static final Map<Long, SoftReference<SlideDeck>> slideCache =
       Collections.synchronizedMap(new LRUCache<Long, SoftReference<SlideDeck>>(20));
 
-  private final JobManager jobManager;
+  private final LaneJobManager jobManager;
 
   public MmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -426,7 +425,9 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     ContentValues contentValues = new ContentValues();
     contentValues.put(READ, 1);
 
-    database.update(TABLE_NAME, contentValues, THREAD_ID + " = ?", new String[] {threadId + ""});
+    database.update(TABLE_NAME, contentValues,
+                    THREAD_ID + " = ? AND " + READ + " = 0",
+                    new String[] {threadId + ""});
   }
 
   public void setAllMessagesRead() {
@@ -434,7 +435,7 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     ContentValues contentValues = new ContentValues();
     contentValues.put(READ, 1);
 
-    database.update(TABLE_NAME, contentValues, null, null);
+    database.update(TABLE_NAME, contentValues, READ + " = 0", null);
   }
 
   public Optional<NotificationInd> getNotification(long messageId) {
@@ -566,10 +567,6 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     long messageId = insertMediaMessage(masterSecret, retrieved.getPduHeaders(),
                                         retrieved.getBody(), contentValues);
 
-    if (unread) {
-      DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
-    }
-
     DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
@@ -627,7 +624,22 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
       if (!contentValues.containsKey(DATE_SENT))
         contentValues.put(DATE_SENT, contentValues.getAsLong(DATE_RECEIVED));
 
-      long messageId = db.insert(TABLE_NAME, null, contentValues);
+      long messageId;
+
+      db.beginTransaction();
+
+      try {
+        messageId = db.insert(TABLE_NAME, null, contentValues);
+
+        if (contentValues.getAsInteger(READ) == 0) {
+          DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, false);
+        }
+
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+
       addressDatabase.insertAddressesForId(messageId, headers);
 
 //      notifyConversationListeners(threadId);
@@ -722,7 +734,22 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
 
     contentValues.put(PART_COUNT, PartParser.getDisplayablePartCount(body));
 
-    long messageId = db.insert(TABLE_NAME, null, contentValues);
+    Integer read = contentValues.getAsInteger(READ);
+    long    messageId;
+
+    db.beginTransaction();
+
+    try {
+      messageId = db.insert(TABLE_NAME, null, contentValues);
+
+      if (read != null && read == 0) {
+        DatabaseFactory.getThreadDatabase(context).incrementUnread(contentValues.getAsLong(THREAD_ID), true);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
     addressDatabase.insertAddressesForId(messageId, headers);
     partsDatabase.insertParts(masterSecret, messageId, body);
@@ -741,11 +768,40 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     addrDatabase.deleteAddressesForId(messageId);
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+    database.beginTransaction();
+
+    try {
+      boolean unread = isUnread(messageId);
+      database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+
+      if (unread) {
+        DatabaseFactory.getThreadDatabase(context).decrementUnread(threadId);
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
     DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
   }
 
+  private boolean isUnread(long messageId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    Cursor cursor     = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {READ}, ID_WHERE, new String[] {messageId+""},
+                        null, null, null);
+
+      return cursor != null && cursor.moveToFirst() && cursor.getInt(0) == 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public void deleteThread(long threadId) {
     Set<Long> singleThreadSet = new HashSet<Long>();
     singleThreadSet.add(threadId);
@@ -1077,10 +1133,7 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
         }
       };
 
-      future = new ListenableFutureTask<SlideDeck>(task);
-      slideResolver.execute(future);
-
-      return future;
+      return TaskScheduler.getInstance().submit(TaskScheduler.Lane.VISIBLE, "SlideDeck:" + id, task);
     }
 
     private ListenableFutureTask<SlideDeck> getCachedSlideDeck(final long id) {
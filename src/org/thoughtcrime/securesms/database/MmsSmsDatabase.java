@@ -80,6 +80,15 @@ public class MmsSmsDatabase extends Database {
   }
 
   public Cursor getUnread() {
+    return getUnread(MmsSmsColumns.READ + " = 0", null);
+  }
+
+  public Cursor getUnread(long threadId) {
+    return getUnread(MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = ?",
+                     new String[] {String.valueOf(threadId)});
+  }
+
+  private Cursor getUnread(String selection, String[] selectionArgs) {
     String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.READ, SmsDatabase.TYPE,
                               SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.STATUS,
@@ -92,9 +101,8 @@ public class MmsSmsDatabase extends Database {
                               MmsDatabase.STATUS, MmsSmsColumns.RECEIPT_COUNT, TRANSPORT};
 
     String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-    String selection       = MmsSmsColumns.READ + " = 0";
 
-    return queryTables(projection, selection, order, null, null);
+    return queryTables(projection, selection, selectionArgs, order, null, null);
   }
 
   public int getConversationCount(long threadId) {
@@ -110,6 +118,16 @@ public class MmsSmsDatabase extends Database {
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String groupBy, String limit) {
+    return queryTables(projection, selection, null, order, groupBy, limit);
+  }
+
+  /**
+   * The selection is applied to both the SMS and MMS tables, so its arguments are
+   * bound once for each.
+   */
+  private Cursor queryTables(String[] projection, String selection, String[] selectionArgs,
+                             String order, String groupBy, String limit)
+  {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsSmsColumns.ID, SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
@@ -184,7 +202,19 @@ public class MmsSmsDatabase extends Database {
 
     Log.w("MmsSmsDatabase", "Executing query: " + query);
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.rawQuery(query, null);
+    return db.rawQuery(query, getUnionArgs(selectionArgs));
+  }
+
+  private String[] getUnionArgs(String[] selectionArgs) {
+    if (selectionArgs == null) {
+      return null;
+    }
+
+    String[] unionArgs = new String[selectionArgs.length * 2];
+    System.arraycopy(selectionArgs, 0, unionArgs, 0, selectionArgs.length);
+    System.arraycopy(selectionArgs, 0, unionArgs, selectionArgs.length, selectionArgs.length);
+
+    return unionArgs;
   }
 
   public Reader readerFor(Cursor cursor, MasterSecret masterSecret) {
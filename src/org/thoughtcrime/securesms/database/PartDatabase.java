@@ -321,18 +321,24 @@ public class PartDatabase extends Database {
     }
   }
 
+  /**
+   * Writes the stream into a new part file. If the stream fails part way, the file
+   * is deleted and the stream's exception rethrown as is.
+   */
   private Pair<File, Long> writePartData(MasterSecret masterSecret, PduPart part, InputStream in)
-      throws MmsException
+      throws IOException
   {
-    try {
-      File         partsDirectory  = context.getDir("parts", Context.MODE_PRIVATE);
-      File         dataFile        = File.createTempFile("part", ".mms", partsDirectory);
-      OutputStream out             = getPartOutputStream(masterSecret, dataFile, part);
-      long         plaintextLength = Util.copy(in, out);
+    File         partsDirectory = context.getDir("parts", Context.MODE_PRIVATE);
+    File         dataFile       = File.createTempFile("part", ".mms", partsDirectory);
+    OutputStream out            = null;
 
-      return new Pair<>(dataFile, plaintextLength);
+    try {
+      out = getPartOutputStream(masterSecret, dataFile, part);
+      return new Pair<>(dataFile, Util.copy(in, out));
     } catch (IOException e) {
-      throw new MmsException(e);
+      if (out != null) out.close();
+      dataFile.delete();
+      throw e;
     }
   }
 
@@ -350,7 +356,7 @@ public class PartDatabase extends Database {
       } else {
         throw new MmsException("Part is empty!");
       }
-    } catch (FileNotFoundException e) {
+    } catch (IOException e) {
       throw new MmsException(e);
     }
   }
@@ -388,9 +394,17 @@ public class PartDatabase extends Database {
     return database.insert(TABLE_NAME, null, contentValues);
   }
 
+  /**
+   * Stores a downloaded part's data, read to the end of the stream. The part's row is
+   * only updated once the stream has ended cleanly, so a stream which verifies its
+   * content as it goes (and throws at the end if it doesn't check out) never leaves
+   * unverified data attached to a part.
+   *
+   * @throws IOException if reading the stream fails. Nothing is stored.
+   */
   public void updateDownloadedPart(MasterSecret masterSecret, long messageId,
                                    long partId, PduPart part, InputStream data)
-      throws MmsException
+      throws MmsException, IOException
   {
     SQLiteDatabase   database = databaseHelper.getWritableDatabase();
     Pair<File, Long> partData = writePartData(masterSecret, part, data);
@@ -87,6 +87,7 @@ public class PlaintextBackupImporter {
       }
 
       for (long threadId : modifiedThreads) {
+        threads.refreshUnreadCount(threadId);
         threads.update(threadId);
       }
 
@@ -3,13 +3,17 @@ package org.thoughtcrime.securesms.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
+import android.util.Pair;
 
 import org.thoughtcrime.securesms.util.Base64;
 import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
 
 import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
 
 public class PushDatabase extends Database {
 
@@ -72,6 +76,53 @@ public class PushDatabase extends Database {
     return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, null);
   }
 
+  public Cursor getPending(String source, int deviceId, int limit) {
+    return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, SOURCE + " = ? AND " + DEVICE_ID + " = ?",
+                                                      new String[] {source, String.valueOf(deviceId)},
+                                                      null, null, ID + " ASC", String.valueOf(limit));
+  }
+
+  public boolean hasPending(String source, int deviceId) {
+    Cursor cursor = null;
+
+    try {
+      cursor = getPending(source, deviceId, 1);
+      return cursor != null && cursor.moveToFirst();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  public List<Pair<String, Integer>> getPendingSenders() {
+    List<Pair<String, Integer>> senders = new LinkedList<>();
+    Cursor                      cursor  = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(true, TABLE_NAME, new String[] {SOURCE, DEVICE_ID},
+                                                          null, null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        senders.add(new Pair<>(cursor.getString(0), cursor.getInt(1)));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return senders;
+  }
+
+  /**
+   * Opens a transaction on the shared database, so that removing an envelope and
+   * storing the message it decrypts to can be committed together.
+   */
+  public SQLiteDatabase beginTransaction() {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+    return database;
+  }
+
   public void delete(long id) {
     databaseHelper.getWritableDatabase().delete(TABLE_NAME, ID_WHERE, new String[] {id+""});
   }
@@ -104,6 +155,10 @@ public class PushDatabase extends Database {
       }
     }
 
+    public long getCurrentId() {
+      return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+    }
+
     public void close() {
       this.cursor.close();
     }
@@ -30,6 +30,7 @@ import android.util.Pair;
 import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
+import org.thoughtcrime.securesms.jobs.LaneJobManager;
 import org.thoughtcrime.securesms.jobs.TrimThreadJob;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
@@ -39,7 +40,6 @@ import org.thoughtcrime.securesms.sms.IncomingGroupMessage;
 import org.thoughtcrime.securesms.sms.IncomingKeyExchangeMessage;
 import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.util.Set;
@@ -88,7 +88,7 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
       REPLY_PATH_PRESENT, SUBJECT, BODY, SERVICE_CENTER, RECEIPT_COUNT
   };
 
-  private final JobManager jobManager;
+  private final LaneJobManager jobManager;
 
   public SmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -297,7 +297,7 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     ContentValues contentValues = new ContentValues();
     contentValues.put(READ, 1);
 
-    database.update(TABLE_NAME, contentValues, null, null);
+    database.update(TABLE_NAME, contentValues, READ + " = 0", null);
   }
 
   protected void updateMessageBodyAndType(long messageId, String body, long maskOff, long maskOn) {
@@ -329,8 +329,18 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     contentValues.put(BODY, record.getBody().getBody());
     contentValues.put(THREAD_ID, record.getThreadId());
 
-    SQLiteDatabase db           = databaseHelper.getWritableDatabase();
-    long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    long           newMessageId;
+
+    db.beginTransaction();
+
+    try {
+      newMessageId = db.insert(TABLE_NAME, null, contentValues);
+      DatabaseFactory.getThreadDatabase(context).incrementUnread(record.getThreadId(), false);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
     DatabaseFactory.getThreadDatabase(context).update(record.getThreadId());
     notifyConversationListeners(record.getThreadId());
@@ -415,10 +425,20 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     values.put(THREAD_ID, threadId);
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long messageId    = db.insert(TABLE_NAME, null, values);
+    long messageId;
+
+    db.beginTransaction();
+
+    try {
+      messageId = db.insert(TABLE_NAME, null, values);
+
+      if (unread) {
+        DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, true);
+      }
 
-    if (unread) {
-      DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
     }
 
     DatabaseFactory.getThreadDatabase(context).update(threadId);
@@ -496,11 +516,41 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     Log.w("MessageDatabase", "Deleting: " + messageId);
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long threadId     = getThreadIdForMessage(messageId);
-    db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+
+    db.beginTransaction();
+
+    try {
+      boolean unread = isUnread(messageId);
+      db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+
+      if (unread) {
+        DatabaseFactory.getThreadDatabase(context).decrementUnread(threadId);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
     DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
   }
 
+  private boolean isUnread(long messageId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    Cursor cursor     = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {READ}, ID_WHERE, new String[] {messageId+""},
+                        null, null, null);
+
+      return cursor != null && cursor.moveToFirst() && cursor.getInt(0) == 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   /*package */void deleteThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, THREAD_ID + " = ?", new String[] {threadId+""});
@@ -191,6 +191,7 @@ public class SmsMigrator {
       }
 
       ourSmsDatabase.endTransaction(transaction);
+      DatabaseFactory.getThreadDatabase(context).refreshUnreadCount(ourThreadId);
       DatabaseFactory.getThreadDatabase(context).update(ourThreadId);
       DatabaseFactory.getThreadDatabase(context).notifyConversationListeners(ourThreadId);
 
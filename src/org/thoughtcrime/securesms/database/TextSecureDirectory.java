@@ -9,22 +9,25 @@ import android.net.Uri;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.util.CanonicalNumberCache;
+import org.thoughtcrime.securesms.util.DirectoryUtil;
 import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
-import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class TextSecureDirectory {
 
   private static final int INTRODUCED_CHANGE_FROM_TOKEN_TO_E164_NUMBER = 2;
+  private static final int INTRODUCED_CACHED_TOKENS                    = 3;
 
   private static final String DATABASE_NAME    = "whisper_directory.db";
-  private static final int    DATABASE_VERSION = 2;
+  private static final int    DATABASE_VERSION = 3;
 
   private static final String TABLE_NAME   = "directory";
   private static final String ID           = "_id";
@@ -33,12 +36,14 @@ public class TextSecureDirectory {
   private static final String RELAY        = "relay";
   private static final String SUPPORTS_SMS = "supports_sms";
   private static final String TIMESTAMP    = "timestamp";
+  private static final String TOKEN        = "token";
   private static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + "(" + ID + " INTEGER PRIMARY KEY, " +
                               NUMBER       + " TEXT UNIQUE, " +
                               REGISTERED   + " INTEGER, " +
                               RELAY        + " TEXT, " +
                               SUPPORTS_SMS + " INTEGER, " +
-                              TIMESTAMP    + " INTEGER);";
+                              TIMESTAMP    + " INTEGER, " +
+                              TOKEN        + " TEXT);";
 
   private static final Object instanceLock = new Object();
   private static volatile TextSecureDirectory instance;
@@ -133,40 +138,114 @@ public class TextSecureDirectory {
     values.put(REGISTERED, active ? 1 : 0);
     values.put(SUPPORTS_SMS, token.isSupportsSms() ? 1 : 0);
     values.put(TIMESTAMP, System.currentTimeMillis());
+    values.put(TOKEN, DirectoryUtil.getDirectoryServerToken(token.getNumber()));
     db.replace(TABLE_NAME, null, values);
   }
 
-  public void setNumbers(List<ContactTokenDetails> activeTokens, Collection<String> inactiveTokens) {
-    long timestamp    = System.currentTimeMillis();
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+  /**
+   * @return the directory server token of every number that's already been looked up,
+   *         keyed by number.
+   */
+  public Map<String, String> getTokens() {
+    Map<String, String> results = new HashMap<>();
+    Cursor              cursor  = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {NUMBER, TOKEN},
+                                                          TOKEN + " IS NOT NULL", null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.put(cursor.getString(0), cursor.getString(1));
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Records the results of a directory lookup, in one transaction. Only numbers whose
+   * registration, relay or SMS support actually changed (or which weren't in the
+   * directory yet) are written.
+   *
+   * @param activeTokens The registered numbers found, with their numbers set.
+   * @param inactiveTokens The tokens looked up but not found, mapped to their numbers.
+   * @return The number of rows written.
+   */
+  public int updateNumbers(List<ContactTokenDetails> activeTokens, Map<String, String> inactiveTokens) {
+    long           timestamp = System.currentTimeMillis();
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    int            updated   = 0;
+
     db.beginTransaction();
 
     try {
       for (ContactTokenDetails token : activeTokens) {
-        Log.w("Directory", "Adding active token: " + token);
         ContentValues values = new ContentValues();
         values.put(NUMBER, token.getNumber());
         values.put(REGISTERED, 1);
-        values.put(TIMESTAMP, timestamp);
         values.put(RELAY, token.getRelay());
         values.put(SUPPORTS_SMS, token.isSupportsSms() ? 1 : 0);
-        db.replace(TABLE_NAME, null, values);
+        values.put(TOKEN, token.getToken());
+
+        if (replaceIfChanged(db, values, timestamp)) {
+          Log.w("Directory", "Adding active token: " + token);
+          updated++;
+        }
       }
 
-      for (String token : inactiveTokens) {
+      for (Map.Entry<String, String> token : inactiveTokens.entrySet()) {
         ContentValues values = new ContentValues();
-        values.put(NUMBER, token);
+        values.put(NUMBER, token.getValue());
         values.put(REGISTERED, 0);
-        values.put(TIMESTAMP, timestamp);
-        db.replace(TABLE_NAME, null, values);
+        values.putNull(RELAY);
+        values.put(SUPPORTS_SMS, 0);
+        values.put(TOKEN, token.getKey());
+
+        if (replaceIfChanged(db, values, timestamp)) {
+          updated++;
+        }
       }
 
       db.setTransactionSuccessful();
+      return updated;
     } finally {
       db.endTransaction();
     }
   }
 
+  private boolean replaceIfChanged(SQLiteDatabase db, ContentValues values, long timestamp) {
+    Cursor cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {REGISTERED, RELAY, SUPPORTS_SMS, TOKEN}, NUMBER + " = ?",
+                        new String[] {values.getAsString(NUMBER)}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst() && isUnchanged(cursor, values)) {
+        return false;
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    values.put(TIMESTAMP, timestamp);
+    db.replace(TABLE_NAME, null, values);
+    return true;
+  }
+
+  private boolean isUnchanged(Cursor cursor, ContentValues values) {
+    String relay = values.getAsString(RELAY);
+    String token = values.getAsString(TOKEN);
+
+    return cursor.getInt(0) == values.getAsInteger(REGISTERED)                  &&
+           (relay == null ? cursor.isNull(1) : relay.equals(cursor.getString(1))) &&
+           cursor.getInt(2) == values.getAsInteger(SUPPORTS_SMS)                &&
+           token.equals(cursor.getString(3));
+  }
+
   public Set<String> getPushEligibleContactNumbers(String localNumber) {
     final Uri         uri     = Phone.CONTENT_URI;
     final Set<String> results = new HashSet<String>();
@@ -179,7 +258,7 @@ public class TextSecureDirectory {
         final String rawNumber = cursor.getString(0);
         if (rawNumber != null) {
           try {
-            final String e164Number = PhoneNumberFormatter.formatNumber(rawNumber, localNumber);
+            final String e164Number = CanonicalNumberCache.getInstance().canonicalize(localNumber, rawNumber);
             results.add(e164Number);
           } catch (InvalidNumberException e) {
             Log.w("Directory", "Invalid number: " + rawNumber);
@@ -249,6 +328,10 @@ public class TextSecureDirectory {
                    "supports_sms INTEGER, " +
                    "timestamp INTEGER);");
       }
+
+      if (oldVersion < INTRODUCED_CACHED_TOKENS) {
+        db.execSQL("ALTER TABLE directory ADD COLUMN token TEXT;");
+      }
     }
   }
 
@@ -52,12 +52,13 @@ public class ThreadDatabase extends Database {
   private static final String ERROR           = "error";
   private static final String HAS_ATTACHMENT  = "has_attachment";
   public  static final String SNIPPET_TYPE    = "snippet_type";
+  public  static final String UNREAD_COUNT    = "unread_count";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, "                             +
     DATE + " INTEGER DEFAULT 0, " + MESSAGE_COUNT + " INTEGER DEFAULT 0, "                         +
     RECIPIENT_IDS + " TEXT, " + SNIPPET + " TEXT, " + SNIPPET_CHARSET + " INTEGER DEFAULT 0, "     +
     READ + " INTEGER DEFAULT 1, " + TYPE + " INTEGER DEFAULT 0, " + ERROR + " INTEGER DEFAULT 0, " +
-    SNIPPET_TYPE + " INTEGER DEFAULT 0);";
+    SNIPPET_TYPE + " INTEGER DEFAULT 0, " + UNREAD_COUNT + " INTEGER DEFAULT 0);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + RECIPIENT_IDS + ");",
@@ -199,8 +200,18 @@ public class ThreadDatabase extends Database {
 
         Log.w("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
 
-        DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
-        DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        db.beginTransaction();
+
+        try {
+          DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+          DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+
+          refreshUnreadCount(threadId);
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
 
         update(threadId);
         notifyConversationListeners(threadId);
@@ -213,28 +224,97 @@ public class ThreadDatabase extends Database {
 
   public void setAllThreadsRead() {
     SQLiteDatabase db           = databaseHelper.getWritableDatabase();
-    ContentValues contentValues = new ContentValues(1);
+    ContentValues contentValues = new ContentValues(2);
     contentValues.put(READ, 1);
+    contentValues.put(UNREAD_COUNT, 0);
 
-    db.update(TABLE_NAME, contentValues, null, null);
+    db.beginTransaction();
+
+    try {
+      db.update(TABLE_NAME, contentValues, null, null);
+
+      DatabaseFactory.getSmsDatabase(context).setAllMessagesRead();
+      DatabaseFactory.getMmsDatabase(context).setAllMessagesRead();
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
-    DatabaseFactory.getSmsDatabase(context).setAllMessagesRead();
-    DatabaseFactory.getMmsDatabase(context).setAllMessagesRead();
     notifyConversationListListeners();
   }
 
+  /**
+   * Marks a thread and its messages read. A thread which is already read with no
+   * unread messages is left untouched, so opening a read conversation doesn't
+   * write to either message table.
+   */
   public void setRead(long threadId) {
-    ContentValues contentValues = new ContentValues(1);
+    SQLiteDatabase db     = databaseHelper.getWritableDatabase();
+    Cursor         cursor = null;
+    boolean        read;
+    long           unreadCount;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {READ, UNREAD_COUNT}, ID_WHERE,
+                        new String[] {threadId+""}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst()) {
+        return;
+      }
+
+      read        = cursor.getInt(0) != 0;
+      unreadCount = cursor.getLong(1);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    if (read && unreadCount == 0) {
+      return;
+    }
+
+    ContentValues contentValues = new ContentValues(2);
     contentValues.put(READ, 1);
+    contentValues.put(UNREAD_COUNT, 0);
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId+""});
+    db.beginTransaction();
+
+    try {
+      db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId+""});
+
+      DatabaseFactory.getSmsDatabase(context).setMessagesRead(threadId);
+      DatabaseFactory.getMmsDatabase(context).setMessagesRead(threadId);
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
-    DatabaseFactory.getSmsDatabase(context).setMessagesRead(threadId);
-    DatabaseFactory.getMmsDatabase(context).setMessagesRead(threadId);
     notifyConversationListListeners();
   }
 
+  /**
+   * @return the number of unread messages across all threads, read from the per-thread
+   * counts rather than by counting unread messages.
+   */
+  public long getTotalUnreadCount() {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.rawQuery("SELECT SUM(" + UNREAD_COUNT + ") FROM " + TABLE_NAME, null);
+
+      if (cursor != null && cursor.moveToFirst())
+        return cursor.getLong(0);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return 0;
+  }
+
   public void setUnread(long threadId) {
     ContentValues contentValues = new ContentValues(1);
     contentValues.put(READ, 0);
@@ -244,6 +324,49 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Counts one more unread message in a thread. The message tables call this as they
+   * insert an unread message, so the count is never queried for.
+   *
+   * @param markThreadUnread whether the thread should also be shown as unread now.
+   */
+  /*package*/ void incrementUnread(long threadId, boolean markThreadUnread) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + UNREAD_COUNT + " = " + UNREAD_COUNT + " + 1" +
+               (markThreadUnread ? ", " + READ + " = 0" : "") + " WHERE " + ID_WHERE,
+               new String[] {threadId+""});
+
+    if (markThreadUnread) {
+      notifyConversationListListeners();
+    }
+  }
+
+  /**
+   * Counts one fewer unread message in a thread, as an unread message is deleted.
+   */
+  /*package*/ void decrementUnread(long threadId) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + UNREAD_COUNT + " = " + UNREAD_COUNT + " - 1" +
+               " WHERE " + ID_WHERE + " AND " + UNREAD_COUNT + " > 0",
+               new String[] {threadId+""});
+  }
+
+  /**
+   * Recounts a thread's unread messages, for bulk changes like trims and imports which
+   * don't go through the per-message paths.
+   */
+  public void refreshUnreadCount(long threadId) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + UNREAD_COUNT + " = " +
+               "(SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + SmsDatabase.READ + " = 0 AND " + SmsDatabase.THREAD_ID + " = ?) + " +
+               "(SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsDatabase.READ + " = 0 AND " + MmsDatabase.THREAD_ID + " = ?)" +
+               " WHERE " + ID_WHERE,
+               new String[] {threadId+"", threadId+"", threadId+""});
+  }
+
   public void setDistributionType(long threadId, int distributionType) {
     ContentValues contentValues = new ContentValues(1);
     contentValues.put(TYPE, distributionType);
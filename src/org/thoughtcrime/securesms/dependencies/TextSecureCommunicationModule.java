@@ -9,11 +9,14 @@ import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob;
 import org.thoughtcrime.securesms.jobs.AvatarDownloadJob;
 import org.thoughtcrime.securesms.jobs.CleanPreKeysJob;
 import org.thoughtcrime.securesms.jobs.CreateSignedPreKeyJob;
+import org.thoughtcrime.securesms.jobs.DeliveryReceiptBatchJob;
 import org.thoughtcrime.securesms.jobs.DeliveryReceiptJob;
+import org.thoughtcrime.securesms.jobs.PreKeyPrefetchJob;
 import org.thoughtcrime.securesms.jobs.PushGroupSendJob;
 import org.thoughtcrime.securesms.jobs.PushMediaSendJob;
 import org.thoughtcrime.securesms.jobs.PushTextSendJob;
 import org.thoughtcrime.securesms.jobs.RefreshPreKeysJob;
+import org.thoughtcrime.securesms.service.MessageRetrievalManager;
 import org.thoughtcrime.securesms.push.SecurityEventListener;
 import org.thoughtcrime.securesms.push.TextSecurePushTrustStore;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
@@ -28,11 +31,14 @@ import dagger.Provides;
 @Module(complete = false, injects = {CleanPreKeysJob.class,
                                      CreateSignedPreKeyJob.class,
                                      DeliveryReceiptJob.class,
+                                     DeliveryReceiptBatchJob.class,
                                      PushGroupSendJob.class,
                                      PushTextSendJob.class,
                                      PushMediaSendJob.class,
                                      AttachmentDownloadJob.class,
-                                     RefreshPreKeysJob.class})
+                                     PreKeyPrefetchJob.class,
+                                     RefreshPreKeysJob.class,
+                                     MessageRetrievalManager.class})
 public class TextSecureCommunicationModule {
 
   private final Context context;
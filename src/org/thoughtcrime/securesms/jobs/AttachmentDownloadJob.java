@@ -9,6 +9,9 @@ import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.PartDatabase;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
+import org.thoughtcrime.securesms.jobs.AttachmentDownloadScheduler.Download;
+import org.thoughtcrime.securesms.jobs.persistence.JobCodec;
+import org.thoughtcrime.securesms.jobs.requirements.AttachmentDownloadRequirement;
 import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
 import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.Util;
@@ -16,11 +19,12 @@ import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.whispersystems.textsecure.api.TextSecureMessageReceiver;
+import org.whispersystems.textsecure.api.messages.TextSecureAttachment;
 import org.whispersystems.textsecure.api.messages.TextSecureAttachmentPointer;
-import org.whispersystems.textsecure.api.push.exceptions.NonSuccessfulResponseCodeException;
 import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
 
-import java.io.File;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
@@ -32,6 +36,8 @@ import ws.com.google.android.mms.pdu.PduPart;
 
 public class AttachmentDownloadJob extends MasterSecretJob implements InjectableType {
 
+  private static final long serialVersionUID = -1282660482439344860L;
+
   private static final String TAG = AttachmentDownloadJob.class.getSimpleName();
 
   @Inject transient TextSecureMessageReceiver messageReceiver;
@@ -42,6 +48,7 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     super(context, JobParameters.newBuilder()
                                 .withRequirement(new MasterSecretRequirement(context))
                                 .withRequirement(new NetworkRequirement(context))
+                                .withRequirement(new AttachmentDownloadRequirement(context, messageId))
                                 .withPersistence()
                                 .create());
 
@@ -49,19 +56,35 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
   }
 
   @Override
-  public void onAdded() {}
+  public void onAdded() {
+    AttachmentDownloadScheduler.getInstance().register(messageId);
+  }
 
   @Override
   public void onRun(MasterSecret masterSecret) throws IOException {
-    PartDatabase database = DatabaseFactory.getPartDatabase(context);
+    AttachmentDownloadScheduler scheduler = AttachmentDownloadScheduler.getInstance();
+    Download                    download  = scheduler.claim(context, messageId);
+
+    if (download == null) {
+      Log.w(TAG, "No push parts left to download for: " + messageId);
+      return;
+    }
+
+    long    start    = System.currentTimeMillis();
+    long    bytes    = 0;
+    boolean finished = false;
 
     Log.w(TAG, "Downloading push parts for: " + messageId);
 
-    List<Pair<Long, PduPart>> parts = database.getParts(messageId);
+    try {
+      for (Pair<Long, PduPart> partPair : download.getParts()) {
+        bytes += retrievePart(masterSecret, partPair.second, messageId, partPair.first);
+        Log.w(TAG, "Got part: " + partPair.first);
+      }
 
-    for (Pair<Long, PduPart> partPair : parts) {
-      retrievePart(masterSecret, partPair.second, messageId, partPair.first);
-      Log.w(TAG, "Got part: " + partPair.first);
+      finished = true;
+    } finally {
+      scheduler.release(download, finished, bytes, System.currentTimeMillis() - start);
     }
   }
 
@@ -71,8 +94,12 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     List<Pair<Long, PduPart>> parts    = database.getParts(messageId);
 
     for (Pair<Long, PduPart> partPair : parts) {
-      markFailed(messageId, partPair.second, partPair.first);
+      if (partPair.second.isPendingPush()) {
+        markFailed(messageId, partPair.second, partPair.first);
+      }
     }
+
+    AttachmentDownloadScheduler.getInstance().remove(messageId);
   }
 
   @Override
@@ -80,25 +107,41 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     return (exception instanceof PushNetworkException);
   }
 
-  private void retrievePart(MasterSecret masterSecret, PduPart part, long messageId, long partId)
+  /**
+   * Streams a part from the network through decryption and straight into part
+   * storage, without writing its ciphertext to disk. The download reconnects by
+   * itself when the connection drops, and the part is only stored once its MAC
+   * checks out.
+   *
+   * Resuming only works within one run of the job. Nothing about a partial download
+   * is persisted, since the MAC and cipher state part way through can't be, so a
+   * retry of the job downloads the part from the start.
+   */
+  private long retrievePart(MasterSecret masterSecret, PduPart part, long messageId, final long partId)
       throws IOException
   {
-    PartDatabase database       = DatabaseFactory.getPartDatabase(context);
-    File         attachmentFile = null;
+    PartDatabase     database = DatabaseFactory.getPartDatabase(context);
+    ProgressRecorder progress = new ProgressRecorder(partId);
 
     try {
-      attachmentFile = createTempFile();
-
       TextSecureAttachmentPointer pointer    = createAttachmentPointer(masterSecret, part);
-      InputStream                 attachment = messageReceiver.retrieveAttachment(pointer, attachmentFile);
+      InputStream                 attachment = messageReceiver.streamAttachment(pointer, progress);
+
+      try {
+        database.updateDownloadedPart(masterSecret, messageId, partId, part, attachment);
+      } finally {
+        attachment.close();
+      }
 
-      database.updateDownloadedPart(masterSecret, messageId, partId, part, attachment);
-    } catch (InvalidPartException | NonSuccessfulResponseCodeException | InvalidMessageException | MmsException e) {
+      return progress.getTransferred();
+    } catch (PushNetworkException e) {
+      throw e;
+    } catch (InvalidPartException | MmsException | IOException e) {
       Log.w(TAG, e);
       markFailed(messageId, part, partId);
+      return 0;
     } finally {
-      if (attachmentFile != null)
-        attachmentFile.delete();
+      AttachmentDownloadScheduler.getInstance().clearProgress(partId);
     }
   }
 
@@ -122,17 +165,6 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     }
   }
 
-  private File createTempFile() throws InvalidPartException {
-    try {
-      File file = File.createTempFile("push-attachment", "tmp");
-      file.deleteOnExit();
-
-      return file;
-    } catch (IOException e) {
-      throw new InvalidPartException(e);
-    }
-  }
-
   private void markFailed(long messageId, PduPart part, long partId) {
     try {
       PartDatabase database = DatabaseFactory.getPartDatabase(context);
@@ -142,7 +174,43 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     }
   }
 
+  private static class ProgressRecorder implements TextSecureAttachment.ProgressListener {
+    private final long partId;
+    private       long transferred;
+
+    public ProgressRecorder(long partId) {
+      this.partId = partId;
+    }
+
+    @Override
+    public void onAttachmentProgress(long total, long progress) {
+      transferred = progress;
+      AttachmentDownloadScheduler.getInstance().setProgress(partId, total, progress);
+    }
+
+    public long getTransferred() {
+      return transferred;
+    }
+  }
+
   private class InvalidPartException extends Exception {
     public InvalidPartException(Exception e) {super(e);}
   }
+
+  public static class Codec implements JobCodec.FieldCodec<AttachmentDownloadJob> {
+    @Override
+    public void write(AttachmentDownloadJob job, DataOutputStream out) throws IOException {
+      out.writeLong(job.messageId);
+    }
+
+    @Override
+    public AttachmentDownloadJob read(Context context, int version, DataInputStream in) throws IOException {
+      AttachmentDownloadJob job = new AttachmentDownloadJob(context, in.readLong());
+
+      // Every queued download is read back before any of them runs, so registering
+      // here keeps the order across restarts.
+      AttachmentDownloadScheduler.getInstance().register(job.messageId);
+      return job;
+    }
+  }
 }
@@ -0,0 +1,337 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.util.Log;
+import android.util.Pair;
+
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.notifications.MessageNotifier;
+import org.thoughtcrime.securesms.jobs.requirements.AttachmentDownloadRequirement;
+import org.thoughtcrime.securesms.util.Util;
+import org.whispersystems.jobqueue.requirements.RequirementListener;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ws.com.google.android.mms.pdu.PduPart;
+
+/**
+ * Decides the order in which messages' push attachments are downloaded.
+ *
+ * Every {@link AttachmentDownloadJob} registers its message here, when it's added and
+ * again when it's read back from disk, and its {@link AttachmentDownloadRequirement}
+ * only lets it run once nothing else waiting is more wanted: messages in the
+ * conversation on screen come first, then messages with only images, then the most
+ * recent. Each job downloads its own message. Attachment sizes aren't known until
+ * they're fetched, so anything that isn't an image counts as large, and large
+ * downloads are held back while the network is metered or the battery is low.
+ */
+public class AttachmentDownloadScheduler {
+
+  private static final String TAG = AttachmentDownloadScheduler.class.getSimpleName();
+
+  private static final int REPORT_INTERVAL     = 20;
+  private static final int LOW_BATTERY_PERCENT = 15;
+
+  private static final AttachmentDownloadScheduler instance = new AttachmentDownloadScheduler();
+
+  public static AttachmentDownloadScheduler getInstance() {
+    return instance;
+  }
+
+  private final Map<Long, Download>         pending  = new HashMap<>();
+  private final Set<Long>                   claimed  = new HashSet<>();
+  private final Map<Long, Pair<Long, Long>> progress = new HashMap<>();
+  private final Metrics                     metrics  = new Metrics();
+
+  private volatile RequirementListener listener;
+
+  private AttachmentDownloadScheduler() {}
+
+  /**
+   * Lets the media lane know to look at held downloads again whenever the order
+   * changes. The listener is never called with this scheduler's lock held, since the
+   * queue calls back into it with its own lock held.
+   */
+  public void setListener(RequirementListener listener) {
+    this.listener = listener;
+  }
+
+  public synchronized void register(long messageId) {
+    if (!claimed.contains(messageId) && !pending.containsKey(messageId)) {
+      pending.put(messageId, null);
+    }
+  }
+
+  public void remove(long messageId) {
+    synchronized (this) {
+      pending.remove(messageId);
+    }
+
+    notifyChanged();
+  }
+
+  /**
+   * @return true if this message's download may start now: it isn't a large download
+   * being held back, and no other waiting message is more wanted.
+   */
+  public synchronized boolean isRunnable(Context context, long messageId) {
+    register(messageId);
+    loadPending(context);
+
+    Download download = pending.get(messageId);
+
+    if (download == null) {
+      return true;
+    }
+
+    return isRunnable(download, pending.values(), MessageNotifier.getVisibleThread(), isConstrained(context));
+  }
+
+  static boolean isRunnable(Download download, Collection<Download> waiting,
+                            long visibleThread, boolean constrained)
+  {
+    if (constrained && download.isLarge()) {
+      return false;
+    }
+
+    for (Download other : waiting) {
+      if (other != download && isPreferred(other, download, visibleThread, constrained)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * @return the message's push parts still to download, or null if there are none.
+   */
+  public Download claim(Context context, long messageId) {
+    Download download;
+
+    synchronized (this) {
+      pending.remove(messageId);
+      download = Download.load(context, messageId);
+
+      if (download.getParts().isEmpty()) download = null;
+      else                               claimed.add(messageId);
+    }
+
+    notifyChanged();
+    return download;
+  }
+
+  /**
+   * Hands a claimed message back. A message that didn't finish goes back into the
+   * pool, to be reloaded (with whichever parts are still pending) when it's next
+   * considered.
+   */
+  public void release(Download download, boolean finished, long bytes, long millis) {
+    synchronized (this) {
+      claimed.remove(download.getMessageId());
+
+      if (finished) {
+        metrics.record(bytes, millis);
+
+        if (metrics.getCount() % REPORT_INTERVAL == 0) {
+          Log.w(TAG, "Attachment downloads: " + metrics + ", " + pending.size() + " waiting");
+        }
+      } else {
+        pending.put(download.getMessageId(), null);
+      }
+    }
+
+    notifyChanged();
+  }
+
+  /**
+   * Records how many of a part's bytes have arrived, out of how many (-1 if unknown).
+   */
+  public synchronized void setProgress(long partId, long total, long transferred) {
+    progress.put(partId, new Pair<>(total, transferred));
+  }
+
+  public synchronized void clearProgress(long partId) {
+    progress.remove(partId);
+  }
+
+  /**
+   * @return the fraction of a part downloaded so far, or -1 if it isn't downloading
+   * or its size isn't known yet.
+   */
+  public synchronized float getProgress(long partId) {
+    Pair<Long, Long> partProgress = progress.get(partId);
+
+    if (partProgress == null || partProgress.first <= 0) return -1;
+    else                                                 return (float)partProgress.second / partProgress.first;
+  }
+
+  public synchronized int getQueueDepth() {
+    return pending.size();
+  }
+
+  public synchronized int getActiveCount() {
+    return claimed.size();
+  }
+
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  private void notifyChanged() {
+    RequirementListener listener = this.listener;
+
+    if (listener != null) {
+      listener.onRequirementStatusChanged();
+    }
+  }
+
+  private void loadPending(Context context) {
+    List<Long> finished = new LinkedList<>();
+
+    for (Map.Entry<Long, Download> entry : pending.entrySet()) {
+      if (entry.getValue() == null) {
+        Download download = Download.load(context, entry.getKey());
+
+        if (download.getParts().isEmpty()) finished.add(entry.getKey());
+        else                               entry.setValue(download);
+      }
+    }
+
+    for (long messageId : finished) {
+      pending.remove(messageId);
+    }
+  }
+
+  private static boolean isPreferred(Download candidate, Download best, long visibleThread, boolean constrained) {
+    if (constrained && candidate.isLarge() != best.isLarge()) {
+      return !candidate.isLarge();
+    }
+
+    boolean candidateVisible = candidate.getThreadId() == visibleThread;
+    boolean bestVisible      = best.getThreadId() == visibleThread;
+
+    if (candidateVisible != bestVisible) return candidateVisible;
+    if (candidate.isLarge() != best.isLarge()) return !candidate.isLarge();
+
+    return candidate.getMessageId() > best.getMessageId();
+  }
+
+  private static boolean isConstrained(Context context) {
+    ConnectivityManager connectivityManager = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+    if (ConnectivityManagerCompat.isActiveNetworkMetered(connectivityManager)) {
+      return true;
+    }
+
+    Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+
+    if (battery == null || battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+      return false;
+    }
+
+    int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+    int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+
+    return level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENT;
+  }
+
+  public static class Download {
+    private final long                      messageId;
+    private final long                      threadId;
+    private final List<Pair<Long, PduPart>> parts;
+    private final boolean                   large;
+
+    Download(long messageId, long threadId, List<Pair<Long, PduPart>> parts, boolean large) {
+      this.messageId = messageId;
+      this.threadId  = threadId;
+      this.parts     = parts;
+      this.large     = large;
+    }
+
+    private static Download load(Context context, long messageId) {
+      List<Pair<Long, PduPart>> parts    = new LinkedList<>();
+      boolean                   large    = false;
+      long                      threadId = DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId);
+
+      for (Pair<Long, PduPart> part : DatabaseFactory.getPartDatabase(context).getParts(messageId)) {
+        if (part.second.isPendingPush()) {
+          byte[] contentType = part.second.getContentType();
+
+          parts.add(part);
+          large |= contentType == null || !Util.toIsoString(contentType).startsWith("image/");
+        }
+      }
+
+      return new Download(messageId, threadId, parts, large);
+    }
+
+    public long getMessageId() {
+      return messageId;
+    }
+
+    public long getThreadId() {
+      return threadId;
+    }
+
+    public List<Pair<Long, PduPart>> getParts() {
+      return parts;
+    }
+
+    public boolean isLarge() {
+      return large;
+    }
+  }
+
+  public static class Metrics {
+    private long count;
+    private long totalBytes;
+    private long totalMillis;
+
+    private synchronized void record(long bytes, long millis) {
+      count++;
+      totalBytes  += bytes;
+      totalMillis += millis;
+    }
+
+    public synchronized long getCount() {
+      return count;
+    }
+
+    public synchronized long getBytesPerSecond() {
+      return totalMillis == 0 ? 0 : totalBytes * 1000 / totalMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return count + " messages, " + totalBytes + " bytes, " + getBytesPerSecond() + " bytes/sec";
+    }
+  }
+}
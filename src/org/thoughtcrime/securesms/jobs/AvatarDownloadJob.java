@@ -30,6 +30,8 @@ import java.io.InputStream;
 
 public class AvatarDownloadJob extends MasterSecretJob {
 
+  private static final long serialVersionUID = -9054551882210485308L;
+
   private static final String TAG = AvatarDownloadJob.class.getSimpleName();
 
   private final byte[] groupId;
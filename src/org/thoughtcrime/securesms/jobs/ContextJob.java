@@ -2,12 +2,15 @@ package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
 
+import org.thoughtcrime.securesms.ApplicationContext;
 import org.whispersystems.jobqueue.Job;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.dependencies.ContextDependent;
 
 public abstract class ContextJob extends Job implements ContextDependent {
 
+  private static final long serialVersionUID = 9116330013089607227L;
+
   protected transient Context context;
 
   protected ContextJob(Context context, JobParameters parameters) {
@@ -22,4 +25,16 @@ public abstract class ContextJob extends Job implements ContextDependent {
   protected Context getContext() {
     return context;
   }
+
+  /**
+   * Lets this job's lane know it has left the queue, then runs it. Final so that no
+   * job can skip the first step.
+   */
+  @Override
+  public final void onRun() throws Exception {
+    ApplicationContext.getInstance(context).getJobManager().onStarted(this);
+    execute();
+  }
+
+  protected abstract void execute() throws Exception;
 }
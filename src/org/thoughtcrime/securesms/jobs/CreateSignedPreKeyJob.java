@@ -23,6 +23,8 @@ import javax.inject.Inject;
 
 public class CreateSignedPreKeyJob extends ContextJob implements InjectableType {
 
+  private static final long serialVersionUID = 7066492698407011260L;
+
   private static final String TAG = CreateSignedPreKeyJob.class.getSimpleName();
 
   @Inject transient TextSecureAccountManager accountManager;
@@ -40,7 +42,7 @@ public class CreateSignedPreKeyJob extends ContextJob implements InjectableType
   public void onAdded() {}
 
   @Override
-  public void onRun() throws IOException {
+  protected void execute() throws IOException {
     MasterSecret masterSecret = ParcelUtil.deserialize(getEncryptionKeys().getEncoded(), MasterSecret.CREATOR);
 
     if (TextSecurePreferences.isSignedPreKeyRegistered(context)) {
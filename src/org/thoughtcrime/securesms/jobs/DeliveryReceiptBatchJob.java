@@ -0,0 +1,107 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.dependencies.InjectableType;
+import org.thoughtcrime.securesms.jobs.DeliveryReceiptQueue.Receipt;
+import org.whispersystems.jobqueue.JobParameters;
+import org.whispersystems.jobqueue.requirements.NetworkRequirement;
+import org.whispersystems.textsecure.api.TextSecureMessageSender;
+import org.whispersystems.textsecure.api.push.PushAddress;
+import org.whispersystems.textsecure.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import static org.thoughtcrime.securesms.dependencies.TextSecureCommunicationModule.TextSecureMessageSenderFactory;
+
+/**
+ * Sends every receipt waiting in the {@link DeliveryReceiptQueue}, grouped by
+ * destination. The server has no batch receipt endpoint, so each receipt is still
+ * its own request, but they all go out back to back through one socket and so over
+ * one pooled keep-alive connection.
+ *
+ * The job itself isn't persisted, since the queue is; it's scheduled again on start
+ * if receipts are left over.
+ */
+public class DeliveryReceiptBatchJob extends ContextJob implements InjectableType {
+
+  private static final String TAG = DeliveryReceiptBatchJob.class.getSimpleName();
+
+  @Inject transient TextSecureMessageSenderFactory messageSenderFactory;
+
+  public DeliveryReceiptBatchJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(DeliveryReceiptBatchJob.class.getSimpleName())
+                                .withRequirement(new NetworkRequirement(context))
+                                .withRetryCount(50)
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  protected void execute() throws IOException {
+    DeliveryReceiptQueue       queue         = DeliveryReceiptQueue.getInstance(context);
+    Map<String, List<Receipt>> byDestination = groupByDestination(queue.getPending());
+    TextSecureMessageSender    messageSender = messageSenderFactory.create(null);
+    List<Receipt>              sent          = new LinkedList<>();
+
+    try {
+      for (List<Receipt> receipts : byDestination.values()) {
+        PushAddress address = new PushAddress(-1, receipts.get(0).getDestination(), 1, receipts.get(0).getRelay());
+
+        for (Receipt receipt : receipts) {
+          try {
+            messageSender.sendDeliveryReceipt(address, receipt.getTimestamp());
+          } catch (NonSuccessfulResponseCodeException e) {
+            Log.w(TAG, e);
+          }
+
+          sent.add(receipt);
+        }
+      }
+
+      Log.w(TAG, "Sent " + sent.size() + " receipts to " + byDestination.size() + " destinations");
+    } finally {
+      queue.remove(sent);
+    }
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Failed to send receipts after retry exhausted!");
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    Log.w(TAG, exception);
+    return exception instanceof PushNetworkException;
+  }
+
+  private Map<String, List<Receipt>> groupByDestination(List<Receipt> receipts) {
+    Map<String, List<Receipt>> grouped = new LinkedHashMap<>();
+
+    for (Receipt receipt : receipts) {
+      String        key         = receipt.getDestination() + "@" + receipt.getRelay();
+      List<Receipt> destination = grouped.get(key);
+
+      if (destination == null) {
+        destination = new LinkedList<>();
+        grouped.put(key, destination);
+      }
+
+      destination.add(receipt);
+    }
+
+    return grouped;
+  }
+}
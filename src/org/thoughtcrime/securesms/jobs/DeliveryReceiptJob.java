@@ -4,6 +4,7 @@ import android.content.Context;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.dependencies.InjectableType;
+import org.thoughtcrime.securesms.jobs.persistence.JobCodec;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
 import org.whispersystems.textsecure.api.TextSecureMessageSender;
@@ -11,14 +12,22 @@ import org.whispersystems.textsecure.api.push.PushAddress;
 import org.whispersystems.textsecure.api.push.exceptions.NonSuccessfulResponseCodeException;
 import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 import javax.inject.Inject;
 
 import static org.thoughtcrime.securesms.dependencies.TextSecureCommunicationModule.TextSecureMessageSenderFactory;
 
+/**
+ * Sends a single delivery receipt. New receipts go through the {@link DeliveryReceiptQueue}
+ * instead; this remains for jobs persisted before it existed.
+ */
 public class DeliveryReceiptJob extends ContextJob implements InjectableType {
 
+  private static final long serialVersionUID = -3188127397355542279L;
+
   private static final String TAG = DeliveryReceiptJob.class.getSimpleName();
 
   @Inject transient TextSecureMessageSenderFactory messageSenderFactory;
@@ -43,7 +52,7 @@ public class DeliveryReceiptJob extends ContextJob implements InjectableType {
   public void onAdded() {}
 
   @Override
-  public void onRun() throws IOException {
+  protected void execute() throws IOException {
     Log.w("DeliveryReceiptJob", "Sending delivery receipt...");
     TextSecureMessageSender messageSender = messageSenderFactory.create(null);
     PushAddress             pushAddress   = new PushAddress(-1, destination, 1, relay);
@@ -64,4 +73,22 @@ public class DeliveryReceiptJob extends ContextJob implements InjectableType {
 
     return false;
   }
+
+  public static class Codec implements JobCodec.FieldCodec<DeliveryReceiptJob> {
+    @Override
+    public void write(DeliveryReceiptJob job, DataOutputStream out) throws IOException {
+      JobCodec.writeString(out, job.destination);
+      out.writeLong(job.timestamp);
+      JobCodec.writeString(out, job.relay);
+    }
+
+    @Override
+    public DeliveryReceiptJob read(Context context, int version, DataInputStream in) throws IOException {
+      String destination = JobCodec.readString(in);
+      long   timestamp   = in.readLong();
+      String relay       = JobCodec.readString(in);
+
+      return new DeliveryReceiptJob(context, destination, timestamp, relay);
+    }
+  }
 }
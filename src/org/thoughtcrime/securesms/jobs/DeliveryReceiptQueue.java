@@ -0,0 +1,217 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.jobs.persistence.JobCodec;
+import org.thoughtcrime.securesms.util.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Collects delivery receipts for a short window so that a burst of incoming messages
+ * (after a reconnect, say) is acknowledged by one {@link DeliveryReceiptBatchJob}
+ * rather than a persisted job and request each.
+ *
+ * Pending receipts are kept in a small append-only file, so that they survive a
+ * restart. The file is rewritten without the receipts a batch has sent.
+ */
+public class DeliveryReceiptQueue {
+
+  private static final String TAG = DeliveryReceiptQueue.class.getSimpleName();
+
+  private static final String FILE_NAME    = "pending_receipts";
+  private static final long   BATCH_WINDOW = 2000;
+
+  private static DeliveryReceiptQueue instance;
+
+  private final Context       context;
+  private final File          file;
+  private final Handler       handler = new Handler(Looper.getMainLooper());
+  private final List<Receipt> pending = new LinkedList<>();
+
+  private boolean flushScheduled;
+
+  public static synchronized DeliveryReceiptQueue getInstance(Context context) {
+    if (instance == null) {
+      instance = new DeliveryReceiptQueue(context.getApplicationContext(),
+                                          new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    return instance;
+  }
+
+  @VisibleForTesting
+  DeliveryReceiptQueue(Context context, File file) {
+    this.context = context;
+    this.file    = file;
+
+    read();
+  }
+
+  public void add(String destination, long timestamp, String relay) {
+    Receipt receipt = new Receipt(destination, timestamp, relay);
+
+    synchronized (this) {
+      pending.add(receipt);
+      append(receipt);
+    }
+
+    scheduleFlush();
+  }
+
+  public synchronized List<Receipt> getPending() {
+    return new LinkedList<>(pending);
+  }
+
+  public synchronized void remove(Collection<Receipt> sent) {
+    if (pending.removeAll(sent)) {
+      write();
+    }
+  }
+
+  /**
+   * Schedules a batch for receipts left over from a previous run.
+   */
+  public void flushPending() {
+    if (!getPending().isEmpty()) {
+      scheduleFlush();
+    }
+  }
+
+  private synchronized void scheduleFlush() {
+    if (flushScheduled) return;
+
+    flushScheduled = true;
+    handler.postDelayed(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (DeliveryReceiptQueue.this) {
+          flushScheduled = false;
+        }
+
+        ApplicationContext.getInstance(context)
+                          .getJobManager()
+                          .add(new DeliveryReceiptBatchJob(context));
+      }
+    }, BATCH_WINDOW);
+  }
+
+  private void read() {
+    if (!file.exists()) return;
+
+    DataInputStream in = null;
+
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+      while (true) {
+        pending.add(Receipt.read(in));
+      }
+    } catch (EOFException e) {
+      Log.w(TAG, "Loaded " + pending.size() + " pending receipts");
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    } finally {
+      close(in);
+    }
+  }
+
+  private void append(Receipt receipt) {
+    DataOutputStream out = null;
+
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+      receipt.write(out);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    } finally {
+      close(out);
+    }
+  }
+
+  private void write() {
+    File             temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out  = null;
+
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+
+      for (Receipt receipt : pending) {
+        receipt.write(out);
+      }
+
+      out.close();
+      out = null;
+
+      if (!temp.renameTo(file)) {
+        throw new IOException("Failed to replace " + file);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    } finally {
+      close(out);
+    }
+  }
+
+  private static void close(Closeable closeable) {
+    try {
+      if (closeable != null) closeable.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  public static class Receipt {
+    private final String destination;
+    private final long   timestamp;
+    private final String relay;
+
+    public Receipt(String destination, long timestamp, String relay) {
+      this.destination = destination;
+      this.timestamp   = timestamp;
+      this.relay       = relay;
+    }
+
+    public String getDestination() {
+      return destination;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    public String getRelay() {
+      return relay;
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+      JobCodec.writeString(out, destination);
+      out.writeLong(timestamp);
+      JobCodec.writeString(out, relay);
+    }
+
+    private static Receipt read(DataInputStream in) throws IOException {
+      String destination = JobCodec.readString(in);
+      long   timestamp   = in.readLong();
+      String relay       = JobCodec.readString(in);
+
+      return new Receipt(destination, timestamp, relay);
+    }
+  }
+}
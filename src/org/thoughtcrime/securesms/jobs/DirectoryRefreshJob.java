@@ -23,13 +23,13 @@ public class DirectoryRefreshJob extends ContextJob {
   public void onAdded() {}
 
   @Override
-  public void onRun() throws IOException {
+  protected void execute() throws IOException {
     PowerManager          powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
     PowerManager.WakeLock wakeLock     = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Directory Refresh");
 
     try {
       wakeLock.acquire();
-      DirectoryHelper.refreshDirectory(context);
+      DirectoryHelper.refreshDirectoryChanges(context);
     } finally {
       if (wakeLock.isHeld()) wakeLock.release();
     }
@@ -52,7 +52,7 @@ public class GcmRefreshJob extends ContextJob {
   public void onAdded() {}
 
   @Override
-  public void onRun() throws Exception {
+  protected void execute() throws Exception {
     TextSecureAccountManager accountManager = TextSecureCommunicationFactory.createManager(context);
     String                   registrationId = TextSecurePreferences.getGcmRegistrationId(context);
 
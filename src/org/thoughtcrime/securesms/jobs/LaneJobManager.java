@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.jobs.persistence.EncryptingJobSerializer;
+import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirementProvider;
+import org.thoughtcrime.securesms.jobs.requirements.MediaNetworkRequirementProvider;
+import org.thoughtcrime.securesms.jobs.requirements.RateLimitRequirementProvider;
+import org.thoughtcrime.securesms.jobs.requirements.ServiceRequirementProvider;
+import org.whispersystems.jobqueue.EncryptionKeys;
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.JobManager;
+import org.whispersystems.jobqueue.JobParameters;
+import org.whispersystems.jobqueue.dependencies.DependencyInjector;
+import org.whispersystems.jobqueue.persistence.JobSerializer;
+import org.whispersystems.jobqueue.requirements.NetworkRequirementProvider;
+import org.whispersystems.jobqueue.requirements.RequirementProvider;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Splits jobs across a few independent {@link JobManager}s, each with its own
+ * persistent queue, consumer threads and thread priority, so that a backlog in one
+ * lane (large media transfers, say) can never hold up another (sending and receiving
+ * text messages).
+ *
+ * Job groups only serialize jobs within a lane, so jobs which share a group id must
+ * always be assigned to the same lane. The interactive lane reads the queue that all
+ * jobs were persisted to before lanes existed, and moves any it finds that belong to
+ * another lane.
+ */
+public class LaneJobManager {
+
+  private static final String TAG = LaneJobManager.class.getSimpleName();
+
+  private static final int REPORT_INTERVAL = 50;
+
+  public enum Lane {
+    /** Sending, receiving, decrypting and acknowledging messages. */
+    INTERACTIVE("TextSecureJobs", 3, Thread.NORM_PRIORITY),
+    /** Attachment, avatar and MMS transfers. */
+    MEDIA("TextSecureJobs-Media", 2, Thread.NORM_PRIORITY - 1),
+    /** Housekeeping nobody is waiting on. */
+    MAINTENANCE("TextSecureJobs-Maintenance", 1, Thread.MIN_PRIORITY);
+
+    private final String queueName;
+    private final int    consumerThreads;
+    private final int    threadPriority;
+
+    Lane(String queueName, int consumerThreads, int threadPriority) {
+      this.queueName       = queueName;
+      this.consumerThreads = consumerThreads;
+      this.threadPriority  = threadPriority;
+    }
+  }
+
+  private static final Map<Class<? extends Job>, Lane> LANES = new HashMap<>();
+
+  static {
+    // MmsSendJob shares the "mms-operation" group with MmsDownloadJob. Push media
+    // sends stay interactive, since they share per-recipient groups with text sends.
+    LANES.put(AttachmentDownloadJob.class, Lane.MEDIA);
+    LANES.put(AvatarDownloadJob.class, Lane.MEDIA);
+    LANES.put(MmsDownloadJob.class, Lane.MEDIA);
+    LANES.put(MmsSendJob.class, Lane.MEDIA);
+
+    LANES.put(CleanPreKeysJob.class, Lane.MAINTENANCE);
+    LANES.put(CreateSignedPreKeyJob.class, Lane.MAINTENANCE);
+    LANES.put(DirectoryRefreshJob.class, Lane.MAINTENANCE);
+    LANES.put(GcmRefreshJob.class, Lane.MAINTENANCE);
+    LANES.put(RefreshPreKeysJob.class, Lane.MAINTENANCE);
+    LANES.put(TrimThreadJob.class, Lane.MAINTENANCE);
+  }
+
+  private final Map<Lane, JobManager>  jobManagers = new EnumMap<>(Lane.class);
+  private final Map<Lane, LaneMetrics> metrics     = new EnumMap<>(Lane.class);
+  private final Map<Job, Long>         queuedAt    = Collections.synchronizedMap(new WeakHashMap<Job, Long>());
+
+  public LaneJobManager(Context context, DependencyInjector dependencyInjector) {
+    // The interactive lane is built last, so that jobs it moves always find their lane.
+    for (Lane lane : new Lane[] {Lane.MEDIA, Lane.MAINTENANCE, Lane.INTERACTIVE}) {
+      JobSerializer serializer = new EncryptingJobSerializer(context);
+
+      if (lane == Lane.INTERACTIVE) {
+        serializer = new LegacyLaneSerializer(this, serializer);
+      }
+
+      jobManagers.put(lane, JobManager.newBuilder(context)
+                                      .withName(lane.queueName)
+                                      .withDependencyInjector(dependencyInjector)
+                                      .withJobSerializer(serializer)
+                                      .withRequirementProviders(getRequirementProviders(context, lane))
+                                      .withConsumerThreads(lane.consumerThreads)
+                                      .build());
+      metrics.put(lane, new LaneMetrics());
+    }
+  }
+
+  /**
+   * Attachment downloads and push sends each live in a single lane, so the providers
+   * only their requirements need are registered with that lane alone.
+   */
+  private static RequirementProvider[] getRequirementProviders(Context context, Lane lane) {
+    List<RequirementProvider> providers = new LinkedList<>();
+    providers.add(new MasterSecretRequirementProvider(context));
+    providers.add(new ServiceRequirementProvider(context));
+    providers.add(new NetworkRequirementProvider(context));
+
+    if (lane == Lane.MEDIA) {
+      providers.add(new MediaNetworkRequirementProvider(context));
+    }
+
+    if (lane == Lane.INTERACTIVE) {
+      providers.add(new RateLimitRequirementProvider());
+    }
+
+    return providers.toArray(new RequirementProvider[providers.size()]);
+  }
+
+  public static Lane getLane(Job job) {
+    Lane lane = LANES.get(job.getClass());
+    return lane == null ? Lane.INTERACTIVE : lane;
+  }
+
+  public void add(Job job) {
+    queuedAt.put(job, System.currentTimeMillis());
+    jobManagers.get(getLane(job)).add(job);
+  }
+
+  public void setEncryptionKeys(EncryptionKeys keys) {
+    for (JobManager jobManager : jobManagers.values()) {
+      jobManager.setEncryptionKeys(keys);
+    }
+  }
+
+  public RequirementProvider getRequirementProvider(String name) {
+    return jobManagers.get(Lane.INTERACTIVE).getRequirementProvider(name);
+  }
+
+  /**
+   * Called by a job as it starts running, to apply its lane's thread priority and
+   * record how long it waited in the queue. Jobs restored from disk after a restart
+   * have no queue time and aren't counted.
+   */
+  public void onStarted(Job job) {
+    Lane lane     = getLane(job);
+    Long queuedAt = this.queuedAt.remove(job);
+
+    Thread.currentThread().setPriority(lane.threadPriority);
+
+    if (queuedAt != null) {
+      LaneMetrics laneMetrics = metrics.get(lane);
+      laneMetrics.record(System.currentTimeMillis() - queuedAt);
+
+      if (laneMetrics.getCount() % REPORT_INTERVAL == 0) {
+        Log.w(TAG, lane + " queue latency: " + laneMetrics);
+      }
+    }
+  }
+
+  public LaneMetrics getMetrics(Lane lane) {
+    return metrics.get(lane);
+  }
+
+  public static class LaneMetrics {
+    private long count;
+    private long totalLatency;
+    private long maxLatency;
+
+    private synchronized void record(long latency) {
+      count++;
+      totalLatency += latency;
+      maxLatency    = Math.max(maxLatency, latency);
+    }
+
+    public synchronized long getCount() {
+      return count;
+    }
+
+    public synchronized long getAverageLatency() {
+      return count == 0 ? 0 : totalLatency / count;
+    }
+
+    public synchronized long getMaxLatency() {
+      return maxLatency;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return count + " jobs, average " + getAverageLatency() + "ms, max " + maxLatency + "ms";
+    }
+  }
+
+  /**
+   * Reads the interactive lane's queue, which also holds jobs persisted before lanes
+   * existed. Those that belong to another lane are wrapped in a {@link LaneTransferJob}
+   * rather than run here, where they could race jobs in their own group.
+   *
+   * Encrypted jobs are left where they are, since their keys aren't carried across.
+   */
+  private static class LegacyLaneSerializer implements JobSerializer {
+
+    private final LaneJobManager laneJobManager;
+    private final JobSerializer  delegate;
+
+    private LegacyLaneSerializer(LaneJobManager laneJobManager, JobSerializer delegate) {
+      this.laneJobManager = laneJobManager;
+      this.delegate       = delegate;
+    }
+
+    @Override
+    public String serialize(Job job) throws IOException {
+      return delegate.serialize(job);
+    }
+
+    @Override
+    public Job deserialize(EncryptionKeys keys, boolean encrypted, String serialized) throws IOException {
+      Job  job  = delegate.deserialize(keys, encrypted, serialized);
+      Lane lane = getLane(job);
+
+      if (lane == Lane.INTERACTIVE || encrypted) {
+        return job;
+      }
+
+      Log.w(TAG, "Moving persisted " + job.getClass().getSimpleName() + " to the " + lane + " lane");
+      return new LaneTransferJob(laneJobManager, job);
+    }
+  }
+
+  /**
+   * Stands in for a job read back from the wrong lane's queue. When it runs, the job it
+   * carries is added to its own lane (and persisted there), and this one is dropped from
+   * the queue it was read from.
+   */
+  private static class LaneTransferJob extends Job {
+
+    private final transient LaneJobManager laneJobManager;
+    private final transient Job            job;
+
+    private LaneTransferJob(LaneJobManager laneJobManager, Job job) {
+      super(JobParameters.newBuilder().withPersistence().create());
+      this.laneJobManager = laneJobManager;
+      this.job            = job;
+    }
+
+    @Override
+    public void onAdded() {}
+
+    @Override
+    public void onRun() {
+      laneJobManager.add(job);
+    }
+
+    @Override
+    public boolean onShouldRetry(Exception exception) {
+      return false;
+    }
+
+    @Override
+    public void onCanceled() {}
+  }
+}
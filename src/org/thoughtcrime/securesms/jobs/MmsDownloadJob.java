@@ -46,6 +46,8 @@ import static org.thoughtcrime.securesms.mms.MmsConnection.Apn;
 
 public class MmsDownloadJob extends MasterSecretJob {
 
+  private static final long serialVersionUID = -8786129939101485720L;
+
   private static final String TAG = MmsDownloadJob.class.getSimpleName();
 
   private final long    messageId;
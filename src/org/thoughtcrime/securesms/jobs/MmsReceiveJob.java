@@ -16,6 +16,8 @@ import ws.com.google.android.mms.pdu.PduParser;
 
 public class MmsReceiveJob extends ContextJob {
 
+  private static final long serialVersionUID = 7651099039991988293L;
+
   private static final String TAG = MmsReceiveJob.class.getSimpleName();
 
   private final byte[] data;
@@ -33,7 +35,7 @@ public class MmsReceiveJob extends ContextJob {
   }
 
   @Override
-  public void onRun() {
+  protected void execute() {
     if (data == null) {
       Log.w(TAG, "Received NULL pdu, ignoring...");
       return;
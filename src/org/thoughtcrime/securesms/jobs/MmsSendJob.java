@@ -45,6 +45,8 @@ import ws.com.google.android.mms.pdu.SendReq;
 
 public class MmsSendJob extends MasterSecretJob {
 
+  private static final long serialVersionUID = -5992890383139339197L;
+
   private static final String TAG = MmsSendJob.class.getSimpleName();
 
   private final long messageId;
@@ -0,0 +1,65 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.TextSecureDirectory;
+import org.thoughtcrime.securesms.dependencies.InjectableType;
+import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
+import org.thoughtcrime.securesms.util.Util;
+import org.whispersystems.jobqueue.JobParameters;
+import org.whispersystems.jobqueue.requirements.NetworkRequirement;
+import org.whispersystems.textsecure.api.push.PushAddress;
+
+import javax.inject.Inject;
+
+import static org.thoughtcrime.securesms.dependencies.TextSecureCommunicationModule.TextSecureMessageSenderFactory;
+
+/**
+ * Fetches a recipient's prekeys when a first message to them looks likely, so that
+ * sending it doesn't wait on the fetch. It shares the recipient's send group, so a
+ * send queued while the fetch is running waits for it and then uses its result.
+ */
+public class PreKeyPrefetchJob extends MasterSecretJob implements InjectableType {
+
+  private static final String TAG = PreKeyPrefetchJob.class.getSimpleName();
+
+  @Inject transient TextSecureMessageSenderFactory messageSenderFactory;
+
+  private final long   recipientId;
+  private final String destination;
+
+  public PreKeyPrefetchJob(Context context, long recipientId, String destination) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(destination)
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .withRequirement(new NetworkRequirement(context))
+                                .create());
+
+    this.recipientId = recipientId;
+    this.destination = destination;
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  public void onRun(MasterSecret masterSecret) throws Exception {
+    String      e164number = Util.canonicalizeNumber(context, destination);
+    String      relay      = TextSecureDirectory.getInstance(context).getRelay(e164number);
+    PushAddress address    = new PushAddress(recipientId, e164number, PushAddress.DEFAULT_DEVICE_ID, relay);
+
+    messageSenderFactory.create(masterSecret).prefetchPreKeys(address);
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Prekey prefetch failed, the send will fetch them itself.");
+  }
+}
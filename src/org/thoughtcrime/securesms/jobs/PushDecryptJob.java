@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 import android.util.Pair;
 
@@ -15,6 +16,7 @@ import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.NoSuchMessageException;
 import org.thoughtcrime.securesms.database.PushDatabase;
 import org.thoughtcrime.securesms.groups.GroupMessageProcessor;
+import org.thoughtcrime.securesms.jobs.persistence.JobCodec;
 import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
 import org.thoughtcrime.securesms.mms.IncomingMediaMessage;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
@@ -28,6 +30,8 @@ import org.thoughtcrime.securesms.sms.IncomingPreKeyBundleMessage;
 import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.thoughtcrime.securesms.util.VisibleForTesting;
+import org.whispersystems.jobqueue.Job;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.libaxolotl.DuplicateMessageException;
 import org.whispersystems.libaxolotl.InvalidKeyException;
@@ -45,20 +49,87 @@ import org.whispersystems.textsecure.api.messages.TextSecureGroup;
 import org.whispersystems.textsecure.api.messages.TextSecureMessage;
 import org.whispersystems.textsecure.api.crypto.TextSecureCipher;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
 import ws.com.google.android.mms.MmsException;
 
+/**
+ * Decrypts the envelopes waiting in the {@link PushDatabase} for one (source, device),
+ * oldest first. Each envelope is removed and stored in its own transaction, and each
+ * batch of envelopes is followed by a single notification update.
+ *
+ * Only one of these is scheduled per sender at a time. Envelopes which arrive while
+ * it's queued or running are picked up by the same job.
+ */
 public class PushDecryptJob extends MasterSecretJob {
 
+  private static final long serialVersionUID = 3951174660292162715L;
+
   public static final String TAG = PushDecryptJob.class.getSimpleName();
 
-  private final long messageId;
+  private static final int BATCH_SIZE = 50;
+
+  private static final Set<String> scheduledSenders = new HashSet<>();
 
-  public PushDecryptJob(Context context, long messageId) {
+  private final long   messageId;
+  private final String source;
+  private final int    deviceId;
+
+  public PushDecryptJob(Context context, long messageId, String source, int deviceId) {
     super(context, JobParameters.newBuilder()
                                 .withPersistence()
                                 .withRequirement(new MasterSecretRequirement(context))
+                                .withGroupId(getSenderKey(source, deviceId))
                                 .create());
     this.messageId = messageId;
+    this.source    = source;
+    this.deviceId  = deviceId;
+  }
+
+  /**
+   * Stores an envelope for decryption, and schedules a job for its sender unless one
+   * is already waiting that will pick it up.
+   */
+  public static long enqueue(Context context, TextSecureEnvelope envelope) {
+    synchronized (scheduledSenders) {
+      long messageId = DatabaseFactory.getPushDatabase(context).insert(envelope);
+      schedule(context, messageId, envelope.getSource(), envelope.getSourceDevice());
+
+      return messageId;
+    }
+  }
+
+  /**
+   * Schedules a job for every sender with envelopes still waiting, so that nothing is
+   * stranded by a job which was lost or couldn't be read back.
+   */
+  public static void schedulePending(Context context) {
+    for (Pair<String, Integer> sender : DatabaseFactory.getPushDatabase(context).getPendingSenders()) {
+      schedule(context, -1, sender.first, sender.second);
+    }
+  }
+
+  @VisibleForTesting
+  static boolean isScheduled(String source, int deviceId) {
+    synchronized (scheduledSenders) {
+      return scheduledSenders.contains(getSenderKey(source, deviceId));
+    }
+  }
+
+  private static void schedule(Context context, long messageId, String source, int deviceId) {
+    synchronized (scheduledSenders) {
+      if (scheduledSenders.add(getSenderKey(source, deviceId))) {
+        ApplicationContext.getInstance(context)
+                          .getJobManager()
+                          .add(new PushDecryptJob(context, messageId, source, deviceId));
+      }
+    }
   }
 
   @Override
@@ -69,12 +140,27 @@ public class PushDecryptJob extends MasterSecretJob {
   }
 
   @Override
-  public void onRun(MasterSecret masterSecret) throws NoSuchMessageException {
-    PushDatabase       database = DatabaseFactory.getPushDatabase(context);
-    TextSecureEnvelope envelope = database.get(messageId);
+  public void onRun(MasterSecret masterSecret) {
+    if (source == null) {
+      scheduleLegacy();
+      return;
+    }
 
-    handleMessage(masterSecret, envelope);
-    database.delete(messageId);
+    boolean drained = false;
+
+    try {
+      while (!drained) {
+        if (decryptBatch(masterSecret) == 0) {
+          drained = unschedule();
+        }
+      }
+    } finally {
+      if (!drained) {
+        synchronized (scheduledSenders) {
+          scheduledSenders.remove(getSenderKey(source, deviceId));
+        }
+      }
+    }
   }
 
   @Override
@@ -87,7 +173,91 @@ public class PushDecryptJob extends MasterSecretJob {
 
   }
 
-  private void handleMessage(MasterSecret masterSecret, TextSecureEnvelope envelope) {
+  /**
+   * Jobs queued before envelopes were drained per sender carry only a push id, and
+   * have no sender group. Rather than decrypting alongside that sender's own job,
+   * they hand the envelope's sender over to it.
+   */
+  private void scheduleLegacy() {
+    try {
+      TextSecureEnvelope envelope = DatabaseFactory.getPushDatabase(context).get(messageId);
+      schedule(context, messageId, envelope.getSource(), envelope.getSourceDevice());
+    } catch (NoSuchMessageException e) {
+      Log.w(TAG, "Already decrypted by an earlier batch: " + messageId);
+    }
+  }
+
+  private int decryptBatch(MasterSecret masterSecret) {
+    PushDatabase        database = DatabaseFactory.getPushDatabase(context);
+    PushDatabase.Reader reader   = database.readerFor(database.getPending(source, deviceId, BATCH_SIZE));
+    Batch               batch    = new Batch();
+
+    try {
+      TextSecureEnvelope envelope;
+
+      while ((envelope = reader.getNext()) != null) {
+        batch.add(decrypt(masterSecret, database, reader.getCurrentId(), envelope));
+      }
+    } finally {
+      reader.close();
+      onBatchCommitted(masterSecret, batch);
+    }
+
+    return batch.count;
+  }
+
+  private Batch decrypt(MasterSecret masterSecret, PushDatabase database, long pushId, TextSecureEnvelope envelope) {
+    Batch          result = new Batch();
+    SQLiteDatabase db     = database.beginTransaction();
+
+    try {
+      try {
+        handleMessage(masterSecret, envelope, result);
+      } catch (RuntimeException e) {
+        Log.w(TAG, e);
+        result.threadIds.add(handleCorruptMessage(masterSecret, envelope));
+      }
+
+      database.delete(pushId);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    result.count = 1;
+    return result;
+  }
+
+  private void onBatchCommitted(MasterSecret masterSecret, Batch batch) {
+    if (batch.count == 0) return;
+
+    Log.w(TAG, "Decrypted batch of " + batch.count + " envelopes");
+
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+
+    for (Job job : batch.jobs) {
+      jobManager.add(job);
+    }
+
+    if (batch.refreshPreKeys) {
+      jobManager.add(new RefreshPreKeysJob(context));
+    }
+
+    MessageNotifier.updateNotification(context, masterSecret, batch.threadIds);
+  }
+
+  private boolean unschedule() {
+    synchronized (scheduledSenders) {
+      if (DatabaseFactory.getPushDatabase(context).hasPending(source, deviceId)) {
+        return false;
+      }
+
+      scheduledSenders.remove(getSenderKey(source, deviceId));
+      return true;
+    }
+  }
+
+  private void handleMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, Batch batch) {
     try {
       Recipients       recipients   = RecipientFactory.getRecipientsFromString(context, envelope.getSource(), false);
       long             recipientId  = recipients.getPrimaryRecipient().getRecipientId();
@@ -97,36 +267,36 @@ public class PushDecryptJob extends MasterSecretJob {
 
       TextSecureMessage message = cipher.decrypt(envelope);
 
-      if      (message.isEndSession())               handleEndSessionMessage(masterSecret, recipientId, envelope, message);
+      if      (message.isEndSession())               batch.threadIds.add(handleEndSessionMessage(masterSecret, recipientId, envelope, message));
       else if (message.isGroupUpdate())              handleGroupMessage(masterSecret, envelope, message);
-      else if (message.getAttachments().isPresent()) handleMediaMessage(masterSecret, envelope, message);
-      else                                           handleTextMessage(masterSecret, envelope, message);
+      else if (message.getAttachments().isPresent()) batch.threadIds.add(handleMediaMessage(masterSecret, envelope, message, batch));
+      else                                           batch.threadIds.add(handleTextMessage(masterSecret, envelope, message));
 
       if (envelope.isPreKeyWhisperMessage()) {
-        ApplicationContext.getInstance(context).getJobManager().add(new RefreshPreKeysJob(context));
+        batch.refreshPreKeys = true;
       }
     } catch (InvalidVersionException e) {
       Log.w(TAG, e);
-      handleInvalidVersionMessage(masterSecret, envelope);
+      batch.threadIds.add(handleInvalidVersionMessage(masterSecret, envelope));
     } catch (InvalidMessageException | InvalidKeyIdException | InvalidKeyException | MmsException | RecipientFormattingException e) {
       Log.w(TAG, e);
-      handleCorruptMessage(masterSecret, envelope);
+      batch.threadIds.add(handleCorruptMessage(masterSecret, envelope));
     } catch (NoSessionException e) {
       Log.w(TAG, e);
-      handleNoSessionMessage(masterSecret, envelope);
+      batch.threadIds.add(handleNoSessionMessage(masterSecret, envelope));
     } catch (LegacyMessageException e) {
       Log.w(TAG, e);
-      handleLegacyMessage(masterSecret, envelope);
+      batch.threadIds.add(handleLegacyMessage(masterSecret, envelope));
     } catch (DuplicateMessageException e) {
       Log.w(TAG, e);
-      handleDuplicateMessage(masterSecret, envelope);
+      batch.threadIds.add(handleDuplicateMessage(masterSecret, envelope));
     } catch (UntrustedIdentityException e) {
       Log.w(TAG, e);
-      handleUntrustedIdentityMessage(masterSecret, envelope);
+      batch.threadIds.add(handleUntrustedIdentityMessage(masterSecret, envelope));
     }
   }
 
-  private void handleEndSessionMessage(MasterSecret masterSecret, long recipientId,
+  private long handleEndSessionMessage(MasterSecret masterSecret, long recipientId,
                                        TextSecureEnvelope envelope, TextSecureMessage message)
   {
     IncomingTextMessage incomingTextMessage = new IncomingTextMessage(envelope.getSource(),
@@ -142,14 +312,15 @@ public class PushDecryptJob extends MasterSecretJob {
     sessionStore.deleteAllSessions(recipientId);
 
     SecurityEvent.broadcastSecurityUpdateEvent(context, messageAndThreadId.second);
-    MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+    return messageAndThreadId.second;
   }
 
   private void handleGroupMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, TextSecureMessage message) {
     GroupMessageProcessor.process(context, masterSecret, envelope, message);
   }
 
-  private void handleMediaMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, TextSecureMessage message)
+  private long handleMediaMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
+                                  TextSecureMessage message, Batch batch)
       throws MmsException
   {
     String               localNumber  = TextSecurePreferences.getLocalNumber(context);
@@ -169,14 +340,11 @@ public class PushDecryptJob extends MasterSecretJob {
       messageAndThreadId = database.insertMessageInbox(masterSecret, mediaMessage, null, -1);
     }
 
-    ApplicationContext.getInstance(context)
-                      .getJobManager()
-                      .add(new AttachmentDownloadJob(context, messageAndThreadId.first));
-
-    MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+    batch.jobs.add(new AttachmentDownloadJob(context, messageAndThreadId.first));
+    return messageAndThreadId.second;
   }
 
-  private void handleTextMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, TextSecureMessage message) {
+  private long handleTextMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, TextSecureMessage message) {
     EncryptingSmsDatabase database    = DatabaseFactory.getEncryptingSmsDatabase(context);
     String                body        = message.getBody().isPresent() ? message.getBody().get() : "";
     IncomingTextMessage   textMessage = new IncomingTextMessage(envelope.getSource(),
@@ -189,45 +357,45 @@ public class PushDecryptJob extends MasterSecretJob {
     }
 
     Pair<Long, Long> messageAndThreadId = database.insertMessageInbox(masterSecret, textMessage);
-    MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+    return messageAndThreadId.second;
   }
 
-  private void handleInvalidVersionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope) {
+  private long handleInvalidVersionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope) {
     Pair<Long, Long> messageAndThreadId = insertPlaceholder(masterSecret, envelope);
     DatabaseFactory.getEncryptingSmsDatabase(context).markAsInvalidVersionKeyExchange(messageAndThreadId.first);
 
-    MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+    return messageAndThreadId.second;
   }
 
-  private void handleCorruptMessage(MasterSecret masterSecret, TextSecureEnvelope envelope) {
+  private long handleCorruptMessage(MasterSecret masterSecret, TextSecureEnvelope envelope) {
     Pair<Long, Long> messageAndThreadId = insertPlaceholder(masterSecret, envelope);
     DatabaseFactory.getEncryptingSmsDatabase(context).markAsDecryptFailed(messageAndThreadId.first);
 
-    MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+    return messageAndThreadId.second;
   }
 
-  private void handleNoSessionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope) {
+  private long handleNoSessionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope) {
     Pair<Long, Long> messageAndThreadId = insertPlaceholder(masterSecret, envelope);
     DatabaseFactory.getEncryptingSmsDatabase(context).markAsNoSession(messageAndThreadId.first);
 
-    MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+    return messageAndThreadId.second;
   }
 
-  private void handleLegacyMessage(MasterSecret masterSecret, TextSecureEnvelope envelope) {
+  private long handleLegacyMessage(MasterSecret masterSecret, TextSecureEnvelope envelope) {
     Pair<Long, Long> messageAndThreadId = insertPlaceholder(masterSecret, envelope);
     DatabaseFactory.getEncryptingSmsDatabase(context).markAsLegacyVersion(messageAndThreadId.first);
 
-    MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+    return messageAndThreadId.second;
   }
 
-  private void handleDuplicateMessage(MasterSecret masterSecret, TextSecureEnvelope envelope) {
+  private long handleDuplicateMessage(MasterSecret masterSecret, TextSecureEnvelope envelope) {
     Pair<Long, Long> messageAndThreadId = insertPlaceholder(masterSecret, envelope);
     DatabaseFactory.getEncryptingSmsDatabase(context).markAsDecryptDuplicate(messageAndThreadId.first);
 
-    MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+    return messageAndThreadId.second;
   }
 
-  private void handleUntrustedIdentityMessage(MasterSecret masterSecret, TextSecureEnvelope envelope) {
+  private long handleUntrustedIdentityMessage(MasterSecret masterSecret, TextSecureEnvelope envelope) {
     String              encoded     = Base64.encodeBytes(envelope.getMessage());
     IncomingTextMessage textMessage = new IncomingTextMessage(envelope.getSource(), envelope.getSourceDevice(),
                                                               envelope.getTimestamp(), encoded,
@@ -237,7 +405,7 @@ public class PushDecryptJob extends MasterSecretJob {
     Pair<Long, Long>            messageAndThreadId = DatabaseFactory.getEncryptingSmsDatabase(context)
                                                                     .insertMessageInbox(masterSecret, bundleMessage);
 
-    MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+    return messageAndThreadId.second;
   }
 
   private Pair<Long, Long> insertPlaceholder(MasterSecret masterSecret, TextSecureEnvelope envelope) {
@@ -251,4 +419,42 @@ public class PushDecryptJob extends MasterSecretJob {
 
     return database.insertMessageInbox(masterSecret, textMessage);
   }
+
+  private static String getSenderKey(String source, int deviceId) {
+    return "decrypt:" + source + "." + deviceId;
+  }
+
+  private static class Batch {
+    private final Set<Long> threadIds = new HashSet<>();
+    private final List<Job> jobs      = new LinkedList<>();
+
+    private int     count;
+    private boolean refreshPreKeys;
+
+    private void add(Batch envelope) {
+      threadIds.addAll(envelope.threadIds);
+      jobs.addAll(envelope.jobs);
+
+      count          += envelope.count;
+      refreshPreKeys |= envelope.refreshPreKeys;
+    }
+  }
+
+  public static class Codec implements JobCodec.FieldCodec<PushDecryptJob> {
+    @Override
+    public void write(PushDecryptJob job, DataOutputStream out) throws IOException {
+      out.writeLong(job.messageId);
+      JobCodec.writeString(out, job.source);
+      out.writeInt(job.deviceId);
+    }
+
+    @Override
+    public PushDecryptJob read(Context context, int version, DataInputStream in) throws IOException {
+      long   messageId = in.readLong();
+      String source    = JobCodec.readString(in);
+      int    deviceId  = in.readInt();
+
+      return new PushDecryptJob(context, messageId, source, deviceId);
+    }
+  }
 }
@@ -10,6 +10,7 @@ import org.thoughtcrime.securesms.database.MmsSmsColumns;
 import org.thoughtcrime.securesms.database.NoSuchMessageException;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
+import org.thoughtcrime.securesms.jobs.requirements.RateLimitRequirement;
 import org.thoughtcrime.securesms.mms.PartParser;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
@@ -42,6 +43,8 @@ import static org.thoughtcrime.securesms.dependencies.TextSecureCommunicationMod
 
 public class PushGroupSendJob extends PushSendJob implements InjectableType {
 
+  private static final long serialVersionUID = 1544864974357466205L;
+
   private static final String TAG = PushGroupSendJob.class.getSimpleName();
 
   @Inject transient TextSecureMessageSenderFactory messageSenderFactory;
@@ -54,6 +57,7 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
                                 .withGroupId(destination)
                                 .withRequirement(new MasterSecretRequirement(context))
                                 .withRequirement(new NetworkRequirement(context))
+                                .withRequirement(new RateLimitRequirement(context))
                                 .withRetryCount(5)
                                 .create());
 
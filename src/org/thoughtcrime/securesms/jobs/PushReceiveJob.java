@@ -3,10 +3,10 @@ package org.thoughtcrime.securesms.jobs;
 import android.content.Context;
 import android.util.Log;
 
-import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobs.persistence.JobCodec;
+import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.libaxolotl.InvalidVersionException;
 import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
@@ -14,10 +14,14 @@ import org.thoughtcrime.securesms.database.TextSecureDirectory;
 import org.thoughtcrime.securesms.database.NotInDirectoryException;
 import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 public class PushReceiveJob extends ContextJob {
 
+  private static final long serialVersionUID = 3361750300983708151L;
+
   private static final String TAG = PushReceiveJob.class.getSimpleName();
 
   private final String data;
@@ -34,21 +38,12 @@ public class PushReceiveJob extends ContextJob {
   public void onAdded() {}
 
   @Override
-  public void onRun() {
+  protected void execute() {
     try {
       String             sessionKey = TextSecurePreferences.getSignalingKey(context);
       TextSecureEnvelope envelope   = new TextSecureEnvelope(data, sessionKey);
 
-      if (!isActiveNumber(context, envelope.getSource())) {
-        TextSecureDirectory directory           = TextSecureDirectory.getInstance(context);
-        ContactTokenDetails contactTokenDetails = new ContactTokenDetails();
-        contactTokenDetails.setNumber(envelope.getSource());
-
-        directory.setNumber(contactTokenDetails, true);
-      }
-
-      if (envelope.isReceipt()) handleReceipt(envelope);
-      else                     handleMessage(envelope);
+      handle(context, envelope);
     } catch (IOException | InvalidVersionException e) {
       Log.w(TAG, e);
     }
@@ -64,24 +59,37 @@ public class PushReceiveJob extends ContextJob {
     return false;
   }
 
-  private void handleMessage(TextSecureEnvelope envelope) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
-    long       messageId  = DatabaseFactory.getPushDatabase(context).insert(envelope);
+  /**
+   * Feeds an envelope into the decrypt path, however it arrived.
+   */
+  public static void handle(Context context, TextSecureEnvelope envelope) {
+    if (!isActiveNumber(context, envelope.getSource())) {
+      TextSecureDirectory directory           = TextSecureDirectory.getInstance(context);
+      ContactTokenDetails contactTokenDetails = new ContactTokenDetails();
+      contactTokenDetails.setNumber(envelope.getSource());
+
+      directory.setNumber(contactTokenDetails, true);
+    }
+
+    if (envelope.isReceipt()) handleReceipt(context, envelope);
+    else                     handleMessage(context, envelope);
+  }
 
-    jobManager.add(new DeliveryReceiptJob(context, envelope.getSource(),
-                                          envelope.getTimestamp(),
-                                          envelope.getRelay()));
+  private static void handleMessage(Context context, TextSecureEnvelope envelope) {
+    PushDecryptJob.enqueue(context, envelope);
 
-    jobManager.add(new PushDecryptJob(context, messageId));
+    DeliveryReceiptQueue.getInstance(context).add(envelope.getSource(),
+                                                  envelope.getTimestamp(),
+                                                  envelope.getRelay());
   }
 
-  private void handleReceipt(TextSecureEnvelope envelope) {
+  private static void handleReceipt(Context context, TextSecureEnvelope envelope) {
     Log.w(TAG, String.format("Received receipt: (XXXXX, %d)", envelope.getTimestamp()));
     DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCount(envelope.getSource(),
                                                                              envelope.getTimestamp());
   }
 
-  private boolean isActiveNumber(Context context, String e164number) {
+  private static boolean isActiveNumber(Context context, String e164number) {
     boolean isActiveNumber;
 
     try {
@@ -93,4 +101,38 @@ public class PushReceiveJob extends ContextJob {
     return isActiveNumber;
   }
 
+  /**
+   * Stores the envelope as raw bytes rather than the Base64 text it arrived as.
+   */
+  public static class Codec implements JobCodec.FieldCodec<PushReceiveJob> {
+    private static final int FORMAT_TEXT  = 0;
+    private static final int FORMAT_BYTES = 1;
+
+    @Override
+    public void write(PushReceiveJob job, DataOutputStream out) throws IOException {
+      byte[] decoded;
+
+      try {
+        decoded = Base64.decode(job.data);
+      } catch (IOException e) {
+        decoded = null;
+      }
+
+      if (decoded != null) {
+        out.writeByte(FORMAT_BYTES);
+        JobCodec.writeBytes(out, decoded);
+      } else {
+        out.writeByte(FORMAT_TEXT);
+        JobCodec.writeString(out, job.data);
+      }
+    }
+
+    @Override
+    public PushReceiveJob read(Context context, int version, DataInputStream in) throws IOException {
+      int format = in.readUnsignedByte();
+
+      if (format == FORMAT_BYTES) return new PushReceiveJob(context, Base64.encodeBytes(JobCodec.readBytes(in)));
+      else                        return new PushReceiveJob(context, JobCodec.readString(in));
+    }
+  }
 }
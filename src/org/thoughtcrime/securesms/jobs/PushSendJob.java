@@ -6,10 +6,12 @@ import android.util.Log;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
+import org.thoughtcrime.securesms.jobs.requirements.RateLimitRequirement;
 import org.thoughtcrime.securesms.mms.PartAuthority;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.Recipients;
+import org.thoughtcrime.securesms.transport.RetryLaterException;
 import org.thoughtcrime.securesms.util.GroupUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.Util;
@@ -19,6 +21,7 @@ import org.whispersystems.textsecure.api.messages.TextSecureAttachment;
 import org.whispersystems.textsecure.api.messages.TextSecureAttachmentStream;
 import org.thoughtcrime.securesms.database.TextSecureDirectory;
 import org.whispersystems.textsecure.api.push.PushAddress;
+import org.whispersystems.textsecure.api.push.exceptions.RateLimitException;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.ByteArrayInputStream;
@@ -33,6 +36,8 @@ import ws.com.google.android.mms.pdu.SendReq;
 
 public abstract class PushSendJob extends MasterSecretJob {
 
+  private static final long serialVersionUID = 1467470236925847611L;
+
   private static final String TAG = PushSendJob.class.getSimpleName();
 
   protected PushSendJob(Context context, JobParameters parameters) {
@@ -47,12 +52,29 @@ public abstract class PushSendJob extends MasterSecretJob {
 
     if (!isSmsFallbackSupported(context, destination, media)) {
       builder.withRequirement(new NetworkRequirement(context));
+      builder.withRequirement(new RateLimitRequirement(context));
       builder.withRetryCount(5);
     }
 
     return builder.create();
   }
 
+  /**
+   * A rate limited send goes back on the queue, held there until the limit should
+   * have passed, rather than being retried straight away.
+   */
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    Throwable cause = exception instanceof RetryLaterException ? exception.getCause() : exception;
+
+    if (cause instanceof RateLimitException) {
+      RateLimitRequirement.retryAfter(context, ((RateLimitException)cause).getRetryAfterMillis());
+      return true;
+    }
+
+    return super.onShouldRetry(exception);
+  }
+
   protected static boolean isSmsFallbackSupported(Context context, String destination, boolean media) {
     try {
       String e164number = Util.canonicalizeNumber(context, destination);
@@ -34,6 +34,8 @@ import static org.thoughtcrime.securesms.dependencies.TextSecureCommunicationMod
 
 public class PushTextSendJob extends PushSendJob implements InjectableType {
 
+  private static final long serialVersionUID = 17479930818332639L;
+
   private static final String TAG = PushTextSendJob.class.getSimpleName();
 
   @Inject transient TextSecureMessageSenderFactory messageSenderFactory;
@@ -40,6 +40,8 @@ import java.io.IOException;
 
 public class SmsDecryptJob extends MasterSecretJob {
 
+  private static final long serialVersionUID = 9183365023059723119L;
+
   private static final String TAG = SmsDecryptJob.class.getSimpleName();
 
   private final long messageId;
@@ -22,6 +22,8 @@ import java.util.List;
 
 public class SmsReceiveJob extends ContextJob {
 
+  private static final long serialVersionUID = 3230162264531200262L;
+
   private static final String TAG = SmsReceiveJob.class.getSimpleName();
 
   private static MultipartSmsMessageHandler multipartMessageHandler = new MultipartSmsMessageHandler();
@@ -40,7 +42,7 @@ public class SmsReceiveJob extends ContextJob {
   public void onAdded() {}
 
   @Override
-  public void onRun() {
+  protected void execute() {
     Optional<IncomingTextMessage> message = assembleMessageFragments(pdus);
 
     if (message.isPresent()) {
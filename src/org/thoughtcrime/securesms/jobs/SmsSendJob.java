@@ -32,6 +32,8 @@ import java.util.ArrayList;
 
 public class SmsSendJob extends MasterSecretJob {
 
+  private static final long serialVersionUID = -6253626538187733068L;
+
   private static final String TAG = SmsSendJob.class.getSimpleName();
 
   private final long messageId;
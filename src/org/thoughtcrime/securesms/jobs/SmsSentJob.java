@@ -21,6 +21,8 @@ import org.whispersystems.libaxolotl.state.SessionStore;
 
 public class SmsSentJob extends MasterSecretJob {
 
+  private static final long serialVersionUID = -2624694558755317560L;
+
   private static final String TAG = SmsSentJob.class.getSimpleName();
 
   private final long   messageId;
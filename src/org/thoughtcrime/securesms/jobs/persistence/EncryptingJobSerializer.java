@@ -1,7 +1,14 @@
 package org.thoughtcrime.securesms.jobs.persistence;
 
+import android.content.Context;
+
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob;
+import org.thoughtcrime.securesms.jobs.DeliveryReceiptJob;
+import org.thoughtcrime.securesms.jobs.PushDecryptJob;
+import org.thoughtcrime.securesms.jobs.PushReceiveJob;
+import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.ParcelUtil;
 import org.whispersystems.jobqueue.EncryptionKeys;
 import org.whispersystems.jobqueue.Job;
@@ -11,24 +18,44 @@ import org.whispersystems.libaxolotl.InvalidMessageException;
 
 import java.io.IOException;
 
+/**
+ * Job types with a {@link JobCodec} entry are written as a compact binary record,
+ * encrypted as raw bytes when the job carries keys, and Base64 encoded once for the
+ * job queue's text column. They're marked with a prefix that can't appear in Base64,
+ * so everything else (other job types, and jobs queued before the codec existed)
+ * still goes through Java serialization.
+ */
 public class EncryptingJobSerializer implements JobSerializer {
 
+  private static final String BINARY_PREFIX = "~";
+
   private final JavaJobSerializer delegate;
+  private final JobCodec          codec;
 
-  public EncryptingJobSerializer() {
+  public EncryptingJobSerializer(Context context) {
     this.delegate = new JavaJobSerializer();
+    this.codec    = new JobCodec(context).register(1, PushReceiveJob.class, new PushReceiveJob.Codec())
+                                         .register(2, PushDecryptJob.class, new PushDecryptJob.Codec())
+                                         .register(3, DeliveryReceiptJob.class, new DeliveryReceiptJob.Codec())
+                                         .register(4, AttachmentDownloadJob.class, new AttachmentDownloadJob.Codec());
   }
 
   @Override
   public String serialize(Job job) throws IOException {
+    if (codec.canEncode(job)) {
+      byte[] encoded = codec.encode(job);
+
+      if (job.getEncryptionKeys() != null) {
+        encoded = getMasterCipher(job.getEncryptionKeys()).encryptBytes(encoded);
+      }
+
+      return BINARY_PREFIX + Base64.encodeBytes(encoded);
+    }
+
     String plaintext = delegate.serialize(job);
 
     if (job.getEncryptionKeys() != null) {
-      MasterSecret masterSecret = ParcelUtil.deserialize(job.getEncryptionKeys().getEncoded(),
-                                                         MasterSecret.CREATOR);
-      MasterCipher masterCipher = new MasterCipher(masterSecret);
-
-      return masterCipher.encryptBody(plaintext);
+      return getMasterCipher(job.getEncryptionKeys()).encryptBody(plaintext);
     } else {
       return plaintext;
     }
@@ -37,12 +64,20 @@ public class EncryptingJobSerializer implements JobSerializer {
   @Override
   public Job deserialize(EncryptionKeys keys, boolean encrypted, String serialized) throws IOException {
     try {
+      if (serialized.startsWith(BINARY_PREFIX)) {
+        byte[] encoded = Base64.decode(serialized.substring(BINARY_PREFIX.length()));
+
+        if (encrypted) {
+          encoded = getMasterCipher(keys).decryptBytes(encoded);
+        }
+
+        return codec.decode(encoded);
+      }
+
       String plaintext;
 
       if (encrypted) {
-        MasterSecret masterSecret = ParcelUtil.deserialize(keys.getEncoded(), MasterSecret.CREATOR);
-        MasterCipher masterCipher = new MasterCipher(masterSecret);
-        plaintext = masterCipher.decryptBody(serialized);
+        plaintext = getMasterCipher(keys).decryptBody(serialized);
       } else {
         plaintext = serialized;
       }
@@ -52,4 +87,9 @@ public class EncryptingJobSerializer implements JobSerializer {
       throw new IOException(e);
     }
   }
+
+  private MasterCipher getMasterCipher(EncryptionKeys keys) {
+    MasterSecret masterSecret = ParcelUtil.deserialize(keys.getEncoded(), MasterSecret.CREATOR);
+    return new MasterCipher(masterSecret);
+  }
 }
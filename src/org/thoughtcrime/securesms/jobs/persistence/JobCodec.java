@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.jobs.persistence;
+
+import android.content.Context;
+
+import org.whispersystems.jobqueue.Job;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact binary encoding for the job types we persist most often.
+ *
+ * Each record is a format version, a type id, and then whatever fields that job
+ * type's {@link FieldCodec} writes. Job parameters aren't stored, since the job's
+ * constructor rebuilds them when it's read back. Type ids are part of the on-disk
+ * format, so they must never be reused.
+ *
+ * Nor is a job's run count stored, which the job library keeps only in memory for Java
+ * serialized jobs too, so a job read back after a restart starts its retries over.
+ */
+public class JobCodec {
+
+  public static final int VERSION = 1;
+
+  public interface FieldCodec<T extends Job> {
+    public void write(T job, DataOutputStream out) throws IOException;
+    public T read(Context context, int version, DataInputStream in) throws IOException;
+  }
+
+  private final Context                           context;
+  private final Map<Class<? extends Job>, Integer> typeIds = new HashMap<>();
+  private final Map<Integer, FieldCodec<?>>       codecs  = new HashMap<>();
+
+  public JobCodec(Context context) {
+    this.context = context.getApplicationContext();
+  }
+
+  public <T extends Job> JobCodec register(int typeId, Class<T> type, FieldCodec<T> codec) {
+    if (codecs.containsKey(typeId)) {
+      throw new IllegalArgumentException("Type id already registered: " + typeId);
+    }
+
+    typeIds.put(type, typeId);
+    codecs.put(typeId, codec);
+
+    return this;
+  }
+
+  public boolean canEncode(Job job) {
+    return typeIds.containsKey(job.getClass());
+  }
+
+  @SuppressWarnings("unchecked")
+  public byte[] encode(Job job) throws IOException {
+    Integer typeId = typeIds.get(job.getClass());
+
+    if (typeId == null) {
+      throw new IOException("No codec for " + job.getClass().getName());
+    }
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+    DataOutputStream      out  = new DataOutputStream(baos);
+
+    out.writeByte(VERSION);
+    out.writeShort(typeId);
+    ((FieldCodec<Job>)codecs.get(typeId)).write(job, out);
+    out.flush();
+
+    return baos.toByteArray();
+  }
+
+  public Job decode(byte[] encoded) throws IOException {
+    DataInputStream in      = new DataInputStream(new ByteArrayInputStream(encoded));
+    int             version = in.readUnsignedByte();
+
+    if (version > VERSION) {
+      throw new IOException("Unsupported job format version: " + version);
+    }
+
+    int           typeId = in.readUnsignedShort();
+    FieldCodec<?> codec  = codecs.get(typeId);
+
+    if (codec == null) {
+      throw new IOException("Unknown job type: " + typeId);
+    }
+
+    return codec.read(context, version, in);
+  }
+
+  public static void writeString(DataOutputStream out, String value) throws IOException {
+    writeBytes(out, value == null ? null : value.getBytes("UTF-8"));
+  }
+
+  public static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = readBytes(in);
+    return bytes == null ? null : new String(bytes, "UTF-8");
+  }
+
+  public static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(value.length);
+      out.write(value);
+    }
+  }
+
+  public static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+
+    if (length < 0) {
+      return null;
+    }
+
+    byte[] value = new byte[length];
+    in.readFully(value);
+
+    return value;
+  }
+}
@@ -0,0 +1,33 @@
+package org.thoughtcrime.securesms.jobs.requirements;
+
+import android.content.Context;
+
+import org.thoughtcrime.securesms.jobs.AttachmentDownloadScheduler;
+import org.whispersystems.jobqueue.dependencies.ContextDependent;
+import org.whispersystems.jobqueue.requirements.Requirement;
+
+/**
+ * Holds an attachment download back until it's the most wanted one waiting, and
+ * while the network is metered or the battery is low if it's large.
+ */
+public class AttachmentDownloadRequirement implements Requirement, ContextDependent {
+
+  private final long messageId;
+
+  private transient Context context;
+
+  public AttachmentDownloadRequirement(Context context, long messageId) {
+    this.context   = context;
+    this.messageId = messageId;
+  }
+
+  @Override
+  public boolean isPresent() {
+    return AttachmentDownloadScheduler.getInstance().isRunnable(context, messageId);
+  }
+
+  @Override
+  public void setContext(Context context) {
+    this.context = context;
+  }
+}
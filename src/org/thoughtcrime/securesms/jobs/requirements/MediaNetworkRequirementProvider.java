@@ -0,0 +1,55 @@
+package org.thoughtcrime.securesms.jobs.requirements;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+
+import org.thoughtcrime.securesms.jobs.AttachmentDownloadScheduler;
+import org.whispersystems.jobqueue.requirements.RequirementListener;
+import org.whispersystems.jobqueue.requirements.RequirementProvider;
+
+/**
+ * Wakes the media lane when a held attachment download might be able to run: when
+ * the network or battery changes, or when the download order does. There's only one
+ * media lane, so there's only one of these.
+ */
+public class MediaNetworkRequirementProvider implements RequirementProvider {
+
+  private final BroadcastReceiver changeReceiver;
+
+  private volatile RequirementListener listener;
+
+  public MediaNetworkRequirementProvider(Context context) {
+    this.changeReceiver = new BroadcastReceiver() {
+      @Override
+      public void onReceive(Context context, Intent intent) {
+        RequirementListener listener = MediaNetworkRequirementProvider.this.listener;
+
+        if (listener != null) {
+          listener.onRequirementStatusChanged();
+        }
+      }
+    };
+
+    IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+    filter.addAction(Intent.ACTION_BATTERY_LOW);
+    filter.addAction(Intent.ACTION_BATTERY_OKAY);
+    filter.addAction(Intent.ACTION_POWER_CONNECTED);
+    filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+
+    context.registerReceiver(changeReceiver, filter);
+  }
+
+  @Override
+  public String getName() {
+    return "media-network";
+  }
+
+  @Override
+  public void setListener(RequirementListener listener) {
+    this.listener = listener;
+    AttachmentDownloadScheduler.getInstance().setListener(listener);
+  }
+}
@@ -0,0 +1,47 @@
+package org.thoughtcrime.securesms.jobs.requirements;
+
+import android.content.Context;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.jobs.LaneJobManager;
+import org.whispersystems.jobqueue.dependencies.ContextDependent;
+import org.whispersystems.jobqueue.requirements.Requirement;
+
+/**
+ * Holds a job back while requests to the push service are rate limited, so that it
+ * goes back on the queue rather than holding a consumer thread through the wait.
+ */
+public class RateLimitRequirement implements Requirement, ContextDependent {
+
+  private transient Context context;
+
+  public RateLimitRequirement(Context context) {
+    this.context = context;
+  }
+
+  @Override
+  public void setContext(Context context) {
+    this.context = context;
+  }
+
+  @Override
+  public boolean isPresent() {
+    RateLimitRequirementProvider provider = getProvider(context);
+    return provider == null || !provider.isRateLimited();
+  }
+
+  /**
+   * Holds back every job with this requirement for at least the given time.
+   */
+  public static void retryAfter(Context context, long millis) {
+    RateLimitRequirementProvider provider = getProvider(context);
+    if (provider != null) provider.retryAfter(millis);
+  }
+
+  private static RateLimitRequirementProvider getProvider(Context context) {
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    if (jobManager == null) return null;
+
+    return (RateLimitRequirementProvider)jobManager.getRequirementProvider(RateLimitRequirementProvider.NAME);
+  }
+}
@@ -0,0 +1,60 @@
+package org.thoughtcrime.securesms.jobs.requirements;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.whispersystems.jobqueue.requirements.RequirementListener;
+import org.whispersystems.jobqueue.requirements.RequirementProvider;
+
+public class RateLimitRequirementProvider implements RequirementProvider {
+
+  private static final String TAG = RateLimitRequirementProvider.class.getSimpleName();
+
+  public static final String NAME = "rate-limit";
+
+  private final Handler  handler = new Handler(Looper.getMainLooper());
+  private final Runnable expired = new Runnable() {
+    @Override
+    public void run() {
+      RequirementListener listener = RateLimitRequirementProvider.this.listener;
+
+      if (listener != null) {
+        listener.onRequirementStatusChanged();
+      }
+    }
+  };
+
+  private volatile RequirementListener listener;
+  private volatile long                retryAt;
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public void setListener(RequirementListener listener) {
+    this.listener = listener;
+  }
+
+  public boolean isRateLimited() {
+    return System.currentTimeMillis() < retryAt;
+  }
+
+  /**
+   * Extends the current hold, if it's shorter, to the given time from now, and lets
+   * the queue know to look at held jobs again once it's over.
+   */
+  public synchronized void retryAfter(long millis) {
+    long until = System.currentTimeMillis() + millis;
+
+    if (until > retryAt) {
+      Log.w(TAG, "Holding rate limited jobs for " + millis + "ms");
+
+      retryAt = until;
+      handler.removeCallbacks(expired);
+      handler.postDelayed(expired, millis);
+    }
+  }
+}
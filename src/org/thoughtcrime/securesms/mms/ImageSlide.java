@@ -29,11 +29,13 @@ import android.util.Log;
 import android.widget.ImageView;
 
 import org.thoughtcrime.securesms.R;
-import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.util.BitmapDecodingException;
 import org.thoughtcrime.securesms.util.BitmapUtil;
+import org.thoughtcrime.securesms.util.FutureTaskListener;
 import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.ListenableFutureTask;
 import org.thoughtcrime.securesms.util.SmilUtil;
+import org.thoughtcrime.securesms.util.TaskScheduler;
 import org.w3c.dom.smil.SMILDocument;
 import org.w3c.dom.smil.SMILMediaElement;
 import org.w3c.dom.smil.SMILRegionElement;
@@ -46,6 +48,7 @@ import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.pdu.PduPart;
@@ -93,6 +96,8 @@ public class ImageSlide extends Slide {
 
   @Override
   public void setThumbnailOn(ImageView imageView) {
+    cancelThumbnailOn(imageView);
+
     Drawable thumbnail = getCachedThumbnail();
 
     if (thumbnail != null) {
@@ -101,33 +106,76 @@ public class ImageSlide extends Slide {
       return;
     }
 
-    final ColorDrawable temporaryDrawable        = new ColorDrawable(Color.TRANSPARENT);
     final WeakReference<ImageView> weakImageView = new WeakReference<ImageView>(imageView);
     final Handler handler                        = new Handler();
     final int maxWidth                           = imageView.getWidth();
     final int maxHeight                          = imageView.getHeight();
 
-    imageView.setImageDrawable(temporaryDrawable);
+    imageView.setImageDrawable(new ColorDrawable(Color.TRANSPARENT));
 
     if (maxWidth == 0 || maxHeight == 0)
       return;
 
-    MmsDatabase.slideResolver.execute(new Runnable() {
+    Callable<Drawable> task = new Callable<Drawable>() {
+      @Override
+      public Drawable call() throws Exception {
+        return getThumbnail(maxWidth, maxHeight);
+      }
+    };
+
+    String key = "Thumbnail:" + part.getDataUri() + ":" + maxWidth + "x" + maxHeight;
+
+    // The request is kept in a tag on the view rather than anywhere static, and holds
+    // nothing that references the view, so it can't keep a recycled view (or its
+    // Activity) alive. It's cleared as soon as the thumbnail arrives.
+    final ThumbnailRequest request = new ThumbnailRequest(TaskScheduler.getInstance().submit(TaskScheduler.Lane.VISIBLE, key, task));
+
+    request.listener = new FutureTaskListener<Drawable>() {
       @Override
-      public void run() {
-        final Drawable  bitmap      = getThumbnail(maxWidth, maxHeight);
-        final ImageView destination = weakImageView.get();
-
-        if (destination != null && destination.getDrawable() == temporaryDrawable) {
-          handler.post(new Runnable() {
-            @Override
-            public void run() {
+      public void onSuccess(final Drawable bitmap) {
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            ImageView destination = weakImageView.get();
+
+            if (destination != null && destination.getTag(R.id.thumbnail_request_tag) == request) {
+              destination.setTag(R.id.thumbnail_request_tag, null);
               setThumbnailOn(destination, bitmap, false);
             }
-          });
-        }
+          }
+        });
+      }
+
+      @Override
+      public void onFailure(Throwable error) {
+        Log.w("ImageSlide", error);
+
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            ImageView destination = weakImageView.get();
+
+            if (destination != null && destination.getTag(R.id.thumbnail_request_tag) == request) {
+              destination.setTag(R.id.thumbnail_request_tag, null);
+            }
+          }
+        });
       }
-    });
+    };
+
+    imageView.setTag(R.id.thumbnail_request_tag, request);
+    request.task.addListener(request.listener);
+  }
+
+  @Override
+  public void cancelThumbnailOn(ImageView imageView) {
+    ThumbnailRequest request = (ThumbnailRequest)imageView.getTag(R.id.thumbnail_request_tag);
+
+    if (request != null) {
+      imageView.setTag(R.id.thumbnail_request_tag, null);
+      request.task.removeListener(request.listener);
+      TaskScheduler.getInstance().release(request.task, true);
+    }
   }
 
   private void setThumbnailOn(ImageView imageView, Drawable thumbnail, boolean fromMemory) {
@@ -181,6 +229,15 @@ public class ImageSlide extends Slide {
     return SmilUtil.createMediaElement("img", document, new String(getPart().getName()));
   }
 
+  private static class ThumbnailRequest {
+    private final ListenableFutureTask<Drawable> task;
+    private       FutureTaskListener<Drawable>   listener;
+
+    private ThumbnailRequest(ListenableFutureTask<Drawable> task) {
+      this.task = task;
+    }
+  }
+
   private static PduPart constructPartFromUri(Context context, MasterSecret masterSecret, Uri uri)
       throws IOException, BitmapDecodingException
   {
@@ -88,6 +88,11 @@ public abstract class Slide {
     imageView.setImageDrawable(getThumbnail(imageView.getWidth(), imageView.getHeight()));
   }
 
+  /**
+   * Gives up on any thumbnail still loading for this view, such as when its row is recycled.
+   */
+  public void cancelThumbnailOn(ImageView imageView) {}
+
   public boolean hasImage() {
     return false;
   }
@@ -29,6 +29,8 @@ import android.graphics.Color;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationCompat.BigTextStyle;
 import android.support.v4.app.NotificationCompat.InboxStyle;
@@ -43,6 +45,7 @@ import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.RoutingActivity;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsColumns;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.PushDatabase;
 import org.thoughtcrime.securesms.database.SmsDatabase;
@@ -53,11 +56,21 @@ import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.service.KeyCachingService;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.thoughtcrime.securesms.util.VisibleForTesting;
 import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import me.leolin.shortcutbadger.ShortcutBadger;
@@ -66,20 +79,52 @@ import me.leolin.shortcutbadger.ShortcutBadger;
 /**
  * Handles posting system notifications for new messages.
  *
+ * Updates are coalesced: the first request schedules a rebuild on a background
+ * thread a short time later, and any requests which arrive before it runs are
+ * folded into it, along with the threads they name.
+ *
+ * The unread messages are kept in memory by thread between rebuilds. A rebuild
+ * only reloads the threads which were named, and checks the result against the
+ * threads' unread counts; anything else, like a thread being read, reloads them all.
+ * A message's recipients are resolved and its body decrypted once rather than on
+ * every update.
  *
  * @author Moxie Marlinspike
  */
 
 public class MessageNotifier {
 
+  private static final String TAG = MessageNotifier.class.getSimpleName();
+
   public static final int NOTIFICATION_ID = 1338;
 
+  private static final long DEBOUNCE_MILLIS = 500;
+
+  private static final Handler handler;
+
+  static {
+    HandlerThread thread = new HandlerThread(TAG);
+    thread.start();
+    handler = new Handler(thread.getLooper());
+  }
+
   private volatile static long visibleThread = -1;
 
+  private static PendingUpdate pendingUpdate;
+
+  // Only touched from the handler thread.
+  private static Map<Long, List<UnreadItem>> unreadItems    = new HashMap<>();
+  private static boolean                     unreadLoaded   = false;
+  private static boolean                     unreadUnlocked = false;
+
   public static void setVisibleThread(long threadId) {
     visibleThread = threadId;
   }
 
+  public static long getVisibleThread() {
+    return visibleThread;
+  }
+
   public static void notifyMessageDeliveryFailed(Context context, Recipients recipients, long threadId) {
     if (visibleThread == threadId) {
       sendInThreadNotification(context);
@@ -111,7 +156,7 @@ public class MessageNotifier {
       return;
     }
 
-    updateNotification(context, masterSecret, false, 0);
+    scheduleUpdate(context, masterSecret, false, 0, null);
   }
 
   public static void updateNotification(Context context, MasterSecret masterSecret, long threadId) {
@@ -122,30 +167,88 @@ public class MessageNotifier {
     if (visibleThread == threadId) {
       DatabaseFactory.getThreadDatabase(context).setRead(threadId);
       sendInThreadNotification(context);
+    } else if (threadId < 0) {
+      scheduleUpdate(context, masterSecret, true, 0, null);
     } else {
-      updateNotification(context, masterSecret, true, 0);
+      scheduleUpdate(context, masterSecret, true, 0, Collections.singleton(threadId));
+    }
+  }
+
+  /**
+   * Posts a single update for a batch of new messages which may span several threads.
+   */
+  public static void updateNotification(Context context, MasterSecret masterSecret, Collection<Long> threadIds) {
+    if (!TextSecurePreferences.isNotificationsEnabled(context) || threadIds.isEmpty()) {
+      return;
+    }
+
+    long    visible      = visibleThread;
+    boolean otherThreads = false;
+
+    for (long threadId : threadIds) {
+      if (threadId != visible) otherThreads = true;
+    }
+
+    if (threadIds.contains(visible)) {
+      DatabaseFactory.getThreadDatabase(context).setRead(visible);
+    }
+
+    if (otherThreads) scheduleUpdate(context, masterSecret, true, 0, threadIds);
+    else              sendInThreadNotification(context);
+  }
+
+  /**
+   * @param threadIds the threads with new messages, or null if any thread may have changed.
+   */
+  private static synchronized void scheduleUpdate(Context context, MasterSecret masterSecret,
+                                                  boolean signal, int reminderCount,
+                                                  Collection<Long> threadIds)
+  {
+    if (pendingUpdate == null) {
+      pendingUpdate = new PendingUpdate(context.getApplicationContext(), masterSecret, signal, reminderCount);
+      handler.postDelayed(new Runnable() {
+        @Override
+        public void run() {
+          updateNotification(takePendingUpdate());
+        }
+      }, DEBOUNCE_MILLIS);
     }
+
+    pendingUpdate.merge(masterSecret, signal, reminderCount, threadIds);
   }
 
-  private static void updateNotification(Context context, MasterSecret masterSecret, boolean signal, int reminderCount) {
-    Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
+  private static synchronized PendingUpdate takePendingUpdate() {
+    PendingUpdate update = pendingUpdate;
+    pendingUpdate = null;
+    return update;
+  }
+
+  private static void updateNotification(PendingUpdate update) {
+    Context      context       = update.context;
+    MasterSecret masterSecret  = update.masterSecret;
+    boolean      signal        = update.signal;
+    int          reminderCount = update.reminderCount;
+    Cursor       pushCursor    = null;
 
     try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
-      pushCursor  = DatabaseFactory.getPushDatabase(context).getPending();
+      long unreadCount  = DatabaseFactory.getThreadDatabase(context).getTotalUnreadCount();
+      pushCursor        = DatabaseFactory.getPushDatabase(context).getPending();
+      int  pendingCount = pushCursor == null ? 0 : pushCursor.getCount();
 
-      if ((telcoCursor == null || telcoCursor.isAfterLast()) &&
-          (pushCursor == null || pushCursor.isAfterLast()))
-      {
+      if (unreadCount == 0 && pendingCount == 0) {
         ((NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE))
           .cancel(NOTIFICATION_ID);
         updateBadge(context, 0);
         clearReminder(context);
+        unreadItems.clear();
+        unreadLoaded   = true;
+        unreadUnlocked = masterSecret != null;
         return;
       }
 
-      NotificationState notificationState = constructNotificationState(context, masterSecret, telcoCursor);
+      updateUnreadItems(context, masterSecret, update.allThreads ? null : update.threadIds, unreadCount);
+
+      NotificationState notificationState = constructNotificationState();
 
       appendPushNotificationState(context, masterSecret, notificationState, pushCursor);
 
@@ -155,11 +258,10 @@ public class MessageNotifier {
         sendSingleThreadNotification(context, masterSecret, notificationState, signal);
       }
 
-      updateBadge(context, notificationState.getMessageCount());
+      updateBadge(context, (int)unreadCount + (masterSecret == null ? pendingCount : 0));
       scheduleReminder(context, masterSecret, reminderCount);
     } finally {
-      if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
+      if (pushCursor != null) pushCursor.close();
     }
   }
 
@@ -333,41 +435,174 @@ public class MessageNotifier {
     }
   }
 
-  private static NotificationState constructNotificationState(Context context,
-                                                              MasterSecret masterSecret,
-                                                              Cursor cursor)
+  /**
+   * Brings the in-memory unread messages up to date.
+   *
+   * @param threadIds the threads to reload, or null to reload every thread.
+   * @param unreadCount the total of the threads' unread counts, which the result must match.
+   * @return true if every thread was reloaded.
+   */
+  @VisibleForTesting
+  static boolean updateUnreadItems(Context context, MasterSecret masterSecret,
+                                   Set<Long> threadIds, long unreadCount)
   {
-    NotificationState notificationState = new NotificationState();
-    MessageRecord record;
-    MmsSmsDatabase.Reader reader;
+    if (threadIds != null && unreadLoaded && unreadUnlocked == (masterSecret != null)) {
+      for (long threadId : threadIds) {
+        List<UnreadItem> previous = unreadItems.remove(threadId);
+        Cursor           cursor   = DatabaseFactory.getMmsSmsDatabase(context).getUnread(threadId);
+
+        unreadItems.putAll(readUnreadItems(context, masterSecret, cursor, previous));
+      }
+
+      if (getUnreadItemCount() == unreadCount) {
+        return false;
+      }
+
+      Log.w(TAG, "Unread messages out of step with the thread counts, reloading them all.");
+    }
+
+    List<UnreadItem> previous = new LinkedList<>();
+
+    if (unreadUnlocked == (masterSecret != null)) {
+      for (List<UnreadItem> items : unreadItems.values()) {
+        previous.addAll(items);
+      }
+    }
+
+    Cursor cursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
+
+    unreadItems    = readUnreadItems(context, masterSecret, cursor, previous);
+    unreadLoaded   = true;
+    unreadUnlocked = masterSecret != null;
+
+    return true;
+  }
+
+  @VisibleForTesting
+  static List<?> getUnreadItems(long threadId) {
+    return unreadItems.get(threadId);
+  }
+
+  /**
+   * Reads unread messages by thread. Items in {@code previous} are reused for the
+   * messages they were built for, unless they're placeholders for encrypted bodies.
+   */
+  private static Map<Long, List<UnreadItem>> readUnreadItems(Context context,
+                                                             MasterSecret masterSecret,
+                                                             Cursor cursor,
+                                                             List<UnreadItem> previous)
+  {
+    Map<Long, List<UnreadItem>> items = new HashMap<>();
+    Map<String, UnreadItem>     reuse = new HashMap<>();
+    MmsSmsDatabase.Reader       reader;
+
+    if (previous != null) {
+      for (UnreadItem item : previous) {
+        if (item.isFinal) reuse.put(item.key, item);
+      }
+    }
 
     if (masterSecret == null) reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
     else                      reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor, masterSecret);
 
-    while ((record = reader.getNext()) != null) {
-      Recipient       recipient        = record.getIndividualRecipient();
-      Recipients      recipients       = record.getRecipients();
-      long            threadId         = record.getThreadId();
-      SpannableString body             = record.getDisplayBody();
-      Uri             image            = null;
-      Recipients      threadRecipients = null;
+    try {
+      while (cursor != null && cursor.moveToNext()) {
+        String     key  = getItemKey(cursor);
+        UnreadItem item = reuse.get(key);
+
+        if (item == null) {
+          MessageRecord record       = reader.getCurrent();
+          long          dateReceived = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
 
-      if (threadId != -1) {
-        threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
+          item = new UnreadItem(key, dateReceived, isFinal(record), constructNotificationItem(context, record));
+        }
+
+        List<UnreadItem> threadItems = items.get(item.notification.getThreadId());
+
+        if (threadItems == null) {
+          threadItems = new LinkedList<>();
+          items.put(item.notification.getThreadId(), threadItems);
+        }
+
+        threadItems.add(item);
       }
+    } finally {
+      if (cursor != null) reader.close();
+    }
 
-      if (SmsDatabase.Types.isDecryptInProgressType(record.getType()) || !record.getBody().isPlaintext()) {
-        body = new SpannableString(context.getString(R.string.MessageNotifier_encrypted_message));
-        body.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), 0, body.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    return items;
+  }
+
+  @VisibleForTesting
+  static int getUnreadItemCount() {
+    int count = 0;
+
+    for (List<UnreadItem> items : unreadItems.values()) {
+      count += items.size();
+    }
+
+    return count;
+  }
+
+  private static NotificationState constructNotificationState() {
+    NotificationState notificationState = new NotificationState();
+    List<UnreadItem>  items             = new ArrayList<>();
+
+    for (List<UnreadItem> threadItems : unreadItems.values()) {
+      items.addAll(threadItems);
+    }
+
+    Collections.sort(items, new Comparator<UnreadItem>() {
+      @Override
+      public int compare(UnreadItem lhs, UnreadItem rhs) {
+        if      (lhs.dateReceived < rhs.dateReceived) return -1;
+        else if (lhs.dateReceived > rhs.dateReceived) return 1;
+        else                                          return 0;
       }
+    });
 
-      notificationState.addNotification(new NotificationItem(recipient, recipients, threadRecipients, threadId, body, image));
+    for (UnreadItem item : items) {
+      notificationState.addNotification(item.notification);
     }
 
-    reader.close();
     return notificationState;
   }
 
+  private static NotificationItem constructNotificationItem(Context context, MessageRecord record) {
+    Recipient       recipient        = record.getIndividualRecipient();
+    Recipients      recipients       = record.getRecipients();
+    long            threadId         = record.getThreadId();
+    SpannableString body             = record.getDisplayBody();
+    Uri             image            = null;
+    Recipients      threadRecipients = null;
+
+    if (threadId != -1) {
+      threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
+    }
+
+    if (!isFinal(record)) {
+      body = new SpannableString(context.getString(R.string.MessageNotifier_encrypted_message));
+      body.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), 0, body.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    return new NotificationItem(recipient, recipients, threadRecipients, threadId, body, image);
+  }
+
+  /**
+   * A message which is still encrypted keeps the same row once it's decrypted, so
+   * its placeholder item is never kept for reuse.
+   */
+  private static boolean isFinal(MessageRecord record) {
+    return !SmsDatabase.Types.isDecryptInProgressType(record.getType()) && record.getBody().isPlaintext();
+  }
+
+  private static String getItemKey(Cursor cursor) {
+    String transport = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
+    long   id        = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
+
+    return transport + ":" + id;
+  }
+
   private static void setNotificationAlarms(Context context,
                                             NotificationCompat.Builder builder,
                                             boolean signal)
@@ -431,6 +666,48 @@ public class MessageNotifier {
     alarmManager.cancel(pendingIntent);
   }
 
+  private static class UnreadItem {
+    private final String           key;
+    private final long             dateReceived;
+    private final boolean          isFinal;
+    private final NotificationItem notification;
+
+    private UnreadItem(String key, long dateReceived, boolean isFinal, NotificationItem notification) {
+      this.key          = key;
+      this.dateReceived = dateReceived;
+      this.isFinal      = isFinal;
+      this.notification = notification;
+    }
+  }
+
+  private static class PendingUpdate {
+    private final Context   context;
+    private final Set<Long> threadIds = new HashSet<>();
+
+    private MasterSecret masterSecret;
+    private boolean      signal;
+    private int          reminderCount;
+    private boolean      allThreads;
+
+    private PendingUpdate(Context context, MasterSecret masterSecret, boolean signal, int reminderCount) {
+      this.context       = context;
+      this.masterSecret  = masterSecret;
+      this.signal        = signal;
+      this.reminderCount = reminderCount;
+    }
+
+    private void merge(MasterSecret masterSecret, boolean signal, int reminderCount,
+                       Collection<Long> threadIds)
+    {
+      this.masterSecret  = masterSecret;
+      this.signal        = this.signal || signal;
+      this.reminderCount = Math.min(this.reminderCount, reminderCount);
+
+      if (threadIds == null) this.allThreads = true;
+      else                   this.threadIds.addAll(threadIds);
+    }
+  }
+
   public static class ReminderReceiver extends BroadcastReceiver {
 
     public static final String REMINDER_ACTION = "org.thoughtcrime.securesms.MessageNotifier.REMINDER_ACTION";
@@ -439,7 +716,8 @@ public class MessageNotifier {
     public void onReceive(Context context, Intent intent) {
       MasterSecret masterSecret  = KeyCachingService.getMasterSecret(context);
       int          reminderCount = intent.getIntExtra("reminder_count", 0);
-      MessageNotifier.updateNotification(context, masterSecret, true, reminderCount + 1);
+      MessageNotifier.scheduleUpdate(context, masterSecret, true, reminderCount + 1,
+                                     Collections.<Long>emptySet());
     }
   }
 
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.preferences;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
@@ -14,12 +15,14 @@ import org.thoughtcrime.securesms.LogSubmitActivity;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.contacts.ContactAccessor;
 import org.thoughtcrime.securesms.contacts.ContactIdentityManager;
+import org.thoughtcrime.securesms.push.PushRequestMetrics;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 
 public class AdvancedPreferenceFragment extends PreferenceFragment {
   private static final String TAG = AdvancedPreferenceFragment.class.getSimpleName();
 
-  private static final String SUBMIT_DEBUG_LOG_PREF = "pref_submit_debug_logs";
+  private static final String SUBMIT_DEBUG_LOG_PREF     = "pref_submit_debug_logs";
+  private static final String PUSH_REQUEST_METRICS_PREF = "pref_push_request_metrics";
 
   private static final int PICK_IDENTITY_CONTACT = 1;
 
@@ -32,6 +35,8 @@ public class AdvancedPreferenceFragment extends PreferenceFragment {
 
     this.findPreference(SUBMIT_DEBUG_LOG_PREF)
       .setOnPreferenceClickListener(new SubmitDebugLogListener());
+    this.findPreference(PUSH_REQUEST_METRICS_PREF)
+      .setOnPreferenceClickListener(new PushRequestMetricsListener());
   }
 
   @Override
@@ -92,9 +97,25 @@ public class AdvancedPreferenceFragment extends PreferenceFragment {
   private class SubmitDebugLogListener implements Preference.OnPreferenceClickListener {
     @Override
     public boolean onPreferenceClick(Preference preference) {
+      PushRequestMetrics.getInstance().log();
+
       final Intent intent = new Intent(getActivity(), LogSubmitActivity.class);
       startActivity(intent);
       return true;
     }
   }
+
+  private class PushRequestMetricsListener implements Preference.OnPreferenceClickListener {
+    @Override
+    public boolean onPreferenceClick(Preference preference) {
+      String summary = PushRequestMetrics.getInstance().getSummary();
+
+      new AlertDialog.Builder(getActivity())
+          .setTitle(R.string.preferences__push_request_statistics)
+          .setMessage(summary.length() == 0 ? getString(R.string.preferences__no_push_requests_yet) : summary)
+          .setPositiveButton(android.R.string.ok, null)
+          .show();
+      return true;
+    }
+  }
 }
@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.push;
+
+import android.util.Log;
+
+import org.whispersystems.textsecure.api.push.RequestMetrics;
+import org.whispersystems.textsecure.api.push.RequestMetrics.RetryCause;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregates the push service's per-request metrics by endpoint, so that we can see
+ * which API calls the time spent talking to the server goes to. Summaries are sorted
+ * by total time, and written to the log every so often so that they end up in
+ * submitted debug logs.
+ */
+public class PushRequestMetrics implements RequestMetrics.Listener {
+
+  private static final String TAG = PushRequestMetrics.class.getSimpleName();
+
+  private static final int    REPORT_INTERVAL = 100;
+  private static final long[] BUCKETS         = {50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+  private static final PushRequestMetrics instance = new PushRequestMetrics();
+
+  private final Map<String, EndpointMetrics> endpoints = new HashMap<>();
+
+  private long count;
+
+  public static PushRequestMetrics getInstance() {
+    return instance;
+  }
+
+  private PushRequestMetrics() {}
+
+  @Override
+  public void onRequestCompleted(RequestMetrics metrics) {
+    boolean report;
+
+    synchronized (this) {
+      String          key      = metrics.getMethod() + " " + metrics.getEndpoint();
+      EndpointMetrics endpoint = endpoints.get(key);
+
+      if (endpoint == null) {
+        endpoint = new EndpointMetrics(key);
+        endpoints.put(key, endpoint);
+      }
+
+      endpoint.record(metrics);
+      report = ++count % REPORT_INTERVAL == 0;
+    }
+
+    if (report) {
+      log();
+    }
+  }
+
+  public void log() {
+    Log.w(TAG, "Push requests:\n" + getSummary());
+  }
+
+  public synchronized void clear() {
+    endpoints.clear();
+    count = 0;
+  }
+
+  /**
+   * @return the request and response body bytes counted so far for one endpoint,
+   *         such as "PUT" "/v1/directory/tokens". Includes requests from any thread.
+   */
+  public synchronized long getTransferredBytes(String method, String endpoint) {
+    EndpointMetrics metrics = endpoints.get(method + " " + endpoint);
+    return metrics == null ? 0 : metrics.requestBytes + metrics.responseBytes;
+  }
+
+  public synchronized String getSummary() {
+    List<EndpointMetrics> sorted = new ArrayList<>(endpoints.values());
+
+    Collections.sort(sorted, new Comparator<EndpointMetrics>() {
+      @Override
+      public int compare(EndpointMetrics lhs, EndpointMetrics rhs) {
+        if      (lhs.totalLatency > rhs.totalLatency) return -1;
+        else if (lhs.totalLatency < rhs.totalLatency) return 1;
+        else                                          return 0;
+      }
+    });
+
+    StringBuilder summary = new StringBuilder();
+
+    for (EndpointMetrics endpoint : sorted) {
+      summary.append(endpoint).append('\n');
+    }
+
+    return summary.toString();
+  }
+
+  private static class EndpointMetrics {
+    private final String                name;
+    private final long[]                histogram   = new long[BUCKETS.length + 1];
+    private final Map<Integer, Long>    statuses    = new TreeMap<>();
+    private final Map<RetryCause, Long> retryCauses = new EnumMap<>(RetryCause.class);
+
+    private long count;
+    private long totalLatency;
+    private long maxLatency;
+    private long requestBytes;
+    private long responseBytes;
+
+    private EndpointMetrics(String name) {
+      this.name = name;
+    }
+
+    private void record(RequestMetrics metrics) {
+      count++;
+      totalLatency  += metrics.getLatency();
+      maxLatency     = Math.max(maxLatency, metrics.getLatency());
+      requestBytes  += metrics.getRequestBytes();
+      responseBytes += metrics.getResponseBytes();
+
+      histogram[getBucket(metrics.getLatency())]++;
+      increment(statuses, metrics.getStatus());
+
+      if (metrics.getRetryCause() != null) {
+        increment(retryCauses, metrics.getRetryCause());
+      }
+    }
+
+    private int getBucket(long latency) {
+      for (int i=0;i<BUCKETS.length;i++) {
+        if (latency < BUCKETS[i]) return i;
+      }
+
+      return BUCKETS.length;
+    }
+
+    private <K> void increment(Map<K, Long> counts, K key) {
+      Long current = counts.get(key);
+      counts.put(key, current == null ? 1 : current + 1);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder(name);
+
+      builder.append(": ").append(count).append(" requests, ")
+             .append(totalLatency).append("ms total, ")
+             .append(totalLatency / count).append("ms average, ")
+             .append(maxLatency).append("ms max, ")
+             .append(requestBytes).append("B out, ")
+             .append(responseBytes).append("B in")
+             .append("\n  status ").append(statuses);
+
+      if (!retryCauses.isEmpty()) {
+        builder.append(", retries ").append(retryCauses);
+      }
+
+      builder.append("\n  latency");
+
+      for (int i=0;i<histogram.length;i++) {
+        if (histogram[i] == 0) continue;
+
+        builder.append(' ')
+               .append(i < BUCKETS.length ? "<" + BUCKETS[i] : ">=" + BUCKETS[BUCKETS.length - 1])
+               .append("ms:").append(histogram[i]);
+      }
+
+      return builder.toString();
+    }
+  }
+}
@@ -32,19 +32,17 @@ import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.GroupUtil;
 import org.thoughtcrime.securesms.util.LRUCache;
-import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.ListenableFutureTask;
+import org.thoughtcrime.securesms.util.TaskScheduler;
 
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 
 public class RecipientProvider {
 
-  private static final Map<Long,Recipient> recipientCache         = Collections.synchronizedMap(new LRUCache<Long,Recipient>(1000));
-  private static final ExecutorService     asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final Map<Long,Recipient> recipientCache = Collections.synchronizedMap(new LRUCache<Long,Recipient>(1000));
 
   private static final String[] CALLER_ID_PROJECTION = new String[] {
     PhoneLookup.DISPLAY_NAME,
@@ -104,9 +102,9 @@ public class RecipientProvider {
       }
     };
 
-    ListenableFutureTask<RecipientDetails> future = new ListenableFutureTask<RecipientDetails>(task);
-
-    asyncRecipientResolver.submit(future);
+    ListenableFutureTask<RecipientDetails> future = TaskScheduler.getInstance().submit(TaskScheduler.Lane.VISIBLE,
+                                                                                       "Recipient:" + recipientId,
+                                                                                       task);
 
     Bitmap contactPhoto;
     Bitmap contactPhotoCropped;
@@ -142,10 +140,10 @@ public class RecipientProvider {
     try {
       if (cursor != null && cursor.moveToFirst()) {
         Uri contactUri      = Contacts.getLookupUri(cursor.getLong(2), cursor.getString(1));
-        Bitmap contactPhoto = ContactPhotoFactory.getContactPhoto(context, Uri.withAppendedPath(Contacts.CONTENT_URI,
-                                                                                                cursor.getLong(2)+""));
+        Uri photoUri        = Uri.withAppendedPath(Contacts.CONTENT_URI, cursor.getLong(2)+"");
+        Bitmap contactPhoto = ContactPhotoFactory.getContactPhoto(context, photoUri);
         return new RecipientDetails(cursor.getString(0), cursor.getString(3), contactUri, contactPhoto,
-                                    BitmapUtil.getCircleCroppedBitmap(contactPhoto));
+                                    ContactPhotoFactory.getCircleCroppedContactPhoto(context, photoUri));
       }
     } finally {
       if (cursor != null)
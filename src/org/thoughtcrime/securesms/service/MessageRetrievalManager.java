@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.service;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.Release;
+import org.thoughtcrime.securesms.dependencies.InjectableType;
+import org.thoughtcrime.securesms.jobs.PushReceiveJob;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.whispersystems.textsecure.api.TextSecureMessagePipe;
+import org.whispersystems.textsecure.api.TextSecureMessageReceiver;
+import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
+import org.whispersystems.textsecure.api.push.exceptions.NotFoundException;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+/**
+ * Keeps a {@link TextSecureMessagePipe} open while any of our activities is in the
+ * foreground, feeding incoming envelopes straight into the decrypt path rather than
+ * waiting for each one to arrive as its own GCM push and receive job. GCM still
+ * covers the rest of the time, and all of it when the server has no message stream.
+ */
+public class MessageRetrievalManager implements InjectableType {
+
+  private static final String TAG = MessageRetrievalManager.class.getSimpleName();
+
+  private static final long BACKGROUND_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  private static final long MIN_BACKOFF_MILLIS      = TimeUnit.SECONDS.toMillis(1);
+  private static final long MAX_BACKOFF_MILLIS      = TimeUnit.MINUTES.toMillis(1);
+
+  private static MessageRetrievalManager instance;
+
+  public static synchronized MessageRetrievalManager getInstance(Context context) {
+    if (instance == null) {
+      instance = new MessageRetrievalManager(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  // A new receiver for each pipe, so it has the credentials as they are when it opens.
+  @Inject Provider<TextSecureMessageReceiver> receiverProvider;
+
+  private final Context  context;
+  private final Handler  handler;
+  private final Runnable backgroundRunnable;
+
+  private          int             resumedActivities;
+  private          RetrievalThread thread;
+  private volatile boolean         unsupported;
+
+  private MessageRetrievalManager(Context context) {
+    this.context            = context;
+    this.handler            = new Handler(Looper.getMainLooper());
+    this.backgroundRunnable = new Runnable() {
+      @Override
+      public void run() {
+        stopRetrieval();
+      }
+    };
+
+    ApplicationContext.getInstance(context).injectDependencies(this);
+  }
+
+  /**
+   * Called on the main thread as one of our activities resumes.
+   */
+  public void onActivityResumed() {
+    resumedActivities++;
+    handler.removeCallbacks(backgroundRunnable);
+
+    if (thread == null && isSupported() && TextSecurePreferences.isPushRegistered(context)) {
+      thread = new RetrievalThread();
+      thread.start();
+    }
+  }
+
+  /**
+   * Called on the main thread as one of our activities pauses. The pipe is kept
+   * open for a little while, so moving between activities doesn't reconnect.
+   */
+  public void onActivityPaused() {
+    if (resumedActivities > 0 && --resumedActivities == 0) {
+      handler.postDelayed(backgroundRunnable, BACKGROUND_DELAY_MILLIS);
+    }
+  }
+
+  private boolean isSupported() {
+    return Release.MESSAGE_PIPE_SUPPORTED && !unsupported;
+  }
+
+  private void stopRetrieval() {
+    if (thread != null) {
+      thread.shutdown();
+      thread = null;
+    }
+  }
+
+  private class RetrievalThread extends Thread implements TextSecureMessagePipe.MessagePipeCallback {
+
+    private volatile boolean               stopped;
+    private          TextSecureMessagePipe pipe;
+
+    public RetrievalThread() {
+      super(TAG);
+    }
+
+    @Override
+    public void run() {
+      long backoff = MIN_BACKOFF_MILLIS;
+
+      while (!stopped) {
+        try {
+          TextSecureMessagePipe pipe = openPipe();
+
+          int count;
+
+          while (!stopped && (count = pipe.read(this)) != -1) {
+            Log.w(TAG, "Received " + count + " envelopes from the pipe");
+            backoff = MIN_BACKOFF_MILLIS;
+          }
+
+          Log.w(TAG, "Pipe closed");
+        } catch (NotFoundException e) {
+          Log.w(TAG, "Server has no message stream, leaving retrieval to GCM", e);
+          unsupported = true;
+          return;
+        } catch (SocketTimeoutException e) {
+          Log.w(TAG, "Pipe idle past its read timeout, reconnecting");
+          backoff = MIN_BACKOFF_MILLIS;
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        } finally {
+          closePipe();
+        }
+
+        try {
+          if (!stopped) Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          Log.w(TAG, ie);
+        }
+
+        backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+      }
+    }
+
+    @Override
+    public void onMessage(TextSecureEnvelope envelope) {
+      PushReceiveJob.handle(context, envelope);
+    }
+
+    private synchronized TextSecureMessagePipe openPipe() throws IOException {
+      if (!stopped) {
+        pipe = receiverProvider.get().createMessagePipe();
+        return pipe;
+      } else {
+        throw new IOException("Retrieval stopped");
+      }
+    }
+
+    private synchronized void closePipe() {
+      if (pipe != null) {
+        pipe.shutdown();
+        pipe = null;
+      }
+    }
+
+    public void shutdown() {
+      stopped = true;
+      closePipe();
+      interrupt();
+    }
+  }
+}
@@ -29,6 +29,7 @@ import org.thoughtcrime.securesms.database.NotInDirectoryException;
 import org.thoughtcrime.securesms.database.TextSecureDirectory;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.jobs.LaneJobManager;
 import org.thoughtcrime.securesms.jobs.MmsSendJob;
 import org.thoughtcrime.securesms.jobs.PushGroupSendJob;
 import org.thoughtcrime.securesms.jobs.PushMediaSendJob;
@@ -41,7 +42,6 @@ import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.util.GroupUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.Util;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.libaxolotl.util.guava.Optional;
 import org.whispersystems.textsecure.api.TextSecureAccountManager;
 import org.whispersystems.textsecure.api.push.ContactTokenDetails;
@@ -177,27 +177,27 @@ public class MessageSender {
   }
 
   private static void sendTextPush(Context context, Recipients recipients, long messageId) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
     jobManager.add(new PushTextSendJob(context, messageId, recipients.getPrimaryRecipient().getNumber()));
   }
 
   private static void sendMediaPush(Context context, Recipients recipients, long messageId) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
     jobManager.add(new PushMediaSendJob(context, messageId, recipients.getPrimaryRecipient().getNumber()));
   }
 
   private static void sendGroupPush(Context context, Recipients recipients, long messageId) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
     jobManager.add(new PushGroupSendJob(context, messageId, recipients.getPrimaryRecipient().getNumber()));
   }
 
   private static void sendSms(Context context, Recipients recipients, long messageId) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
     jobManager.add(new SmsSendJob(context, messageId, recipients.getPrimaryRecipient().getName()));
   }
 
   private static void sendMms(Context context, long messageId) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
     jobManager.add(new MmsSendJob(context, messageId));
   }
 
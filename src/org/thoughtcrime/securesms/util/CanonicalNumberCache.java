@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.util;
+
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
+import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memoizes {@link PhoneNumberFormatter#formatNumber(String, String)}, which is a full
+ * libphonenumber parse and format, for the receipt, directory and send paths.
+ *
+ * Results (including invalid numbers) are only valid for the local number they were
+ * computed against, so the whole cache is dropped whenever the local number changes.
+ */
+public class CanonicalNumberCache {
+
+  private static final int MAX_SIZE = 1000;
+
+  private static final CanonicalNumberCache instance = new CanonicalNumberCache();
+
+  private final AtomicInteger misses = new AtomicInteger();
+
+  private volatile Generation generation;
+
+  public static CanonicalNumberCache getInstance() {
+    return instance;
+  }
+
+  @VisibleForTesting
+  CanonicalNumberCache() {}
+
+  public String canonicalize(String localNumber, String number) throws InvalidNumberException {
+    Generation generation = getGeneration(localNumber);
+    Result     result     = generation.results.get(number);
+
+    if (result == null) {
+      misses.incrementAndGet();
+
+      try {
+        result = new Result(PhoneNumberFormatter.formatNumber(number, localNumber, generation.localRegion), null);
+      } catch (InvalidNumberException e) {
+        result = new Result(null, e.getMessage());
+      }
+
+      generation.results.put(number, result);
+    }
+
+    if (result.error != null) throw new InvalidNumberException(result.error);
+    else                      return result.number;
+  }
+
+  public void clear() {
+    generation = null;
+  }
+
+  /**
+   * @return how many times a number has had to be run through the formatter.
+   */
+  @VisibleForTesting
+  int getMissCount() {
+    return misses.get();
+  }
+
+  private Generation getGeneration(String localNumber) {
+    Generation current = generation;
+
+    if (current == null || !current.localNumber.equals(localNumber)) {
+      current    = new Generation(localNumber, PhoneNumberFormatter.getRegionCodeForNumber(localNumber));
+      generation = current;
+    }
+
+    return current;
+  }
+
+  private static class Generation {
+    private final String             localNumber;
+    private final String             localRegion;
+    private final Map<String,Result> results = Collections.synchronizedMap(new LRUCache<String,Result>(MAX_SIZE));
+
+    private Generation(String localNumber, String localRegion) {
+      this.localNumber = localNumber;
+      this.localRegion = localRegion;
+    }
+  }
+
+  private static class Result {
+    private final String number;
+    private final String error;
+
+    private Result(String number, String error) {
+      this.number = number;
+      this.error  = error;
+    }
+  }
+}
@@ -7,6 +7,7 @@ import android.widget.Toast;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.database.NotInDirectoryException;
 import org.thoughtcrime.securesms.database.TextSecureDirectory;
+import org.thoughtcrime.securesms.push.PushRequestMetrics;
 import org.thoughtcrime.securesms.push.TextSecureCommunicationFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.whispersystems.textsecure.api.TextSecureAccountManager;
@@ -14,6 +15,9 @@ import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -21,6 +25,12 @@ import java.util.Set;
 public class DirectoryHelper {
   private static final String TAG = DirectoryHelper.class.getSimpleName();
 
+  private static final int  LOOKUP_CHUNK_SIZE     = 500;
+  private static final long FULL_REFRESH_INTERVAL = 3 * 24 * 60 * 60 * 1000; // 3 days.
+
+  private static final String LOOKUP_METHOD   = "PUT";
+  private static final String LOOKUP_ENDPOINT = "/v1/directory/tokens";
+
   public static void refreshDirectoryWithProgressDialog(final Context context, final DirectoryUpdateFinishedListener listener) {
     if (!TextSecurePreferences.isPushRegistered(context)) {
       Toast.makeText(context.getApplicationContext(),
@@ -65,19 +75,78 @@ public class DirectoryHelper {
   public static void refreshDirectory(final Context context, final TextSecureAccountManager accountManager, final String localNumber)
       throws IOException
   {
-    TextSecureDirectory       directory              = TextSecureDirectory.getInstance(context);
-    Set<String>               eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber);
-    Map<String, String>       tokenMap               = DirectoryUtil.getDirectoryServerTokenMap(eligibleContactNumbers);
-    List<ContactTokenDetails> activeTokens           = accountManager.getContacts(tokenMap.keySet());
+    refreshDirectory(context, accountManager, localNumber, true);
+  }
+
+  /**
+   * Looks up only the contacts which haven't been looked up before, unless a full
+   * refresh is due, since the registration state of known contacts rarely changes
+   * and we also learn about it from incoming messages.
+   */
+  public static void refreshDirectoryChanges(final Context context) throws IOException {
+    long    lastFullRefresh = TextSecurePreferences.getDirectoryFullRefreshTime(context);
+    boolean full            = System.currentTimeMillis() - lastFullRefresh > FULL_REFRESH_INTERVAL;
+
+    refreshDirectory(context, TextSecureCommunicationFactory.createManager(context),
+                     TextSecurePreferences.getLocalNumber(context), full);
+  }
+
+  private static void refreshDirectory(Context context, TextSecureAccountManager accountManager,
+                                       String localNumber, boolean full)
+      throws IOException
+  {
+    long                startTime              = System.currentTimeMillis();
+    TextSecureDirectory directory              = TextSecureDirectory.getInstance(context);
+    Set<String>         eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber);
+    Map<String, String> cachedTokens           = directory.getTokens();
+    List<String>        tokens                 = new ArrayList<>();
+    Map<String, String> tokenMap               = new HashMap<>();
+
+    for (String number : eligibleContactNumbers) {
+      String token = cachedTokens.get(number);
+
+      if (token == null) {
+        token = DirectoryUtil.getDirectoryServerToken(number);
+      } else if (!full) {
+        continue;
+      }
+
+      tokens.add(token);
+      tokenMap.put(token, number);
+    }
+
+    PushRequestMetrics metrics     = PushRequestMetrics.getInstance();
+    long               bytesBefore = metrics.getTransferredBytes(LOOKUP_METHOD, LOOKUP_ENDPOINT);
+    int                updated     = 0;
+
+    for (int i=0;i<tokens.size();i+=LOOKUP_CHUNK_SIZE) {
+      Set<String>               chunk        = new HashSet<>(tokens.subList(i, Math.min(tokens.size(), i + LOOKUP_CHUNK_SIZE)));
+      List<ContactTokenDetails> activeTokens = accountManager.getContacts(chunk);
+      Map<String, String>       inactive     = new HashMap<>();
+
+      for (String token : chunk) {
+        inactive.put(token, tokenMap.get(token));
+      }
+
+      if (activeTokens == null) continue;
 
-    if (activeTokens != null) {
       for (ContactTokenDetails activeToken : activeTokens) {
-        eligibleContactNumbers.remove(tokenMap.get(activeToken.getToken()));
+        inactive.remove(activeToken.getToken());
         activeToken.setNumber(tokenMap.get(activeToken.getToken()));
       }
 
-      directory.setNumbers(activeTokens, eligibleContactNumbers);
+      updated += directory.updateNumbers(activeTokens, inactive);
+    }
+
+    if (full) {
+      TextSecurePreferences.setDirectoryFullRefreshTime(context, System.currentTimeMillis());
     }
+
+    long bytesTransferred = Math.max(0, metrics.getTransferredBytes(LOOKUP_METHOD, LOOKUP_ENDPOINT) - bytesBefore);
+
+    Log.w(TAG, (full ? "Full" : "Incremental") + " directory refresh: looked up " + tokens.size() +
+               " of " + eligibleContactNumbers.size() + " contacts (" + bytesTransferred + " bytes transferred), " +
+               updated + " changed, took " + (System.currentTimeMillis() - startTime) + "ms");
   }
 
   public static boolean isPushDestination(Context context, Recipients recipients) {
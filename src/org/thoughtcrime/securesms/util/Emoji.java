@@ -1,8 +1,11 @@
 package org.thoughtcrime.securesms.util;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.Paint;
@@ -10,9 +13,13 @@ import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
+import android.support.v4.util.LruCache;
 import android.text.Spannable;
 import android.text.SpannableString;
+import android.text.Spanned;
 import android.text.style.ImageSpan;
 import android.util.Log;
 import android.util.Pair;
@@ -26,17 +33,19 @@ import org.thoughtcrime.securesms.R;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.concurrent.ExecutorService;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 public class Emoji {
 
-  private static ExecutorService executor = Util.newSingleThreadedLifoExecutor();
-
   public static final int[][] PAGES = {
       {
           0x263a,  0x1f60a, 0x1f600, 0x1f601, 0x1f602, 0x1f603, 0x1f604, 0x1f605,
@@ -159,6 +168,9 @@ public class Emoji {
 
   private static final SparseArray<DrawInfo> offsets;
 
+  private static final int[]      SORTED_CODE_POINTS;
+  private static final DrawInfo[] SORTED_DRAW_INFO;
+
   static {
     offsets = new SparseArray<DrawInfo>();
     for (int i = 0; i < PAGES.length; i++) {
@@ -166,9 +178,33 @@ public class Emoji {
         offsets.put(PAGES[i][j], new DrawInfo(i, j));
       }
     }
+
+    SORTED_CODE_POINTS = new int[offsets.size()];
+    SORTED_DRAW_INFO   = new DrawInfo[offsets.size()];
+
+    for (int i = 0; i < offsets.size(); i++) {
+      SORTED_CODE_POINTS[i] = offsets.keyAt(i);
+      SORTED_DRAW_INFO[i]   = offsets.valueAt(i);
+    }
   }
 
-  private static Bitmap[] bitmaps = new Bitmap[PAGES.length];
+  private static final int EMOJI_CACHE_MAX_BYTES = (int)Math.min(4 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16);
+
+  private static final LruCache<Integer, Bitmap> tiles = new LruCache<Integer, Bitmap>(EMOJI_CACHE_MAX_BYTES) {
+    @Override
+    protected int sizeOf(Integer key, Bitmap value) {
+      return value.getRowBytes() * value.getHeight();
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, Integer key, Bitmap oldValue, Bitmap newValue) {
+      onTileRemoved(key >> 16);
+    }
+  };
+
+  private static final int[] cachedTilesPerPage = new int[PAGES.length];
+
+  private static final Map<Integer, List<PageLoadedListener>> pendingTiles = new HashMap<Integer, List<PageLoadedListener>>();
 
   private static Emoji instance = null;
 
@@ -180,10 +216,10 @@ public class Emoji {
     return instance;
   }
 
-  @SuppressWarnings("MalformedRegex")
-  //                                                            0x20a0-0x32ff          0x1f00-0x1fff              0xfe4e5-0xfe4ee
-  //                                                           |==== misc ====||======== emoticons ========||========= flags ==========|
-  private static final Pattern EMOJI_RANGE = Pattern.compile("[\\u20a0-\\u32ff\\ud83c\\udc00-\\ud83d\\udeff\\udbb9\\udce5-\\udbb9\\udcee]");
+  //                                     |==== misc ====||== emoticons ==||==== flags ====|
+  private static final int[][] EMOJI_RANGES = {{0x20a0, 0x32ff}, {0x1f000, 0x1f6ff}, {0xfe4e5, 0xfe4ee}};
+
+  private static final int SPAN_CACHE_SIZE = 100;
 
   public static final double EMOJI_HUGE       = 1.00;
   public static final double EMOJI_LARGE      = 0.75;
@@ -191,41 +227,77 @@ public class Emoji {
   public static final int    EMOJI_RAW_SIZE   =  128;
   public static final int    EMOJI_PER_ROW    =   16;
 
-  private final Context context;
-  private final int     bigDrawSize;
+  private final Context                            context;
+  private final int                                bigDrawSize;
+  private final TileDecoder                        tileDecoder;
+  private final Map<SpanCacheKey, CachedSpannable> spanCache;
 
   private Emoji(Context context) {
     this.context = context.getApplicationContext();
     this.bigDrawSize = context.getResources().getDimensionPixelSize(R.dimen.emoji_drawer_size);
+    this.spanCache   = Collections.synchronizedMap(new LRUCache<SpanCacheKey, CachedSpannable>(SPAN_CACHE_SIZE));
+
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1) {
+      this.tileDecoder = new RegionTileDecoder(this.context, bigDrawSize);
+    } else {
+      this.tileDecoder = new PageTileDecoder(this.context, bigDrawSize);
+    }
   }
 
-  private void preloadPage(final int page, final PageLoadedListener pageLoadListener) {
-    executor.submit(new Runnable() {
-      @Override
-      public void run() {
-        try {
-          loadPage(page);
-          if (pageLoadListener != null) pageLoadListener.onPageLoaded();
-        } catch (IOException ioe) {
-          Log.w("Emoji", ioe);
-        }
+  private void loadTileAsync(final DrawInfo drawInfo, final PageLoadedListener pageLoadListener) {
+    final int key = getTileKey(drawInfo);
+
+    synchronized (pendingTiles) {
+      List<PageLoadedListener> listeners = pendingTiles.get(key);
+
+      if (listeners == null) {
+        listeners = new LinkedList<PageLoadedListener>();
+        pendingTiles.put(key, listeners);
+        TaskScheduler.getInstance().execute(TaskScheduler.Lane.VISIBLE, new Runnable() {
+          @Override
+          public void run() {
+            List<PageLoadedListener> listeners;
+
+            try {
+              loadTile(drawInfo);
+            } catch (IOException ioe) {
+              Log.w("Emoji", ioe);
+            } finally {
+              synchronized (pendingTiles) {
+                listeners = pendingTiles.remove(key);
+              }
+            }
+
+            for (PageLoadedListener listener : listeners) {
+              listener.onPageLoaded();
+            }
+          }
+        });
       }
-    });
+
+      if (pageLoadListener != null && !listeners.contains(pageLoadListener)) {
+        listeners.add(pageLoadListener);
+      }
+    }
   }
 
-  private void loadPage(int page) throws IOException {
-    if (page < 0 || page >= PAGES.length) {
+  private void loadTile(DrawInfo drawInfo) throws IOException {
+    if (drawInfo.page < 0 || drawInfo.page >= PAGES.length) {
       throw new IndexOutOfBoundsException("can't load page that doesn't exist");
     }
 
-    if (bitmaps[page] != null) return;
+    final int key = getTileKey(drawInfo);
+
+    if (tiles.get(key) != null) return;
 
     try {
-      final String file = "emoji_" + page + "_wrapped.png";
-      final InputStream measureStream = context.getAssets().open(file);
-      final InputStream bitmapStream = context.getAssets().open(file);
+      Bitmap tile = tileDecoder.decodeTile(drawInfo);
+
+      synchronized (cachedTilesPerPage) {
+        cachedTilesPerPage[drawInfo.page]++;
+      }
 
-      bitmaps[page] = BitmapUtil.createScaledBitmap(measureStream, bitmapStream, (float) bigDrawSize / (float) EMOJI_RAW_SIZE);
+      tiles.put(key, tile);
     } catch (IOException ioe) {
       Log.w("Emoji", ioe);
       throw ioe;
@@ -235,6 +307,49 @@ public class Emoji {
     }
   }
 
+  /**
+   * Once the last cached tile from a page is evicted nobody is scrolling through it,
+   * so there's no reason to keep that page's decoder (and its native memory) around.
+   */
+  private static void onTileRemoved(int page) {
+    synchronized (cachedTilesPerPage) {
+      if (--cachedTilesPerPage[page] > 0) return;
+    }
+
+    Emoji emoji;
+
+    synchronized (Emoji.class) {
+      emoji = instance;
+    }
+
+    if (emoji != null) emoji.tileDecoder.releasePage(page);
+  }
+
+  @VisibleForTesting
+  static boolean isTileCached(DrawInfo drawInfo) {
+    return tiles.get(getTileKey(drawInfo)) != null;
+  }
+
+  @VisibleForTesting
+  static void evictTiles() {
+    tiles.evictAll();
+  }
+
+  private static int getTileKey(DrawInfo drawInfo) {
+    return (drawInfo.page << 16) | drawInfo.index;
+  }
+
+  private static String getPageAsset(int page) {
+    return "emoji_" + page + "_wrapped.png";
+  }
+
+  private static Rect getTileRect(int index, int tileSize) {
+    final int row      = index / EMOJI_PER_ROW;
+    final int rowIndex = index % EMOJI_PER_ROW;
+
+    return new Rect(rowIndex * tileSize, row * tileSize, (rowIndex + 1) * tileSize, (row + 1) * tileSize);
+  }
+
   public SpannableString emojify(String text, PageLoadedListener pageLoadedListener) {
     return emojify(new SpannableString(text), pageLoadedListener);
   }
@@ -243,25 +358,89 @@ public class Emoji {
     return emojify(text, EMOJI_LARGE, pageLoadedListener);
   }
 
+  /**
+   * Emojifies a message body, reusing the spans built the last time this message
+   * was bound at the same size as long as its text hasn't changed.
+   */
+  public SpannableString emojify(long messageId, boolean mms, SpannableString text,
+                                 double size, PageLoadedListener pageLoadedListener)
+  {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) return text;
+
+    SpanCacheKey    key    = new SpanCacheKey(messageId, mms, size);
+    String          source = text.toString();
+    CachedSpannable cached = spanCache.get(key);
+
+    if (cached != null && cached.source.equals(source)) {
+      for (DrawInfo drawInfo : cached.tiles) {
+        if (tiles.get(getTileKey(drawInfo)) == null) loadTileAsync(drawInfo, pageLoadedListener);
+      }
+
+      return cached.text;
+    }
+
+    SpannableString emojified = emojify(text, size, pageLoadedListener);
+    spanCache.put(key, new CachedSpannable(source, emojified, getDrawInfos(emojified)));
+
+    return emojified;
+  }
+
   public SpannableString emojify(SpannableString text, double size, PageLoadedListener pageLoadedListener) {
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) return text;
 
-    Matcher matches = EMOJI_RANGE.matcher(text);
+    final int length = text.length();
 
-    while (matches.find()) {
-      String resource = Integer.toHexString(matches.group().codePointAt(0));
+    for (int i = 0; i < length;) {
+      final int      codePoint = Character.codePointAt(text, i);
+      final int      charCount = Character.charCount(codePoint);
+      final DrawInfo drawInfo  = getDrawInfo(codePoint);
 
-      Drawable drawable = getEmojiDrawable(resource, size, pageLoadedListener);
-      if (drawable != null) {
+      if (drawInfo != null) {
+        Drawable  drawable  = getEmojiDrawable(drawInfo, size, pageLoadedListener);
         ImageSpan imageSpan = new ImageSpan(drawable, ImageSpan.ALIGN_BOTTOM);
-        text.setSpan(imageSpan, matches.start(), matches.end(),
-                     Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(imageSpan, i, i + charCount, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
       }
+
+      i += charCount;
     }
 
     return text;
   }
 
+  /**
+   * @return the sprite position for an emoji code point, or null if it isn't one we
+   * render. Replaces a regex match, hex conversion and map lookup per character.
+   */
+  @VisibleForTesting
+  static DrawInfo getDrawInfo(int codePoint) {
+    if (!isInEmojiRange(codePoint)) return null;
+
+    int index = Arrays.binarySearch(SORTED_CODE_POINTS, codePoint);
+    return index >= 0 ? SORTED_DRAW_INFO[index] : null;
+  }
+
+  private static boolean isInEmojiRange(int codePoint) {
+    for (int[] range : EMOJI_RANGES) {
+      if (codePoint >= range[0] && codePoint <= range[1]) return true;
+    }
+
+    return false;
+  }
+
+  private static DrawInfo[] getDrawInfos(Spanned text) {
+    ImageSpan[]            spans     = text.getSpans(0, text.length(), ImageSpan.class);
+    Map<Integer, DrawInfo> drawInfos = new HashMap<Integer, DrawInfo>();
+
+    for (ImageSpan span : spans) {
+      if (span.getDrawable() instanceof EmojiDrawable) {
+        DrawInfo drawInfo = ((EmojiDrawable)span.getDrawable()).drawInfo;
+        drawInfos.put(getTileKey(drawInfo), drawInfo);
+      }
+    }
+
+    return drawInfos.values().toArray(new DrawInfo[drawInfos.size()]);
+  }
+
   public Pair<Integer, Drawable> getRecentlyUsed(int position, double size, PageLoadedListener pageLoadedListener) {
     String code = EmojiLRU.getRecentlyUsed(context)[position];
     return new Pair<Integer, Drawable>(Integer.parseInt(code, 16), getEmojiDrawable(code, size, pageLoadedListener));
@@ -283,10 +462,10 @@ public class Emoji {
     if (drawInfo == null) {
       return null;
     }
-    final Drawable drawable = new EmojiDrawable(drawInfo, bigDrawSize);
+    final Drawable drawable = new EmojiDrawable(this, drawInfo);
     drawable.setBounds(0, 0, (int) ((double) bigDrawSize * size), (int) ((double) bigDrawSize * size));
-    if (bitmaps[drawInfo.page] == null) {
-      preloadPage(drawInfo.page, pageLoadedListener);
+    if (tiles.get(getTileKey(drawInfo)) == null) {
+      loadTileAsync(drawInfo, pageLoadedListener);
     }
     return drawable;
   }
@@ -349,50 +528,45 @@ public class Emoji {
   }
 
   public static class EmojiDrawable extends Drawable {
-    private final        int    index;
-    private final        int    page;
-    private final        int    emojiSize;
-    private static final Paint  paint;
-    private              Bitmap bmp;
+    private static final Handler  handler = new Handler(Looper.getMainLooper());
+    private static final Paint    paint;
+
+    private final Emoji              emoji;
+    private final DrawInfo           drawInfo;
+    private final PageLoadedListener reloadListener;
 
     static {
       paint = new Paint();
       paint.setFilterBitmap(true);
     }
 
-    public EmojiDrawable(DrawInfo info, int emojiSize) {
-      this.index = info.index;
-      this.page = info.page;
-      this.emojiSize = emojiSize;
+    public EmojiDrawable(Emoji emoji, DrawInfo info) {
+      this.emoji          = emoji;
+      this.drawInfo       = info;
+      this.reloadListener = new PageLoadedListener() {
+        @Override
+        public void onPageLoaded() {
+          handler.post(new Runnable() {
+            @Override
+            public void run() {
+              invalidateSelf();
+            }
+          });
+        }
+      };
     }
 
     @Override
     public void draw(Canvas canvas) {
-      if (bitmaps[page] == null) {
-        Log.w("Emoji", "bitmap for this page was null");
+      Bitmap tile = tiles.get(getTileKey(drawInfo));
+
+      if (tile == null) {
+        Log.w("Emoji", "bitmap for this tile was null");
+        emoji.loadTileAsync(drawInfo, reloadListener);
         return;
       }
-      if (bmp == null) {
-        bmp = bitmaps[page];
-      }
-
-      Rect b = copyBounds();
-//      int cX = b.centerX(), cY = b.centerY();
-//      b.left = cX - emojiSize / 2;
-//      b.right = cX + emojiSize / 2;
-//      b.top = cY - emojiSize / 2;
-//      b.bottom = cY + emojiSize / 2;
 
-      final int row = index / EMOJI_PER_ROW;
-      final int row_index = index % EMOJI_PER_ROW;
-
-      canvas.drawBitmap(bmp,
-                        new Rect(row_index * emojiSize,
-                                 row * emojiSize,
-                                 (row_index + 1) * emojiSize,
-                                 (row + 1) * emojiSize),
-                        b,
-                        paint);
+      canvas.drawBitmap(tile, null, getBounds(), paint);
     }
 
     @Override
@@ -409,12 +583,162 @@ public class Emoji {
     @Override
     public String toString() {
       return "EmojiDrawable{" +
-          "page=" + page +
-          ", index=" + index +
+          "page=" + drawInfo.page +
+          ", index=" + drawInfo.index +
           '}';
     }
   }
 
+  private static class SpanCacheKey {
+    private final long    messageId;
+    private final boolean mms;
+    private final double  size;
+
+    public SpanCacheKey(long messageId, boolean mms, double size) {
+      this.messageId = messageId;
+      this.mms       = mms;
+      this.size      = size;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other == null || !(other instanceof SpanCacheKey)) return false;
+
+      SpanCacheKey that = (SpanCacheKey)other;
+      return this.messageId == that.messageId && this.mms == that.mms && this.size == that.size;
+    }
+
+    @Override
+    public int hashCode() {
+      long sizeBits = Double.doubleToLongBits(size);
+      return (int)(messageId ^ (messageId >>> 32)) ^ (mms ? 1 : 0) ^ (int)(sizeBits ^ (sizeBits >>> 32));
+    }
+  }
+
+  private static class CachedSpannable {
+    private final String          source;
+    private final SpannableString text;
+    private final DrawInfo[]      tiles;
+
+    public CachedSpannable(String source, SpannableString text, DrawInfo[] tiles) {
+      this.source = source;
+      this.text   = text;
+      this.tiles  = tiles;
+    }
+  }
+
+  private interface TileDecoder {
+    public Bitmap decodeTile(DrawInfo drawInfo) throws IOException, BitmapDecodingException;
+    public void releasePage(int page);
+  }
+
+  /**
+   * Decodes just the one emoji we need out of its page's sprite.
+   */
+  @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+  private static class RegionTileDecoder implements TileDecoder {
+    private final Context               context;
+    private final int                   tileSize;
+    private final BitmapRegionDecoder[] decoders = new BitmapRegionDecoder[PAGES.length];
+
+    public RegionTileDecoder(Context context, int tileSize) {
+      this.context  = context;
+      this.tileSize = tileSize;
+    }
+
+    @Override
+    public synchronized Bitmap decodeTile(DrawInfo drawInfo) throws IOException, BitmapDecodingException {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inSampleSize          = 1;
+
+      while (EMOJI_RAW_SIZE / (options.inSampleSize * 2) >= tileSize) {
+        options.inSampleSize *= 2;
+      }
+
+      Bitmap region = getDecoder(drawInfo.page).decodeRegion(getTileRect(drawInfo.index, EMOJI_RAW_SIZE), options);
+
+      if (region == null) {
+        throw new BitmapDecodingException("Decoded region was null.");
+      }
+
+      if (region.getWidth() == tileSize && region.getHeight() == tileSize) {
+        return region;
+      }
+
+      Bitmap scaled = Bitmap.createScaledBitmap(region, tileSize, tileSize, true);
+      if (scaled != region) region.recycle();
+
+      return scaled;
+    }
+
+    @Override
+    public synchronized void releasePage(int page) {
+      if (decoders[page] != null) {
+        decoders[page].recycle();
+        decoders[page] = null;
+      }
+    }
+
+    private BitmapRegionDecoder getDecoder(int page) throws IOException {
+      if (decoders[page] == null) {
+        InputStream in = context.getAssets().open(getPageAsset(page));
+
+        try {
+          decoders[page] = BitmapRegionDecoder.newInstance(in, false);
+        } finally {
+          in.close();
+        }
+      }
+
+      return decoders[page];
+    }
+  }
+
+  /**
+   * Devices without BitmapRegionDecoder have to decode a whole page, so we hold on to
+   * the most recent one only as long as memory allows and cut tiles out of it.
+   */
+  private static class PageTileDecoder implements TileDecoder {
+    private final Context context;
+    private final int     tileSize;
+
+    private SoftReference<Bitmap> lastPage;
+    private int                   lastPageNumber = -1;
+
+    public PageTileDecoder(Context context, int tileSize) {
+      this.context  = context;
+      this.tileSize = tileSize;
+    }
+
+    @Override
+    public synchronized Bitmap decodeTile(DrawInfo drawInfo) throws IOException, BitmapDecodingException {
+      Bitmap page = (lastPage != null && lastPageNumber == drawInfo.page) ? lastPage.get() : null;
+
+      if (page == null) {
+        final InputStream measureStream = context.getAssets().open(getPageAsset(drawInfo.page));
+        final InputStream bitmapStream  = context.getAssets().open(getPageAsset(drawInfo.page));
+
+        page           = BitmapUtil.createScaledBitmap(measureStream, bitmapStream, (float) tileSize / (float) EMOJI_RAW_SIZE);
+        lastPage       = new SoftReference<Bitmap>(page);
+        lastPageNumber = drawInfo.page;
+      }
+
+      Rect tile = getTileRect(drawInfo.index, tileSize);
+
+      return Bitmap.createBitmap(page, tile.left, tile.top,
+                                 Math.min(tile.width(), page.getWidth() - tile.left),
+                                 Math.min(tile.height(), page.getHeight() - tile.top));
+    }
+
+    @Override
+    public synchronized void releasePage(int page) {
+      if (lastPageNumber == page) {
+        lastPage       = null;
+        lastPageNumber = -1;
+      }
+    }
+  }
+
   public static interface PageLoadedListener {
     public void onPageLoaded();
   }
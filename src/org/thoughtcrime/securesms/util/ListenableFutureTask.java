@@ -42,6 +42,10 @@ public class ListenableFutureTask<V> extends FutureTask<V> {
     this.listeners.remove(listener);
   }
 
+  public synchronized boolean hasListeners() {
+    return !this.listeners.isEmpty();
+  }
+
   @Override
   protected synchronized void done() {
     callback();
@@ -54,7 +58,7 @@ public class ListenableFutureTask<V> extends FutureTask<V> {
   }
 
   private void callback(FutureTaskListener<V> listener) {
-    if (listener != null) {
+    if (listener != null && !isCancelled()) {
       try {
         listener.onSuccess(get());
       } catch (InterruptedException e) {
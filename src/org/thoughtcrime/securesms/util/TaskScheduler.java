@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the app's background UI work (slide decks, thumbnails, recipients, emoji)
+ * on a few shared lanes instead of one private thread per subsystem.
+ *
+ * Each lane has its own pool and priority, and works through its queue most-recent
+ * first. Keyed tasks are deduplicated while they're pending, and anything that
+ * hasn't started yet can be cancelled, or moved to another lane when the view
+ * waiting on it goes off screen.
+ *
+ * Keyed tasks which finish while something is still listening for them are counted
+ * as useful, and those which finish with nobody left listening are counted as wasted.
+ */
+public class TaskScheduler {
+
+  public enum Lane {
+    /** Work for views which are on screen right now. */
+    VISIBLE(2, Thread.NORM_PRIORITY - 1),
+    /** Work we'd like done before it's needed, such as rows just off screen. */
+    PREFETCH(1, Thread.MIN_PRIORITY),
+    /** Housekeeping nobody is waiting on. */
+    MAINTENANCE(1, Thread.MIN_PRIORITY);
+
+    private final int defaultParallelism;
+    private final int threadPriority;
+
+    Lane(int defaultParallelism, int threadPriority) {
+      this.defaultParallelism = defaultParallelism;
+      this.threadPriority     = threadPriority;
+    }
+  }
+
+  private static final TaskScheduler instance = new TaskScheduler();
+
+  private final Map<Lane, ThreadPoolExecutor> executors    = new HashMap<Lane, ThreadPoolExecutor>();
+  private final Map<Object, KeyedTask<?>>     pendingTasks = new HashMap<Object, KeyedTask<?>>();
+
+  private final AtomicInteger useful        = new AtomicInteger(0);
+  private final AtomicInteger wasted        = new AtomicInteger(0);
+  private final AtomicInteger cancelled     = new AtomicInteger(0);
+  private final AtomicInteger deprioritized = new AtomicInteger(0);
+
+  public static TaskScheduler getInstance() {
+    return instance;
+  }
+
+  private TaskScheduler() {
+    for (Lane lane : Lane.values()) {
+      executors.put(lane, new ThreadPoolExecutor(lane.defaultParallelism, lane.defaultParallelism,
+                                                 0L, TimeUnit.MILLISECONDS,
+                                                 new LinkedBlockingLifoQueue<Runnable>(),
+                                                 new LaneThreadFactory(lane)));
+    }
+  }
+
+  public void execute(Lane lane, Runnable runnable) {
+    executors.get(lane).execute(runnable);
+  }
+
+  /**
+   * Queues a task, or hands back the one already pending under the same key.
+   */
+  @SuppressWarnings("unchecked")
+  public <V> ListenableFutureTask<V> submit(Lane lane, Object key, Callable<V> callable) {
+    synchronized (pendingTasks) {
+      KeyedTask<V> task = (KeyedTask<V>)pendingTasks.get(key);
+
+      if (task != null && !task.isDone()) {
+        return task;
+      }
+
+      task = new KeyedTask<V>(key, callable);
+      pendingTasks.put(key, task);
+      executors.get(lane).execute(task);
+
+      return task;
+    }
+  }
+
+  /**
+   * Cancels the task pending under this key if it hasn't started running yet.
+   *
+   * @return true if the task was cancelled.
+   */
+  public boolean cancel(Object key) {
+    KeyedTask<?> task;
+
+    synchronized (pendingTasks) {
+      task = pendingTasks.get(key);
+    }
+
+    return task != null && cancel(task);
+  }
+
+  public boolean cancel(Runnable task) {
+    for (ThreadPoolExecutor executor : executors.values()) {
+      if (executor.remove(task)) {
+        if (task instanceof Future) {
+          ((Future<?>)task).cancel(false);
+        }
+
+        cancelled.incrementAndGet();
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Moves a task which hasn't started yet onto another lane.
+   *
+   * @return true if the task was still queued and has been moved.
+   */
+  public boolean move(Runnable task, Lane lane) {
+    ThreadPoolExecutor destination = executors.get(lane);
+
+    for (ThreadPoolExecutor executor : executors.values()) {
+      if (executor != destination && executor.remove(task)) {
+        destination.execute(task);
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Called by a view which no longer needs a task's result, after it has removed
+   * its own listener. If nothing else is listening, a task which hasn't started
+   * is either cancelled or, when its result is shared beyond the view (such as a
+   * future held by a cached record), pushed back to the prefetch lane.
+   */
+  public void release(ListenableFutureTask<?> task, boolean cancel) {
+    if (task.isDone() || task.hasListeners()) {
+      return;
+    }
+
+    if (cancel) {
+      cancel(task);
+    } else {
+      if (move(task, Lane.PREFETCH)) deprioritized.incrementAndGet();
+    }
+  }
+
+  public Metrics getMetrics() {
+    return new Metrics(useful.get(), wasted.get(), cancelled.get(), deprioritized.get());
+  }
+
+  public void setParallelism(Lane lane, int threads) {
+    ThreadPoolExecutor executor = executors.get(lane);
+
+    synchronized (executor) {
+      if (threads > executor.getMaximumPoolSize()) {
+        executor.setMaximumPoolSize(threads);
+        executor.setCorePoolSize(threads);
+      } else {
+        executor.setCorePoolSize(threads);
+        executor.setMaximumPoolSize(threads);
+      }
+    }
+  }
+
+  private class KeyedTask<V> extends ListenableFutureTask<V> {
+    private final Object key;
+
+    public KeyedTask(Object key, Callable<V> callable) {
+      super(callable);
+      this.key = key;
+    }
+
+    @Override
+    protected synchronized void done() {
+      synchronized (pendingTasks) {
+        if (pendingTasks.get(key) == this) {
+          pendingTasks.remove(key);
+        }
+      }
+
+      if (!isCancelled()) {
+        if (hasListeners()) useful.incrementAndGet();
+        else                wasted.incrementAndGet();
+      }
+
+      super.done();
+    }
+  }
+
+  public static class Metrics {
+    private final int useful;
+    private final int wasted;
+    private final int cancelled;
+    private final int deprioritized;
+
+    private Metrics(int useful, int wasted, int cancelled, int deprioritized) {
+      this.useful        = useful;
+      this.wasted        = wasted;
+      this.cancelled     = cancelled;
+      this.deprioritized = deprioritized;
+    }
+
+    public int getUseful() {
+      return useful;
+    }
+
+    public int getWasted() {
+      return wasted;
+    }
+
+    public int getCancelled() {
+      return cancelled;
+    }
+
+    public int getDeprioritized() {
+      return deprioritized;
+    }
+
+    @Override
+    public String toString() {
+      return "useful: " + useful + ", wasted: " + wasted +
+             ", cancelled: " + cancelled + ", deprioritized: " + deprioritized;
+    }
+  }
+
+  private static class LaneThreadFactory implements ThreadFactory {
+    private final Lane          lane;
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    public LaneThreadFactory(Lane lane) {
+      this.lane = lane;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "TaskScheduler-" + lane.name().toLowerCase() + "-" + count.incrementAndGet());
+      thread.setPriority(lane.threadPriority);
+      return thread;
+    }
+  }
+}
@@ -38,6 +38,7 @@ public class TextSecurePreferences {
   private static final String AUTO_KEY_EXCHANGE_PREF           = "pref_auto_complete_key_exchange";
   public  static final String SCREEN_SECURITY_PREF             = "pref_screen_security";
   private static final String ENTER_SENDS_PREF                 = "pref_enter_sends";
+  private static final String PREFETCH_PREKEYS_PREF            = "pref_prefetch_prekeys";
   private static final String ENTER_PRESENT_PREF               = "pref_enter_key";
   private static final String SMS_DELIVERY_REPORT_PREF         = "pref_delivery_report_sms";
   private static final String THREAD_TRIM_ENABLED              = "pref_trim_threads";
@@ -49,6 +50,7 @@ public class TextSecurePreferences {
   private static final String PROMPTED_DEFAULT_SMS_PREF        = "pref_prompted_default_sms";
   private static final String SIGNALING_KEY_PREF               = "pref_signaling_key";
   private static final String DIRECTORY_FRESH_TIME_PREF        = "pref_directory_refresh_time";
+  private static final String DIRECTORY_FULL_REFRESH_TIME_PREF = "pref_directory_full_refresh_time";
   private static final String IN_THREAD_NOTIFICATION_PREF      = "pref_key_inthread_notifications";
 
   private static final String LOCAL_REGISTRATION_ID_PREF       = "pref_local_registration_id";
@@ -152,12 +154,21 @@ public class TextSecurePreferences {
     setLongPreference(context, DIRECTORY_FRESH_TIME_PREF, value);
   }
 
+  public static long getDirectoryFullRefreshTime(Context context) {
+    return getLongPreference(context, DIRECTORY_FULL_REFRESH_TIME_PREF, 0L);
+  }
+
+  public static void setDirectoryFullRefreshTime(Context context, long value) {
+    setLongPreference(context, DIRECTORY_FULL_REFRESH_TIME_PREF, value);
+  }
+
   public static String getLocalNumber(Context context) {
     return getStringPreference(context, LOCAL_NUMBER_PREF, "No Stored Number");
   }
 
   public static void setLocalNumber(Context context, String localNumber) {
     setStringPreference(context, LOCAL_NUMBER_PREF, localNumber);
+    CanonicalNumberCache.getInstance().clear();
   }
 
   public static String getPushServerPassword(Context context) {
@@ -184,6 +195,10 @@ public class TextSecurePreferences {
     return getBooleanPreference(context, ENTER_SENDS_PREF, false);
   }
 
+  public static boolean isPreKeyPrefetchEnabled(Context context) {
+    return getBooleanPreference(context, PREFETCH_PREKEYS_PREF, false);
+  }
+
   public static boolean isPasswordDisabled(Context context) {
     return getBooleanPreference(context, DISABLE_PASSPHRASE_PREF, false);
   }
@@ -32,7 +32,6 @@ import android.text.TextUtils;
 import android.text.style.StyleSpan;
 import android.widget.EditText;
 
-import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.ByteArrayOutputStream;
@@ -46,9 +45,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import ws.com.google.android.mms.pdu.CharacterSets;
 import ws.com.google.android.mms.pdu.EncodedStringValue;
@@ -69,20 +65,6 @@ public class Util {
     return result.toString();
   }
 
-  public static ExecutorService newSingleThreadedLifoExecutor() {
-    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingLifoQueue<Runnable>());
-
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-//        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-      }
-    });
-
-    return executor;
-  }
-
   public static boolean isEmpty(EncodedStringValue[] value) {
     return value == null || value.length == 0;
   }
@@ -136,7 +118,7 @@ public class Util {
       throws InvalidNumberException
   {
     String localNumber = TextSecurePreferences.getLocalNumber(context);
-    return PhoneNumberFormatter.formatNumber(number, localNumber);
+    return CanonicalNumberCache.getInstance().canonicalize(localNumber, number);
   }
 
   public static String canonicalizeNumberOrGroup(Context context, String number)